@@ -0,0 +1,96 @@
+package ca.uhn.fhir.jpa.starter.benchmark;
+
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The database versus the content-addressed filesystem binary storage (<code>hapi.fhir.binary_storage_mode</code>):
+ * storing a blob and streaming one back through the {@link IBinaryStorageSvc} of the starter, without the HTTP stack
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class BinaryStorageBenchmark {
+
+	private static final String CONTENT_TYPE = "application/octet-stream";
+
+	@Param({"database", "filesystem"})
+	public String storage;
+
+	@Param({"65536", "4194304"})
+	public int size;
+
+	private final IIdType myResourceId = new IdType("Binary/benchmark");
+	private ConfigurableApplicationContext myAppContext;
+	private IBinaryStorageSvc myBinaryStorageSvc;
+	private Path myStoragePath;
+	private byte[] myContent;
+	private long myStoreCount;
+	private String myBlobId;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException {
+		myStoragePath = Files.createTempDirectory("binary-storage-benchmark-");
+		myAppContext = StarterServerState.startServer("binary-storage-benchmark",
+			"--hapi.fhir.binary_storage_enabled=true",
+			"--hapi.fhir.binary_storage_mode=" + storage,
+			"--hapi.fhir.binary_storage_filesystem_path=" + myStoragePath);
+		myBinaryStorageSvc = myAppContext.getBean(IBinaryStorageSvc.class);
+
+		myContent = new byte[size];
+		new Random().nextBytes(myContent);
+		myBlobId = myBinaryStorageSvc.storeBlob(myResourceId, null, CONTENT_TYPE, new ByteArrayInputStream(myContent)).getBlobId();
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException {
+		if (myAppContext != null) {
+			myAppContext.close();
+		}
+		FileUtils.deleteDirectory(myStoragePath.toFile());
+	}
+
+	/**
+	 * Stores new content on every call (the filesystem storage would otherwise only store it once), so the
+	 * storage grows by {@link #size} bytes per call
+	 */
+	@Benchmark
+	public StoredDetails store() throws IOException {
+		ByteBuffer.wrap(myContent).putLong(++myStoreCount);
+		return myBinaryStorageSvc.storeBlob(myResourceId, null, CONTENT_TYPE, new ByteArrayInputStream(myContent));
+	}
+
+	@Benchmark
+	public boolean read() throws IOException {
+		return myBinaryStorageSvc.writeBlob(myResourceId, myBlobId, OutputStream.nullOutputStream());
+	}
+}
@@ -0,0 +1,61 @@
+package ca.uhn.fhir.jpa.starter.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON versus XML without the server: encoding and parsing a page of 20 search results, which is what the
+ * {@link RequestBenchmark#search} benchmark spends its encoding time on
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class EncodingBenchmark {
+
+	@Param({"json", "xml"})
+	public String encoding;
+
+	private IParser myParser;
+	private Bundle myBundle;
+	private String myEncodedBundle;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		myParser = EncodingEnum.forContentType(encoding).newParser(FhirContext.forR4Cached());
+		myBundle = new Bundle();
+		myBundle.setType(Bundle.BundleType.SEARCHSET);
+		for (int i = 0; i < 20; i++) {
+			myBundle.addEntry().setFullUrl("http://localhost/fhir/Patient/" + i).setResource(StarterServerState.newPatient(i).setId("Patient/" + i)).getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+		}
+		myEncodedBundle = myParser.encodeResourceToString(myBundle);
+	}
+
+	@Benchmark
+	public String encode() {
+		return myParser.encodeResourceToString(myBundle);
+	}
+
+	@Benchmark
+	public Bundle parse() {
+		return myParser.parseResource(Bundle.class, myEncodedBundle);
+	}
+}
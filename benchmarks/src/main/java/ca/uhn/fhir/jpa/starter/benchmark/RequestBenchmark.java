@@ -0,0 +1,73 @@
+package ca.uhn.fhir.jpa.starter.benchmark;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The request hot paths of the starter, end to end through the {@link ca.uhn.fhir.rest.server.RestfulServer}, in
+ * both encodings. Each benchmark fails if the server answers with an unexpected status.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class RequestBenchmark {
+
+	public static final int TRANSACTION_PATIENT_COUNT = 10;
+
+	@Param({"json", "xml"})
+	public String encoding;
+
+	private String myContentType;
+	private String myPatient;
+	private String myTransaction;
+
+	@Setup(Level.Trial)
+	public void setUp(StarterServerState theServer) {
+		EncodingEnum encodingEnum = EncodingEnum.forContentType(encoding);
+		myContentType = encodingEnum.getResourceContentTypeNonLegacy();
+		myPatient = encodingEnum.newParser(theServer.getFhirContext()).encodeResourceToString(StarterServerState.newPatient(0));
+		myTransaction = encodingEnum.newParser(theServer.getFhirContext()).encodeResourceToString(theServer.newTransaction(TRANSACTION_PATIENT_COUNT));
+	}
+
+	@Benchmark
+	public MockHttpServletResponse read(StarterServerState theServer) throws Exception {
+		return theServer.execute("GET", "Patient/" + theServer.getPatientId(), null, null, null, myContentType, Constants.STATUS_HTTP_200_OK);
+	}
+
+	@Benchmark
+	public MockHttpServletResponse search(StarterServerState theServer) throws Exception {
+		return theServer.execute("GET", "Patient", "family=Benchmark&_count=20", null, null, myContentType, Constants.STATUS_HTTP_200_OK);
+	}
+
+	/**
+	 * Creates {@link #TRANSACTION_PATIENT_COUNT} patients with an observation each, so the database grows by that
+	 * much per call
+	 */
+	@Benchmark
+	public MockHttpServletResponse transaction(StarterServerState theServer) throws Exception {
+		return theServer.execute("POST", "", null, myTransaction, myContentType, myContentType, Constants.STATUS_HTTP_200_OK);
+	}
+
+	@Benchmark
+	public MockHttpServletResponse validate(StarterServerState theServer) throws Exception {
+		return theServer.execute("POST", "Patient/$validate", null, myPatient, myContentType, myContentType, Constants.STATUS_HTTP_200_OK);
+	}
+}
@@ -0,0 +1,178 @@
+package ca.uhn.fhir.jpa.starter.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.Application;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.util.UrlUtil;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.eclipse.jetty.websocket.server.config.JettyWebSocketServletContainerInitializer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.embedded.jetty.JettyServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Starts the starter against an in-memory H2 database, the way the <code>*IT</code> tests do, and seeds it with
+ * patients and observations. The benchmarks call the {@link RestfulServer} built by <code>StarterJpaConfig</code>
+ * directly with mock servlet requests, so that they measure the server (parsing, the interceptor chain, the
+ * DAOs and encoding) rather than the HTTP stack.
+ */
+@State(Scope.Benchmark)
+public class StarterServerState {
+
+	public static final int PATIENT_COUNT = 100;
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private ConfigurableApplicationContext myAppContext;
+	private RestfulServer myRestfulServer;
+	private String myPatientId;
+
+	@Setup(Level.Trial)
+	public void start() throws Exception {
+		myAppContext = startServer("benchmark");
+		myRestfulServer = myAppContext.getBean(RestfulServer.class);
+
+		for (int i = 0; i < PATIENT_COUNT / 10; i++) {
+			execute("POST", "", null, myFhirContext.newJsonParser().encodeResourceToString(newTransaction(10)), Constants.CT_FHIR_JSON_NEW, Constants.CT_FHIR_JSON_NEW, 200);
+		}
+		Bundle patients = myFhirContext.newJsonParser().parseResource(Bundle.class,
+			execute("GET", "Patient", "_count=1&_elements=id", null, null, Constants.CT_FHIR_JSON_NEW, 200).getContentAsString());
+		myPatientId = patients.getEntryFirstRep().getResource().getIdElement().getIdPart();
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() {
+		if (myAppContext != null) {
+			myAppContext.close();
+		}
+	}
+
+	/**
+	 * Starts the starter against a fresh in-memory H2 database
+	 *
+	 * @param theExtraArguments further properties, e.g. <code>--hapi.fhir.binary_storage_enabled=true</code>
+	 */
+	public static ConfigurableApplicationContext startServer(String theDatabaseName, String... theExtraArguments) {
+		// Command line arguments, so that they take precedence over the application.yaml of the starter
+		List<String> arguments = new ArrayList<>(List.of(
+			"--server.port=0",
+			"--spring.datasource.url=jdbc:h2:mem:" + theDatabaseName,
+			"--spring.main.allow-bean-definition-overriding=true",
+			"--logging.level.root=WARN",
+			"--hapi.fhir.fhir_version=r4",
+			"--hapi.fhir.subscription.websocket_enabled=false",
+			"--hapi.fhir.mdm_enabled=false"));
+		arguments.addAll(List.of(theExtraArguments));
+		return new SpringApplicationBuilder(Application.class, JettyWebSocketConfig.class).run(arguments.toArray(new String[0]));
+	}
+
+	public FhirContext getFhirContext() {
+		return myFhirContext;
+	}
+
+	/**
+	 * @return the ID of one of the seeded patients
+	 */
+	public String getPatientId() {
+		return myPatientId;
+	}
+
+	/**
+	 * Sends a request to the server
+	 *
+	 * @param thePath             the path below the server base, e.g. <code>Patient/1</code>
+	 * @param theQuery            the query string, or <code>null</code>
+	 * @param theBody             the request body, or <code>null</code>
+	 * @param theExpectedStatus   the status the request must answer with, so that a broken benchmark fails rather
+	 *                            than measuring errors
+	 */
+	public MockHttpServletResponse execute(String theMethod, String thePath, String theQuery, String theBody, String theContentType, String theAccept, int theExpectedStatus) throws ServletException, IOException {
+		MockHttpServletRequest request = new MockHttpServletRequest(theMethod, "/fhir/" + thePath);
+		request.setServletPath("/fhir");
+		if (theQuery != null) {
+			request.setQueryString(theQuery);
+			request.setParameters(UrlUtil.parseQueryString(theQuery));
+		}
+		if (theBody != null) {
+			request.setContent(theBody.getBytes(StandardCharsets.UTF_8));
+			request.setContentType(theContentType + ";charset=UTF-8");
+			request.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		}
+		request.addHeader(Constants.HEADER_ACCEPT, theAccept);
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		myRestfulServer.service(request, response);
+		if (response.getStatus() != theExpectedStatus) {
+			throw new IllegalStateException(theMethod + " " + thePath + " answered " + response.getStatus() + ": " + response.getContentAsString());
+		}
+		return response;
+	}
+
+	/**
+	 * @return a transaction creating the given number of patients, each with an observation
+	 */
+	public Bundle newTransaction(int thePatientCount) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < thePatientCount; i++) {
+			Patient patient = newPatient(i);
+			String patientUrl = "urn:uuid:" + UUID.randomUUID();
+			bundle.addEntry().setFullUrl(patientUrl).setResource(patient).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+
+			Observation observation = new Observation();
+			observation.setStatus(Observation.ObservationStatus.FINAL);
+			observation.getCode().addCoding().setSystem("http://loinc.org").setCode("29463-7").setDisplay("Body weight");
+			observation.setSubject(new Reference(patientUrl));
+			observation.setValue(new Quantity().setValue(60 + i).setUnit("kg").setSystem("http://unitsofmeasure.org").setCode("kg"));
+			bundle.addEntry().setFullUrl("urn:uuid:" + UUID.randomUUID()).setResource(observation).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+		}
+		return bundle;
+	}
+
+	public static Patient newPatient(int theIndex) {
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("http://example.org/mrn").setValue("MRN-" + UUID.randomUUID());
+		patient.addName().setFamily("Benchmark").addGiven("Patient" + theIndex);
+		patient.setGender(theIndex % 2 == 0 ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE);
+		patient.addAddress().setCity("Toronto").setCountry("CA").addLine(theIndex + " Main Street");
+		patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("555-01" + theIndex);
+		return patient;
+	}
+
+	/**
+	 * Same as the <code>JpaStarterWebsocketDispatcherConfig</code> of the tests: lets the websocket support of the
+	 * starter start on Jetty
+	 */
+	@Configuration
+	public static class JettyWebSocketConfig {
+
+		@Bean
+		public WebServerFactoryCustomizer<JettyServletWebServerFactory> jettyWebSocketCustomizer() {
+			return factory -> factory.addServerCustomizers(server -> JettyWebSocketServletContainerInitializer.configure((WebAppContext) server.getHandler(), null));
+		}
+	}
+}
@@ -4,6 +4,13 @@ package ca.uhn.fhir.jpa.starter;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.jpa.api.config.DaoConfig.ClientIdStrategyEnum;
 import ca.uhn.fhir.jpa.model.entity.NormalizedQuantitySearchLevel;
+import ca.uhn.fhir.jpa.starter.common.binary.BinaryStorageModeEnum;
+import ca.uhn.fhir.jpa.starter.common.bulk.BulkExportCompressionEnum;
+import ca.uhn.fhir.jpa.starter.common.cache.CacheInvalidationModeEnum;
+import ca.uhn.fhir.jpa.starter.common.logging.AccessLogDropPolicyEnum;
+import ca.uhn.fhir.jpa.starter.common.logging.AccessLogFormatEnum;
+import ca.uhn.fhir.jpa.starter.common.execution.ExecutionModelEnum;
+import ca.uhn.fhir.jpa.starter.common.paging.PagingModeEnum;
 import ca.uhn.fhir.rest.api.EncodingEnum;
 import com.google.common.collect.ImmutableList;
 import org.hl7.fhir.r4.model.Bundle;
@@ -12,6 +19,7 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.context.annotation.Configuration;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -46,13 +54,22 @@ public class AppProperties {
   private Boolean filter_search_enabled = true;
   private Boolean graphql_enabled = false;
   private Boolean binary_storage_enabled = false;
+  private BinaryStorageModeEnum binary_storage_mode = BinaryStorageModeEnum.DATABASE;
+  private String binary_storage_filesystem_path = "./target/binaries";
+  private Boolean binary_storage_migrate_database_blobs = false;
   private Integer inline_resource_storage_below_size = 0;
   private Boolean bulk_export_enabled = false;
+  private BulkExportFiles bulk_export_files = new BulkExportFiles();
+  private BulkExportIncremental bulk_export_incremental = new BulkExportIncremental();
   private Boolean bulk_import_enabled = false;
+  private Boolean bulk_import_copy_enabled = false;
+  private BulkImportPipeline bulk_import_pipeline = new BulkImportPipeline();
   private Boolean default_pretty_print = true;
   private Integer default_page_size = 20;
   private Integer max_binary_size = null;
   private Integer max_page_size = Integer.MAX_VALUE;
+  private PagingModeEnum paging_mode = PagingModeEnum.OFFSET;
+  private ExecutionModelEnum execution_model = ExecutionModelEnum.PLATFORM_THREADS;
   private Integer defer_indexing_for_codesystems_of_size = 100;
   private Long retain_cached_searches_mins = 60L;
   private Long reuse_cached_search_results_millis = 60000L;
@@ -63,14 +80,24 @@ public class AppProperties {
   private List<String> supported_resource_types = new ArrayList<>();
   private List<Bundle.BundleType> allowed_bundle_types = null;
   private Boolean narrative_enabled = true;
+  private Boolean capability_statement_cache_enabled = false;
 
   private Validation validation = new Validation();
+  private PagingCache paging_cache = new PagingCache();
+  private SecondLevelCache second_level_cache = new SecondLevelCache();
+  private IngestionTuning ingestion_tuning = new IngestionTuning();
   private Map<String, Tester> tester = null;
   private Logger logger = new Logger();
+  private RequestMetrics request_metrics = new RequestMetrics();
+  private JdbcStatistics jdbc_statistics = new JdbcStatistics();
+  private SlowSearches slow_searches = new SlowSearches();
   private Subscription subscription = new Subscription();
   private Cors cors = null;
   private Partitioning partitioning = null;
   private Boolean install_transitive_ig_dependencies = true;
+  private Integer ig_install_parallelism = 4;
+  private Boolean ig_install_in_background = false;
+  private String ig_package_cache_path = null;
   private Map<String, ImplementationGuide> implementationGuides = null;
 
 	private String staticLocation = null;
@@ -223,6 +250,30 @@ public class AppProperties {
     this.validation = validation;
   }
 
+  public PagingCache getPaging_cache() {
+    return paging_cache;
+  }
+
+  public void setPaging_cache(PagingCache paging_cache) {
+    this.paging_cache = paging_cache;
+  }
+
+  public SecondLevelCache getSecond_level_cache() {
+    return second_level_cache;
+  }
+
+  public void setSecond_level_cache(SecondLevelCache second_level_cache) {
+    this.second_level_cache = second_level_cache;
+  }
+
+  public IngestionTuning getIngestion_tuning() {
+    return ingestion_tuning;
+  }
+
+  public void setIngestion_tuning(IngestionTuning ingestion_tuning) {
+    this.ingestion_tuning = ingestion_tuning;
+  }
+
   public List<String> getSupported_resource_types() {
     return supported_resource_types;
   }
@@ -239,6 +290,30 @@ public class AppProperties {
     this.logger = logger;
   }
 
+  public RequestMetrics getRequest_metrics() {
+    return request_metrics;
+  }
+
+  public void setRequest_metrics(RequestMetrics request_metrics) {
+    this.request_metrics = request_metrics;
+  }
+
+  public JdbcStatistics getJdbc_statistics() {
+    return jdbc_statistics;
+  }
+
+  public void setJdbc_statistics(JdbcStatistics jdbc_statistics) {
+    this.jdbc_statistics = jdbc_statistics;
+  }
+
+  public SlowSearches getSlow_searches() {
+    return slow_searches;
+  }
+
+  public void setSlow_searches(SlowSearches slow_searches) {
+    this.slow_searches = slow_searches;
+  }
+
   public ClientIdStrategyEnum getClient_id_strategy() {
     return client_id_strategy;
   }
@@ -420,6 +495,30 @@ public class AppProperties {
     this.binary_storage_enabled = binary_storage_enabled;
   }
 
+  public BinaryStorageModeEnum getBinary_storage_mode() {
+    return binary_storage_mode;
+  }
+
+  public void setBinary_storage_mode(BinaryStorageModeEnum binary_storage_mode) {
+    this.binary_storage_mode = binary_storage_mode;
+  }
+
+  public String getBinary_storage_filesystem_path() {
+    return binary_storage_filesystem_path;
+  }
+
+  public void setBinary_storage_filesystem_path(String binary_storage_filesystem_path) {
+    this.binary_storage_filesystem_path = binary_storage_filesystem_path;
+  }
+
+  public Boolean getBinary_storage_migrate_database_blobs() {
+    return binary_storage_migrate_database_blobs;
+  }
+
+  public void setBinary_storage_migrate_database_blobs(Boolean binary_storage_migrate_database_blobs) {
+    this.binary_storage_migrate_database_blobs = binary_storage_migrate_database_blobs;
+  }
+
 	public Integer getInline_resource_storage_below_size() {
 		return inline_resource_storage_below_size;
 	}
@@ -436,6 +535,22 @@ public class AppProperties {
     this.bulk_export_enabled = bulk_export_enabled;
   }
 
+  public BulkExportFiles getBulk_export_files() {
+    return bulk_export_files;
+  }
+
+  public void setBulk_export_files(BulkExportFiles bulk_export_files) {
+    this.bulk_export_files = bulk_export_files;
+  }
+
+  public BulkExportIncremental getBulk_export_incremental() {
+    return bulk_export_incremental;
+  }
+
+  public void setBulk_export_incremental(BulkExportIncremental bulk_export_incremental) {
+    this.bulk_export_incremental = bulk_export_incremental;
+  }
+
   public Boolean getBulk_import_enabled() {
     return bulk_import_enabled;
   }
@@ -444,6 +559,22 @@ public class AppProperties {
     this.bulk_import_enabled = bulk_import_enabled;
   }
 
+  public Boolean getBulk_import_copy_enabled() {
+    return bulk_import_copy_enabled;
+  }
+
+  public void setBulk_import_copy_enabled(Boolean bulk_import_copy_enabled) {
+    this.bulk_import_copy_enabled = bulk_import_copy_enabled;
+  }
+
+  public BulkImportPipeline getBulk_import_pipeline() {
+    return bulk_import_pipeline;
+  }
+
+  public void setBulk_import_pipeline(BulkImportPipeline bulk_import_pipeline) {
+    this.bulk_import_pipeline = bulk_import_pipeline;
+  }
+
   public EncodingEnum getDefault_encoding() {
     return default_encoding;
   }
@@ -476,6 +607,22 @@ public class AppProperties {
     this.max_page_size = max_page_size;
   }
 
+  public PagingModeEnum getPaging_mode() {
+    return paging_mode;
+  }
+
+  public void setPaging_mode(PagingModeEnum paging_mode) {
+    this.paging_mode = paging_mode;
+  }
+
+  public ExecutionModelEnum getExecution_model() {
+    return execution_model;
+  }
+
+  public void setExecution_model(ExecutionModelEnum execution_model) {
+    this.execution_model = execution_model;
+  }
+
   public Long getRetain_cached_searches_mins() {
     return retain_cached_searches_mins;
   }
@@ -514,6 +661,14 @@ public class AppProperties {
     this.narrative_enabled = narrative_enabled;
   }
 
+  public Boolean getCapability_statement_cache_enabled() {
+    return capability_statement_cache_enabled;
+  }
+
+  public void setCapability_statement_cache_enabled(Boolean capability_statement_cache_enabled) {
+    this.capability_statement_cache_enabled = capability_statement_cache_enabled;
+  }
+
   public Boolean getLastn_enabled() {
     return lastn_enabled;
   }
@@ -546,6 +701,30 @@ public class AppProperties {
 		this.install_transitive_ig_dependencies = install_transitive_ig_dependencies;
 	}
 
+	public Integer getIg_install_parallelism() {
+		return ig_install_parallelism;
+	}
+
+	public void setIg_install_parallelism(Integer ig_install_parallelism) {
+		this.ig_install_parallelism = ig_install_parallelism;
+	}
+
+	public Boolean getIg_install_in_background() {
+		return ig_install_in_background;
+	}
+
+	public void setIg_install_in_background(Boolean ig_install_in_background) {
+		this.ig_install_in_background = ig_install_in_background;
+	}
+
+	public String getIg_package_cache_path() {
+		return ig_package_cache_path;
+	}
+
+	public void setIg_package_cache_path(String ig_package_cache_path) {
+		this.ig_package_cache_path = ig_package_cache_path;
+	}
+
 	public Integer getBundle_batch_pool_size() {
 		return this.bundle_batch_pool_size;
 	}
@@ -589,12 +768,145 @@ public class AppProperties {
 
   }
 
+  /**
+   * Times the requests of the server in Micrometer, see
+   * {@link ca.uhn.fhir.jpa.starter.common.metrics.RequestMetricsInterceptor}
+   */
+  public static class RequestMetrics {
+
+    private Boolean enabled = false;
+    private List<Long> slo_millis = new ArrayList<>(List.of(10L, 25L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L));
+    private Boolean percentile_histogram = false;
+    private Integer max_tenants = 50;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public List<Long> getSlo_millis() {
+      return slo_millis;
+    }
+
+    public void setSlo_millis(List<Long> slo_millis) {
+      this.slo_millis = slo_millis;
+    }
+
+    public Boolean getPercentile_histogram() {
+      return percentile_histogram;
+    }
+
+    public void setPercentile_histogram(Boolean percentile_histogram) {
+      this.percentile_histogram = percentile_histogram;
+    }
+
+    public Integer getMax_tenants() {
+      return max_tenants;
+    }
+
+    public void setMax_tenants(Integer max_tenants) {
+      this.max_tenants = max_tenants;
+    }
+  }
+
+  /**
+   * Counts the JDBC work of each request, see
+   * {@link ca.uhn.fhir.jpa.starter.common.jdbc.JdbcStatisticsInterceptor}
+   */
+  public static class JdbcStatistics {
+
+    private Boolean enabled = false;
+    private Boolean response_headers = false;
+    private Integer max_shapes = 200;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Boolean getResponse_headers() {
+      return response_headers;
+    }
+
+    public void setResponse_headers(Boolean response_headers) {
+      this.response_headers = response_headers;
+    }
+
+    public Integer getMax_shapes() {
+      return max_shapes;
+    }
+
+    public void setMax_shapes(Integer max_shapes) {
+      this.max_shapes = max_shapes;
+    }
+  }
+
+  /**
+   * Keeps the slowest searches in memory, see
+   * {@link ca.uhn.fhir.jpa.starter.common.search.SlowSearchRecorder}
+   */
+  public static class SlowSearches {
+
+    private Boolean enabled = false;
+    private Integer capacity = 20;
+    private Integer window_minutes = 60;
+    private Long min_millis = 100L;
+    private Integer max_statements = 50;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Integer getCapacity() {
+      return capacity;
+    }
+
+    public void setCapacity(Integer capacity) {
+      this.capacity = capacity;
+    }
+
+    public Integer getWindow_minutes() {
+      return window_minutes;
+    }
+
+    public void setWindow_minutes(Integer window_minutes) {
+      this.window_minutes = window_minutes;
+    }
+
+    public Long getMin_millis() {
+      return min_millis;
+    }
+
+    public void setMin_millis(Long min_millis) {
+      this.min_millis = min_millis;
+    }
+
+    public Integer getMax_statements() {
+      return max_statements;
+    }
+
+    public void setMax_statements(Integer max_statements) {
+      this.max_statements = max_statements;
+    }
+  }
+
   public static class Logger {
 
     private String name = "fhirtest.access";
     private String error_format = "ERROR - ${requestVerb} ${requestUrl}";
-    private String format = "Path[${servletPath}] Source[${requestHeader.x-forwarded-for}] Operation[${operationType} ${operationName} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] ResponseEncoding[${responseEncodingNoDefault}] Operation[${operationType} ${operationName} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] ResponseEncoding[${responseEncodingNoDefault}]";
+    private String format = "Path[${servletPath}] Source[${requestHeader.x-forwarded-for}] Operation[${operationType} ${operationName} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] ResponseEncoding[${responseEncodingNoDefault}]";
     private Boolean log_exceptions = true;
+    private Async async = new Async();
 
     public String getName() {
       return name;
@@ -627,6 +939,72 @@ public class AppProperties {
     public void setLog_exceptions(Boolean log_exceptions) {
       this.log_exceptions = log_exceptions;
     }
+
+    public Async getAsync() {
+      return async;
+    }
+
+    public void setAsync(Async async) {
+      this.async = async;
+    }
+
+    public static class Async {
+
+      private Boolean enabled = false;
+      private Integer buffer_size = 8192;
+      private Integer batch_size = 256;
+      private AccessLogDropPolicyEnum drop_policy = AccessLogDropPolicyEnum.DROP;
+      private AccessLogFormatEnum output_format = AccessLogFormatEnum.TEXT;
+      private List<String> headers = new ArrayList<>(List.of("x-forwarded-for", "user-agent"));
+
+      public Boolean getEnabled() {
+        return enabled;
+      }
+
+      public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+      }
+
+      public Integer getBuffer_size() {
+        return buffer_size;
+      }
+
+      public void setBuffer_size(Integer buffer_size) {
+        this.buffer_size = buffer_size;
+      }
+
+      public Integer getBatch_size() {
+        return batch_size;
+      }
+
+      public void setBatch_size(Integer batch_size) {
+        this.batch_size = batch_size;
+      }
+
+      public AccessLogDropPolicyEnum getDrop_policy() {
+        return drop_policy;
+      }
+
+      public void setDrop_policy(AccessLogDropPolicyEnum drop_policy) {
+        this.drop_policy = drop_policy;
+      }
+
+      public AccessLogFormatEnum getOutput_format() {
+        return output_format;
+      }
+
+      public void setOutput_format(AccessLogFormatEnum output_format) {
+        this.output_format = output_format;
+      }
+
+      public List<String> getHeaders() {
+        return headers;
+      }
+
+      public void setHeaders(List<String> headers) {
+        this.headers = headers;
+      }
+    }
   }
 
 
@@ -705,6 +1083,14 @@ public class AppProperties {
 
     private Boolean requests_enabled = false;
     private Boolean responses_enabled = false;
+    private Boolean result_cache_enabled = false;
+    private Long result_cache_max_entries = 10000L;
+    private Long result_cache_expire_after_write_seconds = 600L;
+    private String snapshot_cache_path = null;
+    private Integer snapshot_cache_max_entries = 10000;
+    private ResponseSampling response_sampling = new ResponseSampling();
+    private SupportCache support_cache = new SupportCache();
+    private Prewarm prewarm = new Prewarm();
 
     public Boolean getRequests_enabled() {
       return requests_enabled;
@@ -721,6 +1107,432 @@ public class AppProperties {
     public void setResponses_enabled(Boolean responses_enabled) {
       this.responses_enabled = responses_enabled;
     }
+
+    public Boolean getResult_cache_enabled() {
+      return result_cache_enabled;
+    }
+
+    public void setResult_cache_enabled(Boolean result_cache_enabled) {
+      this.result_cache_enabled = result_cache_enabled;
+    }
+
+    public Long getResult_cache_max_entries() {
+      return result_cache_max_entries;
+    }
+
+    public void setResult_cache_max_entries(Long result_cache_max_entries) {
+      this.result_cache_max_entries = result_cache_max_entries;
+    }
+
+    public Long getResult_cache_expire_after_write_seconds() {
+      return result_cache_expire_after_write_seconds;
+    }
+
+    public void setResult_cache_expire_after_write_seconds(Long result_cache_expire_after_write_seconds) {
+      this.result_cache_expire_after_write_seconds = result_cache_expire_after_write_seconds;
+    }
+
+    public String getSnapshot_cache_path() {
+      return snapshot_cache_path;
+    }
+
+    public void setSnapshot_cache_path(String snapshot_cache_path) {
+      this.snapshot_cache_path = snapshot_cache_path;
+    }
+
+    public Integer getSnapshot_cache_max_entries() {
+      return snapshot_cache_max_entries;
+    }
+
+    public void setSnapshot_cache_max_entries(Integer snapshot_cache_max_entries) {
+      this.snapshot_cache_max_entries = snapshot_cache_max_entries;
+    }
+
+    public ResponseSampling getResponse_sampling() {
+      return response_sampling;
+    }
+
+    public void setResponse_sampling(ResponseSampling response_sampling) {
+      this.response_sampling = response_sampling;
+    }
+
+    public SupportCache getSupport_cache() {
+      return support_cache;
+    }
+
+    public void setSupport_cache(SupportCache support_cache) {
+      this.support_cache = support_cache;
+    }
+
+    public Prewarm getPrewarm() {
+      return prewarm;
+    }
+
+    public void setPrewarm(Prewarm prewarm) {
+      this.prewarm = prewarm;
+    }
+
+    public static class ResponseSampling {
+
+      private Boolean enabled = false;
+      private Double rate = 0.01;
+      private List<String> resource_types = new ArrayList<>();
+      private Integer threads = 2;
+      private Integer queue_size = 100;
+
+      public Boolean getEnabled() {
+        return enabled;
+      }
+
+      public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+      }
+
+      public Double getRate() {
+        return rate;
+      }
+
+      public void setRate(Double rate) {
+        this.rate = rate;
+      }
+
+      public List<String> getResource_types() {
+        return resource_types;
+      }
+
+      public void setResource_types(List<String> resource_types) {
+        this.resource_types = resource_types;
+      }
+
+      public Integer getThreads() {
+        return threads;
+      }
+
+      public void setThreads(Integer threads) {
+        this.threads = threads;
+      }
+
+      public Integer getQueue_size() {
+        return queue_size;
+      }
+
+      public void setQueue_size(Integer queue_size) {
+        this.queue_size = queue_size;
+      }
+    }
+
+    public static class SupportCache {
+
+      private Long expand_value_set_millis = 60000L;
+      private Long validate_code_millis = 600000L;
+      private Long lookup_code_millis = 600000L;
+      private Long translate_code_millis = 1000L;
+      private Long misc_millis = 600000L;
+
+      public Long getExpand_value_set_millis() {
+        return expand_value_set_millis;
+      }
+
+      public void setExpand_value_set_millis(Long expand_value_set_millis) {
+        this.expand_value_set_millis = expand_value_set_millis;
+      }
+
+      public Long getValidate_code_millis() {
+        return validate_code_millis;
+      }
+
+      public void setValidate_code_millis(Long validate_code_millis) {
+        this.validate_code_millis = validate_code_millis;
+      }
+
+      public Long getLookup_code_millis() {
+        return lookup_code_millis;
+      }
+
+      public void setLookup_code_millis(Long lookup_code_millis) {
+        this.lookup_code_millis = lookup_code_millis;
+      }
+
+      public Long getTranslate_code_millis() {
+        return translate_code_millis;
+      }
+
+      public void setTranslate_code_millis(Long translate_code_millis) {
+        this.translate_code_millis = translate_code_millis;
+      }
+
+      public Long getMisc_millis() {
+        return misc_millis;
+      }
+
+      public void setMisc_millis(Long misc_millis) {
+        this.misc_millis = misc_millis;
+      }
+    }
+
+    public static class Prewarm {
+
+      private Boolean enabled = false;
+      private Integer parallelism = null;
+      private List<String> value_sets = new ArrayList<>();
+
+      public Boolean getEnabled() {
+        return enabled;
+      }
+
+      public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+      }
+
+      public Integer getParallelism() {
+        return parallelism;
+      }
+
+      public void setParallelism(Integer parallelism) {
+        this.parallelism = parallelism;
+      }
+
+      public List<String> getValue_sets() {
+        return value_sets;
+      }
+
+      public void setValue_sets(List<String> value_sets) {
+        this.value_sets = value_sets;
+      }
+    }
+  }
+
+  public static class PagingCache {
+
+    private Boolean enabled = false;
+    private Long max_cached_pids = 1000000L;
+    private Long ttl_mins = null;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Long getMax_cached_pids() {
+      return max_cached_pids;
+    }
+
+    public void setMax_cached_pids(Long max_cached_pids) {
+      this.max_cached_pids = max_cached_pids;
+    }
+
+    public Long getTtl_mins() {
+      return ttl_mins;
+    }
+
+    public void setTtl_mins(Long ttl_mins) {
+      this.ttl_mins = ttl_mins;
+    }
+  }
+
+  public static class SecondLevelCache {
+
+    private Boolean enabled = false;
+    private Map<String, Region> regions = new LinkedHashMap<>(Map.of("ResourceTable", new Region(), "ForcedId", new Region()));
+    private CacheInvalidationModeEnum invalidation_mode = CacheInvalidationModeEnum.NONE;
+    private Long invalidation_poll_millis = 1000L;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Map<String, Region> getRegions() {
+      return regions;
+    }
+
+    public void setRegions(Map<String, Region> regions) {
+      this.regions = regions;
+    }
+
+    public CacheInvalidationModeEnum getInvalidation_mode() {
+      return invalidation_mode;
+    }
+
+    public void setInvalidation_mode(CacheInvalidationModeEnum invalidation_mode) {
+      this.invalidation_mode = invalidation_mode;
+    }
+
+    public Long getInvalidation_poll_millis() {
+      return invalidation_poll_millis;
+    }
+
+    public void setInvalidation_poll_millis(Long invalidation_poll_millis) {
+      this.invalidation_poll_millis = invalidation_poll_millis;
+    }
+
+    public static class Region {
+
+      private Long max_entries = 10000L;
+      private Long expire_after_write_seconds = 600L;
+
+      public Long getMax_entries() {
+        return max_entries;
+      }
+
+      public void setMax_entries(Long max_entries) {
+        this.max_entries = max_entries;
+      }
+
+      public Long getExpire_after_write_seconds() {
+        return expire_after_write_seconds;
+      }
+
+      public void setExpire_after_write_seconds(Long expire_after_write_seconds) {
+        this.expire_after_write_seconds = expire_after_write_seconds;
+      }
+    }
+  }
+
+  /**
+   * Read by {@link ca.uhn.fhir.jpa.starter.util.EnvironmentHelper#getHibernateProperties} before the entity
+   * manager factory is built
+   */
+  public static class IngestionTuning {
+
+    private Boolean enabled = false;
+    private Integer jdbc_batch_size = null;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Integer getJdbc_batch_size() {
+      return jdbc_batch_size;
+    }
+
+    public void setJdbc_batch_size(Integer jdbc_batch_size) {
+      this.jdbc_batch_size = jdbc_batch_size;
+    }
+  }
+
+  /**
+   * Writes bulk export output to files instead of Binary resources, see
+   * {@link ca.uhn.fhir.jpa.starter.common.bulk.BulkExportFileStore}
+   */
+  public static class BulkExportFiles {
+
+    private Boolean enabled = false;
+    private String directory = "bulk-export";
+    private BulkExportCompressionEnum compression = BulkExportCompressionEnum.GZIP;
+    private Integer cleanup_interval_minutes = 10;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public String getDirectory() {
+      return directory;
+    }
+
+    public void setDirectory(String directory) {
+      this.directory = directory;
+    }
+
+    public BulkExportCompressionEnum getCompression() {
+      return compression;
+    }
+
+    public void setCompression(BulkExportCompressionEnum compression) {
+      this.compression = compression;
+    }
+
+    public Integer getCleanup_interval_minutes() {
+      return cleanup_interval_minutes;
+    }
+
+    public void setCleanup_interval_minutes(Integer cleanup_interval_minutes) {
+      this.cleanup_interval_minutes = cleanup_interval_minutes;
+    }
+  }
+
+  /**
+   * Lets $export clients export what changed since their last export, see
+   * {@link ca.uhn.fhir.jpa.starter.common.bulk.IncrementalBulkExportInterceptor}
+   */
+  public static class BulkExportIncremental {
+
+    private Boolean enabled = false;
+    private Integer overlap_seconds = 60;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Integer getOverlap_seconds() {
+      return overlap_seconds;
+    }
+
+    public void setOverlap_seconds(Integer overlap_seconds) {
+      this.overlap_seconds = overlap_seconds;
+    }
+  }
+
+  /**
+   * Parses bulk imported NDJSON on several threads and stores it in batches, see
+   * {@link ca.uhn.fhir.jpa.starter.common.bulk.NdJsonImportPipeline}
+   */
+  public static class BulkImportPipeline {
+
+    private Boolean enabled = false;
+    private Integer parser_threads = Runtime.getRuntime().availableProcessors();
+    private Integer batch_size = 100;
+    private Integer queue_capacity = 4;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Integer getParser_threads() {
+      return parser_threads;
+    }
+
+    public void setParser_threads(Integer parser_threads) {
+      this.parser_threads = parser_threads;
+    }
+
+    public Integer getBatch_size() {
+      return batch_size;
+    }
+
+    public void setBatch_size(Integer batch_size) {
+      this.batch_size = batch_size;
+    }
+
+    public Integer getQueue_capacity() {
+      return queue_capacity;
+    }
+
+    public void setQueue_capacity(Integer queue_capacity) {
+      this.queue_capacity = queue_capacity;
+    }
   }
 
   public static class Partitioning {
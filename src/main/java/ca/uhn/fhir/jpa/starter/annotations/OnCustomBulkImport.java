@@ -0,0 +1,17 @@
+package ca.uhn.fhir.jpa.starter.annotations;
+
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+public class OnCustomBulkImport implements Condition {
+	@Override
+	public boolean matches(ConditionContext conditionContext, AnnotatedTypeMetadata metadata) {
+
+		AppProperties config = Binder.get(conditionContext.getEnvironment()).bind("hapi.fhir", AppProperties.class).orElse(null);
+		if (config == null) return false;
+		return Boolean.TRUE.equals(config.getBulk_import_copy_enabled()) || Boolean.TRUE.equals(config.getBulk_import_pipeline().getEnabled());
+	}
+}
@@ -0,0 +1,22 @@
+package ca.uhn.fhir.jpa.starter.annotations;
+
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.common.execution.ExecutionModelEnum;
+import ca.uhn.fhir.jpa.starter.common.execution.VirtualThreads;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+/**
+ * Matches when <code>hapi.fhir.execution_model</code> is <code>virtual-threads</code> and the JVM has them
+ */
+public class OnVirtualThreadsCondition implements Condition {
+	@Override
+	public boolean matches(ConditionContext conditionContext, AnnotatedTypeMetadata metadata) {
+
+		AppProperties config = Binder.get(conditionContext.getEnvironment()).bind("hapi.fhir", AppProperties.class).orElse(null);
+		if (config == null) return false;
+		return config.getExecution_model() == ExecutionModelEnum.VIRTUAL_THREADS && VirtualThreads.isSupported();
+	}
+}
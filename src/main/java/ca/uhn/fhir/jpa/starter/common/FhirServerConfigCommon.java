@@ -1,13 +1,17 @@
 package ca.uhn.fhir.jpa.starter.common;
 
+import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
 import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
-import ca.uhn.fhir.jpa.binstore.DatabaseBlobBinaryStorageSvcImpl;
 import ca.uhn.fhir.jpa.config.HibernatePropertiesProvider;
 import ca.uhn.fhir.jpa.model.config.PartitionSettings;
 import ca.uhn.fhir.jpa.model.config.PartitionSettings.CrossPartitionReferenceMode;
 import ca.uhn.fhir.jpa.model.entity.ModelConfig;
 import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.common.binary.BinaryStorageModeEnum;
+import ca.uhn.fhir.jpa.starter.common.binary.ContentAddressedBinaryStorageSvcImpl;
+import ca.uhn.fhir.jpa.starter.common.binary.DatabaseBlobMigrationSvc;
+import ca.uhn.fhir.jpa.starter.common.binary.StreamingDatabaseBlobBinaryStorageSvcImpl;
 import ca.uhn.fhir.jpa.starter.util.JpaHibernatePropertiesProvider;
 import ca.uhn.fhir.jpa.subscription.channel.subscription.SubscriptionDeliveryHandlerFactory;
 import ca.uhn.fhir.jpa.subscription.match.deliver.email.EmailSenderImpl;
@@ -18,12 +22,15 @@ import ca.uhn.fhir.rest.server.mail.MailSvc;
 import com.google.common.base.Strings;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.dstu2.model.Subscription;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.env.YamlPropertySourceLoader;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.Primary;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 import java.util.HashSet;
@@ -210,8 +217,15 @@ public class FhirServerConfigCommon {
 
   @Lazy
   @Bean
-  public IBinaryStorageSvc binaryStorageSvc(AppProperties appProperties) {
-    DatabaseBlobBinaryStorageSvcImpl binaryStorageSvc = new DatabaseBlobBinaryStorageSvcImpl();
+  public IBinaryStorageSvc binaryStorageSvc(AppProperties appProperties, AutowireCapableBeanFactory beanFactory) {
+    IBinaryStorageSvc binaryStorageSvc;
+    if (appProperties.getBinary_storage_mode() == BinaryStorageModeEnum.FILESYSTEM) {
+      // Blobs stored before switching to the filesystem are still read from the database
+      IBinaryStorageSvc databaseBinaryStorageSvc = (IBinaryStorageSvc) beanFactory.createBean(StreamingDatabaseBlobBinaryStorageSvcImpl.class, AutowireCapableBeanFactory.AUTOWIRE_NO, false);
+      binaryStorageSvc = new ContentAddressedBinaryStorageSvcImpl(appProperties.getBinary_storage_filesystem_path(), databaseBinaryStorageSvc);
+    } else {
+      binaryStorageSvc = new StreamingDatabaseBlobBinaryStorageSvcImpl();
+    }
 
     if (appProperties.getMax_binary_size() != null) {
       binaryStorageSvc.setMaximumBinarySize(appProperties.getMax_binary_size());
@@ -220,6 +234,15 @@ public class FhirServerConfigCommon {
     return binaryStorageSvc;
   }
 
+  @Bean
+  @ConditionalOnProperty(prefix = "hapi.fhir", name = "binary_storage_migrate_database_blobs", havingValue = "true")
+  public DatabaseBlobMigrationSvc databaseBlobMigrationSvc(AppProperties appProperties, IBinaryStorageSvc binaryStorageSvc, PlatformTransactionManager transactionManager) {
+    if (!(binaryStorageSvc instanceof ContentAddressedBinaryStorageSvcImpl)) {
+      throw new ConfigurationException("binary_storage_migrate_database_blobs requires binary_storage_mode: filesystem");
+    }
+    return new DatabaseBlobMigrationSvc((ContentAddressedBinaryStorageSvcImpl) binaryStorageSvc, transactionManager);
+  }
+
   @Bean
   public IEmailSender emailSender(AppProperties appProperties, Optional<SubscriptionDeliveryHandlerFactory> subscriptionDeliveryHandlerFactory) {
     if (appProperties.getSubscription() != null && appProperties.getSubscription().getEmail() != null) {
@@ -1,7 +1,23 @@
 package ca.uhn.fhir.jpa.starter.common;
 
 import ca.uhn.fhir.batch2.coordinator.JobDefinitionRegistry;
+import ca.uhn.fhir.batch2.api.IJobStepWorker;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.jobs.export.BulkExportAppCtx;
+import ca.uhn.fhir.batch2.jobs.export.BulkExportCreateReportStep;
+import ca.uhn.fhir.batch2.jobs.export.BulkExportJobParametersValidator;
+import ca.uhn.fhir.batch2.jobs.export.ExpandResourcesStep;
+import ca.uhn.fhir.batch2.jobs.export.FetchResourceIdsStep;
+import ca.uhn.fhir.batch2.jobs.export.models.BulkExportBinaryFileId;
+import ca.uhn.fhir.batch2.jobs.export.models.BulkExportJobParameters;
+import ca.uhn.fhir.batch2.jobs.export.models.ExpandedResourcesList;
+import ca.uhn.fhir.batch2.jobs.export.models.ResourceIdList;
 import ca.uhn.fhir.batch2.jobs.imprt.BulkDataImportProvider;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportAppCtx;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportJobParameters;
+import ca.uhn.fhir.batch2.jobs.imprt.ConsumeFilesStep;
+import ca.uhn.fhir.batch2.jobs.imprt.NdJsonFileJson;
 import ca.uhn.fhir.batch2.jobs.reindex.ReindexJobParameters;
 import ca.uhn.fhir.batch2.jobs.reindex.ReindexProvider;
 import ca.uhn.fhir.batch2.model.JobDefinition;
@@ -10,17 +26,19 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.IDaoRegistry;
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
-import ca.uhn.fhir.jpa.api.config.ThreadPoolFactoryConfig;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.api.svc.ISearchCoordinatorSvc;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.binary.interceptor.BinaryStorageInterceptor;
 import ca.uhn.fhir.jpa.binary.provider.BinaryAccessProvider;
+import ca.uhn.fhir.jpa.api.model.BulkExportJobResults;
 import ca.uhn.fhir.jpa.bulk.export.provider.BulkDataExportProvider;
 import ca.uhn.fhir.jpa.config.util.HapiEntityManagerFactoryUtil;
 import ca.uhn.fhir.jpa.config.util.ResourceCountCacheUtil;
-import ca.uhn.fhir.jpa.config.util.ValidationSupportConfigUtil;
 import ca.uhn.fhir.jpa.dao.FulltextSearchSvcImpl;
 import ca.uhn.fhir.jpa.dao.IFulltextSearchSvc;
 import ca.uhn.fhir.jpa.dao.mdm.MdmLinkDaoJpaImpl;
@@ -31,18 +49,63 @@ import ca.uhn.fhir.jpa.graphql.GraphQLProvider;
 import ca.uhn.fhir.jpa.interceptor.CascadingDeleteInterceptor;
 import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
 import ca.uhn.fhir.jpa.ips.provider.IpsOperationProvider;
+import ca.uhn.fhir.jpa.model.config.PartitionSettings;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
 import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
-import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
 import ca.uhn.fhir.jpa.partition.PartitionManagementProvider;
 import ca.uhn.fhir.jpa.provider.*;
 import ca.uhn.fhir.jpa.provider.dstu3.JpaConformanceProviderDstu3;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
 import ca.uhn.fhir.jpa.search.IStaleSearchDeletingSvc;
 import ca.uhn.fhir.jpa.search.StaleSearchDeletingSvcImpl;
+import ca.uhn.fhir.jpa.search.cache.ISearchCacheSvc;
+import ca.uhn.fhir.jpa.search.cache.ISearchResultCacheSvc;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.annotations.OnCorsPresent;
+import ca.uhn.fhir.jpa.starter.annotations.OnCustomBulkImport;
 import ca.uhn.fhir.jpa.starter.annotations.OnImplementationGuidesPresent;
+import ca.uhn.fhir.jpa.starter.common.binary.StreamingBinaryAccessProvider;
+import ca.uhn.fhir.jpa.starter.common.bulk.BulkExportFileInterceptor;
+import ca.uhn.fhir.jpa.starter.common.bulk.BulkExportFileStore;
+import ca.uhn.fhir.jpa.starter.common.bulk.BulkExportFileWriteStep;
+import ca.uhn.fhir.jpa.starter.common.bulk.BulkExportHighWaterMarkEntity;
+import ca.uhn.fhir.jpa.starter.common.bulk.BulkImportConsumeFilesStep;
+import ca.uhn.fhir.jpa.starter.common.bulk.IncrementalBulkExportInterceptor;
+import ca.uhn.fhir.jpa.starter.common.bulk.NdJsonImportPipeline;
+import ca.uhn.fhir.jpa.starter.common.bulk.PostgresCopyResourceWriter;
+import ca.uhn.fhir.jpa.starter.common.cache.CacheInvalidationBroadcaster;
+import ca.uhn.fhir.jpa.starter.common.cache.CacheInvalidationEntity;
+import ca.uhn.fhir.jpa.starter.common.cache.CacheInvalidationModeEnum;
+import ca.uhn.fhir.jpa.starter.common.cache.CaffeineRegionFactory;
+import ca.uhn.fhir.jpa.starter.common.cache.DatabaseCacheInvalidationBroadcaster;
+import ca.uhn.fhir.jpa.starter.common.cache.LocalCacheInvalidationBroadcaster;
+import ca.uhn.fhir.jpa.starter.common.cache.SecondLevelCacheInvalidator;
+import ca.uhn.fhir.jpa.starter.common.capability.CapabilityStatementCache;
+import ca.uhn.fhir.jpa.starter.common.capability.CapabilityStatementCacheInterceptor;
+import ca.uhn.fhir.jpa.starter.common.jdbc.JdbcStatisticsCollector;
+import ca.uhn.fhir.jpa.starter.common.jdbc.JdbcStatisticsInterceptor;
+import ca.uhn.fhir.jpa.starter.common.execution.ExecutionModelConfig;
+import ca.uhn.fhir.jpa.starter.common.ig.ImplementationGuideInstaller;
+import ca.uhn.fhir.jpa.starter.common.ig.InstalledPackageEntity;
+import ca.uhn.fhir.jpa.starter.common.ig.LocalPackageCache;
+import ca.uhn.fhir.jpa.starter.common.logging.AsyncAccessLogInterceptor;
+import ca.uhn.fhir.jpa.starter.common.metrics.RequestMetricsInterceptor;
+import ca.uhn.fhir.jpa.starter.common.paging.CachingSearchCoordinatorSvc;
+import ca.uhn.fhir.jpa.starter.common.paging.KeysetPagingProvider;
+import ca.uhn.fhir.jpa.starter.common.paging.KeysetSearchResultCacheSvc;
+import ca.uhn.fhir.jpa.starter.common.paging.PagingModeEnum;
+import ca.uhn.fhir.jpa.starter.common.search.SlowSearchEndpoint;
+import ca.uhn.fhir.jpa.starter.common.search.SlowSearchInterceptor;
+import ca.uhn.fhir.jpa.starter.common.search.SlowSearchProvider;
+import ca.uhn.fhir.jpa.starter.common.search.SlowSearchRecorder;
+import ca.uhn.fhir.jpa.starter.common.validation.CachingValidatorModule;
 import ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory;
+import ca.uhn.fhir.jpa.starter.common.validation.SampledResponseValidatingInterceptor;
+import ca.uhn.fhir.jpa.starter.common.validation.SnapshotCachingValidationSupport;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidationResultCache;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidationSupportPrewarmer;
 import ca.uhn.fhir.jpa.starter.ips.IpsConfigCondition;
 import ca.uhn.fhir.jpa.starter.util.EnvironmentHelper;
 import ca.uhn.fhir.jpa.subscription.util.SubscriptionDebugLogInterceptor;
@@ -60,14 +123,20 @@ import ca.uhn.fhir.rest.server.interceptor.partition.RequestTenantPartitionInter
 import ca.uhn.fhir.rest.server.provider.ResourceProviderFactory;
 import ca.uhn.fhir.rest.server.tenant.UrlBaseTenantIdentificationStrategy;
 import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
+import ca.uhn.fhir.util.Batch2JobDefinitionConstants;
 import ca.uhn.fhir.validation.IValidatorModule;
 import ca.uhn.fhir.validation.ResultSeverityEnum;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
 import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.*;
@@ -75,11 +144,15 @@ import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.http.HttpHeaders;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.web.cors.CorsConfiguration;
 
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
 
 import static ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory.ENABLE_REPOSITORY_VALIDATING_INTERCEPTOR;
@@ -88,7 +161,7 @@ import static ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInt
 //allow users to configure custom packages to scan for additional beans
 @ComponentScan(basePackages = { "${hapi.fhir.custom-bean-packages:}" })
 @Import(
-    ThreadPoolFactoryConfig.class
+    ExecutionModelConfig.class
 )
 public class StarterJpaConfig {
 
@@ -106,8 +179,28 @@ public class StarterJpaConfig {
 
 	@Primary
 	@Bean
-	public CachingValidationSupport validationSupportChain(JpaValidationSupportChain theJpaValidationSupportChain) {
-		return ValidationSupportConfigUtil.newCachingValidationSupport(theJpaValidationSupportChain);
+	public CachingValidationSupport validationSupportChain(JpaValidationSupportChain theJpaValidationSupportChain, FhirContext fhirContext, AppProperties appProperties) {
+		IValidationSupport validationSupport = theJpaValidationSupportChain;
+		String snapshotCachePath = appProperties.getValidation().getSnapshot_cache_path();
+		if (StringUtils.isNotBlank(snapshotCachePath)) {
+			validationSupport = new SnapshotCachingValidationSupport(fhirContext, theJpaValidationSupportChain, Paths.get(snapshotCachePath), appProperties.getValidation().getSnapshot_cache_max_entries());
+		}
+		AppProperties.Validation.SupportCache supportCache = appProperties.getValidation().getSupport_cache();
+		CachingValidationSupport.CacheTimeouts cacheTimeouts = CachingValidationSupport.CacheTimeouts.defaultValues()
+			.setExpandValueSetMillis(supportCache.getExpand_value_set_millis())
+			.setValidateCodeMillis(supportCache.getValidate_code_millis())
+			.setLookupCodeMillis(supportCache.getLookup_code_millis())
+			.setTranslateCodeMillis(supportCache.getTranslate_code_millis())
+			.setMiscMillis(supportCache.getMisc_millis());
+		return new CachingValidationSupport(validationSupport, cacheTimeouts, false);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.validation.prewarm", name = "enabled", havingValue = "true")
+	public ValidationSupportPrewarmer validationSupportPrewarmer(FhirContext fhirContext, CachingValidationSupport validationSupportChain, IValidatorModule validatorModule, AppProperties appProperties) {
+		AppProperties.Validation.Prewarm prewarm = appProperties.getValidation().getPrewarm();
+		int parallelism = prewarm.getParallelism() == null ? Runtime.getRuntime().availableProcessors() : prewarm.getParallelism();
+		return new ValidationSupportPrewarmer(fhirContext, validationSupportChain, validatorModule, prewarm.getValue_sets(), parallelism);
 	}
 
 
@@ -120,12 +213,49 @@ public class StarterJpaConfig {
 	 */
 	@Bean
 	public DatabaseBackedPagingProvider databaseBackedPagingProvider(AppProperties appProperties) {
-		DatabaseBackedPagingProvider pagingProvider = new DatabaseBackedPagingProvider();
+		DatabaseBackedPagingProvider pagingProvider = appProperties.getPaging_mode() == PagingModeEnum.KEYSET ? new KeysetPagingProvider() : new DatabaseBackedPagingProvider();
 		pagingProvider.setDefaultPageSize(appProperties.getDefault_page_size());
 		pagingProvider.setMaximumPageSize(appProperties.getMax_page_size());
 		return pagingProvider;
 	}
 
+	/**
+	 * In keyset paging mode, pages of search results are read with a range seek on the search
+	 * order instead of an OFFSET query.
+	 */
+	@Primary
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "paging_mode", havingValue = "keyset")
+	public ISearchResultCacheSvc keysetSearchResultCacheSvc(@Qualifier("searchResultCacheSvc") ISearchResultCacheSvc theSearchResultCacheSvc) {
+		return new KeysetSearchResultCacheSvc(theSearchResultCacheSvc);
+	}
+
+	/**
+	 * Keeps recently served pages of search result PIDs in memory so that paging through a
+	 * search doesn't go back to the database for every page. The cache never holds pages longer
+	 * than the search results themselves are retained, nor past the time the search may be deleted.
+	 */
+	@Primary
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.paging_cache", name = "enabled", havingValue = "true")
+	public ISearchCoordinatorSvc<JpaPid> cachingSearchCoordinatorSvc(@Qualifier("searchCoordinatorSvc") ISearchCoordinatorSvc<JpaPid> theSearchCoordinatorSvc, ISearchCacheSvc theSearchCacheSvc, DaoConfig theDaoConfig, AppProperties appProperties, MeterRegistry meterRegistry) {
+		AppProperties.PagingCache pagingCache = appProperties.getPaging_cache();
+		long retainCachedSearchesMinutes = appProperties.getRetain_cached_searches_mins();
+		long ttlMinutes = retainCachedSearchesMinutes;
+		if (pagingCache.getTtl_mins() != null) {
+			if (pagingCache.getTtl_mins() > retainCachedSearchesMinutes) {
+				ourLog.warn("Paging cache TTL of {} minutes exceeds retain_cached_searches_mins, using {} minutes", pagingCache.getTtl_mins(), retainCachedSearchesMinutes);
+			} else {
+				ttlMinutes = pagingCache.getTtl_mins();
+			}
+		}
+		ourLog.info("Paging cache enabled with room for {} result PIDs and a TTL of {} minutes", pagingCache.getMax_cached_pids(), ttlMinutes);
+
+		CachingSearchCoordinatorSvc retVal = new CachingSearchCoordinatorSvc(theSearchCoordinatorSvc, theSearchCacheSvc, theDaoConfig, pagingCache.getMax_cached_pids(), Duration.ofMinutes(ttlMinutes));
+		retVal.bindMetrics(meterRegistry);
+		return retVal;
+	}
+
 
 	@Bean
 	public IResourceSupportedSvc resourceSupportedSvc(IDaoRegistry theDaoRegistry) {
@@ -139,19 +269,61 @@ public class StarterJpaConfig {
 
 	@Primary
 	@Bean
-	public LocalContainerEntityManagerFactoryBean entityManagerFactory(DataSource myDataSource, ConfigurableListableBeanFactory myConfigurableListableBeanFactory, FhirContext theFhirContext) {
+	public LocalContainerEntityManagerFactoryBean entityManagerFactory(DataSource myDataSource, ConfigurableListableBeanFactory myConfigurableListableBeanFactory, FhirContext theFhirContext, AppProperties appProperties, Optional<CaffeineRegionFactory> regionFactory, Optional<JdbcStatisticsCollector> jdbcStatisticsCollector) {
 		LocalContainerEntityManagerFactoryBean retVal = HapiEntityManagerFactoryUtil.newEntityManagerFactory(myConfigurableListableBeanFactory, theFhirContext);
 		retVal.setPersistenceUnitName("HAPI_PU");
+		retVal.setPersistenceUnitPostProcessors(persistenceUnit -> {
+			persistenceUnit.addManagedClassName(InstalledPackageEntity.class.getName());
+			if (appProperties.getBulk_export_incremental().getEnabled()) {
+				persistenceUnit.addManagedClassName(BulkExportHighWaterMarkEntity.class.getName());
+			}
+			if (regionFactory.isPresent() && appProperties.getSecond_level_cache().getInvalidation_mode() == CacheInvalidationModeEnum.DATABASE) {
+				persistenceUnit.addManagedClassName(CacheInvalidationEntity.class.getName());
+			}
+		});
 
 		try {
-			retVal.setDataSource(myDataSource);
+			retVal.setDataSource(jdbcStatisticsCollector.map(t -> t.wrap(myDataSource)).orElse(myDataSource));
 		} catch (Exception e) {
 			throw new ConfigurationException("Could not set the data source due to a configuration issue", e);
 		}
 		retVal.setJpaProperties(EnvironmentHelper.getHibernateProperties(configurableEnvironment, myConfigurableListableBeanFactory));
+		regionFactory.ifPresent(t -> retVal.getJpaPropertyMap().putAll(t.getHibernateProperties()));
+		return retVal;
+	}
+
+	/**
+	 * Caches the entities of the configured regions (by default, resources and their client-assigned IDs) in a
+	 * second-level cache, instead of loading them from the database on every read
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.second_level_cache", name = "enabled", havingValue = "true")
+	public CaffeineRegionFactory caffeineRegionFactory(AppProperties appProperties, MeterRegistry meterRegistry) {
+		CaffeineRegionFactory retVal = new CaffeineRegionFactory(appProperties.getSecond_level_cache().getRegions());
+		retVal.bindMetrics(meterRegistry);
+		return retVal;
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.second_level_cache", name = "enabled", havingValue = "true")
+	@ConditionalOnMissingBean(CacheInvalidationBroadcaster.class)
+	public CacheInvalidationBroadcaster cacheInvalidationBroadcaster(AppProperties appProperties, PlatformTransactionManager transactionManager) {
+		AppProperties.SecondLevelCache secondLevelCache = appProperties.getSecond_level_cache();
+		if (secondLevelCache.getInvalidation_mode() == CacheInvalidationModeEnum.NONE) {
+			ourLog.info("Second-level cache invalidations are not shared with other servers");
+			return new LocalCacheInvalidationBroadcaster();
+		}
+		DatabaseCacheInvalidationBroadcaster retVal = new DatabaseCacheInvalidationBroadcaster(transactionManager, Duration.ofMillis(secondLevelCache.getInvalidation_poll_millis()));
+		retVal.start();
 		return retVal;
 	}
 
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.second_level_cache", name = "enabled", havingValue = "true")
+	public SecondLevelCacheInvalidator secondLevelCacheInvalidator(EntityManagerFactory entityManagerFactory, CaffeineRegionFactory caffeineRegionFactory, CacheInvalidationBroadcaster cacheInvalidationBroadcaster, MeterRegistry meterRegistry) {
+		return new SecondLevelCacheInvalidator(entityManagerFactory, caffeineRegionFactory, cacheInvalidationBroadcaster, meterRegistry);
+	}
+
 	@Bean
 	@Primary
 	public JpaTransactionManager transactionManager(EntityManagerFactory entityManagerFactory) {
@@ -166,6 +338,29 @@ public class StarterJpaConfig {
 	}
 
 
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.validation", name = "result_cache_enabled", havingValue = "true")
+	public ValidationResultCache validationResultCache(FhirContext fhirContext, AppProperties appProperties, IInterceptorService interceptorService, MeterRegistry meterRegistry, Optional<CacheInvalidationBroadcaster> cacheInvalidationBroadcaster) {
+		AppProperties.Validation validation = appProperties.getValidation();
+		ValidationResultCache retVal = new ValidationResultCache(fhirContext, validation.getResult_cache_max_entries(), Duration.ofSeconds(validation.getResult_cache_expire_after_write_seconds()));
+		retVal.bindMetrics(meterRegistry);
+		cacheInvalidationBroadcaster.ifPresent(retVal::setBroadcaster);
+		// Registered globally, so profiles and terminology stored by the package installer invalidate it too
+		interceptorService.registerInterceptor(retVal);
+		return retVal;
+	}
+
+	/**
+	 * Validates a sample of the responses in the background, instead of validating every response before
+	 * it is sent
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.validation.response_sampling", name = "enabled", havingValue = "true")
+	public SampledResponseValidatingInterceptor sampledResponseValidatingInterceptor(FhirContext fhirContext, IValidatorModule validatorModule, AppProperties appProperties, MeterRegistry meterRegistry) {
+		AppProperties.Validation.ResponseSampling sampling = appProperties.getValidation().getResponse_sampling();
+		return new SampledResponseValidatingInterceptor(fhirContext, validatorModule, sampling.getRate(), sampling.getResource_types(), Math.max(1, sampling.getThreads()), sampling.getQueue_size(), meterRegistry);
+	}
+
 	@Bean
 	@ConditionalOnProperty(prefix = "hapi.fhir", name = ENABLE_REPOSITORY_VALIDATING_INTERCEPTOR, havingValue = "true")
 	public RepositoryValidatingInterceptor repositoryValidatingInterceptor(IRepositoryValidationInterceptorFactory factory) {
@@ -187,27 +382,188 @@ public class StarterJpaConfig {
 		return loggingInterceptor;
 	}
 
+	/**
+	 * Replaces the loggingInterceptor with one that formats and writes the access log on a
+	 * background thread, so the request thread only records the fields to be logged.
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.logger.async", name = "enabled", havingValue = "true")
+	public AsyncAccessLogInterceptor asyncAccessLogInterceptor(AppProperties appProperties, MeterRegistry meterRegistry) {
+		AppProperties.Logger logger = appProperties.getLogger();
+		AppProperties.Logger.Async async = logger.getAsync();
+		AsyncAccessLogInterceptor retVal = new AsyncAccessLogInterceptor(logger.getName(), logger.getFormat(), logger.getError_format(), logger.getLog_exceptions(), async.getOutput_format(), async.getDrop_policy(), async.getBuffer_size(), async.getBatch_size(), async.getHeaders());
+		retVal.bindMetrics(meterRegistry);
+		retVal.start();
+		return retVal;
+	}
+
+	/**
+	 * Attributes the JDBC work of the entity manager's DataSource to the request that caused it
+	 */
+	@Bean
+	@ConditionalOnExpression("${hapi.fhir.jdbc_statistics.enabled:false} or ${hapi.fhir.slow_searches.enabled:false}")
+	public JdbcStatisticsCollector jdbcStatisticsCollector() {
+		return new JdbcStatisticsCollector();
+	}
+
+	/**
+	 * Attributes JDBC statements, rows and time to the request that caused them
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.jdbc_statistics", name = "enabled", havingValue = "true")
+	public JdbcStatisticsInterceptor jdbcStatisticsInterceptor(FhirContext fhirContext, AppProperties appProperties, MeterRegistry meterRegistry) {
+		AppProperties.JdbcStatistics jdbcStatistics = appProperties.getJdbc_statistics();
+		return new JdbcStatisticsInterceptor(fhirContext, meterRegistry, jdbcStatistics.getResponse_headers(), jdbcStatistics.getMax_shapes());
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.slow_searches", name = "enabled", havingValue = "true")
+	public SlowSearchRecorder slowSearchRecorder(AppProperties appProperties) {
+		AppProperties.SlowSearches slowSearches = appProperties.getSlow_searches();
+		return new SlowSearchRecorder(slowSearches.getCapacity(), Duration.ofMinutes(slowSearches.getWindow_minutes()), slowSearches.getMin_millis());
+	}
+
+	/**
+	 * Records the slowest searches, with the SQL they issued
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.slow_searches", name = "enabled", havingValue = "true")
+	public SlowSearchInterceptor slowSearchInterceptor(FhirContext fhirContext, SlowSearchRecorder slowSearchRecorder, AppProperties appProperties) {
+		return new SlowSearchInterceptor(fhirContext, slowSearchRecorder, appProperties.getSlow_searches().getMax_statements());
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.slow_searches", name = "enabled", havingValue = "true")
+	public SlowSearchProvider slowSearchProvider(FhirContext fhirContext, SlowSearchRecorder slowSearchRecorder) {
+		return new SlowSearchProvider(fhirContext, slowSearchRecorder);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.slow_searches", name = "enabled", havingValue = "true")
+	public SlowSearchEndpoint slowSearchEndpoint(SlowSearchRecorder slowSearchRecorder) {
+		return new SlowSearchEndpoint(slowSearchRecorder);
+	}
+
+	/**
+	 * Times every request by FHIR interaction, resource type, tenant and status
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.request_metrics", name = "enabled", havingValue = "true")
+	public RequestMetricsInterceptor requestMetricsInterceptor(FhirContext fhirContext, AppProperties appProperties, MeterRegistry meterRegistry) {
+		AppProperties.RequestMetrics requestMetrics = appProperties.getRequest_metrics();
+		return new RequestMetricsInterceptor(fhirContext, meterRegistry, requestMetrics.getSlo_millis(), requestMetrics.getPercentile_histogram(), requestMetrics.getMax_tenants());
+	}
+
+	/**
+	 * Keeps serialized CapabilityStatements so that /metadata doesn't re-encode them on every request.
+	 * Cached entries are dropped whenever a SearchParameter changes.
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "capability_statement_cache_enabled", havingValue = "true")
+	public CapabilityStatementCache capabilityStatementCache(ISearchParamRegistry searchParamRegistry, IResourceChangeListenerRegistry resourceChangeListenerRegistry) {
+		CapabilityStatementCache capabilityStatementCache = new CapabilityStatementCache(searchParamRegistry);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("SearchParameter", SearchParameterMap.newSynchronous(), capabilityStatementCache, DateUtils.MILLIS_PER_MINUTE);
+		return capabilityStatementCache;
+	}
+
+	@Bean
+	@Conditional(OnImplementationGuidesPresent.class)
+	public ImplementationGuideInstaller implementationGuideInstaller(AppProperties appProperties, IHapiPackageCacheManager packageCacheManager, @Qualifier("npmInstallerSvc") IPackageInstallerSvc packageInstallerSvc, PlatformTransactionManager transactionManager, Optional<CapabilityStatementCache> capabilityStatementCache) {
+		LocalPackageCache localPackageCache = null;
+		if (StringUtils.isNotBlank(appProperties.getIg_package_cache_path())) {
+			localPackageCache = new LocalPackageCache(Paths.get(appProperties.getIg_package_cache_path()));
+		}
+		return new ImplementationGuideInstaller(appProperties, packageCacheManager, packageInstallerSvc, transactionManager, capabilityStatementCache, localPackageCache);
+	}
+
 	@Bean("packageInstaller")
 	@Primary
 	@Conditional(OnImplementationGuidesPresent.class)
-	public IPackageInstallerSvc packageInstaller(AppProperties appProperties, JobDefinition<ReindexJobParameters> reindexJobParametersJobDefinition, JobDefinitionRegistry jobDefinitionRegistry, IPackageInstallerSvc packageInstallerSvc)
+	public IPackageInstallerSvc packageInstaller(JobDefinition<ReindexJobParameters> reindexJobParametersJobDefinition, JobDefinitionRegistry jobDefinitionRegistry, @Qualifier("npmInstallerSvc") IPackageInstallerSvc packageInstallerSvc)
 	{
+		// The guides themselves are installed by the ImplementationGuideInstaller once the context has started
 		jobDefinitionRegistry.addJobDefinitionIfNotRegistered(reindexJobParametersJobDefinition);
-
-		if (appProperties.getImplementationGuides() != null) {
-			Map<String, AppProperties.ImplementationGuide> guides = appProperties.getImplementationGuides();
-			for (Map.Entry<String, AppProperties.ImplementationGuide> guide : guides.entrySet()) {
-				PackageInstallationSpec packageInstallationSpec = new PackageInstallationSpec().setPackageUrl(guide.getValue().getUrl()).setName(guide.getValue().getName()).setVersion(guide.getValue().getVersion()).setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL);
-				if (appProperties.getInstall_transitive_ig_dependencies()) {
-					packageInstallationSpec.setFetchDependencies(true);
-					packageInstallationSpec.setDependencyExcludes(ImmutableList.of("hl7.fhir.r2.core", "hl7.fhir.r3.core", "hl7.fhir.r4.core", "hl7.fhir.r5.core"));
-				}
-				packageInstallerSvc.install(packageInstallationSpec);
-			}
-		}
 		return packageInstallerSvc;
 	}
 
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "bulk_import_copy_enabled", havingValue = "true")
+	public PostgresCopyResourceWriter postgresCopyResourceWriter(FhirContext fhirContext, DaoRegistry daoRegistry, DaoConfig daoConfig, PartitionSettings partitionSettings) {
+		return new PostgresCopyResourceWriter(fhirContext, daoRegistry, daoConfig, partitionSettings);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "bulk_export_files.enabled", havingValue = "true")
+	public BulkExportFileStore bulkExportFileStore(AppProperties appProperties, IJobCoordinator jobCoordinator) throws IOException {
+		AppProperties.BulkExportFiles config = appProperties.getBulk_export_files();
+		BulkExportFileStore retVal = new BulkExportFileStore(Paths.get(config.getDirectory()), config.getCompression(), jobCoordinator, Duration.ofMinutes(config.getCleanup_interval_minutes()));
+		retVal.start();
+		return retVal;
+	}
+
+	/**
+	 * A later version of the bulk export job, which $export starts instead of the one of HAPI FHIR, and whose
+	 * write step creates files of the {@link BulkExportFileStore} instead of Binary resources
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "bulk_export_files.enabled", havingValue = "true")
+	public JobDefinition<BulkExportJobParameters> bulkExportFileJobDefinition(BulkExportFileStore bulkExportFileStore, BulkExportJobParametersValidator bulkExportJobParametersValidator, FetchResourceIdsStep fetchResourceIdsStep, ExpandResourcesStep expandResourcesStep, BulkExportCreateReportStep createReportStep) {
+		return JobDefinition.newBuilder()
+			.setJobDefinitionId(Batch2JobDefinitionConstants.BULK_EXPORT)
+			.setJobDescription("FHIR Bulk Export to files")
+			.setJobDefinitionVersion(2)
+			.setParametersType(BulkExportJobParameters.class)
+			.setParametersValidator(bulkExportJobParametersValidator)
+			.gatedExecution()
+			.addFirstStep("fetch-resources", "Fetches resource PIDs for exporting", ResourceIdList.class, fetchResourceIdsStep)
+			.addIntermediateStep("expand-resources", "Expand out resources", ExpandedResourcesList.class, expandResourcesStep)
+			.addIntermediateStep(BulkExportAppCtx.WRITE_TO_BINARIES, "Writes the expanded resources to files", BulkExportBinaryFileId.class, new BulkExportFileWriteStep(bulkExportFileStore))
+			.addFinalReducerStep("create-report-step", "Creates the output report from a bulk export job", BulkExportJobResults.class, createReportStep)
+			.build();
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "bulk_export_files.enabled", havingValue = "true")
+	public BulkExportFileInterceptor bulkExportFileInterceptor(BulkExportFileStore bulkExportFileStore) {
+		return new BulkExportFileInterceptor(bulkExportFileStore);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "bulk_export_incremental.enabled", havingValue = "true")
+	public IncrementalBulkExportInterceptor incrementalBulkExportInterceptor(FhirContext fhirContext, IJobCoordinator jobCoordinator, PlatformTransactionManager transactionManager, AppProperties appProperties) {
+		return new IncrementalBulkExportInterceptor(fhirContext, jobCoordinator, transactionManager, Duration.ofSeconds(appProperties.getBulk_export_incremental().getOverlap_seconds()));
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "bulk_import_pipeline.enabled", havingValue = "true")
+	public NdJsonImportPipeline ndJsonImportPipeline(FhirContext fhirContext, AppProperties appProperties, MeterRegistry meterRegistry) {
+		AppProperties.BulkImportPipeline config = appProperties.getBulk_import_pipeline();
+		return new NdJsonImportPipeline(fhirContext, config.getParser_threads(), config.getBatch_size(), config.getQueue_capacity(), meterRegistry);
+	}
+
+	/**
+	 * A later version of the bulk import job, which $import starts instead of the one of HAPI FHIR, and whose
+	 * last step copies the resources into PostgreSQL and/or stores them through the import pipeline
+	 */
+	@Bean
+	@Conditional(OnCustomBulkImport.class)
+	public JobDefinition<BulkImportJobParameters> bulkImportCopyJobDefinition(FhirContext fhirContext, Optional<PostgresCopyResourceWriter> postgresCopyResourceWriter, Optional<NdJsonImportPipeline> ndJsonImportPipeline, @Qualifier("bulkImport2FetchFiles") IJobStepWorker<BulkImportJobParameters, VoidModel, NdJsonFileJson> fetchFilesStep, @Qualifier("bulkImport2ConsumeFiles") IJobStepWorker<BulkImportJobParameters, NdJsonFileJson, VoidModel> consumeFilesStep, PlatformTransactionManager transactionManager) {
+		return JobDefinition.newBuilder()
+			.setJobDefinitionId(BulkImportAppCtx.JOB_BULK_IMPORT_PULL)
+			.setJobDescription("FHIR Bulk Import using pull-based data source, copying into PostgreSQL or pipelined")
+			.setJobDefinitionVersion(2)
+			.setParametersType(BulkImportJobParameters.class)
+			.addFirstStep("fetch-files", "Fetch files for import", NdJsonFileJson.class, fetchFilesStep)
+			.addLastStep("process-files", "Process files", new BulkImportConsumeFilesStep(fhirContext, postgresCopyResourceWriter.orElse(null), ndJsonImportPipeline.orElse(null), (ConsumeFilesStep) consumeFilesStep, transactionManager))
+			.build();
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "binary_storage_enabled", havingValue = "true")
+	public StreamingBinaryAccessProvider streamingBinaryAccessProvider(BinaryAccessProvider binaryAccessProvider) {
+		return new StreamingBinaryAccessProvider(binaryAccessProvider);
+	}
+
 	@Bean
 	@Conditional(OnCorsPresent.class)
 	public CorsInterceptor corsInterceptor(AppProperties appProperties) {
@@ -240,7 +596,7 @@ public class StarterJpaConfig {
 	}
 
 	@Bean
-	public RestfulServer restfulServer(IFhirSystemDao<?, ?> fhirSystemDao, AppProperties appProperties, DaoRegistry daoRegistry, Optional<MdmProviderLoader> mdmProviderProvider, IJpaSystemProvider jpaSystemProvider, ResourceProviderFactory resourceProviderFactory, DaoConfig daoConfig, ISearchParamRegistry searchParamRegistry, IValidationSupport theValidationSupport, DatabaseBackedPagingProvider databaseBackedPagingProvider, LoggingInterceptor loggingInterceptor, Optional<TerminologyUploaderProvider> terminologyUploaderProvider, Optional<SubscriptionTriggeringProvider> subscriptionTriggeringProvider, Optional<CorsInterceptor> corsInterceptor, IInterceptorBroadcaster interceptorBroadcaster, Optional<BinaryAccessProvider> binaryAccessProvider, BinaryStorageInterceptor binaryStorageInterceptor, IValidatorModule validatorModule, Optional<GraphQLProvider> graphQLProvider, BulkDataExportProvider bulkDataExportProvider, BulkDataImportProvider bulkDataImportProvider, ValueSetOperationProvider theValueSetOperationProvider, ReindexProvider reindexProvider, PartitionManagementProvider partitionManagementProvider, Optional<RepositoryValidatingInterceptor> repositoryValidatingInterceptor, IPackageInstallerSvc packageInstallerSvc, ThreadSafeResourceDeleterSvc theThreadSafeResourceDeleterSvc, ApplicationContext appContext, Optional<IpsOperationProvider> theIpsOperationProvider) {
+	public RestfulServer restfulServer(IFhirSystemDao<?, ?> fhirSystemDao, AppProperties appProperties, DaoRegistry daoRegistry, Optional<MdmProviderLoader> mdmProviderProvider, IJpaSystemProvider jpaSystemProvider, ResourceProviderFactory resourceProviderFactory, DaoConfig daoConfig, ISearchParamRegistry searchParamRegistry, IValidationSupport theValidationSupport, DatabaseBackedPagingProvider databaseBackedPagingProvider, LoggingInterceptor loggingInterceptor, Optional<TerminologyUploaderProvider> terminologyUploaderProvider, Optional<SubscriptionTriggeringProvider> subscriptionTriggeringProvider, Optional<CorsInterceptor> corsInterceptor, IInterceptorBroadcaster interceptorBroadcaster, Optional<StreamingBinaryAccessProvider> binaryAccessProvider, BinaryStorageInterceptor binaryStorageInterceptor, IValidatorModule validatorModule, Optional<GraphQLProvider> graphQLProvider, BulkDataExportProvider bulkDataExportProvider, BulkDataImportProvider bulkDataImportProvider, ValueSetOperationProvider theValueSetOperationProvider, ReindexProvider reindexProvider, PartitionManagementProvider partitionManagementProvider, Optional<RepositoryValidatingInterceptor> repositoryValidatingInterceptor, IPackageInstallerSvc packageInstallerSvc, ThreadSafeResourceDeleterSvc theThreadSafeResourceDeleterSvc, ApplicationContext appContext, Optional<IpsOperationProvider> theIpsOperationProvider, Optional<AsyncAccessLogInterceptor> asyncAccessLogInterceptor, Optional<CapabilityStatementCache> capabilityStatementCache, Optional<ValidationResultCache> validationResultCache, Optional<SampledResponseValidatingInterceptor> sampledResponseValidatingInterceptor, Optional<BulkExportFileInterceptor> bulkExportFileInterceptor, Optional<IncrementalBulkExportInterceptor> incrementalBulkExportInterceptor, Optional<RequestMetricsInterceptor> requestMetricsInterceptor, Optional<JdbcStatisticsInterceptor> jdbcStatisticsInterceptor, Optional<JdbcStatisticsCollector> jdbcStatisticsCollector, Optional<SlowSearchInterceptor> slowSearchInterceptor, Optional<SlowSearchProvider> slowSearchProvider) {
 		RestfulServer fhirServer = new RestfulServer(fhirSystemDao.getContext());
 
 		List<String> supportedResourceTypes = appProperties.getSupported_resource_types();
@@ -262,7 +618,9 @@ public class StarterJpaConfig {
 
 		fhirServer.registerProviders(resourceProviderFactory.createProviders());
 		fhirServer.registerProvider(jpaSystemProvider);
-		fhirServer.setServerConformanceProvider(calculateConformanceProvider(fhirSystemDao, fhirServer, daoConfig, searchParamRegistry, theValidationSupport));
+		IServerConformanceProvider<?> conformanceProvider = calculateConformanceProvider(fhirSystemDao, fhirServer, daoConfig, searchParamRegistry, theValidationSupport);
+		fhirServer.setServerConformanceProvider(conformanceProvider);
+		capabilityStatementCache.ifPresent(cache -> fhirServer.registerInterceptor(new CapabilityStatementCacheInterceptor(cache)));
 
 		/*
 		 * ETag Support
@@ -285,7 +643,9 @@ public class StarterJpaConfig {
 		 * This configures the server to page search results to and from
 		 * the database, instead of only paging them to memory. This may mean
 		 * a performance hit when performing searches that return lots of results,
-		 * but makes the server much more scalable.
+		 * but makes the server much more scalable. With paging_mode set to
+		 * keyset, links to following pages carry an opaque _pageId token and
+		 * deep pages cost the same as the first one.
 		 */
 
 		fhirServer.setPagingProvider(databaseBackedPagingProvider);
@@ -301,7 +661,18 @@ public class StarterJpaConfig {
 			fhirServer.registerInterceptor(new FhirPathFilterInterceptor());
 		}
 
-		fhirServer.registerInterceptor(loggingInterceptor);
+		if (asyncAccessLogInterceptor.isPresent()) {
+			fhirServer.registerInterceptor(asyncAccessLogInterceptor.get());
+		} else {
+			fhirServer.registerInterceptor(loggingInterceptor);
+		}
+
+		requestMetricsInterceptor.ifPresent(fhirServer::registerInterceptor);
+		// The collector orders its hooks around the ones of the interceptors using its statistics
+		jdbcStatisticsCollector.ifPresent(fhirServer::registerInterceptor);
+		jdbcStatisticsInterceptor.ifPresent(fhirServer::registerInterceptor);
+		slowSearchInterceptor.ifPresent(fhirServer::registerInterceptor);
+		slowSearchProvider.ifPresent(fhirServer::registerProvider);
 
 		/*
 		 * If you are hosting this server at a specific DNS name, the server will try to
@@ -349,7 +720,7 @@ public class StarterJpaConfig {
 		}
 
 		// Binary Storage
-		if (appProperties.getBinary_storage_enabled() && binaryAccessProvider.isPresent()) {
+		if (binaryAccessProvider.isPresent()) {
 			fhirServer.registerProvider(binaryAccessProvider.get());
 			fhirServer.registerInterceptor(binaryStorageInterceptor);
 		}
@@ -360,10 +731,13 @@ public class StarterJpaConfig {
 			if (appProperties.getValidation().getRequests_enabled()) {
 				RequestValidatingInterceptor interceptor = new RequestValidatingInterceptor();
 				interceptor.setFailOnSeverity(ResultSeverityEnum.ERROR);
-				interceptor.setValidatorModules(Collections.singletonList(validatorModule));
+				IValidatorModule requestValidatorModule = validationResultCache.<IValidatorModule>map(cache -> new CachingValidatorModule(validatorModule, cache)).orElse(validatorModule);
+				interceptor.setValidatorModules(Collections.singletonList(requestValidatorModule));
 				fhirServer.registerInterceptor(interceptor);
 			}
-			if (appProperties.getValidation().getResponses_enabled()) {
+			if (sampledResponseValidatingInterceptor.isPresent()) {
+				fhirServer.registerInterceptor(sampledResponseValidatingInterceptor.get());
+			} else if (appProperties.getValidation().getResponses_enabled()) {
 				ResponseValidatingInterceptor interceptor = new ResponseValidatingInterceptor();
 				interceptor.setFailOnSeverity(ResultSeverityEnum.ERROR);
 				interceptor.setValidatorModules(Collections.singletonList(validatorModule));
@@ -385,6 +759,8 @@ public class StarterJpaConfig {
 		// Bulk Export
 		if (appProperties.getBulk_export_enabled()) {
 			fhirServer.registerProvider(bulkDataExportProvider);
+			bulkExportFileInterceptor.ifPresent(fhirServer::registerInterceptor);
+			incrementalBulkExportInterceptor.ifPresent(fhirServer::registerInterceptor);
 		}
 
 		//Bulk Import
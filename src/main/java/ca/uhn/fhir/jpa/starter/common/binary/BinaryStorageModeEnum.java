@@ -0,0 +1,17 @@
+package ca.uhn.fhir.jpa.starter.common.binary;
+
+/**
+ * Where externalized binary content is stored
+ */
+public enum BinaryStorageModeEnum {
+
+	/**
+	 * As LOBs in the HFJ_BINARY_STORAGE_BLOB table
+	 */
+	DATABASE,
+
+	/**
+	 * As content-addressed files below <code>binary_storage_filesystem_path</code>
+	 */
+	FILESYSTEM
+}
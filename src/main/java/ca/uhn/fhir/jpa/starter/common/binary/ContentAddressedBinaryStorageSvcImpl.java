@@ -0,0 +1,378 @@
+package ca.uhn.fhir.jpa.starter.common.binary;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.binary.svc.BaseBinaryStorageSvcImpl;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.util.concurrent.Striped;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+
+/**
+ * Binary storage that keeps blob content as files named by their SHA-256 hash.
+ * <p>
+ * Layout below the base path:
+ * <ul>
+ *    <li><code>content/ab/cd/abcd…</code> - the content, stored once however many blobs share it</li>
+ *    <li><code>content/ab/cd/abcd….refs/</code> - one empty marker file per blob ID using the content</li>
+ *    <li><code>blobs/xy/zw/xyzw….json</code> - a descriptor per blob ID (resource, hash, size, content type)</li>
+ *    <li><code>tmp/</code> - uploads in progress</li>
+ * </ul>
+ * Uploads are streamed through NIO channels into a temporary file while being hashed and then moved into
+ * place, and reads use {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so the content is
+ * never held on the heap as a whole. Content shared by several blobs is deleted when the last of them is
+ * expunged; this bookkeeping is guarded by in-process locks, so the base path must not be shared by several
+ * server instances.
+ * <p>
+ * If a fallback is given (normally the database store), blobs that aren't found here are looked up there,
+ * which keeps blobs stored before switching to this store readable until they have been migrated.
+ */
+public class ContentAddressedBinaryStorageSvcImpl extends BaseBinaryStorageSvcImpl implements IRangeReadableBinaryStorageSvc {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ContentAddressedBinaryStorageSvcImpl.class);
+	private static final Pattern VALID_BLOB_ID = Pattern.compile("[a-zA-Z0-9_-]{4,200}");
+	private static final long TRANSFER_CHUNK_BYTES = 1024 * 1024;
+	private static final String REFS_SUFFIX = ".refs";
+
+	private final Path myContentPath;
+	private final Path myBlobsPath;
+	private final Path myTempPath;
+	private final IBinaryStorageSvc myFallback;
+	private final ObjectMapper myJsonSerializer;
+	private final Striped<Lock> myContentLocks = Striped.lock(64);
+
+	public ContentAddressedBinaryStorageSvcImpl(String theBasePath, @Nullable IBinaryStorageSvc theFallback) {
+		Validate.notBlank(theBasePath, "binary_storage_filesystem_path must be set when using filesystem binary storage");
+		Path basePath = Paths.get(theBasePath).toAbsolutePath();
+		myContentPath = basePath.resolve("content");
+		myBlobsPath = basePath.resolve("blobs");
+		myTempPath = basePath.resolve("tmp");
+		myFallback = theFallback;
+		myJsonSerializer = new ObjectMapper();
+		myJsonSerializer.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+		try {
+			Files.createDirectories(myContentPath);
+			Files.createDirectories(myBlobsPath);
+			Files.createDirectories(myTempPath);
+		} catch (IOException e) {
+			throw new ConfigurationException("Unable to create binary storage path " + basePath + ": " + e);
+		}
+		ourLog.info("Storing binary content below {}", basePath);
+	}
+
+	@Override
+	public void setMaximumBinarySize(long theMaximumBinarySize) {
+		super.setMaximumBinarySize(theMaximumBinarySize);
+		if (myFallback != null) {
+			myFallback.setMaximumBinarySize(theMaximumBinarySize);
+		}
+	}
+
+	@Override
+	public void setMinimumBinarySize(int theMinimumBinarySize) {
+		super.setMinimumBinarySize(theMinimumBinarySize);
+		if (myFallback != null) {
+			myFallback.setMinimumBinarySize(theMinimumBinarySize);
+		}
+	}
+
+	@Nonnull
+	@Override
+	public StoredDetails storeBlob(IIdType theResourceId, String theBlobIdOrNull, String theContentType, InputStream theInputStream) throws IOException {
+		return storeBlob(theResourceId, theBlobIdOrNull, theContentType, theInputStream, new Date());
+	}
+
+	/**
+	 * Same as {@link #storeBlob(IIdType, String, String, InputStream)} but keeps the given publication date,
+	 * which is used when migrating blobs from another store
+	 */
+	@Nonnull
+	public StoredDetails storeBlob(IIdType theResourceId, String theBlobIdOrNull, String theContentType, InputStream theInputStream, Date thePublished) throws IOException {
+		String blobId = provideIdForNewBlob(theBlobIdOrNull);
+		validateBlobId(blobId);
+
+		CountingInputStream countingInputStream = createCountingInputStream(theInputStream);
+		HashingInputStream hashingInputStream = createHashingInputStream(countingInputStream);
+		Path tempFile = Files.createTempFile(myTempPath, "upload-", ".tmp");
+		try {
+			try (ReadableByteChannel source = Channels.newChannel(hashingInputStream);
+				  FileChannel target = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+				long position = 0;
+				long transferred;
+				while ((transferred = target.transferFrom(source, position, TRANSFER_CHUNK_BYTES)) > 0) {
+					position += transferred;
+				}
+			}
+			long bytes = countingInputStream.getByteCount();
+			String hash = hashingInputStream.hash().toString();
+
+			Path contentFile = getContentFile(hash);
+			Lock lock = myContentLocks.get(hash);
+			lock.lock();
+			try {
+				Files.createDirectories(contentFile.getParent());
+				if (!Files.exists(contentFile)) {
+					moveIntoPlace(tempFile, contentFile);
+				}
+				Path refsDir = getRefsDir(hash);
+				Files.createDirectories(refsDir);
+				touch(refsDir.resolve(blobId));
+			} finally {
+				lock.unlock();
+			}
+
+			BlobDescriptor descriptor = new BlobDescriptor();
+			descriptor.setResourceId(theResourceId.toUnqualifiedVersionless().getValue());
+			descriptor.setBlobId(blobId);
+			descriptor.setBytes(bytes);
+			descriptor.setContentType(theContentType);
+			descriptor.setHash(hash);
+			descriptor.setPublished(thePublished);
+			BlobDescriptor previous = theBlobIdOrNull != null ? readDescriptorFile(blobId) : null;
+			writeDescriptor(descriptor);
+			// Only once the descriptor points at the new content, so a failure can't leave it pointing at deleted content
+			if (previous != null && !hash.equals(previous.getHash())) {
+				releaseContent(previous.getHash(), blobId);
+			}
+
+			ourLog.debug("Stored binary blob {} with {} bytes and ContentType {} for resource {}", blobId, bytes, theContentType, theResourceId);
+			return descriptor;
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	@Override
+	public StoredDetails fetchBlobDetails(IIdType theResourceId, String theBlobId) throws IOException {
+		BlobDescriptor descriptor = readDescriptor(theResourceId, theBlobId);
+		if (descriptor == null && myFallback != null) {
+			return myFallback.fetchBlobDetails(theResourceId, theBlobId);
+		}
+		return descriptor;
+	}
+
+	@Override
+	public boolean writeBlob(IIdType theResourceId, String theBlobId, OutputStream theOutputStream) throws IOException {
+		BlobDescriptor descriptor = readDescriptor(theResourceId, theBlobId);
+		if (descriptor == null) {
+			return myFallback != null && myFallback.writeBlob(theResourceId, theBlobId, theOutputStream);
+		}
+
+		transferContent(descriptor, 0, Long.MAX_VALUE, theOutputStream);
+		return true;
+	}
+
+	@Override
+	public boolean writeBlobRange(IIdType theResourceId, String theBlobId, long theOffset, long theLength, OutputStream theOutputStream) throws IOException {
+		BlobDescriptor descriptor = readDescriptor(theResourceId, theBlobId);
+		if (descriptor != null) {
+			transferContent(descriptor, theOffset, theLength, theOutputStream);
+			return true;
+		}
+
+		if (myFallback instanceof IRangeReadableBinaryStorageSvc) {
+			return ((IRangeReadableBinaryStorageSvc) myFallback).writeBlobRange(theResourceId, theBlobId, theOffset, theLength, theOutputStream);
+		}
+		if (myFallback != null && myFallback.fetchBlobDetails(theResourceId, theBlobId) != null) {
+			byte[] blob = myFallback.fetchBlob(theResourceId, theBlobId);
+			int offset = (int) Math.min(theOffset, blob.length);
+			theOutputStream.write(blob, offset, (int) Math.min(theLength, blob.length - offset));
+			return true;
+		}
+		return false;
+	}
+
+	private void transferContent(BlobDescriptor theDescriptor, long theOffset, long theLength, OutputStream theOutputStream) throws IOException {
+		try (FileChannel source = FileChannel.open(getContentFile(theDescriptor.getHash()), StandardOpenOption.READ)) {
+			// Not closed, as that would close the caller's stream
+			WritableByteChannel target = Channels.newChannel(theOutputStream);
+			long end = Math.min(source.size(), theOffset + Math.min(theLength, Long.MAX_VALUE - theOffset));
+			long position = theOffset;
+			while (position < end) {
+				position += source.transferTo(position, end - position, target);
+			}
+		}
+	}
+
+	@Override
+	public void expungeBlob(IIdType theResourceId, String theBlobId) {
+		try {
+			BlobDescriptor descriptor = readDescriptor(theResourceId, theBlobId);
+			if (descriptor == null) {
+				if (myFallback != null) {
+					myFallback.expungeBlob(theResourceId, theBlobId);
+				}
+				return;
+			}
+
+			Files.deleteIfExists(getDescriptorFile(theBlobId));
+			releaseContent(descriptor.getHash(), theBlobId);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to expunge blob " + theBlobId + ": " + e, e);
+		}
+	}
+
+	/**
+	 * Removes the reference of the given blob to the content, and the content itself if no other blob uses it
+	 */
+	private void releaseContent(String theHash, String theBlobId) throws IOException {
+		Lock lock = myContentLocks.get(theHash);
+		lock.lock();
+		try {
+			Path refsDir = getRefsDir(theHash);
+			Files.deleteIfExists(refsDir.resolve(theBlobId));
+			try {
+				Files.deleteIfExists(refsDir);
+			} catch (DirectoryNotEmptyException e) {
+				// Still used by other blobs
+				return;
+			}
+			Files.deleteIfExists(getContentFile(theHash));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public byte[] fetchBlob(IIdType theResourceId, String theBlobId) throws IOException {
+		BlobDescriptor descriptor = readDescriptor(theResourceId, theBlobId);
+		if (descriptor == null) {
+			if (myFallback != null) {
+				return myFallback.fetchBlob(theResourceId, theBlobId);
+			}
+			throw new ResourceNotFoundException("Unknown blob ID: " + theBlobId + " for resource ID " + theResourceId);
+		}
+
+		try (FileChannel source = FileChannel.open(getContentFile(descriptor.getHash()), StandardOpenOption.READ)) {
+			long size = source.size();
+			Validate.isTrue(size < Integer.MAX_VALUE, "Blob %s is too large to be loaded into memory", theBlobId);
+			byte[] retVal = new byte[(int) size];
+			if (size > 0) {
+				MappedByteBuffer mapped = source.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				mapped.get(retVal);
+			}
+			return retVal;
+		}
+	}
+
+	@Nullable
+	private BlobDescriptor readDescriptor(IIdType theResourceId, String theBlobId) throws IOException {
+		if (!VALID_BLOB_ID.matcher(theBlobId).matches()) {
+			return null;
+		}
+		BlobDescriptor descriptor = readDescriptorFile(theBlobId);
+		if (descriptor == null || !theResourceId.toUnqualifiedVersionless().getValue().equals(descriptor.getResourceId())) {
+			return null;
+		}
+		return descriptor;
+	}
+
+	@Nullable
+	private BlobDescriptor readDescriptorFile(String theBlobId) throws IOException {
+		try {
+			return myJsonSerializer.readValue(Files.readAllBytes(getDescriptorFile(theBlobId)), BlobDescriptor.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	private void writeDescriptor(BlobDescriptor theDescriptor) throws IOException {
+		Path descriptorFile = getDescriptorFile(theDescriptor.getBlobId());
+		Files.createDirectories(descriptorFile.getParent());
+		Path tempFile = Files.createTempFile(myTempPath, "descriptor-", ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(myJsonSerializer.writeValueAsBytes(theDescriptor));
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			moveIntoPlace(tempFile, descriptorFile);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	private static void moveIntoPlace(Path theSource, Path theTarget) throws IOException {
+		try {
+			Files.move(theSource, theTarget, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(theSource, theTarget, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void touch(Path theFile) throws IOException {
+		try {
+			Files.createFile(theFile);
+		} catch (FileAlreadyExistsException e) {
+			// already referenced
+		}
+	}
+
+	private static void validateBlobId(String theBlobId) {
+		Validate.isTrue(VALID_BLOB_ID.matcher(theBlobId).matches(), "Invalid blob ID: %s", theBlobId);
+	}
+
+	Path getContentFile(String theHash) {
+		return myContentPath.resolve(theHash.substring(0, 2)).resolve(theHash.substring(2, 4)).resolve(theHash);
+	}
+
+	private Path getRefsDir(String theHash) {
+		Path contentFile = getContentFile(theHash);
+		return contentFile.resolveSibling(contentFile.getFileName() + REFS_SUFFIX);
+	}
+
+	private Path getDescriptorFile(String theBlobId) {
+		return myBlobsPath.resolve(theBlobId.substring(0, 2)).resolve(theBlobId.substring(2, 4)).resolve(theBlobId + ".json");
+	}
+
+	/**
+	 * The stored details of a blob, plus the resource it belongs to
+	 */
+	static class BlobDescriptor extends StoredDetails {
+
+		@JsonProperty("resourceId")
+		private String myResourceId;
+
+		String getResourceId() {
+			return myResourceId;
+		}
+
+		void setResourceId(String theResourceId) {
+			myResourceId = theResourceId;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package ca.uhn.fhir.jpa.starter.common.binary;
+
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.model.entity.BinaryStorageEntity;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Moves blobs that are still stored in the HFJ_BINARY_STORAGE_BLOB table into a
+ * {@link ContentAddressedBinaryStorageSvcImpl}, one blob per transaction, keeping the blob ID, content type
+ * and publication date so existing Attachment references stay valid. Each copy is verified against the
+ * hash recorded in the database before the database row is deleted, so the migration can be interrupted and
+ * resumed at any time. Until a blob has been moved it is still served from the database.
+ */
+public class DatabaseBlobMigrationSvc {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(DatabaseBlobMigrationSvc.class);
+	private static final int PAGE_SIZE = 100;
+
+	private final ContentAddressedBinaryStorageSvcImpl myTarget;
+	private final TransactionTemplate myTxTemplate;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	public DatabaseBlobMigrationSvc(ContentAddressedBinaryStorageSvcImpl theTarget, PlatformTransactionManager theTransactionManager) {
+		myTarget = theTarget;
+		myTxTemplate = new TransactionTemplate(theTransactionManager);
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void startMigration() {
+		Thread thread = new Thread(this::migrateAll, "hapi-fhir-binary-migration");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the number of blobs moved
+	 */
+	public int migrateAll() {
+		long start = System.currentTimeMillis();
+		int migrated = 0;
+		int failed = 0;
+		long bytes = 0;
+		String lastBlobId = "";
+		List<Object[]> page;
+		do {
+			String fromBlobId = lastBlobId;
+			page = myTxTemplate.execute(t -> myEntityManager
+				.createQuery("SELECT e.myBlobId, e.myResourceId FROM BinaryStorageEntity e WHERE e.myBlobId > :last ORDER BY e.myBlobId", Object[].class)
+				.setParameter("last", fromBlobId)
+				.setMaxResults(PAGE_SIZE)
+				.getResultList());
+
+			for (Object[] next : page) {
+				String blobId = (String) next[0];
+				String resourceId = (String) next[1];
+				lastBlobId = blobId;
+				try {
+					Long size = myTxTemplate.execute(t -> migrate(new IdType(resourceId), blobId));
+					if (size != null) {
+						migrated++;
+						bytes += size;
+					}
+				} catch (Exception e) {
+					failed++;
+					ourLog.error("Failed to move binary blob {} of {} to the filesystem, it is left in the database", blobId, resourceId, e);
+				}
+			}
+			if (!page.isEmpty()) {
+				ourLog.info("Moved {} binary blobs ({} bytes) from the database to the filesystem so far", migrated, bytes);
+			}
+		} while (page.size() == PAGE_SIZE);
+
+		ourLog.info("Finished moving binary blobs from the database to the filesystem in {}ms: {} moved ({} bytes), {} failed", System.currentTimeMillis() - start, migrated, bytes, failed);
+		return migrated;
+	}
+
+	private Long migrate(IIdType theResourceId, String theBlobId) {
+		BinaryStorageEntity entity = myEntityManager.find(BinaryStorageEntity.class, theBlobId);
+		if (entity == null) {
+			// Expunged in the meantime
+			return null;
+		}
+
+		StoredDetails stored;
+		try (InputStream inputStream = entity.getBlob().getBinaryStream()) {
+			stored = myTarget.storeBlob(theResourceId, theBlobId, entity.getBlobContentType(), inputStream, entity.getPublished());
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to copy blob " + theBlobId + ": " + e, e);
+		}
+
+		if (entity.getHash() != null && !entity.getHash().equals(stored.getHash())) {
+			myTarget.expungeBlob(theResourceId, theBlobId);
+			throw new IllegalStateException("Hash mismatch for blob " + theBlobId + ", expected " + entity.getHash() + " but copied content has " + stored.getHash());
+		}
+
+		myEntityManager.remove(entity);
+		return stored.getBytes();
+	}
+}
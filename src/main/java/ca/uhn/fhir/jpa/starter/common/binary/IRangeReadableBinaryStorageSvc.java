@@ -0,0 +1,21 @@
+package ca.uhn.fhir.jpa.starter.common.binary;
+
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Binary storage that can write part of a blob, used to answer HTTP Range requests
+ * for <code>$binary-access-read</code> without reading the whole blob
+ */
+public interface IRangeReadableBinaryStorageSvc extends IBinaryStorageSvc {
+
+	/**
+	 * Writes <code>theLength</code> bytes of the blob, starting at <code>theOffset</code>, to the stream
+	 *
+	 * @return false if the blob doesn't exist
+	 */
+	boolean writeBlobRange(IIdType theResourceId, String theBlobId, long theOffset, long theLength, OutputStream theOutputStream) throws IOException;
+}
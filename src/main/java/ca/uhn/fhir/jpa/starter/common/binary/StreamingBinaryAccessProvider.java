@@ -0,0 +1,302 @@
+package ca.uhn.fhir.jpa.starter.common.binary;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binary.api.IBinaryTarget;
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.binary.provider.BinaryAccessProvider;
+import ca.uhn.fhir.jpa.model.util.JpaConstants;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.DateUtils;
+import ca.uhn.fhir.util.UrlUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Optional;
+
+/**
+ * Replacement for {@link BinaryAccessProvider} that streams binary content instead of buffering it.
+ * <p>
+ * <code>$binary-access-write</code> hands the servlet input stream straight to the {@link IBinaryStorageSvc},
+ * which hashes and writes it in fixed-size chunks, so an upload costs a small, constant amount of heap
+ * whatever its size. Only uploads that end up inline in the resource (no storage service, or smaller than
+ * its minimum binary size) are read into memory. <code>$binary-access-read</code> supports single
+ * <code>Range: bytes=…</code> requests (answered with 206 Partial Content) when the storage service
+ * implements {@link IRangeReadableBinaryStorageSvc}, and otherwise returns the whole blob.
+ * <p>
+ * Everything else, including how attachments are found and externalized, is delegated to the
+ * {@link BinaryAccessProvider} so both behave the same way.
+ */
+public class StreamingBinaryAccessProvider {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(StreamingBinaryAccessProvider.class);
+	private static final int RESPONSE_BUFFER_SIZE = StreamingDatabaseBlobBinaryStorageSvcImpl.CHUNK_SIZE;
+
+	private final BinaryAccessProvider myDelegate;
+
+	@Autowired
+	private FhirContext myCtx;
+	@Autowired
+	private DaoRegistry myDaoRegistry;
+	@Autowired(required = false)
+	private IBinaryStorageSvc myBinaryStorageSvc;
+
+	public StreamingBinaryAccessProvider(BinaryAccessProvider theDelegate) {
+		myDelegate = theDelegate;
+	}
+
+	@Operation(name = JpaConstants.OPERATION_BINARY_ACCESS_READ, global = true, manualResponse = true, idempotent = true)
+	public void binaryAccessRead(@IdParam IIdType theResourceId, @OperationParam(name = "path", min = 1, max = 1) IPrimitiveType<String> thePath, ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
+		String path = validateResourceTypeAndPath(theResourceId, thePath);
+		IFhirResourceDao<?> dao = getDaoForRequest(theResourceId);
+		IBaseResource resource = dao.read(theResourceId, theRequestDetails, false);
+		IBinaryTarget target = findAttachmentForRequest(resource, path);
+
+		Optional<String> attachmentId = target.getAttachmentId();
+		if (attachmentId.isEmpty() || myBinaryStorageSvc == null) {
+			writeInlineData(theResourceId, thePath, theRequestDetails, theServletResponse, target);
+			return;
+		}
+
+		String blobId = attachmentId.get();
+		StoredDetails blobDetails = myBinaryStorageSvc.fetchBlobDetails(theResourceId, blobId);
+		if (blobDetails == null) {
+			String msg = myCtx.getLocalizer().getMessage(BinaryAccessProvider.class, "unknownBlobId");
+			throw new InvalidRequestException(msg);
+		}
+
+		String eTag = "\"" + blobDetails.getHash() + "\"";
+		long size = blobDetails.getBytes();
+		theRequestDetails.getServer().addHeadersToResponse(theServletResponse);
+		theServletResponse.setContentType(blobDetails.getContentType());
+		theServletResponse.addHeader(HttpHeaders.CACHE_CONTROL, "private");
+		theServletResponse.addHeader(HttpHeaders.ETAG, eTag);
+		theServletResponse.addHeader(HttpHeaders.LAST_MODIFIED, DateUtils.formatDate(blobDetails.getPublished()));
+
+		ByteRange range = null;
+		if (myBinaryStorageSvc instanceof IRangeReadableBinaryStorageSvc) {
+			theServletResponse.addHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+			String ifRange = theServletRequest.getHeader(HttpHeaders.IF_RANGE);
+			if (ifRange == null || ifRange.equals(eTag)) {
+				range = ByteRange.parse(theServletRequest.getHeader(HttpHeaders.RANGE), size);
+			}
+		}
+
+		if (range == ByteRange.UNSATISFIABLE) {
+			theServletResponse.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			theServletResponse.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+			theServletResponse.setContentLength(0);
+			theServletResponse.getOutputStream().close();
+			return;
+		}
+
+		theServletResponse.setBufferSize(RESPONSE_BUFFER_SIZE);
+		OutputStream outputStream = theServletResponse.getOutputStream();
+		if (range != null) {
+			theServletResponse.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			theServletResponse.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range.getFirst() + "-" + range.getLast() + "/" + size);
+			theServletResponse.setContentLengthLong(range.getLength());
+			((IRangeReadableBinaryStorageSvc) myBinaryStorageSvc).writeBlobRange(theResourceId, blobId, range.getFirst(), range.getLength(), outputStream);
+		} else {
+			theServletResponse.setStatus(HttpServletResponse.SC_OK);
+			theServletResponse.setContentLengthLong(size);
+			myBinaryStorageSvc.writeBlob(theResourceId, blobId, outputStream);
+		}
+		outputStream.close();
+	}
+
+	@Operation(name = JpaConstants.OPERATION_BINARY_ACCESS_WRITE, global = true, manualRequest = true, idempotent = false)
+	public IBaseResource binaryAccessWrite(@IdParam IIdType theResourceId, @OperationParam(name = "path", min = 1, max = 1) IPrimitiveType<String> thePath, ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
+		String path = validateResourceTypeAndPath(theResourceId, thePath);
+		IFhirResourceDao<IBaseResource> dao = getDaoForRequest(theResourceId);
+		IBaseResource resource = dao.read(theResourceId, theRequestDetails, false);
+		IBinaryTarget target = findAttachmentForRequest(resource, path);
+
+		String requestContentType = theServletRequest.getContentType();
+		if (StringUtils.isBlank(requestContentType)) {
+			throw new InvalidRequestException("No content-target supplied");
+		}
+		if (EncodingEnum.forContentTypeStrict(requestContentType) != null) {
+			throw new InvalidRequestException("This operation is for binary content, got: " + requestContentType);
+		}
+
+		// -1 for chunked uploads, which are always externalized since their size is only known afterwards
+		long contentLength = theServletRequest.getContentLengthLong();
+		ourLog.trace("Request specified content length: {}", contentLength);
+
+		long size;
+		if (myBinaryStorageSvc != null && contentLength != 0 && (contentLength < 0 || myBinaryStorageSvc.shouldStoreBlob(contentLength, theResourceId, requestContentType))) {
+			StoredDetails storedDetails;
+			try (InputStream inputStream = theServletRequest.getInputStream()) {
+				storedDetails = myBinaryStorageSvc.storeBlob(theResourceId, null, requestContentType, inputStream);
+			}
+			size = storedDetails.getBytes();
+			Validate.notBlank(storedDetails.getBlobId(), "BinaryStorageSvc returned a null blob ID");
+			if (contentLength > 0 && size != contentLength) {
+				myBinaryStorageSvc.expungeBlob(theResourceId, storedDetails.getBlobId());
+				throw new InvalidRequestException("Received " + size + " bytes but the request specified a Content-Length of " + contentLength);
+			}
+			myDelegate.replaceDataWithExtension(target, storedDetails.getBlobId());
+		} else {
+			byte[] bytes = theRequestDetails.loadRequestContents();
+			size = bytes.length;
+			target.setData(bytes);
+		}
+
+		target.setContentType(requestContentType);
+		target.setSize(null);
+		if (size <= Integer.MAX_VALUE) {
+			target.setSize((int) size);
+		}
+
+		DaoMethodOutcome outcome = dao.update(resource, theRequestDetails);
+		return outcome.getResource();
+	}
+
+	private void writeInlineData(IIdType theResourceId, IPrimitiveType<String> thePath, ServletRequestDetails theRequestDetails, HttpServletResponse theServletResponse, IBinaryTarget theTarget) throws IOException {
+		String contentType = StringUtils.defaultIfBlank(theTarget.getContentType(), "application/octet-stream");
+		byte[] data = theTarget.getData();
+		if (data == null) {
+			String msg = myCtx.getLocalizer().getMessage(BinaryAccessProvider.class, "noAttachmentDataPresent", UrlUtil.sanitizeUrlPart(theResourceId), UrlUtil.sanitizeUrlPart(thePath));
+			throw new InvalidRequestException(msg);
+		}
+
+		theServletResponse.setStatus(HttpServletResponse.SC_OK);
+		theServletResponse.setContentType(contentType);
+		theServletResponse.setContentLength(data.length);
+		theRequestDetails.getServer().addHeadersToResponse(theServletResponse);
+		try (OutputStream outputStream = new BufferedOutputStream(theServletResponse.getOutputStream(), RESPONSE_BUFFER_SIZE)) {
+			outputStream.write(data);
+		}
+	}
+
+	@Nonnull
+	private IBinaryTarget findAttachmentForRequest(IBaseResource theResource, String thePath) {
+		String resourceType = myCtx.getResourceType(theResource);
+		IBase element = myCtx.newFhirPath().evaluateFirst(theResource, thePath, IBase.class).orElseThrow(() -> {
+			String msg = myCtx.getLocalizer().getMessageSanitized(BinaryAccessProvider.class, "unknownPath", resourceType, thePath);
+			return new InvalidRequestException(msg);
+		});
+		return myDelegate.toBinaryTarget(element).orElseThrow(() -> {
+			String typeName = myCtx.getElementDefinition(element.getClass()).getName();
+			String msg = myCtx.getLocalizer().getMessageSanitized(BinaryAccessProvider.class, "unknownType", resourceType, thePath, typeName);
+			return new InvalidRequestException(msg);
+		});
+	}
+
+	private static String validateResourceTypeAndPath(IIdType theResourceId, IPrimitiveType<String> thePath) {
+		if (StringUtils.isBlank(theResourceId.getResourceType())) {
+			throw new InvalidRequestException("No resource type specified");
+		}
+		if (StringUtils.isBlank(theResourceId.getIdPart())) {
+			throw new InvalidRequestException("No ID specified");
+		}
+		if (thePath == null || StringUtils.isBlank(thePath.getValue())) {
+			if ("Binary".equals(theResourceId.getResourceType())) {
+				return "Binary";
+			}
+			throw new InvalidRequestException("No path specified");
+		}
+		return thePath.getValue();
+	}
+
+	@Nonnull
+	private <T extends IBaseResource> IFhirResourceDao<T> getDaoForRequest(IIdType theResourceId) {
+		String resourceType = theResourceId.getResourceType();
+		if (!myDaoRegistry.isResourceTypeSupported(resourceType)) {
+			throw new InvalidRequestException("Unknown/unsupported resource type: " + UrlUtil.sanitizeUrlPart(resourceType));
+		}
+		return myDaoRegistry.getResourceDao(resourceType);
+	}
+
+	/**
+	 * A single, satisfiable byte range of a blob
+	 */
+	static class ByteRange {
+
+		static final ByteRange UNSATISFIABLE = new ByteRange(0, -1);
+
+		private final long myFirst;
+		private final long myLast;
+
+		private ByteRange(long theFirst, long theLast) {
+			myFirst = theFirst;
+			myLast = theLast;
+		}
+
+		long getFirst() {
+			return myFirst;
+		}
+
+		long getLast() {
+			return myLast;
+		}
+
+		long getLength() {
+			return myLast - myFirst + 1;
+		}
+
+		/**
+		 * @return null when the whole blob should be returned, i.e. there is no Range header or one this
+		 * doesn't handle (multiple or malformed ranges), which RFC 7233 allows servers to ignore
+		 */
+		@Nullable
+		static ByteRange parse(@Nullable String theRangeHeader, long theSize) {
+			if (theRangeHeader == null || !theRangeHeader.startsWith("bytes=") || theRangeHeader.contains(",")) {
+				return null;
+			}
+			String spec = theRangeHeader.substring("bytes=".length()).trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			try {
+				String first = spec.substring(0, dash).trim();
+				String last = spec.substring(dash + 1).trim();
+				if (first.isEmpty()) {
+					// Suffix range: the final N bytes
+					long suffixLength = Long.parseLong(last);
+					if (suffixLength <= 0 || theSize == 0) {
+						return UNSATISFIABLE;
+					}
+					return new ByteRange(Math.max(0, theSize - suffixLength), theSize - 1);
+				}
+				long firstByte = Long.parseLong(first);
+				long lastByte = last.isEmpty() ? theSize - 1 : Math.min(Long.parseLong(last), theSize - 1);
+				if (firstByte >= theSize) {
+					return UNSATISFIABLE;
+				}
+				if (lastByte < firstByte) {
+					return null;
+				}
+				return new ByteRange(firstByte, lastByte);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+}
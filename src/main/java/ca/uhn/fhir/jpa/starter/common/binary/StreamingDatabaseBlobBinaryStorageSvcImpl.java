@@ -0,0 +1,103 @@
+package ca.uhn.fhir.jpa.starter.common.binary;
+
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.binstore.DatabaseBlobBinaryStorageSvcImpl;
+import ca.uhn.fhir.jpa.dao.data.IBinaryStorageEntityDao;
+import ca.uhn.fhir.jpa.model.entity.BinaryStorageEntity;
+import com.google.common.hash.HashingInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.hibernate.Session;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Nonnull;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.Optional;
+
+/**
+ * Database binary storage that doesn't load blobs into memory.
+ * <p>
+ * {@link DatabaseBlobBinaryStorageSvcImpl} reads the whole upload into a byte array before handing it to
+ * the JDBC driver. This spools the upload to a temporary file in fixed-size chunks while hashing and counting
+ * it, and then lets the driver stream the LOB from that file. Range reads skip to the requested offset of the
+ * LOB stream and copy only the requested bytes.
+ */
+@Transactional
+public class StreamingDatabaseBlobBinaryStorageSvcImpl extends DatabaseBlobBinaryStorageSvcImpl implements IRangeReadableBinaryStorageSvc {
+
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+	@Autowired
+	private IBinaryStorageEntityDao myBinaryStorageEntityDao;
+
+	@Nonnull
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public StoredDetails storeBlob(IIdType theResourceId, String theBlobIdOrNull, String theContentType, InputStream theInputStream) throws IOException {
+		Date publishedDate = new Date();
+		HashingInputStream hashingInputStream = createHashingInputStream(theInputStream);
+		CountingInputStream countingInputStream = createCountingInputStream(hashingInputStream);
+		String id = super.provideIdForNewBlob(theBlobIdOrNull);
+
+		Path spoolFile = Files.createTempFile("hapi-fhir-binary-", ".tmp");
+		try {
+			Files.copy(countingInputStream, spoolFile, StandardCopyOption.REPLACE_EXISTING);
+			long bytes = countingInputStream.getByteCount();
+			String hash = hashingInputStream.hash().toString();
+
+			try (InputStream spooled = Files.newInputStream(spoolFile)) {
+				BinaryStorageEntity entity = new BinaryStorageEntity();
+				entity.setResourceId(theResourceId.toUnqualifiedVersionless().getValue());
+				entity.setBlobId(id);
+				entity.setBlobContentType(theContentType);
+				entity.setPublished(publishedDate);
+				entity.setSize(bytes);
+				entity.setHash(hash);
+				Session session = (Session) myEntityManager.getDelegate();
+				entity.setBlob(session.getLobHelper().createBlob(spooled, bytes));
+				myEntityManager.persist(entity);
+				// The driver reads the spool file during the insert, so it has to happen before the file is removed
+				myEntityManager.flush();
+			}
+
+			return new StoredDetails()
+				.setBlobId(id)
+				.setBytes(bytes)
+				.setPublished(publishedDate)
+				.setHash(hash)
+				.setContentType(theContentType);
+		} finally {
+			Files.deleteIfExists(spoolFile);
+		}
+	}
+
+	@Override
+	public boolean writeBlobRange(IIdType theResourceId, String theBlobId, long theOffset, long theLength, OutputStream theOutputStream) throws IOException {
+		Optional<BinaryStorageEntity> entityOpt = myBinaryStorageEntityDao.findByIdAndResourceId(theBlobId, theResourceId.toUnqualifiedVersionless().getValue());
+		if (entityOpt.isEmpty()) {
+			return false;
+		}
+
+		try (InputStream inputStream = entityOpt.get().getBlob().getBinaryStream()) {
+			IOUtils.copyLarge(inputStream, theOutputStream, theOffset, theLength, new byte[CHUNK_SIZE]);
+		} catch (SQLException e) {
+			throw new IOException("Failed to read blob " + theBlobId + ": " + e, e);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,76 @@
+package ca.uhn.fhir.jpa.starter.common.bulk;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How bulk export files are compressed. The files are served with the matching Content-Encoding, so that
+ * clients decompress them as they download them.
+ */
+public enum BulkExportCompressionEnum {
+
+	NONE("", null),
+
+	GZIP(".gz", "gzip"),
+
+	ZSTD(".zst", "zstd");
+
+	private final String myExtension;
+	private final String myContentEncoding;
+
+	BulkExportCompressionEnum(String theExtension, String theContentEncoding) {
+		myExtension = theExtension;
+		myContentEncoding = theContentEncoding;
+	}
+
+	public String getExtension() {
+		return myExtension;
+	}
+
+	/**
+	 * @return the Content-Encoding of the files, or <code>null</code> when they aren't compressed
+	 */
+	public String getContentEncoding() {
+		return myContentEncoding;
+	}
+
+	public OutputStream compress(OutputStream theOutputStream) throws IOException {
+		switch (this) {
+			case GZIP:
+				return new GZIPOutputStream(theOutputStream, 64 * 1024);
+			case ZSTD:
+				return new ZstdOutputStream(theOutputStream);
+			default:
+				return theOutputStream;
+		}
+	}
+
+	public InputStream decompress(InputStream theInputStream) throws IOException {
+		switch (this) {
+			case GZIP:
+				return new GZIPInputStream(theInputStream, 64 * 1024);
+			case ZSTD:
+				return new ZstdInputStream(theInputStream);
+			default:
+				return theInputStream;
+		}
+	}
+
+	/**
+	 * @return the compression of a file, going by its name
+	 */
+	public static BulkExportCompressionEnum forFileName(String theFileName) {
+		for (BulkExportCompressionEnum next : values()) {
+			if (next != NONE && theFileName.endsWith(next.getExtension())) {
+				return next;
+			}
+		}
+		return NONE;
+	}
+}
@@ -0,0 +1,214 @@
+package ca.uhn.fhir.jpa.starter.common.bulk;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IPreResourceAccessDetails;
+import ca.uhn.fhir.rest.api.server.IPreResourceShowDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.api.server.SimplePreResourceAccessDetails;
+import ca.uhn.fhir.rest.api.server.SimplePreResourceShowDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.BinaryUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves <code>GET [base]/Binary/[file ID]</code> for the files of the {@link BulkExportFileStore}, which is where
+ * $export-poll-status points clients to. The files are sent as stored, with their compression as
+ * Content-Encoding, and without copying them through the heap where the container allows it: with Tomcat's
+ * sendfile support, or by handing Jetty's <code>HttpOutput#sendContent(ByteBuffer)</code> the memory-mapped
+ * file. Clients that don't accept the file's compression get it decompressed on the fly instead.
+ * <p>
+ * Since the file isn't a Binary resource the server could read, the hooks of a read (such as those of the
+ * <code>AuthorizationInterceptor</code>) are called here on a Binary standing in for it, so that the file is
+ * subject to the same rules as the Binary resources HAPI FHIR would otherwise have exported to.
+ */
+@Interceptor
+public class BulkExportFileInterceptor {
+
+	private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+	private static final Map<Class<?>, Optional<Method>> ourSendContentMethods = new ConcurrentHashMap<>();
+
+	private final BulkExportFileStore myFileStore;
+
+	public BulkExportFileInterceptor(BulkExportFileStore theFileStore) {
+		myFileStore = theFileStore;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean serveBulkExportFile(ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
+		if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.READ
+			|| theRequestDetails.getRequestType() != RequestTypeEnum.GET
+			|| !"Binary".equals(theRequestDetails.getResourceName())
+			|| theRequestDetails.getId() == null
+			|| !BulkExportFileStore.isFileId(theRequestDetails.getId().getIdPart())) {
+			return true;
+		}
+		Optional<Path> file = myFileStore.find(theRequestDetails.getId().getIdPart());
+		if (file.isEmpty()) {
+			// Lets the server answer with its usual 404
+			return true;
+		}
+
+		// The server won't get to call the hooks of the read since the request is handled here, so they're called
+		// as the server and the DAO would for a Binary resource, which lets them authorize the read
+		IInterceptorBroadcaster interceptorBroadcaster = theRequestDetails.getInterceptorBroadcaster();
+		if (interceptorBroadcaster != null && !authorize(theRequestDetails, interceptorBroadcaster, theServletRequest, theServletResponse)) {
+			return false;
+		}
+
+		Path path = file.get();
+		BulkExportCompressionEnum compression = BulkExportCompressionEnum.forFileName(path.getFileName().toString());
+		theRequestDetails.getServer().addHeadersToResponse(theServletResponse);
+		theServletResponse.setStatus(HttpServletResponse.SC_OK);
+		theServletResponse.setContentType(Constants.CT_FHIR_NDJSON);
+		if (compression.getContentEncoding() == null || acceptsEncoding(theServletRequest, compression.getContentEncoding())) {
+			long length = Files.size(path);
+			if (compression.getContentEncoding() != null) {
+				theServletResponse.setHeader(Constants.HEADER_CONTENT_ENCODING, compression.getContentEncoding());
+			}
+			theServletResponse.setContentLengthLong(length);
+			if (Boolean.TRUE.equals(theServletRequest.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+				theServletRequest.setAttribute(SENDFILE_FILENAME_ATTR, path.toRealPath().toString());
+				theServletRequest.setAttribute(SENDFILE_START_ATTR, 0L);
+				theServletRequest.setAttribute(SENDFILE_END_ATTR, length);
+			} else if (!sendMapped(path, length, theServletResponse.getOutputStream())) {
+				Files.copy(path, theServletResponse.getOutputStream());
+				theServletResponse.flushBuffer();
+			}
+		} else {
+			try (InputStream inputStream = compression.decompress(Files.newInputStream(path))) {
+				inputStream.transferTo(theServletResponse.getOutputStream());
+			}
+			theServletResponse.flushBuffer();
+		}
+
+		if (interceptorBroadcaster != null) {
+			HookParams params = new HookParams();
+			params.add(RequestDetails.class, theRequestDetails);
+			params.add(ServletRequestDetails.class, theRequestDetails);
+			interceptorBroadcaster.callHooks(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY, params);
+		}
+		return false;
+	}
+
+	/**
+	 * Calls the hooks a read of the file's Binary would, with a Binary that has no content standing in for the file
+	 *
+	 * @return whether to serve the file, which isn't the case if a hook has written the response itself
+	 * @throws ResourceNotFoundException if a hook has hidden the Binary
+	 */
+	private static boolean authorize(ServletRequestDetails theRequestDetails, IInterceptorBroadcaster theInterceptorBroadcaster, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+		HookParams preHandledParams = new HookParams();
+		preHandledParams.add(RestOperationTypeEnum.class, theRequestDetails.getRestOperationType());
+		preHandledParams.add(RequestDetails.class, theRequestDetails);
+		preHandledParams.add(ServletRequestDetails.class, theRequestDetails);
+		theInterceptorBroadcaster.callHooks(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, preHandledParams);
+
+		FhirContext ctx = theRequestDetails.getFhirContext();
+		IBaseBinary binary = BinaryUtil.newBinary(ctx);
+		binary.setId(theRequestDetails.getId().toUnqualifiedVersionless());
+		binary.setContentType(Constants.CT_FHIR_NDJSON);
+
+		SimplePreResourceAccessDetails accessDetails = new SimplePreResourceAccessDetails(binary);
+		HookParams preAccessParams = new HookParams();
+		preAccessParams.add(IPreResourceAccessDetails.class, accessDetails);
+		preAccessParams.add(RequestDetails.class, theRequestDetails);
+		preAccessParams.add(ServletRequestDetails.class, theRequestDetails);
+		theInterceptorBroadcaster.callHooks(Pointcut.STORAGE_PREACCESS_RESOURCES, preAccessParams);
+		if (accessDetails.isDontReturnResourceAtIndex(0)) {
+			throw new ResourceNotFoundException(theRequestDetails.getId());
+		}
+
+		SimplePreResourceShowDetails showDetails = new SimplePreResourceShowDetails(binary);
+		HookParams preShowParams = new HookParams();
+		preShowParams.add(IPreResourceShowDetails.class, showDetails);
+		preShowParams.add(RequestDetails.class, theRequestDetails);
+		preShowParams.add(ServletRequestDetails.class, theRequestDetails);
+		theInterceptorBroadcaster.callHooks(Pointcut.STORAGE_PRESHOW_RESOURCES, preShowParams);
+		IBaseResource shown = showDetails.getResource(0);
+		if (shown == null) {
+			throw new ResourceNotFoundException(theRequestDetails.getId());
+		}
+
+		HookParams outgoingParams = new HookParams();
+		outgoingParams.add(RequestDetails.class, theRequestDetails);
+		outgoingParams.add(ServletRequestDetails.class, theRequestDetails);
+		outgoingParams.add(IBaseResource.class, shown);
+		outgoingParams.add(ResponseDetails.class, new ResponseDetails(shown));
+		outgoingParams.add(HttpServletRequest.class, theServletRequest);
+		outgoingParams.add(HttpServletResponse.class, theServletResponse);
+		return theInterceptorBroadcaster.callHooks(Pointcut.SERVER_OUTGOING_RESPONSE, outgoingParams);
+	}
+
+	/**
+	 * @return whether the container took the file as a memory-mapped buffer
+	 */
+	private static boolean sendMapped(Path thePath, long theLength, OutputStream theOutputStream) throws IOException {
+		if (theLength > Integer.MAX_VALUE) {
+			return false;
+		}
+		Optional<Method> sendContent = ourSendContentMethods.computeIfAbsent(theOutputStream.getClass(), t -> {
+			try {
+				return Optional.of(t.getMethod("sendContent", ByteBuffer.class));
+			} catch (NoSuchMethodException e) {
+				return Optional.empty();
+			}
+		});
+		if (sendContent.isEmpty()) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(thePath, StandardOpenOption.READ)) {
+			sendContent.get().invoke(theOutputStream, channel.map(FileChannel.MapMode.READ_ONLY, 0, theLength));
+			return true;
+		} catch (IllegalAccessException e) {
+			return false;
+		} catch (InvocationTargetException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	private static boolean acceptsEncoding(HttpServletRequest theServletRequest, String theEncoding) {
+		String acceptEncoding = theServletRequest.getHeader(Constants.HEADER_ACCEPT_ENCODING);
+		if (StringUtils.isBlank(acceptEncoding)) {
+			return false;
+		}
+		for (String next : acceptEncoding.split(",")) {
+			String[] parts = next.trim().split(";");
+			if (parts[0].trim().equalsIgnoreCase(theEncoding) || parts[0].trim().equals("*")) {
+				return parts.length < 2 || !parts[1].replace(" ", "").equals("q=0");
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,204 @@
+package ca.uhn.fhir.jpa.starter.common.bulk;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps bulk export output as NDJSON files in a directory instead of Binary resources in the database, laid out
+ * as <code>[directory]/[job instance ID]/[file ID].ndjson[.gz|.zst]</code>. The file IDs are valid resource IDs,
+ * so that the job report can list them as <code>Binary/[file ID]</code> and the
+ * {@link BulkExportFileInterceptor} can serve them at the URLs $export-poll-status returns.
+ * <p>
+ * A job's directory is deleted once HAPI FHIR has purged the job (after
+ * <code>DaoConfig#getBulkExportFileRetentionPeriodHours()</code>), or as soon as the job has failed or been
+ * cancelled.
+ */
+public class BulkExportFileStore implements AutoCloseable {
+
+	public static final String FILE_ID_PREFIX = "bulk-export-";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(BulkExportFileStore.class);
+	private static final Pattern FILE_ID_PATTERN = Pattern.compile(Pattern.quote(FILE_ID_PREFIX) + "[a-zA-Z0-9\\-]{1,52}");
+	private static final String EXTENSION = ".ndjson";
+
+	private final Path myDirectory;
+	private final BulkExportCompressionEnum myCompression;
+	private final IJobCoordinator myJobCoordinator;
+	private final Duration myCleanupInterval;
+	private final Map<String, Path> myFiles = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("hapi-fhir-bulk-export-cleanup-%d").setDaemon(true).build());
+
+	public BulkExportFileStore(Path theDirectory, BulkExportCompressionEnum theCompression, IJobCoordinator theJobCoordinator, Duration theCleanupInterval) {
+		myDirectory = theDirectory.toAbsolutePath().normalize();
+		myCompression = theCompression;
+		myJobCoordinator = theJobCoordinator;
+		myCleanupInterval = theCleanupInterval;
+	}
+
+	public void start() throws IOException {
+		Files.createDirectories(myDirectory);
+		indexFiles();
+		myExecutor.scheduleWithFixedDelay(this::cleanUp, myCleanupInterval.toMillis(), myCleanupInterval.toMillis(), TimeUnit.MILLISECONDS);
+		ourLog.info("Writing bulk export files to {} with compression {}", myDirectory, myCompression);
+	}
+
+	public Path getDirectory() {
+		return myDirectory;
+	}
+
+	/**
+	 * Streams the NDJSON lines to a new file of the job. The file only appears once complete, and writing it
+	 * again (when the step is retried) replaces it.
+	 *
+	 * @param theFileKey unique within the job, e.g. the work chunk ID
+	 * @return the file ID
+	 */
+	public String write(String theInstanceId, String theFileKey, Iterable<String> theLines) throws IOException {
+		String fileId = FILE_ID_PREFIX + theFileKey;
+		if (!isFileId(fileId) || !isSafeName(theInstanceId)) {
+			throw new IllegalArgumentException("Invalid bulk export file: " + theInstanceId + "/" + fileId);
+		}
+		Path jobDirectory = Files.createDirectories(myDirectory.resolve(theInstanceId));
+		Path file = jobDirectory.resolve(fileId + EXTENSION + myCompression.getExtension());
+		Path tempFile = Files.createTempFile(jobDirectory, fileId, ".tmp");
+		try {
+			OutputStream outputStream = myCompression.compress(new BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024));
+			try (Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)) {
+				for (String next : theLines) {
+					writer.write(next);
+					writer.write('\n');
+				}
+			}
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			myFiles.put(fileId, file);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+		return fileId;
+	}
+
+	/**
+	 * @return the file with the given ID, from any job. Files missing from the index, such as those another server
+	 * sharing the directory wrote, are looked for in the job directories and indexed when found.
+	 */
+	public Optional<Path> find(String theFileId) {
+		if (!isFileId(theFileId)) {
+			return Optional.empty();
+		}
+		Path file = myFiles.get(theFileId);
+		if (file != null && Files.isRegularFile(file)) {
+			return Optional.of(file);
+		}
+		if (file != null) {
+			myFiles.remove(theFileId, file);
+		}
+		file = findOnDisk(theFileId);
+		if (file != null) {
+			myFiles.put(theFileId, file);
+		}
+		return Optional.ofNullable(file);
+	}
+
+	private Path findOnDisk(String theFileId) {
+		try (DirectoryStream<Path> jobDirectories = Files.newDirectoryStream(myDirectory, Files::isDirectory)) {
+			for (Path next : jobDirectories) {
+				for (BulkExportCompressionEnum compression : BulkExportCompressionEnum.values()) {
+					Path file = next.resolve(theFileId + EXTENSION + compression.getExtension());
+					if (Files.isRegularFile(file)) {
+						return file;
+					}
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Indexes the files left by an earlier run, which {@link #find(String)} then looks up by ID
+	 */
+	private void indexFiles() throws IOException {
+		try (DirectoryStream<Path> jobDirectories = Files.newDirectoryStream(myDirectory, Files::isDirectory)) {
+			for (Path next : jobDirectories) {
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(next, Files::isRegularFile)) {
+					for (Path nextFile : files) {
+						String fileName = nextFile.getFileName().toString();
+						int extension = fileName.indexOf(EXTENSION);
+						if (extension > 0 && isFileId(fileName.substring(0, extension))) {
+							myFiles.put(fileName.substring(0, extension), nextFile);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the files of the jobs that are gone, failed or were cancelled
+	 */
+	public void cleanUp() {
+		try (DirectoryStream<Path> jobDirectories = Files.newDirectoryStream(myDirectory, Files::isDirectory)) {
+			for (Path next : jobDirectories) {
+				String instanceId = next.getFileName().toString();
+				if (isExpired(instanceId)) {
+					myFiles.values().removeIf(t -> t.startsWith(next));
+					FileUtils.deleteDirectory(next.toFile());
+					ourLog.info("Deleted the bulk export files of job {}", instanceId);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			ourLog.warn("Failed to clean up bulk export files", e);
+		}
+	}
+
+	private boolean isExpired(String theInstanceId) {
+		JobInstance instance;
+		try {
+			instance = myJobCoordinator.getInstance(theInstanceId);
+		} catch (ResourceNotFoundException e) {
+			return true;
+		}
+		// Errored jobs are retried, completed ones are kept until HAPI FHIR purges them
+		return instance.isCancelled() || instance.getStatus() == StatusEnum.FAILED || instance.getStatus() == StatusEnum.CANCELLED;
+	}
+
+	public static boolean isFileId(String theId) {
+		return theId != null && FILE_ID_PATTERN.matcher(theId).matches();
+	}
+
+	private static boolean isSafeName(String theName) {
+		return theName != null && theName.matches("[a-zA-Z0-9\\-]+");
+	}
+
+	@Override
+	public void close() {
+		myExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,53 @@
+package ca.uhn.fhir.jpa.starter.common.bulk;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.jobs.export.WriteBinaryStep;
+import ca.uhn.fhir.batch2.jobs.export.models.BulkExportBinaryFileId;
+import ca.uhn.fhir.batch2.jobs.export.models.BulkExportJobParameters;
+import ca.uhn.fhir.batch2.jobs.export.models.ExpandedResourcesList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * Takes the place of HAPI FHIR's {@link WriteBinaryStep} in the bulk export job: writes each chunk of exported
+ * resources to a file of the {@link BulkExportFileStore} rather than to a Binary resource
+ */
+public class BulkExportFileWriteStep implements IJobStepWorker<BulkExportJobParameters, ExpandedResourcesList, BulkExportBinaryFileId> {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(BulkExportFileWriteStep.class);
+
+	private final BulkExportFileStore myFileStore;
+
+	public BulkExportFileWriteStep(BulkExportFileStore theFileStore) {
+		myFileStore = theFileStore;
+	}
+
+	@Nonnull
+	@Override
+	public RunOutcome run(@Nonnull StepExecutionDetails<BulkExportJobParameters, ExpandedResourcesList> theStepExecutionDetails, @Nonnull IJobDataSink<BulkExportBinaryFileId> theDataSink) throws JobExecutionFailedException {
+		ExpandedResourcesList expandedResources = theStepExecutionDetails.getData();
+		String instanceId = theStepExecutionDetails.getInstance().getInstanceId();
+		int count = expandedResources.getStringifiedResources().size();
+
+		String fileId;
+		try {
+			fileId = myFileStore.write(instanceId, theStepExecutionDetails.getChunkId(), expandedResources.getStringifiedResources());
+		} catch (IOException e) {
+			throw new JobExecutionFailedException("Failed to write " + expandedResources.getResourceType() + " resources to a bulk export file: " + e, e);
+		}
+
+		BulkExportBinaryFileId bulkExportBinaryFileId = new BulkExportBinaryFileId();
+		bulkExportBinaryFileId.setBinaryId("Binary/" + fileId);
+		bulkExportBinaryFileId.setResourceType(expandedResources.getResourceType());
+		theDataSink.accept(bulkExportBinaryFileId);
+		ourLog.info("Wrote {} resources of type {} to bulk export file {}", count, expandedResources.getResourceType(), fileId);
+		return new RunOutcome(count);
+	}
+}
@@ -0,0 +1,77 @@
+package ca.uhn.fhir.jpa.starter.common.bulk;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * How far the incremental bulk exports of a client have got, see {@link IncrementalBulkExportInterceptor}
+ */
+@Entity
+@Table(name = "STARTER_BULK_EXPORT_MARK")
+public class BulkExportHighWaterMarkEntity {
+
+	public static final int CLIENT_ID_LENGTH = 200;
+
+	@Id
+	@Column(name = "CLIENT_ID", length = CLIENT_ID_LENGTH, nullable = false)
+	private String myClientId;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "HIGH_WATER_MARK")
+	private Date myHighWaterMark;
+
+	@Column(name = "PENDING_JOB_ID", length = 36)
+	private String myPendingJobId;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "RESERVED")
+	private Date myReserved;
+
+	public String getClientId() {
+		return myClientId;
+	}
+
+	public void setClientId(String theClientId) {
+		myClientId = theClientId;
+	}
+
+	/**
+	 * @return the time from which the next export of the client starts, or <code>null</code> before its first
+	 * export has completed
+	 */
+	public Date getHighWaterMark() {
+		return myHighWaterMark;
+	}
+
+	public void setHighWaterMark(Date theHighWaterMark) {
+		myHighWaterMark = theHighWaterMark;
+	}
+
+	/**
+	 * @return the bulk export job of the latest export of the client, which moves the high-water mark to its
+	 * creation time once the client has fetched its manifest
+	 */
+	public String getPendingJobId() {
+		return myPendingJobId;
+	}
+
+	public void setPendingJobId(String thePendingJobId) {
+		myPendingJobId = thePendingJobId;
+	}
+
+	/**
+	 * @return when an export of the client was started, until the job it started is known as the pending job
+	 */
+	public Date getReserved() {
+		return myReserved;
+	}
+
+	public void setReserved(Date theReserved) {
+		myReserved = theReserved;
+	}
+}
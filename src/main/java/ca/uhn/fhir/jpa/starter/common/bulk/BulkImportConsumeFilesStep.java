@@ -0,0 +1,112 @@
+package ca.uhn.fhir.jpa.starter.common.bulk;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.ILastJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportJobParameters;
+import ca.uhn.fhir.batch2.jobs.imprt.ConsumeFilesStep;
+import ca.uhn.fhir.batch2.jobs.imprt.NdJsonFileJson;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The last step of the bulk import job when the PostgreSQL fast path or the import pipeline is enabled. With
+ * the {@link PostgresCopyResourceWriter}, resources are copied into PostgreSQL, and what can't be copied goes to
+ * HAPI FHIR's own {@link ConsumeFilesStep}. With the {@link NdJsonImportPipeline}, each chunk of NDJSON is parsed
+ * in parallel and stored in batches, one transaction each, instead of all at once. Without either (the copy
+ * writer only works on PostgreSQL), the chunks go to the {@link ConsumeFilesStep} unchanged.
+ */
+public class BulkImportConsumeFilesStep implements ILastJobStepWorker<BulkImportJobParameters, NdJsonFileJson> {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(BulkImportConsumeFilesStep.class);
+
+	private final FhirContext myFhirContext;
+	private final PostgresCopyResourceWriter myWriter;
+	private final NdJsonImportPipeline myPipeline;
+	private final ConsumeFilesStep myRegularStep;
+	private final TransactionTemplate myTxTemplate;
+
+	public BulkImportConsumeFilesStep(FhirContext theFhirContext, @Nullable PostgresCopyResourceWriter theWriter, @Nullable NdJsonImportPipeline thePipeline, ConsumeFilesStep theRegularStep, PlatformTransactionManager theTransactionManager) {
+		myFhirContext = theFhirContext;
+		myWriter = theWriter;
+		myPipeline = thePipeline;
+		myRegularStep = theRegularStep;
+		myTxTemplate = new TransactionTemplate(theTransactionManager);
+	}
+
+	@Nonnull
+	@Override
+	public RunOutcome run(@Nonnull StepExecutionDetails<BulkImportJobParameters, NdJsonFileJson> theStepExecutionDetails, @Nonnull IJobDataSink<VoidModel> theDataSink) {
+		boolean copy = myWriter != null && myWriter.isSupported();
+		if (!copy && myPipeline == null) {
+			return myRegularStep.run(theStepExecutionDetails, theDataSink);
+		}
+
+		String sourceName = theStepExecutionDetails.getData().getSourceName();
+		String ndJson = theStepExecutionDetails.getData().getNdJsonText();
+		long start = System.currentTimeMillis();
+		AtomicInteger leftOver = new AtomicInteger();
+		int count;
+		// A failure retries the whole chunk, which then finds the resources already stored and updates them
+		if (myPipeline != null) {
+			count = myPipeline.run(ndJson, resources -> leftOver.addAndGet(store(resources, copy)));
+		} else {
+			List<IBaseResource> resources = parse(ndJson);
+			leftOver.addAndGet(store(resources, copy));
+			count = resources.size();
+		}
+		ourLog.info("Bulk loaded {} resources from source {} in {}ms, {} of them through the regular path", count, sourceName, System.currentTimeMillis() - start, leftOver.get());
+		return new RunOutcome(count);
+	}
+
+	/**
+	 * Copies the resources and stores what's left over through the regular path in one transaction, which the
+	 * regular path joins, so a failure of either leaves none of them committed
+	 *
+	 * @return the number of resources stored through the regular path
+	 */
+	private int store(List<IBaseResource> theResources, boolean theCopy) {
+		if (!theCopy) {
+			myRegularStep.storeResources(theResources);
+			return theResources.size();
+		}
+		return myTxTemplate.execute(t -> {
+			List<IBaseResource> leftOver = myWriter.write(theResources);
+			if (!leftOver.isEmpty()) {
+				myRegularStep.storeResources(leftOver);
+			}
+			return leftOver.size();
+		});
+	}
+
+	private List<IBaseResource> parse(String theNdJson) {
+		IParser parser = myFhirContext.newJsonParser();
+		List<IBaseResource> retVal = new ArrayList<>();
+		for (String next : theNdJson.split("\n")) {
+			if (StringUtils.isNotBlank(next)) {
+				try {
+					retVal.add(parser.parseResource(next));
+				} catch (DataFormatException e) {
+					throw new JobExecutionFailedException("Failed to parse resource: " + e, e);
+				}
+			}
+		}
+		return retVal;
+	}
+}
@@ -0,0 +1,206 @@
+package ca.uhn.fhir.jpa.starter.common.bulk;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.bulk.BulkDataExportOptions;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.ParametersUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.PersistenceException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Adds an <code>_incremental=[client ID]</code> parameter to <code>$export</code>, which exports what has changed
+ * since the last export of that client: the export gets the client's high-water mark (none on its first export)
+ * as <code>_since</code>, which HAPI FHIR turns into a range scan on the resource update time, so that only the
+ * rows that changed after the mark are read.
+ * <p>
+ * The mark is moved once the client has fetched the manifest of a completed export from $export-poll-status,
+ * to the time that export's job was created, less an overlap covering the transactions that were still running
+ * then. So an export the client never picked up is exported again, and resources updated around the mark may be
+ * exported twice. A client can't start an export while its previous one is running, or while another request is
+ * starting one: the client's row is reserved until the job the request started is known, or the request fails.
+ */
+@Interceptor
+public class IncrementalBulkExportInterceptor {
+
+	public static final String PARAM_INCREMENTAL = "_incremental";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(IncrementalBulkExportInterceptor.class);
+	private static final Pattern CLIENT_ID_PATTERN = Pattern.compile("[a-zA-Z0-9\\-_.]{1," + BulkExportHighWaterMarkEntity.CLIENT_ID_LENGTH + "}");
+	private static final String USER_DATA_KEY = IncrementalBulkExportInterceptor.class.getName();
+	private static final String OPERATION_EXPORT_POLL_STATUS = "$export-poll-status";
+	private static final String PARAM_JOB_ID = "_jobId";
+	/**
+	 * Reservations older than this are left by servers that stopped while starting an export
+	 */
+	private static final Duration RESERVATION_TIMEOUT = Duration.ofMinutes(5);
+
+	private final FhirContext myFhirContext;
+	private final IJobCoordinator myJobCoordinator;
+	private final TransactionTemplate myTxTemplate;
+	private final Duration myOverlap;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	public IncrementalBulkExportInterceptor(FhirContext theFhirContext, IJobCoordinator theJobCoordinator, PlatformTransactionManager theTransactionManager, Duration theOverlap) {
+		myFhirContext = theFhirContext;
+		myJobCoordinator = theJobCoordinator;
+		myTxTemplate = new TransactionTemplate(theTransactionManager);
+		myOverlap = theOverlap;
+	}
+
+	@Hook(Pointcut.STORAGE_INITIATE_BULK_EXPORT)
+	public void startIncrementalExport(BulkDataExportOptions theOptions, RequestDetails theRequestDetails) {
+		List<String> clientIds = getClientIds(theRequestDetails);
+		if (clientIds.isEmpty()) {
+			return;
+		}
+		String clientId = clientIds.get(0);
+		if (clientIds.size() > 1 || !CLIENT_ID_PATTERN.matcher(clientId).matches()) {
+			throw new InvalidRequestException("Invalid " + PARAM_INCREMENTAL + " parameter, expected a single client ID made of letters, digits, '-', '_' and '.'");
+		}
+		if (theOptions.getSince() != null) {
+			throw new InvalidRequestException("The _since parameter can't be combined with " + PARAM_INCREMENTAL + ", which sets it");
+		}
+
+		Date mark = myTxTemplate.execute(t -> reserve(clientId));
+		theOptions.setSince(mark);
+		theRequestDetails.getUserData().put(USER_DATA_KEY, clientId);
+		ourLog.info("Starting incremental bulk export for client {} since {}", clientId, mark);
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+	public void recordIncrementalExport(ServletRequestDetails theRequestDetails) {
+		String clientId = (String) theRequestDetails.getUserData().get(USER_DATA_KEY);
+		if (clientId != null) {
+			String jobId = getJobId(theRequestDetails.getServletResponse().getHeader(Constants.HEADER_CONTENT_LOCATION));
+			myTxTemplate.executeWithoutResult(t -> {
+				BulkExportHighWaterMarkEntity entity = myEntityManager.find(BulkExportHighWaterMarkEntity.class, clientId, LockModeType.PESSIMISTIC_WRITE);
+				if (jobId != null) {
+					entity.setPendingJobId(jobId);
+				}
+				entity.setReserved(null);
+			});
+		} else if (OPERATION_EXPORT_POLL_STATUS.equals(theRequestDetails.getOperation()) && theRequestDetails.getServletResponse().getStatus() == Constants.STATUS_HTTP_200_OK) {
+			String[] jobIds = theRequestDetails.getParameters().get(PARAM_JOB_ID);
+			if (jobIds != null && jobIds.length == 1) {
+				myTxTemplate.executeWithoutResult(t -> myEntityManager
+					.createQuery("SELECT e FROM BulkExportHighWaterMarkEntity e WHERE e.myPendingJobId = :jobId", BulkExportHighWaterMarkEntity.class)
+					.setParameter("jobId", jobIds[0])
+					.setLockMode(LockModeType.PESSIMISTIC_WRITE)
+					.getResultList()
+					.forEach(this::advance));
+			}
+		}
+	}
+
+	/**
+	 * Releases the reservation of an export that failed to start
+	 */
+	@Hook(Pointcut.SERVER_HANDLE_EXCEPTION)
+	public void releaseIncrementalExport(RequestDetails theRequestDetails) {
+		String clientId = (String) theRequestDetails.getUserData().get(USER_DATA_KEY);
+		if (clientId != null) {
+			myTxTemplate.executeWithoutResult(t -> myEntityManager.find(BulkExportHighWaterMarkEntity.class, clientId, LockModeType.PESSIMISTIC_WRITE).setReserved(null));
+		}
+	}
+
+	/**
+	 * Reserves the client's row for the export being started
+	 *
+	 * @return the high-water mark of the client, after accounting for its previous export
+	 */
+	private Date reserve(String theClientId) {
+		Date now = new Date();
+		BulkExportHighWaterMarkEntity entity = myEntityManager.find(BulkExportHighWaterMarkEntity.class, theClientId, LockModeType.PESSIMISTIC_WRITE);
+		if (entity == null) {
+			entity = new BulkExportHighWaterMarkEntity();
+			entity.setClientId(theClientId);
+			entity.setReserved(now);
+			try {
+				myEntityManager.persist(entity);
+				myEntityManager.flush();
+			} catch (PersistenceException e) {
+				if (e.getCause() instanceof ConstraintViolationException) {
+					throw new ResourceVersionConflictException("Another incremental bulk export of client " + theClientId + " is being started");
+				}
+				throw e;
+			}
+			return null;
+		}
+		if (entity.getReserved() != null && now.getTime() - entity.getReserved().getTime() < RESERVATION_TIMEOUT.toMillis()) {
+			throw new ResourceVersionConflictException("Another incremental bulk export of client " + theClientId + " is being started");
+		}
+		if (entity.getPendingJobId() != null) {
+			JobInstance instance = getInstance(entity.getPendingJobId());
+			if (instance != null && !StatusEnum.getEndedStatuses().contains(instance.getStatus())) {
+				throw new ResourceVersionConflictException("The previous incremental bulk export of client " + theClientId + " (job " + entity.getPendingJobId() + ") is still running");
+			}
+			// Exports the client didn't fetch, or that failed, don't count
+			entity.setPendingJobId(null);
+		}
+		entity.setReserved(now);
+		return entity.getHighWaterMark();
+	}
+
+	private void advance(BulkExportHighWaterMarkEntity theEntity) {
+		JobInstance instance = getInstance(theEntity.getPendingJobId());
+		if (instance == null || instance.getStatus() != StatusEnum.COMPLETED) {
+			return;
+		}
+		// The job may be an earlier one HAPI FHIR reused, so it's the job that tells how far the export got
+		Date mark = new Date(instance.getCreateTime().getTime() - myOverlap.toMillis());
+		ourLog.info("Moving the incremental bulk export high-water mark of client {} to {}", theEntity.getClientId(), mark);
+		theEntity.setHighWaterMark(mark);
+		theEntity.setPendingJobId(null);
+	}
+
+	private JobInstance getInstance(String theJobId) {
+		try {
+			return myJobCoordinator.getInstance(theJobId);
+		} catch (ResourceNotFoundException e) {
+			return null;
+		}
+	}
+
+	private List<String> getClientIds(RequestDetails theRequestDetails) {
+		if (theRequestDetails.getResource() instanceof IBaseParameters) {
+			return ParametersUtil.getNamedParameterValuesAsString(myFhirContext, (IBaseParameters) theRequestDetails.getResource(), PARAM_INCREMENTAL);
+		}
+		String[] values = theRequestDetails.getParameters().get(PARAM_INCREMENTAL);
+		return values != null ? List.of(values) : List.of();
+	}
+
+	private static String getJobId(String theContentLocation) {
+		if (StringUtils.isBlank(theContentLocation) || !theContentLocation.contains(PARAM_JOB_ID + "=")) {
+			return null;
+		}
+		return StringUtils.substringBefore(StringUtils.substringAfter(theContentLocation, PARAM_JOB_ID + "="), "&");
+	}
+}
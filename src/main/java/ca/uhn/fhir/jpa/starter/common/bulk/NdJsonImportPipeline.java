@@ -0,0 +1,193 @@
+package ca.uhn.fhir.jpa.starter.common.bulk;
+
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Imports NDJSON in three stages, so that parsing overlaps with writing and uses more than one core:
+ * <ol>
+ *    <li>a reader splits the lines into batches,</li>
+ *    <li>a pool of parser threads, each with a parser of its own (parsers aren't thread-safe), parses them,</li>
+ *    <li>and the calling thread writes the parsed batches in their original order, one commit each.</li>
+ * </ol>
+ * The parsed batches wait for the writer in a bounded queue, which blocks the reader when the writer falls
+ * behind. Each stage reports the batches and resources it handled, and the time it spent working and waiting
+ * for the others, as the <code>hapi.fhir.bulk_import.pipeline</code> metrics: a reader that waits points at the
+ * database, a writer that waits at parsing.
+ */
+public class NdJsonImportPipeline implements AutoCloseable {
+
+	public static final String METRIC_NAME = "hapi.fhir.bulk_import.pipeline";
+
+	private final int myBatchSize;
+	private final int myQueueCapacity;
+	private final ExecutorService myReaderExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("hapi-fhir-bulk-import-reader-%d").setDaemon(true).build());
+	private final ExecutorService myParserExecutor;
+	private final ThreadLocal<IParser> myParser;
+	private final AtomicInteger myQueuedBatches = new AtomicInteger();
+	private final Stage myReadStage;
+	private final Stage myParseStage;
+	private final Stage myWriteStage;
+
+	public NdJsonImportPipeline(FhirContext theFhirContext, int theParserThreads, int theBatchSize, int theQueueCapacity, MeterRegistry theMeterRegistry) {
+		myBatchSize = Math.max(1, theBatchSize);
+		myQueueCapacity = Math.max(1, theQueueCapacity);
+		myParserExecutor = Executors.newFixedThreadPool(Math.max(1, theParserThreads), new ThreadFactoryBuilder().setNameFormat("hapi-fhir-bulk-import-parser-%d").setDaemon(true).build());
+		myParser = ThreadLocal.withInitial(theFhirContext::newJsonParser);
+		myReadStage = new Stage("read", theMeterRegistry);
+		myParseStage = new Stage("parse", theMeterRegistry);
+		myWriteStage = new Stage("write", theMeterRegistry);
+		theMeterRegistry.gauge(METRIC_NAME + ".queued", myQueuedBatches);
+	}
+
+	/**
+	 * Parses the NDJSON and hands the resources to the writer in batches, in the order they appear
+	 *
+	 * @return the number of resources written
+	 */
+	public int run(String theNdJson, Consumer<List<IBaseResource>> theWriter) {
+		BlockingQueue<CompletableFuture<List<IBaseResource>>> parsed = new ArrayBlockingQueue<>(myQueueCapacity);
+		CompletableFuture<List<IBaseResource>> endOfInput = CompletableFuture.completedFuture(null);
+		Future<?> reader = myReaderExecutor.submit(() -> read(theNdJson, parsed, endOfInput));
+
+		int retVal = 0;
+		try {
+			while (true) {
+				long waitStart = System.nanoTime();
+				CompletableFuture<List<IBaseResource>> next = parsed.take();
+				if (next == endOfInput) {
+					myWriteStage.waited(waitStart);
+					break;
+				}
+				// Taken off the queue, even if it failed to parse
+				myQueuedBatches.decrementAndGet();
+				List<IBaseResource> batch = next.join();
+				myWriteStage.waited(waitStart);
+				long start = System.nanoTime();
+				theWriter.accept(batch);
+				myWriteStage.worked(start, batch.size());
+				retVal += batch.size();
+			}
+			return retVal;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JobExecutionFailedException("Interrupted while importing NDJSON", e);
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+		} finally {
+			// Stops the reader if the writer failed, and drops what it had queued
+			reader.cancel(true);
+			parsed.forEach(t -> {
+				if (t != endOfInput) {
+					t.cancel(false);
+					myQueuedBatches.decrementAndGet();
+				}
+			});
+		}
+	}
+
+	private void read(String theNdJson, BlockingQueue<CompletableFuture<List<IBaseResource>>> theParsed, CompletableFuture<List<IBaseResource>> theEndOfInput) {
+		try {
+			int start = 0;
+			while (start < theNdJson.length() && !Thread.currentThread().isInterrupted()) {
+				long readStart = System.nanoTime();
+				List<String> lines = new ArrayList<>(myBatchSize);
+				while (lines.size() < myBatchSize && start < theNdJson.length()) {
+					int end = theNdJson.indexOf('\n', start);
+					end = end == -1 ? theNdJson.length() : end;
+					String line = theNdJson.substring(start, end);
+					if (StringUtils.isNotBlank(line)) {
+						lines.add(line);
+					}
+					start = end + 1;
+				}
+				myReadStage.worked(readStart, lines.size());
+				if (!lines.isEmpty()) {
+					long waitStart = System.nanoTime();
+					myQueuedBatches.incrementAndGet();
+					try {
+						theParsed.put(CompletableFuture.supplyAsync(() -> parse(lines), myParserExecutor));
+					} catch (InterruptedException e) {
+						myQueuedBatches.decrementAndGet();
+						throw e;
+					}
+					myReadStage.waited(waitStart);
+				}
+			}
+			theParsed.put(theEndOfInput);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			// Hands the failure to the writer, which would otherwise wait for the end of the input forever
+			try {
+				theParsed.put(CompletableFuture.failedFuture(e));
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private List<IBaseResource> parse(List<String> theLines) {
+		long start = System.nanoTime();
+		IParser parser = myParser.get();
+		List<IBaseResource> retVal = new ArrayList<>(theLines.size());
+		for (String next : theLines) {
+			try {
+				retVal.add(parser.parseResource(next));
+			} catch (DataFormatException e) {
+				throw new JobExecutionFailedException("Failed to parse resource: " + e, e);
+			}
+		}
+		myParseStage.worked(start, retVal.size());
+		return retVal;
+	}
+
+	@Override
+	public void close() {
+		myReaderExecutor.shutdownNow();
+		myParserExecutor.shutdownNow();
+	}
+
+	private static class Stage {
+
+		private final Timer myWorkTimer;
+		private final Timer myWaitTimer;
+		private final Counter myResourceCounter;
+
+		private Stage(String theName, MeterRegistry theMeterRegistry) {
+			myWorkTimer = Timer.builder(METRIC_NAME).tag("stage", theName).tag("state", "working").description("Time spent by a bulk import stage on batches").register(theMeterRegistry);
+			myWaitTimer = Timer.builder(METRIC_NAME).tag("stage", theName).tag("state", "waiting").description("Time spent by a bulk import stage waiting for the others").register(theMeterRegistry);
+			myResourceCounter = Counter.builder(METRIC_NAME + ".resources").tag("stage", theName).description("Resources handled by a bulk import stage").register(theMeterRegistry);
+		}
+
+		private void worked(long theStartNanos, int theResources) {
+			myWorkTimer.record(System.nanoTime() - theStartNanos, TimeUnit.NANOSECONDS);
+			myResourceCounter.increment(theResources);
+		}
+
+		private void waited(long theStartNanos) {
+			myWaitTimer.record(System.nanoTime() - theStartNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+}
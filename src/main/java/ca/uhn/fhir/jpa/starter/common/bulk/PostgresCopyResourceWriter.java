@@ -0,0 +1,313 @@
+package ca.uhn.fhir.jpa.starter.common.bulk;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.dao.GZipUtil;
+import ca.uhn.fhir.jpa.model.config.PartitionSettings;
+import ca.uhn.fhir.jpa.model.dialect.ISequenceValueMassager;
+import ca.uhn.fhir.jpa.model.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import ca.uhn.fhir.util.ReflectionUtil;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Session;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hl7.fhir.instance.model.api.IBaseMetaType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.postgresql.PGConnection;
+import org.postgresql.largeobject.LargeObject;
+import org.postgresql.largeobject.LargeObjectManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Writes new resources into the HAPI FHIR tables with the PostgreSQL <code>COPY</code> protocol, which is far
+ * cheaper than the regular write path for initial loads.
+ * <p>
+ * The HFJ_RESOURCE, HFJ_RES_VER and HFJ_FORCED_ID rows of a batch are each copied in with one statement, then
+ * the resources are reindexed in the same transaction, which writes their search index rows the way HAPI FHIR
+ * does. References between the resources of a batch therefore resolve, and nothing is visible before all of it
+ * is. Resources stored in further tables are left to the regular path: those whose ID already exists,
+ * duplicates within the batch, IDs the client ID strategy rejects, and resources with tags, profiles, security
+ * labels, a source or meta extensions.
+ */
+public class PostgresCopyResourceWriter {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(PostgresCopyResourceWriter.class);
+	/**
+	 * The length of HFJ_RES_VER.RES_TEXT_VC; longer resources go to a large object
+	 */
+	static final int INLINE_TEXT_MAX_LENGTH = 4000;
+	/**
+	 * The increment of the HAPI FHIR sequences, each value of which stands for the block of IDs below it
+	 */
+	private static final int SEQUENCE_INCREMENT = 50;
+	private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9\\-.]{1,64}");
+	private static final Set<String> IGNORED_META_CHILDREN = Set.of("id", "versionId", "lastUpdated");
+
+	private final FhirContext myFhirContext;
+	private final DaoRegistry myDaoRegistry;
+	private final DaoConfig myDaoConfig;
+	private final PartitionSettings myPartitionSettings;
+	private final ISequenceValueMassager myIdMassager;
+
+	@PersistenceContext
+	private EntityManager myEntityManager;
+
+	public PostgresCopyResourceWriter(FhirContext theFhirContext, DaoRegistry theDaoRegistry, DaoConfig theDaoConfig, PartitionSettings thePartitionSettings) {
+		myFhirContext = theFhirContext;
+		myDaoRegistry = theDaoRegistry;
+		myDaoConfig = theDaoConfig;
+		myPartitionSettings = thePartitionSettings;
+		myIdMassager = ReflectionUtil.newInstance(theDaoConfig.getModelConfig().getSequenceValueMassagerClass());
+	}
+
+	/**
+	 * @return whether resources can be copied at all, i.e. the database is PostgreSQL and neither the FHIR
+	 * version (DSTU2 stores metadata differently) nor partitioning get in the way
+	 */
+	public boolean isSupported() {
+		boolean postgres = myEntityManager.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class).getJdbcServices().getDialect() instanceof PostgreSQL81Dialect;
+		return postgres
+			&& myFhirContext.getVersion().getVersion().isEqualOrNewerThan(FhirVersionEnum.DSTU3)
+			&& !myPartitionSettings.isPartitioningEnabled()
+			&& myDaoConfig.getResourceClientIdStrategy() != DaoConfig.ClientIdStrategyEnum.NOT_ALLOWED;
+	}
+
+	/**
+	 * Copies the new resources within the current transaction
+	 *
+	 * @return the resources to store through the regular path instead
+	 */
+	public List<IBaseResource> write(List<IBaseResource> theResources) {
+		if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+			throw new IllegalStateException("Resources can only be copied within a transaction");
+		}
+		List<IBaseResource> retVal = new ArrayList<>();
+		Map<String, IBaseResource> candidates = new LinkedHashMap<>();
+		for (IBaseResource next : theResources) {
+			if (!canCopy(next) || candidates.putIfAbsent(key(next), next) != null) {
+				retVal.add(next);
+			}
+		}
+		if (candidates.isEmpty()) {
+			return retVal;
+		}
+
+		Map<Long, IBaseResource> copied = myEntityManager.unwrap(Session.class).doReturningWork(connection -> copy(connection, candidates, retVal));
+		reindex(copied);
+		ourLog.debug("Copied {} resources, leaving {} to the regular path", copied.size(), retVal.size());
+		return retVal;
+	}
+
+	private boolean canCopy(IBaseResource theResource) {
+		String id = theResource.getIdElement().getIdPart();
+		if (id == null || !ID_PATTERN.matcher(id).matches()) {
+			return false;
+		}
+		if (myDaoConfig.getResourceClientIdStrategy() == DaoConfig.ClientIdStrategyEnum.ALPHANUMERIC && StringUtils.isNumeric(id)) {
+			return false;
+		}
+		IBaseMetaType meta = theResource.getMeta();
+		BaseRuntimeElementCompositeDefinition<?> metaDefinition = (BaseRuntimeElementCompositeDefinition<?>) myFhirContext.getElementDefinition(meta.getClass());
+		for (BaseRuntimeChildDefinition next : metaDefinition.getChildrenAndExtension()) {
+			if (!IGNORED_META_CHILDREN.contains(next.getElementName()) && !next.getAccessor().getValues(meta).isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the copied resources by PID; those that already exist are added to the ones left for the regular
+	 * path
+	 */
+	private Map<Long, IBaseResource> copy(Connection theConnection, Map<String, IBaseResource> theCandidates, List<IBaseResource> theLeftOver) throws SQLException {
+		Set<String> existing = findExisting(theConnection, theCandidates.values());
+		List<IBaseResource> resources = new ArrayList<>();
+		theCandidates.forEach((key, resource) -> (existing.contains(key) ? theLeftOver : resources).add(resource));
+		Map<Long, IBaseResource> retVal = new LinkedHashMap<>();
+		if (resources.isEmpty()) {
+			return retVal;
+		}
+
+		PGConnection connection = theConnection.unwrap(PGConnection.class);
+		List<Long> resourcePids = allocate(theConnection, "SEQ_RESOURCE_ID", resources.size());
+		List<Long> versionPids = allocate(theConnection, "SEQ_RESOURCE_HISTORY_ID", resources.size());
+		List<Long> forcedIdPids = allocate(theConnection, "SEQ_FORCEDID_ID", resources.size());
+		int inlineTextMaxLength = myDaoConfig.getInlineResourceTextBelowSize() > 0 ? Math.min(myDaoConfig.getInlineResourceTextBelowSize(), INLINE_TEXT_MAX_LENGTH) : 0;
+		String now = new Timestamp(System.currentTimeMillis()).toString();
+		String fhirVersion = myFhirContext.getVersion().getVersion().name();
+		ResourceEncodingEnum encoding = myDaoConfig.getResourceEncoding();
+
+		StringBuilder resourceRows = new StringBuilder();
+		StringBuilder versionRows = new StringBuilder();
+		StringBuilder forcedIdRows = new StringBuilder();
+		for (int i = 0; i < resources.size(); i++) {
+			IBaseResource resource = resources.get(i);
+			String type = myFhirContext.getResourceType(resource);
+			String id = resource.getIdElement().getIdPart();
+			Long pid = resourcePids.get(i);
+
+			String text = BaseHapiFhirDao.encodeResource(resource, ResourceEncodingEnum.JSON, List.of("id", type + ".meta"), myFhirContext);
+			String inlineText = null;
+			Long largeObject = null;
+			ResourceEncodingEnum rowEncoding = ResourceEncodingEnum.JSON;
+			String hash;
+			// Hashed the way HAPI FHIR hashes what it stores, so the reindex doesn't see a change
+			if (text.length() < inlineTextMaxLength) {
+				inlineText = text;
+				hash = Hashing.sha256().hashUnencodedChars(text).toString();
+			} else {
+				rowEncoding = encoding == ResourceEncodingEnum.JSONC ? ResourceEncodingEnum.JSONC : ResourceEncodingEnum.JSON;
+				byte[] contents = rowEncoding == ResourceEncodingEnum.JSONC ? GZipUtil.compress(text) : text.getBytes(StandardCharsets.UTF_8);
+				largeObject = writeLargeObject(connection, contents);
+				hash = Hashing.sha256().hashBytes(contents).toString();
+			}
+
+			// Index presence is filled in by the reindex
+			appendRow(resourceRows, pid, type, id, 1, fhirVersion, now, now, false, BaseHapiFhirDao.INDEX_STATUS_INDEXED, hash, false, false, false, false, false, false, false, false, false, false, false);
+			appendRow(versionRows, versionPids.get(i), pid, type, 1, fhirVersion, now, now, false, rowEncoding.name(), largeObject, inlineText);
+			appendRow(forcedIdRows, forcedIdPids.get(i), pid, type, id);
+			resource.setId(myFhirContext.getVersion().newIdType().setParts(null, type, id, "1"));
+			retVal.put(pid, resource);
+		}
+
+		copyIn(connection, "HFJ_RESOURCE (RES_ID, RES_TYPE, FHIR_ID, RES_VER, RES_VERSION, RES_PUBLISHED, RES_UPDATED, HAS_TAGS, SP_INDEX_STATUS, HASH_SHA256, SP_HAS_LINKS, SP_COORDS_PRESENT, SP_DATE_PRESENT, SP_NUMBER_PRESENT, SP_QUANTITY_PRESENT, SP_QUANTITY_NRML_PRESENT, SP_STRING_PRESENT, SP_TOKEN_PRESENT, SP_URI_PRESENT, SP_CMPSTR_UNIQ_PRESENT, SP_CMPTOKS_PRESENT)", resourceRows);
+		copyIn(connection, "HFJ_RES_VER (PID, RES_ID, RES_TYPE, RES_VER, RES_VERSION, RES_PUBLISHED, RES_UPDATED, HAS_TAGS, RES_ENCODING, RES_TEXT, RES_TEXT_VC)", versionRows);
+		copyIn(connection, "HFJ_FORCED_ID (PID, RESOURCE_PID, RESOURCE_TYPE, FORCED_ID)", forcedIdRows);
+		return retVal;
+	}
+
+	/**
+	 * @return the keys of the resources whose type and ID are already taken
+	 */
+	private Set<String> findExisting(Connection theConnection, Iterable<IBaseResource> theResources) throws SQLException {
+		Set<String> ids = new HashSet<>();
+		theResources.forEach(t -> ids.add(t.getIdElement().getIdPart()));
+		Set<String> retVal = new HashSet<>();
+		try (PreparedStatement statement = theConnection.prepareStatement("SELECT RESOURCE_TYPE, FORCED_ID FROM HFJ_FORCED_ID WHERE FORCED_ID = ANY (?)")) {
+			statement.setArray(1, theConnection.createArrayOf("varchar", ids.toArray()));
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					retVal.add(resultSet.getString(1) + "/" + resultSet.getString(2));
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Takes whole blocks from a sequence, as Hibernate's pooled optimizer does, so the IDs never collide with
+	 * those Hibernate hands out. The IDs are passed through the configured {@link ISequenceValueMassager}, as
+	 * HAPI FHIR's sequence generator does.
+	 */
+	private List<Long> allocate(Connection theConnection, String theSequence, int theCount) throws SQLException {
+		List<Long> retVal = new ArrayList<>(theCount);
+		while (retVal.size() < theCount) {
+			int blocks = (theCount - retVal.size() + SEQUENCE_INCREMENT - 1) / SEQUENCE_INCREMENT;
+			try (PreparedStatement statement = theConnection.prepareStatement("SELECT nextval('" + theSequence + "') FROM generate_series(1, ?)")) {
+				statement.setInt(1, blocks);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					while (resultSet.next()) {
+						long highValue = resultSet.getLong(1);
+						// Hibernate combines the first two values of a new sequence into a single block
+						if (highValue <= SEQUENCE_INCREMENT + 1) {
+							continue;
+						}
+						for (long next = highValue - SEQUENCE_INCREMENT + 1; next <= highValue && retVal.size() < theCount; next++) {
+							retVal.add(myIdMassager.massage(theSequence, next));
+						}
+					}
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private static long writeLargeObject(PGConnection theConnection, byte[] theContents) throws SQLException {
+		LargeObjectManager largeObjectManager = theConnection.getLargeObjectAPI();
+		long retVal = largeObjectManager.createLO(LargeObjectManager.READWRITE);
+		LargeObject largeObject = largeObjectManager.open(retVal, LargeObjectManager.WRITE);
+		try {
+			largeObject.write(theContents);
+		} finally {
+			largeObject.close();
+		}
+		return retVal;
+	}
+
+	private static void copyIn(PGConnection theConnection, String theTable, StringBuilder theRows) throws SQLException {
+		try {
+			theConnection.getCopyAPI().copyIn("COPY " + theTable + " FROM STDIN WITH (FORMAT csv)", new StringReader(theRows.toString()));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Appends a CSV row, where an unquoted empty value is NULL
+	 */
+	private static void appendRow(StringBuilder theRows, Object... theValues) {
+		for (int i = 0; i < theValues.length; i++) {
+			if (i > 0) {
+				theRows.append(',');
+			}
+			if (theValues[i] != null) {
+				theRows.append('"').append(theValues[i].toString().replace("\"", "\"\"")).append('"');
+			}
+		}
+		theRows.append('\n');
+	}
+
+	/**
+	 * Writes the search index rows of the copied resources
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void reindex(Map<Long, IBaseResource> theResources) {
+		if (theResources.isEmpty()) {
+			return;
+		}
+		List<ResourceTable> entities = myEntityManager
+			.createQuery("SELECT r FROM ResourceTable r LEFT JOIN FETCH r.myForcedId WHERE r.myId IN (:pids)", ResourceTable.class)
+			.setParameter("pids", theResources.keySet())
+			.getResultList();
+		Map<Long, ResourceTable> entitiesByPid = entities.stream().collect(Collectors.toMap(ResourceTable::getId, t -> t));
+		theResources.forEach((pid, resource) -> {
+			IFhirResourceDao dao = myDaoRegistry.getResourceDao(resource);
+			dao.reindex(resource, entitiesByPid.get(pid));
+		});
+	}
+
+	private String key(IBaseResource theResource) {
+		return myFhirContext.getResourceType(theResource) + "/" + theResource.getIdElement().getIdPart();
+	}
+}
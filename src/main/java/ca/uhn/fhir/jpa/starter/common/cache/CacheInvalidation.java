@@ -0,0 +1,79 @@
+package ca.uhn.fhir.jpa.starter.common.cache;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+import javax.annotation.Nullable;
+import java.util.Objects;
+
+/**
+ * Data to evict from the second-level cache of the other servers: a single entity, or everything in a region
+ */
+public class CacheInvalidation {
+
+	private final String myRegion;
+	private final String myEntityName;
+	private final String myEntityId;
+
+	private CacheInvalidation(String theRegion, String theEntityName, String theEntityId) {
+		myRegion = theRegion;
+		myEntityName = theEntityName;
+		myEntityId = theEntityId;
+	}
+
+	public static CacheInvalidation forEntity(String theEntityName, Object theEntityId) {
+		return new CacheInvalidation(null, theEntityName, String.valueOf(theEntityId));
+	}
+
+	public static CacheInvalidation forRegion(String theRegion) {
+		return new CacheInvalidation(theRegion, null, null);
+	}
+
+	/**
+	 * @return the region to clear, or <code>null</code> for an entity invalidation
+	 */
+	@Nullable
+	public String getRegion() {
+		return myRegion;
+	}
+
+	@Nullable
+	public String getEntityName() {
+		return myEntityName;
+	}
+
+	/**
+	 * @return the entity's identifier, as a string
+	 */
+	@Nullable
+	public String getEntityId() {
+		return myEntityId;
+	}
+
+	public boolean isRegion() {
+		return myRegion != null;
+	}
+
+	@Override
+	public boolean equals(Object theOther) {
+		if (!(theOther instanceof CacheInvalidation)) {
+			return false;
+		}
+		CacheInvalidation other = (CacheInvalidation) theOther;
+		return Objects.equals(myRegion, other.myRegion) && Objects.equals(myEntityName, other.myEntityName) && Objects.equals(myEntityId, other.myEntityId);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(myRegion, myEntityName, myEntityId);
+	}
+
+	@Override
+	public String toString() {
+		return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+			.append("region", myRegion)
+			.append("entityName", myEntityName)
+			.append("entityId", myEntityId)
+			.toString();
+	}
+}
@@ -0,0 +1,22 @@
+package ca.uhn.fhir.jpa.starter.common.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries cache invalidations between the servers sharing a database, so none of them keeps serving an
+ * entity another one changed from its second-level cache, or validation outcomes that other changes made stale
+ * from its validation result cache. Define a bean of this type to use a messaging system of your own
+ * instead of the built-in implementations.
+ */
+public interface CacheInvalidationBroadcaster {
+
+	/**
+	 * Sends an invalidation, after the transaction making the change has committed, to every other server
+	 */
+	void broadcast(CacheInvalidation theInvalidation);
+
+	/**
+	 * Adds a listener to which invalidations sent by the other servers are delivered
+	 */
+	void addListener(Consumer<CacheInvalidation> theListener);
+}
@@ -0,0 +1,90 @@
+package ca.uhn.fhir.jpa.starter.common.cache;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * A second-level cache invalidation sent by the {@link DatabaseCacheInvalidationBroadcaster} of one server
+ * to the others
+ */
+@Entity
+@Table(name = "STARTER_CACHE_INVALIDATION", indexes = {@Index(name = "IDX_STARTER_CACHE_INV_CREATED", columnList = "CREATED_TIME")})
+public class CacheInvalidationEntity {
+
+	@Id
+	@Column(name = "ID", length = 36, nullable = false)
+	private String myId;
+
+	@Column(name = "NODE_ID", length = 36, nullable = false)
+	private String myNodeId;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "CREATED_TIME", nullable = false)
+	private Date myCreated;
+
+	@Column(name = "CACHE_REGION", length = 200)
+	private String myRegion;
+
+	@Column(name = "ENTITY_NAME", length = 200)
+	private String myEntityName;
+
+	@Column(name = "ENTITY_ID", length = 200)
+	private String myEntityId;
+
+	public String getId() {
+		return myId;
+	}
+
+	public void setId(String theId) {
+		myId = theId;
+	}
+
+	/**
+	 * @return the ID of the server that sent the invalidation
+	 */
+	public String getNodeId() {
+		return myNodeId;
+	}
+
+	public void setNodeId(String theNodeId) {
+		myNodeId = theNodeId;
+	}
+
+	public Date getCreated() {
+		return myCreated;
+	}
+
+	public void setCreated(Date theCreated) {
+		myCreated = theCreated;
+	}
+
+	public String getRegion() {
+		return myRegion;
+	}
+
+	public void setRegion(String theRegion) {
+		myRegion = theRegion;
+	}
+
+	public String getEntityName() {
+		return myEntityName;
+	}
+
+	public void setEntityName(String theEntityName) {
+		myEntityName = theEntityName;
+	}
+
+	public String getEntityId() {
+		return myEntityId;
+	}
+
+	public void setEntityId(String theEntityId) {
+		myEntityId = theEntityId;
+	}
+}
@@ -0,0 +1,17 @@
+package ca.uhn.fhir.jpa.starter.common.cache;
+
+/**
+ * How second-level cache invalidations reach the other servers sharing the database
+ */
+public enum CacheInvalidationModeEnum {
+
+	/**
+	 * They don't, which is only correct for a single server
+	 */
+	NONE,
+
+	/**
+	 * Through the STARTER_CACHE_INVALIDATION table, which every server polls
+	 */
+	DATABASE
+}
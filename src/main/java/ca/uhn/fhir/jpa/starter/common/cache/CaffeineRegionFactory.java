@@ -0,0 +1,184 @@
+package ca.uhn.fhir.jpa.starter.common.cache;
+
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.cfg.spi.DomainDataRegionBuildingContext;
+import org.hibernate.cache.cfg.spi.DomainDataRegionConfig;
+import org.hibernate.cache.spi.access.AccessType;
+import org.hibernate.cache.spi.support.DomainDataStorageAccess;
+import org.hibernate.cache.spi.support.RegionFactoryTemplate;
+import org.hibernate.cache.spi.support.StorageAccess;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A Hibernate second-level cache kept in Caffeine caches, one per region.
+ * <p>
+ * Each configured region caches one entity, named by its class name, or by its simple name for the entities in
+ * <code>ca.uhn.fhir.jpa.model.entity</code> (e.g. <code>ResourceTable</code>), with the
+ * <code>read-write</code> strategy. Entities without a region aren't cached. Regions record statistics, which
+ * are published as <code>hapi.fhir.second_level_cache.&lt;region&gt;</code> cache metrics.
+ * <p>
+ * Hibernate clears regions after bulk updates and native queries. The {@link SecondLevelCacheInvalidator}
+ * tells the other servers about those, and about changes to single entities.
+ */
+public class CaffeineRegionFactory extends RegionFactoryTemplate {
+
+	public static final String CACHE_NAME_PREFIX = "hapi.fhir.second_level_cache.";
+	private static final Logger ourLog = LoggerFactory.getLogger(CaffeineRegionFactory.class);
+	private static final String MODEL_ENTITY_PACKAGE = "ca.uhn.fhir.jpa.model.entity.";
+	private static final long INTERNAL_REGION_MAX_ENTRIES = 10000;
+
+	private final Map<String, AppProperties.SecondLevelCache.Region> myRegionSettings;
+	private final Map<String, RegionStorageAccess> myRegions = new ConcurrentHashMap<>();
+	private volatile Consumer<String> myRegionClearListener = theRegion -> {};
+	private volatile MeterRegistry myMeterRegistry;
+
+	public CaffeineRegionFactory(Map<String, AppProperties.SecondLevelCache.Region> theRegionSettings) {
+		myRegionSettings = Map.copyOf(theRegionSettings);
+	}
+
+	/**
+	 * @return the settings enabling the second-level cache for the configured regions, to add to the JPA
+	 * properties
+	 */
+	public Map<String, Object> getHibernateProperties() {
+		Map<String, Object> retVal = new HashMap<>();
+		retVal.put(AvailableSettings.USE_SECOND_LEVEL_CACHE, true);
+		retVal.put(AvailableSettings.CACHE_REGION_FACTORY, this);
+		myRegionSettings.keySet().forEach(region -> retVal.put(AvailableSettings.CLASS_CACHE_PREFIX + "." + entityClassName(region), "read-write," + region));
+		return retVal;
+	}
+
+	/**
+	 * Sets the listener told about the entity regions cleared on this server
+	 */
+	public void setRegionClearListener(Consumer<String> theListener) {
+		myRegionClearListener = theListener;
+	}
+
+	/**
+	 * Publishes the statistics of every region, including those built later
+	 */
+	public void bindMetrics(MeterRegistry theMeterRegistry) {
+		myMeterRegistry = theMeterRegistry;
+		myRegions.forEach((name, region) -> CaffeineCacheMetrics.monitor(theMeterRegistry, region.myCache, CACHE_NAME_PREFIX + name));
+	}
+
+	/**
+	 * Clears a region of this server only, e.g. on an invalidation from another server
+	 */
+	public void evictLocally(String theRegion) {
+		RegionStorageAccess region = myRegions.get(theRegion);
+		if (region != null) {
+			region.myCache.invalidateAll();
+		}
+	}
+
+	@Override
+	protected DomainDataStorageAccess createDomainDataStorageAccess(DomainDataRegionConfig theRegionConfig, DomainDataRegionBuildingContext theBuildingContext) {
+		String name = theRegionConfig.getRegionName();
+		AppProperties.SecondLevelCache.Region settings = myRegionSettings.getOrDefault(name, new AppProperties.SecondLevelCache.Region());
+		Caffeine<Object, Object> builder = Caffeine.newBuilder().maximumSize(settings.getMax_entries()).recordStats();
+		if (settings.getExpire_after_write_seconds() != null) {
+			builder.expireAfterWrite(Duration.ofSeconds(settings.getExpire_after_write_seconds()));
+		}
+		RegionStorageAccess retVal = new RegionStorageAccess(name, builder.build(), true);
+		myRegions.put(name, retVal);
+		if (myMeterRegistry != null) {
+			CaffeineCacheMetrics.monitor(myMeterRegistry, retVal.myCache, CACHE_NAME_PREFIX + name);
+		}
+		ourLog.info("Second-level cache region {} holds up to {} entries", name, settings.getMax_entries());
+		return retVal;
+	}
+
+	@Override
+	protected StorageAccess createQueryResultsRegionStorageAccess(String theRegionName, SessionFactoryImplementor theSessionFactory) {
+		return new RegionStorageAccess(theRegionName, Caffeine.newBuilder().maximumSize(INTERNAL_REGION_MAX_ENTRIES).build(), false);
+	}
+
+	@Override
+	protected StorageAccess createTimestampsRegionStorageAccess(String theRegionName, SessionFactoryImplementor theSessionFactory) {
+		return new RegionStorageAccess(theRegionName, Caffeine.newBuilder().maximumSize(INTERNAL_REGION_MAX_ENTRIES).build(), false);
+	}
+
+	@Override
+	protected void prepareForUse(SessionFactoryOptions theSettings, Map theConfigValues) {
+		// Regions are built on demand
+	}
+
+	@Override
+	protected void releaseFromUse() {
+		myRegions.values().forEach(RegionStorageAccess::release);
+		myRegions.clear();
+	}
+
+	@Override
+	public AccessType getDefaultAccessType() {
+		return AccessType.READ_WRITE;
+	}
+
+	private static String entityClassName(String theRegion) {
+		return theRegion.contains(".") ? theRegion : MODEL_ENTITY_PACKAGE + theRegion;
+	}
+
+	private class RegionStorageAccess implements DomainDataStorageAccess {
+
+		private final String myName;
+		private final Cache<Object, Object> myCache;
+		private final boolean myBroadcastClear;
+
+		private RegionStorageAccess(String theName, Cache<Object, Object> theCache, boolean theBroadcastClear) {
+			myName = theName;
+			myCache = theCache;
+			myBroadcastClear = theBroadcastClear;
+		}
+
+		@Override
+		public Object getFromCache(Object theKey, SharedSessionContractImplementor theSession) {
+			return myCache.getIfPresent(theKey);
+		}
+
+		@Override
+		public void putIntoCache(Object theKey, Object theValue, SharedSessionContractImplementor theSession) {
+			myCache.put(theKey, theValue);
+		}
+
+		@Override
+		public boolean contains(Object theKey) {
+			return myCache.asMap().containsKey(theKey);
+		}
+
+		@Override
+		public void evictData() {
+			myCache.invalidateAll();
+			if (myBroadcastClear) {
+				myRegionClearListener.accept(myName);
+			}
+		}
+
+		@Override
+		public void evictData(Object theKey) {
+			myCache.invalidate(theKey);
+		}
+
+		@Override
+		public void release() {
+			myCache.invalidateAll();
+			myCache.cleanUp();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package ca.uhn.fhir.jpa.starter.common.cache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sends second-level cache invalidations through the STARTER_CACHE_INVALIDATION table, which needs nothing
+ * but the database the servers already share.
+ * <p>
+ * Invalidations are queued and written in a batch on every poll, which also reads those the other servers
+ * wrote within the lookback window (ten poll intervals, and at least ten seconds). Servers therefore see each
+ * other's changes within about two poll intervals, as long as their clocks differ by less than the window.
+ * Rows older than twice the window are deleted.
+ */
+public class DatabaseCacheInvalidationBroadcaster implements CacheInvalidationBroadcaster, AutoCloseable {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(DatabaseCacheInvalidationBroadcaster.class);
+
+	private final String myNodeId = UUID.randomUUID().toString();
+	private final TransactionTemplate myTxTemplate;
+	private final Duration myPollInterval;
+	private final Duration myLookback;
+	private final ConcurrentLinkedQueue<CacheInvalidation> myQueue = new ConcurrentLinkedQueue<>();
+	private final Map<String, Long> myReceived = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("hapi-fhir-cache-invalidation-%d").setDaemon(true).build());
+	private final List<Consumer<CacheInvalidation>> myListeners = new CopyOnWriteArrayList<>();
+	private long myLastPurge;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	public DatabaseCacheInvalidationBroadcaster(PlatformTransactionManager theTransactionManager, Duration thePollInterval) {
+		myTxTemplate = new TransactionTemplate(theTransactionManager);
+		myPollInterval = thePollInterval;
+		myLookback = Duration.ofMillis(Math.max(10000, thePollInterval.toMillis() * 10));
+	}
+
+	public void start() {
+		myLastPurge = System.currentTimeMillis();
+		myExecutor.scheduleWithFixedDelay(this::poll, myPollInterval.toMillis(), myPollInterval.toMillis(), TimeUnit.MILLISECONDS);
+		ourLog.info("Exchanging second-level cache invalidations through the database every {}ms as node {}", myPollInterval.toMillis(), myNodeId);
+	}
+
+	@Override
+	public void broadcast(CacheInvalidation theInvalidation) {
+		myQueue.add(theInvalidation);
+	}
+
+	@Override
+	public void addListener(Consumer<CacheInvalidation> theListener) {
+		myListeners.add(theListener);
+	}
+
+	/**
+	 * Writes the queued invalidations and applies those of the other servers
+	 */
+	void poll() {
+		try {
+			send();
+			receive();
+			purge();
+		} catch (RuntimeException e) {
+			ourLog.warn("Failed to exchange second-level cache invalidations", e);
+		}
+	}
+
+	private void send() {
+		Set<CacheInvalidation> invalidations = new LinkedHashSet<>();
+		for (CacheInvalidation next = myQueue.poll(); next != null; next = myQueue.poll()) {
+			invalidations.add(next);
+		}
+		if (invalidations.isEmpty()) {
+			return;
+		}
+		Date now = new Date();
+		myTxTemplate.executeWithoutResult(t -> invalidations.forEach(next -> {
+			CacheInvalidationEntity entity = new CacheInvalidationEntity();
+			entity.setId(UUID.randomUUID().toString());
+			entity.setNodeId(myNodeId);
+			entity.setCreated(now);
+			entity.setRegion(next.getRegion());
+			entity.setEntityName(next.getEntityName());
+			entity.setEntityId(next.getEntityId());
+			myEntityManager.persist(entity);
+		}));
+	}
+
+	private void receive() {
+		long now = System.currentTimeMillis();
+		Date since = new Date(now - myLookback.toMillis());
+		List<CacheInvalidationEntity> received = myTxTemplate.execute(t -> myEntityManager
+			.createQuery("SELECT e FROM CacheInvalidationEntity e WHERE e.myCreated >= :since AND e.myNodeId <> :nodeId", CacheInvalidationEntity.class)
+			.setParameter("since", since)
+			.setParameter("nodeId", myNodeId)
+			.getResultList());
+		List<CacheInvalidation> invalidations = new ArrayList<>();
+		for (CacheInvalidationEntity next : received) {
+			if (myReceived.putIfAbsent(next.getId(), now) == null) {
+				invalidations.add(next.getRegion() != null ? CacheInvalidation.forRegion(next.getRegion()) : CacheInvalidation.forEntity(next.getEntityName(), next.getEntityId()));
+			}
+		}
+		invalidations.forEach(next -> myListeners.forEach(t -> t.accept(next)));
+		// Rows outside the window won't be read again
+		myReceived.values().removeIf(t -> t < since.getTime());
+	}
+
+	private void purge() {
+		long now = System.currentTimeMillis();
+		if (now - myLastPurge < myLookback.toMillis()) {
+			return;
+		}
+		myLastPurge = now;
+		Date before = new Date(now - 2 * myLookback.toMillis());
+		int deleted = myTxTemplate.execute(t -> myEntityManager
+			.createQuery("DELETE FROM CacheInvalidationEntity e WHERE e.myCreated < :before")
+			.setParameter("before", before)
+			.executeUpdate());
+		ourLog.debug("Deleted {} expired second-level cache invalidations", deleted);
+	}
+
+	@Override
+	public void close() {
+		myExecutor.shutdownNow();
+	}
+}
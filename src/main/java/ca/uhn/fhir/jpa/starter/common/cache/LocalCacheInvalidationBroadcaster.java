@@ -0,0 +1,19 @@
+package ca.uhn.fhir.jpa.starter.common.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Doesn't send invalidations anywhere, for a server that has the database to itself
+ */
+public class LocalCacheInvalidationBroadcaster implements CacheInvalidationBroadcaster {
+
+	@Override
+	public void broadcast(CacheInvalidation theInvalidation) {
+		// Nobody to tell
+	}
+
+	@Override
+	public void addListener(Consumer<CacheInvalidation> theListener) {
+		// Nobody to hear from
+	}
+}
@@ -0,0 +1,124 @@
+package ca.uhn.fhir.jpa.starter.common.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.AbstractStandardBasicType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.Serializable;
+
+/**
+ * Keeps the second-level caches of the servers sharing a database consistent: broadcasts the cached
+ * entities this server updates or deletes once their transaction has committed, and evicts those the other
+ * servers report. Counts both in the <code>hapi.fhir.second_level_cache.invalidations</code> metric.
+ */
+public class SecondLevelCacheInvalidator implements PostCommitUpdateEventListener, PostCommitDeleteEventListener {
+
+	public static final String METRIC_NAME = CaffeineRegionFactory.CACHE_NAME_PREFIX + "invalidations";
+	private static final Logger ourLog = LoggerFactory.getLogger(SecondLevelCacheInvalidator.class);
+
+	private final SessionFactoryImplementor mySessionFactory;
+	private final CaffeineRegionFactory myRegionFactory;
+	private final CacheInvalidationBroadcaster myBroadcaster;
+	private final Counter mySentCounter;
+	private final Counter myReceivedCounter;
+
+	public SecondLevelCacheInvalidator(EntityManagerFactory theEntityManagerFactory, CaffeineRegionFactory theRegionFactory, CacheInvalidationBroadcaster theBroadcaster, MeterRegistry theMeterRegistry) {
+		mySessionFactory = theEntityManagerFactory.unwrap(SessionFactoryImplementor.class);
+		myRegionFactory = theRegionFactory;
+		myBroadcaster = theBroadcaster;
+		mySentCounter = Counter.builder(METRIC_NAME).tag("direction", "sent").description("Second-level cache invalidations sent to the other servers").register(theMeterRegistry);
+		myReceivedCounter = Counter.builder(METRIC_NAME).tag("direction", "received").description("Second-level cache invalidations received from the other servers").register(theMeterRegistry);
+
+		EventListenerRegistry listenerRegistry = mySessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+		listenerRegistry.appendListeners(EventType.POST_COMMIT_UPDATE, this);
+		listenerRegistry.appendListeners(EventType.POST_COMMIT_DELETE, this);
+		theRegionFactory.setRegionClearListener(region -> {
+			mySentCounter.increment();
+			myBroadcaster.broadcast(CacheInvalidation.forRegion(region));
+		});
+		theBroadcaster.addListener(this::invalidate);
+	}
+
+	@Override
+	public void onPostUpdate(PostUpdateEvent theEvent) {
+		broadcast(theEvent.getPersister(), theEvent.getId());
+	}
+
+	@Override
+	public void onPostDelete(PostDeleteEvent theEvent) {
+		broadcast(theEvent.getPersister(), theEvent.getId());
+	}
+
+	@Override
+	public void onPostUpdateCommitFailed(PostUpdateEvent theEvent) {
+		// Nothing changed
+	}
+
+	@Override
+	public void onPostDeleteCommitFailed(PostDeleteEvent theEvent) {
+		// Nothing changed
+	}
+
+	@Override
+	public boolean requiresPostCommitHandling(EntityPersister thePersister) {
+		return thePersister.canWriteToCache();
+	}
+
+	/**
+	 * Still abstract in Hibernate 5.6, which only calls {@link #requiresPostCommitHandling(EntityPersister)}
+	 */
+	@Override
+	@Deprecated
+	public boolean requiresPostCommitHanding(EntityPersister thePersister) {
+		return requiresPostCommitHandling(thePersister);
+	}
+
+	private void broadcast(EntityPersister thePersister, Serializable theId) {
+		if (thePersister.canWriteToCache()) {
+			mySentCounter.increment();
+			myBroadcaster.broadcast(CacheInvalidation.forEntity(thePersister.getEntityName(), theId));
+		}
+	}
+
+	/**
+	 * Evicts what another server invalidated from the cache of this one
+	 */
+	void invalidate(CacheInvalidation theInvalidation) {
+		myReceivedCounter.increment();
+		if (theInvalidation.isRegion()) {
+			myRegionFactory.evictLocally(theInvalidation.getRegion());
+			return;
+		}
+
+		EntityPersister persister;
+		try {
+			persister = mySessionFactory.getMetamodel().entityPersister(theInvalidation.getEntityName());
+		} catch (RuntimeException e) {
+			ourLog.warn("Ignoring an invalidation of unknown entity {}", theInvalidation.getEntityName());
+			return;
+		}
+		if (!persister.canWriteToCache()) {
+			return;
+		}
+		Type identifierType = persister.getIdentifierType();
+		if (identifierType instanceof AbstractStandardBasicType) {
+			Serializable id = (Serializable) ((AbstractStandardBasicType<?>) identifierType).fromStringValue(theInvalidation.getEntityId());
+			mySessionFactory.getCache().evictEntityData(theInvalidation.getEntityName(), id);
+		} else {
+			// Not an identifier type that can be read back from a string, so everything goes
+			myRegionFactory.evictLocally(persister.getCacheAccessStrategy().getRegion().getName());
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package ca.uhn.fhir.jpa.starter.common.capability;
+
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serialized CapabilityStatements. Entries belong to the CapabilityStatement instance the server answered
+ * with (compared by identity and dropped once the server no longer holds on to it), and are keyed by
+ * what changes its bytes: encoding, content type and pretty printing.
+ * <p>
+ * Entries are dropped when a SearchParameter changes (this is registered as a resource change listener
+ * for SearchParameter resources) or when {@link #invalidate()} is called, e.g. after an IG install.
+ */
+public class CapabilityStatementCache implements IResourceChangeListener {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(CapabilityStatementCache.class);
+
+	private final ISearchParamRegistry mySearchParamRegistry;
+	private final Cache<IBaseConformance, Map<String, CachedCapabilityStatement>> myEntries = Caffeine.newBuilder().weakKeys().build();
+	private final AtomicLong myGeneration = new AtomicLong();
+
+	public CapabilityStatementCache(ISearchParamRegistry theSearchParamRegistry) {
+		mySearchParamRegistry = theSearchParamRegistry;
+	}
+
+	CachedCapabilityStatement get(IBaseConformance theCapabilityStatement, String theKey) {
+		Map<String, CachedCapabilityStatement> entries = myEntries.getIfPresent(theCapabilityStatement);
+		return entries != null ? entries.get(theKey) : null;
+	}
+
+	/**
+	 * @return the generation to pass to {@link #put(IBaseConformance, String, CachedCapabilityStatement, long)} once the entry is built
+	 */
+	long getGeneration() {
+		return myGeneration.get();
+	}
+
+	/**
+	 * Stores the entry unless the cache was invalidated since the given generation was read, in which
+	 * case it may have been built from stale search parameters
+	 */
+	void put(IBaseConformance theCapabilityStatement, String theKey, CachedCapabilityStatement theEntry, long theGeneration) {
+		if (myGeneration.get() == theGeneration) {
+			myEntries.get(theCapabilityStatement, t -> new ConcurrentHashMap<>()).put(theKey, theEntry);
+		}
+	}
+
+	public void invalidate() {
+		myGeneration.incrementAndGet();
+		myEntries.invalidateAll();
+		ourLog.debug("Invalidated cached CapabilityStatements");
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		// nothing is cached yet
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		ourLog.info("SearchParameter change detected, invalidating cached CapabilityStatements");
+		// The registry watches SearchParameters independently, so make sure it is current before anything is rebuilt
+		mySearchParamRegistry.forceRefresh();
+		invalidate();
+	}
+
+	static class CachedCapabilityStatement {
+
+		private final byte[] myBody;
+		private final String myContentType;
+		private final String myETag;
+		private volatile byte[] myGzippedBody;
+
+		CachedCapabilityStatement(byte[] theBody, String theContentType, String theETag) {
+			myBody = theBody;
+			myContentType = theContentType;
+			myETag = theETag;
+		}
+
+		byte[] getBody() {
+			return myBody;
+		}
+
+		String getContentType() {
+			return myContentType;
+		}
+
+		String getETag() {
+			return myETag;
+		}
+
+		byte[] getGzippedBody() {
+			byte[] retVal = myGzippedBody;
+			if (retVal == null) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(myBody.length / 4);
+				try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+					gzip.write(myBody);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				retVal = bytes.toByteArray();
+				myGzippedBody = retVal;
+			}
+			return retVal;
+		}
+	}
+}
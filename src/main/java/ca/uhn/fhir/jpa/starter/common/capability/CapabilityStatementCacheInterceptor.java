@@ -0,0 +1,126 @@
+package ca.uhn.fhir.jpa.starter.common.capability;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.common.capability.CapabilityStatementCache.CachedCapabilityStatement;
+import ca.uhn.fhir.rest.api.CacheControlDirective;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Writes the CapabilityStatement of <code>GET [base]/metadata</code> from the {@link CapabilityStatementCache}.
+ * <p>
+ * The server answers the request as usual, so authorization, the SERVER_INCOMING_REQUEST_PRE_HANDLED hooks
+ * and the server's own CapabilityStatement caching (including SERVER_CAPABILITY_STATEMENT_GENERATED hooks)
+ * all apply. Only the encoding is cached: once every other SERVER_OUTGOING_RESPONSE hook has run, the bytes
+ * of the CapabilityStatement instance the server answered with are written straight to the response along
+ * with a strong ETag, or a 304 when If-None-Match matches it. Requests using any parameter other than
+ * <code>_format</code> and <code>_pretty</code>, and browser requests that would be rendered as HTML, are
+ * left to the server.
+ */
+@Interceptor
+public class CapabilityStatementCacheInterceptor {
+
+	private static final Set<String> CACHEABLE_PARAMETERS = Set.of(Constants.PARAM_FORMAT, Constants.PARAM_PRETTY);
+
+	private final CapabilityStatementCache myCache;
+
+	public CapabilityStatementCacheInterceptor(CapabilityStatementCache theCache) {
+		myCache = theCache;
+	}
+
+	@Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = Integer.MAX_VALUE)
+	public boolean serveCachedCapabilityStatement(ServletRequestDetails theRequestDetails, ResponseDetails theResponseDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
+		if (!(theResponseDetails.getResponseResource() instanceof IBaseConformance) || theResponseDetails.getResponseCode() != HttpServletResponse.SC_OK || !isCacheable(theRequestDetails, theServletRequest)) {
+			return true;
+		}
+		IBaseConformance capabilityStatement = (IBaseConformance) theResponseDetails.getResponseResource();
+
+		RestfulServer server = theRequestDetails.getServer();
+		RestfulServerUtils.ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+		String contentType = encoding.getResourceContentType() + Constants.CHARSET_UTF8_CTSUFFIX;
+		boolean pretty = RestfulServerUtils.prettyPrintResponse(server, theRequestDetails);
+		String key = encoding.getEncoding() + "|" + contentType + '|' + pretty;
+
+		CachedCapabilityStatement entry = myCache.get(capabilityStatement, key);
+		if (entry == null) {
+			long generation = myCache.getGeneration();
+			entry = build(server.getFhirContext(), theRequestDetails, capabilityStatement, contentType);
+			myCache.put(capabilityStatement, key, entry, generation);
+		}
+
+		theServletResponse.setHeader(Constants.HEADER_ETAG, entry.getETag());
+		if (matchesIfNoneMatch(theServletRequest.getHeader(Constants.HEADER_IF_NONE_MATCH), entry.getETag())) {
+			theServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		} else {
+			server.addHeadersToResponse(theServletResponse);
+			theServletResponse.setStatus(HttpServletResponse.SC_OK);
+			theServletResponse.setContentType(entry.getContentType());
+			byte[] body = entry.getBody();
+			if (theRequestDetails.isRespondGzip()) {
+				body = entry.getGzippedBody();
+				theServletResponse.setHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+			}
+			theServletResponse.setContentLength(body.length);
+			theServletResponse.getOutputStream().write(body);
+		}
+		theServletResponse.flushBuffer();
+		return false;
+	}
+
+	private boolean isCacheable(ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest) {
+		if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.METADATA
+			|| theRequestDetails.getRequestType() != RequestTypeEnum.GET
+			|| !CACHEABLE_PARAMETERS.containsAll(theRequestDetails.getParameters().keySet())) {
+			return false;
+		}
+		// The server built a CapabilityStatement for this request only, there's no point in keeping its bytes
+		if (new CacheControlDirective().parse(theRequestDetails.getHeaders(Constants.HEADER_CACHE_CONTROL)).isNoCache()) {
+			return false;
+		}
+		String[] format = theRequestDetails.getParameters().get(Constants.PARAM_FORMAT);
+		if (format != null && format.length > 0 && StringUtils.containsIgnoreCase(format[0], "html")) {
+			return false;
+		}
+		return !StringUtils.containsIgnoreCase(theServletRequest.getHeader(Constants.HEADER_ACCEPT), Constants.CT_HTML);
+	}
+
+	private CachedCapabilityStatement build(FhirContext theFhirContext, ServletRequestDetails theRequestDetails, IBaseConformance theCapabilityStatement, String theContentType) {
+		String encoded = RestfulServerUtils.getNewParser(theFhirContext, theFhirContext.getVersion().getVersion(), theRequestDetails).encodeResourceToString(theCapabilityStatement);
+		byte[] body = encoded.getBytes(StandardCharsets.UTF_8);
+		String eTag = '"' + Hashing.sha256().hashBytes(body).toString().substring(0, 32) + '"';
+		return new CachedCapabilityStatement(body, theContentType, eTag);
+	}
+
+	private static boolean matchesIfNoneMatch(String theIfNoneMatch, String theETag) {
+		if (StringUtils.isBlank(theIfNoneMatch)) {
+			return false;
+		}
+		for (String next : theIfNoneMatch.split(",")) {
+			String candidate = next.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(theETag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
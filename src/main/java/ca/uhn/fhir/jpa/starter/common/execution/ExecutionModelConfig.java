@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter.common.execution;
+
+import ca.uhn.fhir.jpa.dao.ThreadPoolFactory;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.annotations.OnVirtualThreadsCondition;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+
+/**
+ * Applies <code>hapi.fhir.execution_model</code> to the embedded servlet container and to the thread pools of the
+ * server. With {@link ExecutionModelEnum#VIRTUAL_THREADS}, nothing bounds the number of requests in progress but
+ * the database connection pool, so a request waits for a connection rather than for a thread. On a JVM without
+ * virtual threads, the server falls back to platform threads.
+ */
+@Configuration
+public class ExecutionModelConfig {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ExecutionModelConfig.class);
+
+	/**
+	 * Replaces the <code>ThreadPoolFactoryConfig</code> of HAPI FHIR
+	 */
+	@Bean
+	public ThreadPoolFactory threadPoolFactory(AppProperties appProperties, DataSource dataSource) {
+		if (appProperties.getExecution_model() != ExecutionModelEnum.VIRTUAL_THREADS) {
+			return new ThreadPoolFactory();
+		}
+		if (!VirtualThreads.isSupported()) {
+			ourLog.warn("hapi.fhir.execution_model is virtual-threads, but virtual threads need Java 21 or later and this is Java {}: running on platform threads", System.getProperty("java.version"));
+			return new ThreadPoolFactory();
+		}
+		if (dataSource instanceof HikariDataSource) {
+			ourLog.info("Running requests on virtual threads, at most {} of them use the database at a time (spring.datasource.hikari.maximum-pool-size)", ((HikariDataSource) dataSource).getMaximumPoolSize());
+		} else {
+			ourLog.info("Running requests on virtual threads, the connection pool of the DataSource limits how many of them use the database at a time");
+		}
+		return new VirtualThreadPoolFactory();
+	}
+
+	@Configuration
+	@ConditionalOnClass(name = "org.eclipse.jetty.util.thread.QueuedThreadPool")
+	@Conditional(OnVirtualThreadsCondition.class)
+	static class Jetty {
+
+		@Bean
+		public JettyVirtualThreadsCustomizer jettyVirtualThreadsCustomizer() {
+			return new JettyVirtualThreadsCustomizer();
+		}
+	}
+
+	@Configuration
+	@ConditionalOnClass(name = "org.apache.catalina.startup.Tomcat")
+	@Conditional(OnVirtualThreadsCondition.class)
+	static class Tomcat {
+
+		@Bean
+		public TomcatVirtualThreadsCustomizer tomcatVirtualThreadsCustomizer() {
+			return new TomcatVirtualThreadsCustomizer();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package ca.uhn.fhir.jpa.starter.common.execution;
+
+/**
+ * The threads the server handles requests on
+ */
+public enum ExecutionModelEnum {
+
+	/**
+	 * Requests run on the bounded thread pools of the servlet container and of the server
+	 */
+	PLATFORM_THREADS,
+
+	/**
+	 * Requests, and the batch entries of bundles, run on a new virtual thread each (Java 21 and later), so that
+	 * threads blocked on the database are cheap. The database connection pool is what limits how many of them
+	 * use the database at a time.
+	 */
+	VIRTUAL_THREADS
+}
@@ -0,0 +1,19 @@
+package ca.uhn.fhir.jpa.starter.common.execution;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.springframework.boot.web.embedded.jetty.JettyServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+
+/**
+ * Has the embedded Jetty hand requests to virtual threads. Its own pool still runs the acceptors and selectors.
+ */
+public class JettyVirtualThreadsCustomizer implements WebServerFactoryCustomizer<JettyServletWebServerFactory> {
+
+	@Override
+	public void customize(JettyServletWebServerFactory theFactory) {
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.setName("jetty");
+		threadPool.setVirtualThreadsExecutor(VirtualThreads.newThreadPerTaskExecutor("jetty-virtual-"));
+		theFactory.setThreadPool(threadPool);
+	}
+}
@@ -0,0 +1,49 @@
+package ca.uhn.fhir.jpa.starter.common.execution;
+
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.boot.web.servlet.server.ConfigurableServletWebServerFactory;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executor;
+
+/**
+ * Has the embedded Tomcat run requests on virtual threads, by giving its protocol handler a virtual thread
+ * executor. Tomcat is only on the classpath of the <code>boot</code> profile, so it is configured through
+ * reflection.
+ */
+public class TomcatVirtualThreadsCustomizer implements WebServerFactoryCustomizer<ConfigurableServletWebServerFactory> {
+
+	private static final String TOMCAT_FACTORY_CLASS = "org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory";
+	private static final String PROTOCOL_HANDLER_CUSTOMIZER_CLASS = "org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer";
+
+	@Override
+	public void customize(ConfigurableServletWebServerFactory theFactory) {
+		if (!theFactory.getClass().getName().equals(TOMCAT_FACTORY_CLASS)) {
+			return;
+		}
+		Executor executor = VirtualThreads.newThreadPerTaskExecutor("tomcat-virtual-");
+		try {
+			Class<?> customizerType = Class.forName(PROTOCOL_HANDLER_CUSTOMIZER_CLASS, true, theFactory.getClass().getClassLoader());
+			Object customizer = Proxy.newProxyInstance(customizerType.getClassLoader(), new Class<?>[]{customizerType}, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "customize":
+						// ProtocolHandler.setExecutor(Executor)
+						args[0].getClass().getMethod("setExecutor", Executor.class).invoke(args[0], executor);
+						return null;
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						return TomcatVirtualThreadsCustomizer.class.getSimpleName();
+				}
+			});
+			Object customizers = Array.newInstance(customizerType, 1);
+			Array.set(customizers, 0, customizer);
+			theFactory.getClass().getMethod("addProtocolHandlerCustomizers", customizers.getClass()).invoke(theFactory, customizers);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Failed to configure Tomcat for virtual threads", e);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package ca.uhn.fhir.jpa.starter.common.execution;
+
+import ca.uhn.fhir.jpa.dao.ThreadPoolFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the pools HAPI FHIR creates through the {@link ThreadPoolFactory}, such as the one processing the batch
+ * entries of bundles, on virtual threads: each task gets a new virtual thread, but at most the max pool size of
+ * them run at a time. Like the platform thread pool, which has no queue, a task submitted while that many are
+ * running blocks its caller until one of them completes.
+ */
+public class VirtualThreadPoolFactory extends ThreadPoolFactory {
+
+	@Override
+	public AsyncTaskExecutor newThreadPool(Integer theBundleBatchPoolSize, Integer theBundleBatchMaxPoolSize, String theThreadPrefix) {
+		return new TaskExecutorAdapter(newBoundedExecutor(VirtualThreads.newThreadPerTaskExecutor(theThreadPrefix), theBundleBatchMaxPoolSize));
+	}
+
+	/**
+	 * @return an executor handing the tasks to <code>theExecutor</code>, but no more than
+	 * <code>theMaxConcurrency</code> at a time
+	 */
+	public static Executor newBoundedExecutor(Executor theExecutor, int theMaxConcurrency) {
+		Semaphore permits = new Semaphore(theMaxConcurrency);
+		return task -> {
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for a free thread", e);
+			}
+			try {
+				theExecutor.execute(() -> {
+					try {
+						task.run();
+					} finally {
+						permits.release();
+					}
+				});
+			} catch (RuntimeException e) {
+				permits.release();
+				throw e;
+			}
+		};
+	}
+}
@@ -0,0 +1,77 @@
+package ca.uhn.fhir.jpa.starter.common.execution;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads through reflection, as the server is built for Java 11 but they need Java 21
+ */
+public final class VirtualThreads {
+
+	private static final Method ourOfVirtual;
+	private static final Method ourName;
+	private static final Method ourFactory;
+	private static final Method ourNewThreadPerTaskExecutor;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		Method newThreadPerTaskExecutor = null;
+		try {
+			// The methods of the public interface, the builder implementations aren't accessible
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builderType.getMethod("name", String.class, long.class);
+			factory = builderType.getMethod("factory");
+			newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		} catch (ReflectiveOperationException e) {
+			ofVirtual = null;
+		}
+		ourOfVirtual = ofVirtual;
+		ourName = name;
+		ourFactory = factory;
+		ourNewThreadPerTaskExecutor = newThreadPerTaskExecutor;
+	}
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return whether the JVM has virtual threads
+	 */
+	public static boolean isSupported() {
+		return ourOfVirtual != null;
+	}
+
+	/**
+	 * @param thePrefix the name of the threads, followed by a sequence number
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public static ThreadFactory newThreadFactory(String thePrefix) {
+		if (!isSupported()) {
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or later, this is Java " + System.getProperty("java.version"));
+		}
+		try {
+			Object builder = ourName.invoke(ourOfVirtual.invoke(null), thePrefix, 0L);
+			return (ThreadFactory) ourFactory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Failed to create a virtual thread factory", e);
+		}
+	}
+
+	/**
+	 * @return an executor that runs each task on a new virtual thread
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(String thePrefix) {
+		ThreadFactory threadFactory = newThreadFactory(thePrefix);
+		try {
+			return (ExecutorService) ourNewThreadPerTaskExecutor.invoke(null, threadFactory);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Failed to create a virtual thread executor", e);
+		}
+	}
+}
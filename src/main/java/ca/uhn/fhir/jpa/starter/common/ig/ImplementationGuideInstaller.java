@@ -0,0 +1,405 @@
+package ca.uhn.fhir.jpa.starter.common.ig;
+
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.packages.ImplementationGuideInstallationException;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.common.capability.CapabilityStatementCache;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Nullable;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Installs the packages configured under <code>hapi.fhir.implementationguides</code>.
+ * <p>
+ * The packages and (with <code>install_transitive_ig_dependencies</code>) their dependencies are first stored
+ * in the package cache and resolved into a dependency graph. Each package is then installed once all of its
+ * dependencies have been, so independent packages are installed in parallel on up to
+ * <code>ig_install_parallelism</code> threads. Packages that contain a resource with the same canonical URL
+ * are installed one after another, as they would otherwise both create it. The SHA-256 hash of every installed package is recorded in the
+ * STARTER_INSTALLED_PACKAGE table, and a package whose ID, version and hash are already recorded isn't
+ * installed again. Packages are only downloaded when they aren't in the package cache yet.
+ * <p>
+ * With <code>ig_package_cache_path</code>, packages missing from the package cache are looked up in a
+ * {@link LocalPackageCache} directory before they are downloaded, and downloaded packages are added to it.
+ * <p>
+ * The installation runs once the application context has started, before the application is ready. With
+ * <code>ig_install_in_background</code> it starts once the application is ready instead; until it has
+ * finished the <code>implementationGuideInstaller</code> health indicator reports OUT_OF_SERVICE, which can
+ * be used as a readiness gate.
+ */
+public class ImplementationGuideInstaller implements HealthIndicator {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ImplementationGuideInstaller.class);
+	private static final List<String> CORE_PACKAGES = List.of("hl7.fhir.r2.core", "hl7.fhir.r3.core", "hl7.fhir.r4.core", "hl7.fhir.r5.core");
+
+	private final AppProperties myAppProperties;
+	private final IHapiPackageCacheManager myPackageCacheManager;
+	private final IPackageInstallerSvc myPackageInstallerSvc;
+	private final TransactionTemplate myTxTemplate;
+	private final Optional<CapabilityStatementCache> myCapabilityStatementCache;
+	@Nullable
+	private final LocalPackageCache myLocalPackageCache;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private volatile StatusEnum myStatus = StatusEnum.PENDING;
+	private volatile String myFailure;
+	private final AtomicInteger myInstalledCount = new AtomicInteger();
+	private final AtomicInteger mySkippedCount = new AtomicInteger();
+
+	public ImplementationGuideInstaller(AppProperties theAppProperties, IHapiPackageCacheManager thePackageCacheManager, IPackageInstallerSvc thePackageInstallerSvc, PlatformTransactionManager theTransactionManager, Optional<CapabilityStatementCache> theCapabilityStatementCache, @Nullable LocalPackageCache theLocalPackageCache) {
+		myAppProperties = theAppProperties;
+		myPackageCacheManager = thePackageCacheManager;
+		myPackageInstallerSvc = thePackageInstallerSvc;
+		myTxTemplate = new TransactionTemplate(theTransactionManager);
+		myCapabilityStatementCache = theCapabilityStatementCache;
+		myLocalPackageCache = theLocalPackageCache;
+	}
+
+	/**
+	 * Installs before the application is reported as ready. This can't happen while the context is being
+	 * refreshed, as the installer threads need to create beans as well. Ordered ahead of the other startup
+	 * listeners, so e.g. validation prewarming sees the installed packages.
+	 */
+	@Order(Ordered.HIGHEST_PRECEDENCE)
+	@EventListener(ApplicationStartedEvent.class)
+	public void installOnStartup() {
+		if (!myAppProperties.getIg_install_in_background()) {
+			installAll();
+		}
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void startBackgroundInstallation() {
+		if (!myAppProperties.getIg_install_in_background()) {
+			return;
+		}
+		Thread thread = new Thread(() -> {
+			try {
+				installAll();
+			} catch (RuntimeException e) {
+				ourLog.error("Failed to install implementation guides", e);
+			}
+		}, "hapi-fhir-ig-installation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Resolves and installs all configured packages, returning once they are installed
+	 */
+	public void installAll() {
+		myStatus = StatusEnum.INSTALLING;
+		long start = System.currentTimeMillis();
+		int parallelism = Math.max(1, myAppProperties.getIg_install_parallelism());
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setNameFormat("hapi-fhir-ig-install-%d").setDaemon(true).build());
+		try {
+			Map<String, PackageNode> graph = resolve();
+			Map<String, CompletableFuture<Void>> installations = new HashMap<>();
+			for (PackageNode next : graph.values()) {
+				scheduleInstallation(next, graph, installations, executor);
+			}
+			CompletableFuture.allOf(installations.values().toArray(new CompletableFuture[0])).join();
+
+			myCapabilityStatementCache.ifPresent(CapabilityStatementCache::invalidate);
+			myStatus = StatusEnum.DONE;
+			ourLog.info("Implementation guides ready in {}ms: {} packages installed, {} already installed", System.currentTimeMillis() - start, myInstalledCount.get(), mySkippedCount.get());
+		} catch (CompletionException e) {
+			throw failed(e.getCause());
+		} catch (RuntimeException e) {
+			throw failed(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private ImplementationGuideInstallationException failed(Throwable theCause) {
+		myStatus = StatusEnum.FAILED;
+		myFailure = theCause.toString();
+		if (theCause instanceof ImplementationGuideInstallationException) {
+			return (ImplementationGuideInstallationException) theCause;
+		}
+		return new ImplementationGuideInstallationException("Failed to install implementation guides: " + theCause, theCause);
+	}
+
+	@Override
+	public Health health() {
+		Health.Builder builder;
+		switch (myStatus) {
+			case DONE:
+				builder = Health.up();
+				break;
+			case FAILED:
+				builder = Health.down().withDetail("error", myFailure);
+				break;
+			default:
+				builder = Health.outOfService();
+		}
+		return builder
+			.withDetail("status", myStatus)
+			.withDetail("installed", myInstalledCount.get())
+			.withDetail("alreadyInstalled", mySkippedCount.get())
+			.build();
+	}
+
+	private CompletableFuture<Void> scheduleInstallation(PackageNode theNode, Map<String, PackageNode> theGraph, Map<String, CompletableFuture<Void>> theInstallations, ExecutorService theExecutor) {
+		CompletableFuture<Void> existing = theInstallations.get(theNode.getKey());
+		if (existing != null) {
+			return existing;
+		}
+		// Guards against dependency cycles, whose members are then installed without waiting on each other
+		theInstallations.put(theNode.getKey(), CompletableFuture.completedFuture(null));
+
+		List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+		for (String next : theNode.getDependencies()) {
+			dependencies.add(scheduleInstallation(theGraph.get(next), theGraph, theInstallations, theExecutor));
+		}
+		CompletableFuture<Void> retVal = CompletableFuture
+			.allOf(dependencies.toArray(new CompletableFuture[0]))
+			.thenRunAsync(() -> installIfChanged(theNode), theExecutor);
+		theInstallations.put(theNode.getKey(), retVal);
+		return retVal;
+	}
+
+	private void installIfChanged(PackageNode theNode) {
+		synchronized (theNode.getInstallLock()) {
+			doInstallIfChanged(theNode);
+		}
+	}
+
+	private void doInstallIfChanged(PackageNode theNode) {
+		InstalledPackageEntity installed = myTxTemplate.execute(t -> myEntityManager.find(InstalledPackageEntity.class, theNode.getKey()));
+		if (installed != null && installed.getContentHash().equals(theNode.getContentHash())) {
+			ourLog.info("Package {} is already installed with the same content, skipping", theNode.getKey());
+			mySkippedCount.incrementAndGet();
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		PackageInstallationSpec spec = new PackageInstallationSpec()
+			.setName(theNode.getId())
+			.setVersion(theNode.getVersion())
+			.setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL);
+		myPackageInstallerSvc.install(spec);
+
+		myTxTemplate.executeWithoutResult(t -> {
+			InstalledPackageEntity entity = new InstalledPackageEntity();
+			entity.setPackageKey(theNode.getKey());
+			entity.setContentHash(theNode.getContentHash());
+			entity.setInstalled(new Date());
+			myEntityManager.merge(entity);
+		});
+		myInstalledCount.incrementAndGet();
+		ourLog.info("Installed package {} in {}ms", theNode.getKey(), System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Stores all packages in the package cache and returns them keyed by <code>id#version</code>
+	 */
+	private Map<String, PackageNode> resolve() {
+		// All configured packages are stored first, so dependencies between them are found in the cache
+		List<NpmPackage> configuredPackages = new ArrayList<>();
+		for (AppProperties.ImplementationGuide next : myAppProperties.getImplementationGuides().values()) {
+			try {
+				configuredPackages.add(loadConfiguredPackage(next));
+			} catch (IOException e) {
+				throw new ImplementationGuideInstallationException("Could not load NPM package " + next.getName() + "#" + next.getVersion(), e);
+			}
+		}
+
+		Map<String, PackageNode> retVal = new LinkedHashMap<>();
+		for (NpmPackage next : configuredPackages) {
+			try {
+				addToGraph(next, retVal);
+			} catch (IOException e) {
+				throw new ImplementationGuideInstallationException("Could not resolve the dependencies of NPM package " + next.id() + "#" + next.version(), e);
+			}
+		}
+		assignInstallLocks(retVal.values());
+		ourLog.info("Resolved {} packages to install: {}", retVal.size(), retVal.keySet());
+		return retVal;
+	}
+
+	/**
+	 * Gives all packages that are connected through a shared canonical URL (or resource type and ID, for resources
+	 * without one) the same install lock
+	 */
+	private static void assignInstallLocks(Collection<PackageNode> theNodes) {
+		Map<String, PackageNode> owners = new HashMap<>();
+		for (PackageNode next : theNodes) {
+			for (String resourceKey : next.getResourceKeys()) {
+				PackageNode owner = owners.putIfAbsent(resourceKey, next);
+				if (owner != null && owner.getInstallLock() != next.getInstallLock()) {
+					ourLog.info("Packages {} and {} both contain {}, installing them one after another", owner.getKey(), next.getKey(), resourceKey);
+					Object merged = next.getInstallLock();
+					for (PackageNode other : theNodes) {
+						if (other.getInstallLock() == merged) {
+							other.setInstallLock(owner.getInstallLock());
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private NpmPackage loadConfiguredPackage(AppProperties.ImplementationGuide theGuide) throws IOException {
+		return loadPackage(theGuide.getName(), theGuide.getVersion(), theGuide.getUrl());
+	}
+
+	/**
+	 * Loads a package from the package cache, the local package cache, or from its URL or the package registry,
+	 * in that order
+	 */
+	private NpmPackage loadPackage(String theId, String theVersion, @Nullable String theUrl) throws IOException {
+		if (myPackageCacheManager.loadPackageContents(theId, theVersion) != null) {
+			return myPackageCacheManager.loadPackage(theId, theVersion);
+		}
+
+		if (myLocalPackageCache != null) {
+			MappedByteBuffer tarball = myLocalPackageCache.read(theId, theVersion);
+			if (tarball != null) {
+				ourLog.info("Loading package {}#{} from the local package cache", theId, theVersion);
+				return myPackageCacheManager.addPackageToCache(theId, theVersion, new LocalPackageCache.ByteBufferInputStream(tarball), "local package cache");
+			}
+		}
+
+		NpmPackage retVal;
+		if (StringUtils.isNotBlank(theUrl)) {
+			PackageInstallationSpec spec = new PackageInstallationSpec()
+				.setPackageUrl(theUrl)
+				.setName(theId)
+				.setVersion(theVersion)
+				.setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_ONLY);
+			retVal = myPackageCacheManager.installPackage(spec);
+		} else {
+			retVal = myPackageCacheManager.loadPackage(theId, theVersion);
+		}
+
+		if (myLocalPackageCache != null) {
+			IHapiPackageCacheManager.PackageContents contents = myPackageCacheManager.loadPackageContents(retVal.id(), retVal.version());
+			if (contents != null) {
+				myLocalPackageCache.store(retVal.id(), retVal.version(), contents.getBytes());
+			}
+		}
+		return retVal;
+	}
+
+	private void addToGraph(NpmPackage thePackage, Map<String, PackageNode> theGraph) throws IOException {
+		String key = thePackage.id() + "#" + thePackage.version();
+		if (theGraph.containsKey(key)) {
+			return;
+		}
+		IHapiPackageCacheManager.PackageContents contents = myPackageCacheManager.loadPackageContents(thePackage.id(), thePackage.version());
+		String hash = Hashing.sha256().hashBytes(contents.getBytes()).toString();
+		PackageNode node = new PackageNode(thePackage.id(), thePackage.version(), hash);
+		for (NpmPackage.PackageResourceInformation next : thePackage.listIndexedResources(thePackage.getTypes().keySet().toArray(new String[0]))) {
+			node.getResourceKeys().add(StringUtils.isNotBlank(next.getUrl()) ? next.getUrl() : next.getResourceType() + "/" + next.getId());
+		}
+		theGraph.put(key, node);
+
+		if (!myAppProperties.getInstall_transitive_ig_dependencies()) {
+			return;
+		}
+		for (String next : thePackage.dependencies()) {
+			String id = StringUtils.substringBefore(next, "#");
+			if (CORE_PACKAGES.contains(id)) {
+				continue;
+			}
+			NpmPackage dependency = loadPackage(id, StringUtils.substringAfter(next, "#"), null);
+			addToGraph(dependency, theGraph);
+			node.getDependencies().add(dependency.id() + "#" + dependency.version());
+		}
+	}
+
+	private enum StatusEnum {
+		PENDING,
+		INSTALLING,
+		DONE,
+		FAILED
+	}
+
+	private static class PackageNode {
+
+		private final String myId;
+		private final String myVersion;
+		private final String myContentHash;
+		private final List<String> myDependencies = new ArrayList<>();
+		private final Set<String> myResourceKeys = new HashSet<>();
+		private Object myInstallLock = new Object();
+
+		PackageNode(String theId, String theVersion, String theContentHash) {
+			myId = theId;
+			myVersion = theVersion;
+			myContentHash = theContentHash;
+		}
+
+		String getKey() {
+			return myId + "#" + myVersion;
+		}
+
+		String getId() {
+			return myId;
+		}
+
+		String getVersion() {
+			return myVersion;
+		}
+
+		String getContentHash() {
+			return myContentHash;
+		}
+
+		List<String> getDependencies() {
+			return myDependencies;
+		}
+
+		Set<String> getResourceKeys() {
+			return myResourceKeys;
+		}
+
+		Object getInstallLock() {
+			return myInstallLock;
+		}
+
+		void setInstallLock(Object theInstallLock) {
+			myInstallLock = theInstallLock;
+		}
+	}
+}
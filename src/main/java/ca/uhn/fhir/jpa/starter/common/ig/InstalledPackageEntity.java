@@ -0,0 +1,61 @@
+package ca.uhn.fhir.jpa.starter.common.ig;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * Records which package versions, with which content, have been installed into the repository
+ * by the {@link ImplementationGuideInstaller}
+ */
+@Entity
+@Table(name = "STARTER_INSTALLED_PACKAGE")
+public class InstalledPackageEntity {
+
+	public static final int PACKAGE_KEY_LENGTH = 400;
+
+	@Id
+	@Column(name = "PACKAGE_KEY", length = PACKAGE_KEY_LENGTH, nullable = false)
+	private String myPackageKey;
+
+	@Column(name = "CONTENT_HASH", length = 64, nullable = false)
+	private String myContentHash;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "INSTALLED_TIME", nullable = false)
+	private Date myInstalled;
+
+	/**
+	 * @return the package ID and version, as <code>id#version</code>
+	 */
+	public String getPackageKey() {
+		return myPackageKey;
+	}
+
+	public void setPackageKey(String thePackageKey) {
+		myPackageKey = thePackageKey;
+	}
+
+	/**
+	 * @return the SHA-256 hash of the package tarball
+	 */
+	public String getContentHash() {
+		return myContentHash;
+	}
+
+	public void setContentHash(String theContentHash) {
+		myContentHash = theContentHash;
+	}
+
+	public Date getInstalled() {
+		return myInstalled;
+	}
+
+	public void setInstalled(Date theInstalled) {
+		myInstalled = theInstalled;
+	}
+}
@@ -0,0 +1,236 @@
+package ca.uhn.fhir.jpa.starter.common.ig;
+
+import com.google.common.hash.Hashing;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A directory of NPM package tarballs which the {@link ImplementationGuideInstaller} consults before
+ * fetching a package over the network, so servers can start without network access.
+ * <p>
+ * Tarballs are stored by the SHA-256 hash of their content, as <code>content/ab/&lt;hash&gt;.tgz</code>, and
+ * <code>index/&lt;id&gt;#&lt;version&gt;</code> holds the hash of each package version. Packages fetched over the
+ * network are added to the directory. To seed it, e.g. while building an image, copy tarballs named
+ * <code>*.tgz</code> into the directory itself: they are indexed in memory by the ID and version in their
+ * <code>package.json</code> on startup and read where they are. The seeds are never modified, and if the
+ * directory isn't writable (e.g. a read-only image layer) the cache only serves the seeds.
+ * <p>
+ * Cached tarballs are memory-mapped rather than copied onto the heap when read.
+ */
+public class LocalPackageCache {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(LocalPackageCache.class);
+	private static final String TARBALL_SUFFIX = ".tgz";
+	private static final Pattern SAFE_FILE_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._+\\-]*");
+
+	private final Path myContentDirectory;
+	private final Path myIndexDirectory;
+	private final Path myTempDirectory;
+	private final Map<String, SeededPackage> mySeededPackages = new HashMap<>();
+	private final boolean myWritable;
+
+	public LocalPackageCache(Path theDirectory) {
+		myContentDirectory = theDirectory.resolve("content");
+		myIndexDirectory = theDirectory.resolve("index");
+		myTempDirectory = theDirectory.resolve("tmp");
+		try {
+			indexSeededPackages(theDirectory);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not initialize the local package cache at " + theDirectory.toAbsolutePath(), e);
+		}
+		myWritable = createDirectories(theDirectory);
+	}
+
+	private boolean createDirectories(Path theDirectory) {
+		try {
+			Files.createDirectories(myContentDirectory);
+			Files.createDirectories(myIndexDirectory);
+			Files.createDirectories(myTempDirectory);
+			return true;
+		} catch (IOException e) {
+			ourLog.info("Local package cache at {} isn't writable ({}), downloaded packages won't be added to it", theDirectory.toAbsolutePath(), e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * @return the memory-mapped tarball of the given package version, or <code>null</code> if it isn't
+	 * cached or its content no longer matches its hash
+	 */
+	@Nullable
+	public MappedByteBuffer read(String thePackageId, String thePackageVersion) throws IOException {
+		SeededPackage seededPackage = mySeededPackages.get(thePackageId + "#" + thePackageVersion);
+		if (seededPackage != null) {
+			return map(seededPackage.getFile(), seededPackage.getHash(), thePackageId, thePackageVersion);
+		}
+
+		Path indexFile = indexFile(thePackageId, thePackageVersion);
+		if (indexFile == null || !Files.isRegularFile(indexFile)) {
+			return null;
+		}
+		String hash = Files.readString(indexFile, StandardCharsets.UTF_8).trim();
+		Path contentFile = contentFile(hash);
+		if (!Files.isRegularFile(contentFile)) {
+			ourLog.warn("Local package cache entry {}#{} refers to missing content {}", thePackageId, thePackageVersion, hash);
+			return null;
+		}
+		return map(contentFile, hash, thePackageId, thePackageVersion);
+	}
+
+	@Nullable
+	private static MappedByteBuffer map(Path theFile, String theHash, String thePackageId, String thePackageVersion) throws IOException {
+		MappedByteBuffer retVal;
+		try (FileChannel channel = FileChannel.open(theFile, StandardOpenOption.READ)) {
+			retVal = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (!Hashing.sha256().hashBytes(retVal.duplicate()).toString().equals(theHash)) {
+			ourLog.warn("Local package cache entry {}#{} is corrupt, ignoring it", thePackageId, thePackageVersion);
+			return null;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Adds a package version to the cache, replacing the tarball previously cached for it. Does nothing if the
+	 * cache directory isn't writable.
+	 */
+	public void store(String thePackageId, String thePackageVersion, byte[] theTarball) throws IOException {
+		Path indexFile = indexFile(thePackageId, thePackageVersion);
+		if (indexFile == null || !myWritable) {
+			return;
+		}
+		String hash = Hashing.sha256().hashBytes(theTarball).toString();
+		Path contentFile = contentFile(hash);
+		if (!Files.isRegularFile(contentFile)) {
+			Path tempFile = Files.createTempFile(myTempDirectory, hash, TARBALL_SUFFIX);
+			Files.write(tempFile, theTarball);
+			moveIntoPlace(tempFile, contentFile);
+		}
+		writeIndex(indexFile, hash);
+		ourLog.info("Added package {}#{} to the local package cache", thePackageId, thePackageVersion);
+	}
+
+	private void indexSeededPackages(Path theDirectory) throws IOException {
+		try (DirectoryStream<Path> seeds = Files.newDirectoryStream(theDirectory, "*" + TARBALL_SUFFIX)) {
+			for (Path next : seeds) {
+				NpmPackage npmPackage;
+				String hash;
+				try (FileChannel channel = FileChannel.open(next, StandardOpenOption.READ)) {
+					MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+					hash = Hashing.sha256().hashBytes(buffer.duplicate()).toString();
+					npmPackage = NpmPackage.fromPackage(new ByteBufferInputStream(buffer));
+				}
+				mySeededPackages.put(npmPackage.id() + "#" + npmPackage.version(), new SeededPackage(next, hash));
+				ourLog.info("Indexed seeded package {} as {}#{}", next.getFileName(), npmPackage.id(), npmPackage.version());
+			}
+		}
+	}
+
+	private void writeIndex(Path theIndexFile, String theHash) throws IOException {
+		Path tempFile = Files.createTempFile(myTempDirectory, theHash, ".idx");
+		Files.writeString(tempFile, theHash, StandardCharsets.UTF_8);
+		Files.move(tempFile, theIndexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void moveIntoPlace(Path theSource, Path theContentFile) throws IOException {
+		if (Files.isRegularFile(theContentFile)) {
+			// Same hash, same content
+			Files.delete(theSource);
+			return;
+		}
+		Files.createDirectories(theContentFile.getParent());
+		Files.move(theSource, theContentFile, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Path contentFile(String theHash) {
+		return myContentDirectory.resolve(theHash.substring(0, 2)).resolve(theHash + TARBALL_SUFFIX);
+	}
+
+	/**
+	 * @return the index file of the given package version, or <code>null</code> if the ID or version can't be
+	 * used as a file name
+	 */
+	@Nullable
+	private Path indexFile(String thePackageId, String thePackageVersion) {
+		if (!isSafeFileName(thePackageId) || !isSafeFileName(thePackageVersion)) {
+			return null;
+		}
+		return myIndexDirectory.resolve(thePackageId + "#" + thePackageVersion);
+	}
+
+	private static boolean isSafeFileName(String theName) {
+		return theName != null && SAFE_FILE_NAME.matcher(theName).matches() && !theName.contains("..");
+	}
+
+	private static class SeededPackage {
+
+		private final Path myFile;
+		private final String myHash;
+
+		SeededPackage(Path theFile, String theHash) {
+			myFile = theFile;
+			myHash = theHash;
+		}
+
+		Path getFile() {
+			return myFile;
+		}
+
+		String getHash() {
+			return myHash;
+		}
+	}
+
+	/**
+	 * Reads a (memory-mapped) buffer without copying it
+	 */
+	static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer myBuffer;
+
+		ByteBufferInputStream(ByteBuffer theBuffer) {
+			myBuffer = theBuffer;
+		}
+
+		@Override
+		public int read() {
+			return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] theBytes, int theOffset, int theLength) {
+			if (theLength == 0) {
+				return 0;
+			}
+			if (!myBuffer.hasRemaining()) {
+				return -1;
+			}
+			int length = Math.min(theLength, myBuffer.remaining());
+			myBuffer.get(theBytes, theOffset, length);
+			return length;
+		}
+
+		@Override
+		public int available() {
+			return myBuffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package ca.uhn.fhir.jpa.starter.common.jdbc;
+
+import net.ttddyy.dsproxy.QueryInfo;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The JDBC work done for one FHIR request, collected by the {@link JdbcStatisticsCollector} on the thread that
+ * handles the request
+ */
+public class JdbcStatistics {
+
+	private long myStatements;
+	private long myRows;
+	private long myNanos;
+	private long myStatementStartNanos;
+	private int myMaxCapturedStatements;
+	private Map<String, CapturedStatement> myCapturedStatements;
+
+	/**
+	 * Also keep the SQL of the statements executed from now on, grouped by statement
+	 *
+	 * @param theMaxStatements the number of distinct statements to keep, further ones are only counted
+	 */
+	public void captureStatements(int theMaxStatements) {
+		myMaxCapturedStatements = theMaxStatements;
+		if (myCapturedStatements == null) {
+			myCapturedStatements = new LinkedHashMap<>();
+		}
+	}
+
+	void statementStarted() {
+		myStatementStartNanos = System.nanoTime();
+	}
+
+	void statementCompleted(List<QueryInfo> theQueries) {
+		long nanos = System.nanoTime() - myStatementStartNanos;
+		myStatements++;
+		myNanos += nanos;
+		if (myCapturedStatements != null) {
+			String sql = theQueries.stream().map(QueryInfo::getQuery).collect(Collectors.joining(";\n"));
+			CapturedStatement statement = myCapturedStatements.get(sql);
+			if (statement == null && myCapturedStatements.size() < myMaxCapturedStatements) {
+				statement = new CapturedStatement(sql);
+				myCapturedStatements.put(sql, statement);
+			}
+			if (statement != null) {
+				statement.myExecutions++;
+				statement.myNanos += nanos;
+			}
+		}
+	}
+
+	void rowFetched() {
+		myRows++;
+	}
+
+	/**
+	 * @return the statements executed, counting a batch as one
+	 */
+	public long getStatements() {
+		return myStatements;
+	}
+
+	/**
+	 * @return the rows read from result sets
+	 */
+	public long getRows() {
+		return myRows;
+	}
+
+	/**
+	 * @return the time spent executing statements, excluding reading their results
+	 */
+	public long getNanos() {
+		return myNanos;
+	}
+
+	/**
+	 * @return the statements executed since {@link #captureStatements(int)}, in the order they were first executed
+	 */
+	public Collection<CapturedStatement> getCapturedStatements() {
+		return myCapturedStatements != null ? Collections.unmodifiableCollection(myCapturedStatements.values()) : Collections.emptyList();
+	}
+
+	public static class CapturedStatement {
+
+		private final String mySql;
+		private long myExecutions;
+		private long myNanos;
+
+		private CapturedStatement(String theSql) {
+			mySql = theSql;
+		}
+
+		/**
+		 * @return the SQL, with <code>?</code> in place of the bound values
+		 */
+		public String getSql() {
+			return mySql;
+		}
+
+		public long getExecutions() {
+			return myExecutions;
+		}
+
+		public long getNanos() {
+			return myNanos;
+		}
+	}
+}
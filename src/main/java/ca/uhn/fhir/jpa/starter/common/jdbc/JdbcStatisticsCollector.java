@@ -0,0 +1,96 @@
+package ca.uhn.fhir.jpa.starter.common.jdbc;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.listener.MethodExecutionContext;
+import net.ttddyy.dsproxy.listener.MethodExecutionListener;
+import net.ttddyy.dsproxy.listener.QueryExecutionListener;
+import net.ttddyy.dsproxy.support.ProxyDataSourceBuilder;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.util.List;
+
+/**
+ * Counts the statements, fetched rows and statement time of the DataSource it {@link #wrap(DataSource) wraps}
+ * into the {@link JdbcStatistics} of the FHIR request handled by the current thread, which interceptors
+ * registered after this one get with {@link #getStatistics(RequestDetails)}. Work on other threads, such as
+ * batch jobs and scheduled tasks, isn't counted.
+ */
+@Interceptor
+public class JdbcStatisticsCollector implements QueryExecutionListener, MethodExecutionListener {
+
+	private static final String USER_DATA_KEY = JdbcStatisticsCollector.class.getName();
+
+	private final ThreadLocal<JdbcStatistics> myCurrent = new ThreadLocal<>();
+
+	public DataSource wrap(DataSource theDataSource) {
+		return ProxyDataSourceBuilder
+			.create(theDataSource)
+			.name("hapi-fhir-jdbc-statistics")
+			.listener(this)
+			.methodListener(this)
+			.proxyResultSet()
+			.build();
+	}
+
+	/**
+	 * @return the statistics of the request, or <code>null</code> if they aren't collected
+	 */
+	public static JdbcStatistics getStatistics(RequestDetails theRequestDetails) {
+		return theRequestDetails != null ? (JdbcStatistics) theRequestDetails.getUserData().get(USER_DATA_KEY) : null;
+	}
+
+	/**
+	 * Runs before the other interceptors, so that they can add to the statistics
+	 */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MIN_VALUE)
+	public void incomingRequestPostProcessed(RequestDetails theRequestDetails) {
+		JdbcStatistics statistics = new JdbcStatistics();
+		theRequestDetails.getUserData().put(USER_DATA_KEY, statistics);
+		myCurrent.set(statistics);
+	}
+
+	/**
+	 * Runs after the other interceptors, so that they see the statistics of the whole request
+	 */
+	@Hook(value = Pointcut.SERVER_PROCESSING_COMPLETED, order = Integer.MAX_VALUE)
+	public void processingCompleted() {
+		myCurrent.remove();
+	}
+
+	@Override
+	public void beforeQuery(ExecutionInfo theExecutionInfo, List<QueryInfo> theQueryInfoList) {
+		JdbcStatistics statistics = myCurrent.get();
+		if (statistics != null) {
+			statistics.statementStarted();
+		}
+	}
+
+	@Override
+	public void afterQuery(ExecutionInfo theExecutionInfo, List<QueryInfo> theQueryInfoList) {
+		JdbcStatistics statistics = myCurrent.get();
+		if (statistics != null) {
+			statistics.statementCompleted(theQueryInfoList);
+		}
+	}
+
+	@Override
+	public void beforeMethod(MethodExecutionContext theExecutionContext) {
+		// Rows are counted once the method has returned
+	}
+
+	@Override
+	public void afterMethod(MethodExecutionContext theExecutionContext) {
+		if (theExecutionContext.getTarget() instanceof ResultSet && Boolean.TRUE.equals(theExecutionContext.getResult()) && "next".equals(theExecutionContext.getMethod().getName())) {
+			JdbcStatistics statistics = myCurrent.get();
+			if (statistics != null) {
+				statistics.rowFetched();
+			}
+		}
+	}
+}
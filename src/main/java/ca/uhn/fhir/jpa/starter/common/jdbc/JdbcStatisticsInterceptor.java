@@ -0,0 +1,168 @@
+package ca.uhn.fhir.jpa.starter.common.jdbc;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the JDBC work the {@link JdbcStatisticsCollector} attributed to each FHIR request in the
+ * <code>hapi.fhir.jdbc.statements</code>, <code>hapi.fhir.jdbc.rows</code> and <code>hapi.fhir.jdbc.time</code>
+ * meters, tagged with:
+ * <ul>
+ *    <li><code>operation</code>: the interaction, e.g. <code>search_type</code>, or <code>unknown</code></li>
+ *    <li><code>resource_type</code>: the resource type of the request, <code>unknown</code> when the FHIR version
+ *    has no such type, or <code>none</code></li>
+ *    <li><code>shape</code>: the names of the search parameters of the request, sorted, without their values
+ *    except for <code>_include</code> and <code>_revinclude</code>, e.g. <code>_revinclude=Observation:subject&amp;family</code>,
+ *    or <code>none</code>. Shapes beyond the first <code>theMaxShapes</code> seen are tagged <code>other</code>.</li>
+ * </ul>
+ * When <code>theResponseHeaders</code> is set, the figures are also returned in the <code>X-FHIR-JDBC-*</code>
+ * response headers. Only the work done on the thread handling the request is counted.
+ */
+@Interceptor
+public class JdbcStatisticsInterceptor {
+
+	public static final String STATEMENTS_METRIC_NAME = "hapi.fhir.jdbc.statements";
+	public static final String ROWS_METRIC_NAME = "hapi.fhir.jdbc.rows";
+	public static final String TIME_METRIC_NAME = "hapi.fhir.jdbc.time";
+	public static final String HEADER_STATEMENTS = "X-FHIR-JDBC-Statements";
+	public static final String HEADER_ROWS = "X-FHIR-JDBC-Rows";
+	public static final String HEADER_TIME_MILLIS = "X-FHIR-JDBC-Time-Millis";
+	public static final String OTHER_SHAPE = "other";
+
+	private static final String NONE = "none";
+	private static final String UNKNOWN = "unknown";
+	private static final Set<String> IGNORED_PARAMETERS = Set.of(Constants.PARAM_FORMAT, Constants.PARAM_PRETTY, Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS);
+	private static final Set<String> PARAMETERS_WITH_VALUES = Set.of(Constants.PARAM_INCLUDE, Constants.PARAM_REVINCLUDE);
+
+	private final MeterRegistry myMeterRegistry;
+	private final Set<String> myResourceTypes;
+	private final boolean myResponseHeaders;
+	private final int myMaxShapes;
+	private final Set<String> myShapes = ConcurrentHashMap.newKeySet();
+	private final Map<Tags, Meters> myMeters = new ConcurrentHashMap<>();
+
+	public JdbcStatisticsInterceptor(FhirContext theFhirContext, MeterRegistry theMeterRegistry, boolean theResponseHeaders, int theMaxShapes) {
+		myMeterRegistry = theMeterRegistry;
+		myResourceTypes = Set.copyOf(theFhirContext.getResourceTypes());
+		myResponseHeaders = theResponseHeaders;
+		myMaxShapes = theMaxShapes;
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public void outgoingResponse(ServletRequestDetails theRequestDetails) {
+		// Responses without a resource (e.g. a 304) skip this pointcut, and so only get the metrics
+		JdbcStatistics statistics = JdbcStatisticsCollector.getStatistics(theRequestDetails);
+		if (myResponseHeaders && statistics != null && theRequestDetails.getServletResponse() != null) {
+			theRequestDetails.getServletResponse().setHeader(HEADER_STATEMENTS, Long.toString(statistics.getStatements()));
+			theRequestDetails.getServletResponse().setHeader(HEADER_ROWS, Long.toString(statistics.getRows()));
+			theRequestDetails.getServletResponse().setHeader(HEADER_TIME_MILLIS, Long.toString(TimeUnit.NANOSECONDS.toMillis(statistics.getNanos())));
+		}
+	}
+
+	/**
+	 * Called after every request, whether it succeeded or not
+	 */
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void processingCompleted(RequestDetails theRequestDetails) {
+		JdbcStatistics statistics = JdbcStatisticsCollector.getStatistics(theRequestDetails);
+		if (statistics == null) {
+			return;
+		}
+		Tags tags = Tags.of(
+			"operation", getOperation(theRequestDetails),
+			"resource_type", getResourceType(theRequestDetails),
+			"shape", getShape(theRequestDetails));
+		myMeters.computeIfAbsent(tags, this::newMeters).record(statistics);
+	}
+
+	private Meters newMeters(Tags theTags) {
+		return new Meters(
+			DistributionSummary.builder(STATEMENTS_METRIC_NAME).description("JDBC statements per FHIR request").tags(theTags).register(myMeterRegistry),
+			DistributionSummary.builder(ROWS_METRIC_NAME).description("JDBC rows fetched per FHIR request").tags(theTags).register(myMeterRegistry),
+			Timer.builder(TIME_METRIC_NAME).description("JDBC statement time per FHIR request").tags(theTags).register(myMeterRegistry));
+	}
+
+	private static String getOperation(RequestDetails theRequestDetails) {
+		RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+		return operationType != null ? operationType.name().toLowerCase(Locale.ROOT) : UNKNOWN;
+	}
+
+	private String getResourceType(RequestDetails theRequestDetails) {
+		String resourceName = theRequestDetails.getResourceName();
+		if (StringUtils.isBlank(resourceName)) {
+			return NONE;
+		}
+		return myResourceTypes.contains(resourceName) ? resourceName : UNKNOWN;
+	}
+
+	private String getShape(RequestDetails theRequestDetails) {
+		Map<String, String[]> parameters = theRequestDetails.getParameters();
+		if (parameters == null || parameters.isEmpty()) {
+			return NONE;
+		}
+		Set<String> shape = new TreeSet<>();
+		for (Map.Entry<String, String[]> next : parameters.entrySet()) {
+			String name = next.getKey();
+			if (IGNORED_PARAMETERS.contains(name)) {
+				continue;
+			}
+			if (PARAMETERS_WITH_VALUES.contains(name) || PARAMETERS_WITH_VALUES.contains(StringUtils.substringBefore(name, ':'))) {
+				Arrays.stream(next.getValue()).forEach(t -> shape.add(name + "=" + t));
+			} else {
+				shape.add(name);
+			}
+		}
+		if (shape.isEmpty()) {
+			return NONE;
+		}
+		String retVal = String.join("&", shape);
+		if (myShapes.contains(retVal)) {
+			return retVal;
+		}
+		synchronized (myShapes) {
+			if (myShapes.contains(retVal) || myShapes.size() < myMaxShapes) {
+				myShapes.add(retVal);
+				return retVal;
+			}
+		}
+		return OTHER_SHAPE;
+	}
+
+	private static class Meters {
+
+		private final DistributionSummary myStatements;
+		private final DistributionSummary myRows;
+		private final Timer myTime;
+
+		private Meters(DistributionSummary theStatements, DistributionSummary theRows, Timer theTime) {
+			myStatements = theStatements;
+			myRows = theRows;
+			myTime = theTime;
+		}
+
+		private void record(JdbcStatistics theStatistics) {
+			myStatements.record(theStatistics.getStatements());
+			myRows.record(theStatistics.getRows());
+			myTime.record(theStatistics.getNanos(), TimeUnit.NANOSECONDS);
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package ca.uhn.fhir.jpa.starter.common.logging;
+
+/**
+ * What the request thread does when the asynchronous access log buffer is full
+ */
+public enum AccessLogDropPolicyEnum {
+
+	/**
+	 * Discard the entry and count it as dropped, so logging never slows a request down
+	 */
+	DROP,
+
+	/**
+	 * Wait until the background writer has made room, so no entry is lost
+	 */
+	BLOCK
+}
@@ -0,0 +1,79 @@
+package ca.uhn.fhir.jpa.starter.common.logging;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+import java.util.Map;
+
+/**
+ * One preallocated slot of the {@link AccessLogRingBuffer}. The request thread only copies references
+ * into it; all formatting happens on the writer thread.
+ */
+class AccessLogEntry {
+
+	/**
+	 * Sequence number this slot was last published under, read by the writer to know the slot is complete
+	 */
+	volatile long myPublishedSequence = -1;
+
+	long myTimestamp;
+	boolean myError;
+	String myRequestVerb;
+	String myScheme;
+	String myServerName;
+	int myServerPort;
+	String myRequestUri;
+	String myServletPath;
+	RestOperationTypeEnum myOperationType;
+	String myOperationName;
+	String myId;
+	String myResourceName;
+	Map<String, String[]> myParameters;
+	String myRemoteAddr;
+	final String[] myHeaders;
+	String myResponseEncoding;
+	long myProcessingTimeMillis;
+	int myStatus;
+	String myRequestId;
+	BaseServerResponseException myException;
+
+	AccessLogEntry(int theHeaderCount) {
+		myHeaders = new String[theHeaderCount];
+	}
+
+	/**
+	 * Drops the references held by this slot so that request objects aren't kept alive by the buffer
+	 */
+	void clear() {
+		myRequestVerb = null;
+		myScheme = null;
+		myServerName = null;
+		myRequestUri = null;
+		myServletPath = null;
+		myOperationType = null;
+		myOperationName = null;
+		myId = null;
+		myResourceName = null;
+		myParameters = null;
+		myRemoteAddr = null;
+		for (int i = 0; i < myHeaders.length; i++) {
+			myHeaders[i] = null;
+		}
+		myResponseEncoding = null;
+		myRequestId = null;
+		myException = null;
+	}
+
+	String getRequestUrl() {
+		StringBuilder b = new StringBuilder();
+		b.append(myScheme).append("://").append(myServerName);
+		boolean defaultPort = ("http".equals(myScheme) && myServerPort == 80) || ("https".equals(myScheme) && myServerPort == 443);
+		if (!defaultPort && myServerPort > 0) {
+			b.append(':').append(myServerPort);
+		}
+		if (myRequestUri != null) {
+			b.append(myRequestUri);
+		}
+		return b.toString();
+	}
+}
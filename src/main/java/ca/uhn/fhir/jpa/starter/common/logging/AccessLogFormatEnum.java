@@ -0,0 +1,18 @@
+package ca.uhn.fhir.jpa.starter.common.logging;
+
+/**
+ * Output format of the asynchronous access log
+ */
+public enum AccessLogFormatEnum {
+
+	/**
+	 * Lines rendered from the <code>format</code> and <code>error_format</code> templates, as with the
+	 * synchronous LoggingInterceptor
+	 */
+	TEXT,
+
+	/**
+	 * One JSON object per line
+	 */
+	JSON
+}
@@ -0,0 +1,76 @@
+package ca.uhn.fhir.jpa.starter.common.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size multi-producer, single-consumer ring of preallocated {@link AccessLogEntry} slots.
+ * <p>
+ * Producers claim a sequence number with a CAS, fill the slot and publish it. The single consumer
+ * reads slots strictly in sequence order and releases each one once it has been read, which is what
+ * lets producers reuse it.
+ */
+class AccessLogRingBuffer {
+
+	private final AccessLogEntry[] mySlots;
+	private final int myMask;
+	private final AtomicLong myClaimSequence = new AtomicLong();
+	private volatile long myReleasedSequence;
+
+	AccessLogRingBuffer(int theMinimumCapacity, int theHeaderCount) {
+		int capacity = Integer.highestOneBit(Math.max(2, theMinimumCapacity - 1)) << 1;
+		mySlots = new AccessLogEntry[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mySlots[i] = new AccessLogEntry(theHeaderCount);
+		}
+		myMask = capacity - 1;
+	}
+
+	int getCapacity() {
+		return mySlots.length;
+	}
+
+	/**
+	 * @return the claimed sequence number, or -1 if the ring is full
+	 */
+	long tryClaim() {
+		while (true) {
+			long sequence = myClaimSequence.get();
+			if (sequence - myReleasedSequence >= mySlots.length) {
+				return -1;
+			}
+			if (myClaimSequence.compareAndSet(sequence, sequence + 1)) {
+				return sequence;
+			}
+		}
+	}
+
+	AccessLogEntry get(long theSequence) {
+		return mySlots[(int) (theSequence & myMask)];
+	}
+
+	void publish(long theSequence) {
+		get(theSequence).myPublishedSequence = theSequence;
+	}
+
+	/**
+	 * Consumer side: returns the slot for the given sequence if it has been published, otherwise null
+	 */
+	AccessLogEntry poll(long theSequence) {
+		AccessLogEntry entry = get(theSequence);
+		return entry.myPublishedSequence == theSequence ? entry : null;
+	}
+
+	/**
+	 * Consumer side: every slot before the given sequence has been read and may be reused
+	 */
+	void release(long theNextSequence) {
+		myReleasedSequence = theNextSequence;
+	}
+
+	/**
+	 * Number of claimed slots not yet released by the consumer
+	 */
+	long getBacklog() {
+		return myClaimSequence.get() - myReleasedSequence;
+	}
+}
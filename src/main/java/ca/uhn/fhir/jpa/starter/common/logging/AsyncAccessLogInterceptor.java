@@ -0,0 +1,404 @@
+package ca.uhn.fhir.jpa.starter.common.logging;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.UrlUtil;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.text.StringSubstitutor;
+import org.apache.commons.text.lookup.StringLookup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Access log interceptor that keeps formatting and I/O off the request thread.
+ * <p>
+ * The request thread copies references to the logged request fields into a preallocated slot of a
+ * {@link AccessLogRingBuffer}. A single background thread drains the ring in batches, renders each
+ * entry either from the same templates as the synchronous LoggingInterceptor or as a JSON object,
+ * and writes it to the access logger. When the ring is full the {@link AccessLogDropPolicyEnum}
+ * decides whether the entry is dropped (and counted) or the request thread waits.
+ * <p>
+ * The template variables are those of the LoggingInterceptor, except <code>requestBodyFhir</code>,
+ * which would require copying the request body and always renders empty.
+ */
+@Interceptor
+public class AsyncAccessLogInterceptor implements AutoCloseable {
+
+	public static final String METRIC_PREFIX = "hapi.fhir.access_log";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(AsyncAccessLogInterceptor.class);
+	private static final Pattern HEADER_VARIABLE = Pattern.compile("\\$\\{requestHeader\\.([^}]+)}");
+	private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final long DROP_WARNING_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	private final Logger myLogger;
+	private final String myMessageFormat;
+	private final String myErrorMessageFormat;
+	private final boolean myLogExceptions;
+	private final AccessLogFormatEnum myOutputFormat;
+	private final AccessLogDropPolicyEnum myDropPolicy;
+	private final int myBatchSize;
+	private final List<String> myHeaderNames;
+	private final boolean myCaptureResponseEncoding;
+	private final AccessLogRingBuffer myRingBuffer;
+	private final LongAdder myDroppedCount = new LongAdder();
+	private final LongAdder myWrittenCount = new LongAdder();
+	private final Thread myWriterThread;
+	private volatile boolean myRunning = true;
+
+	public AsyncAccessLogInterceptor(String theLoggerName, String theMessageFormat, String theErrorMessageFormat, boolean theLogExceptions, AccessLogFormatEnum theOutputFormat, AccessLogDropPolicyEnum theDropPolicy, int theBufferSize, int theBatchSize, List<String> theHeaders) {
+		myLogger = LoggerFactory.getLogger(theLoggerName);
+		myMessageFormat = theMessageFormat;
+		myErrorMessageFormat = theErrorMessageFormat;
+		myLogExceptions = theLogExceptions;
+		myOutputFormat = theOutputFormat;
+		myDropPolicy = theDropPolicy;
+		myBatchSize = Math.max(1, theBatchSize);
+
+		List<String> headerNames = new ArrayList<>();
+		if (theHeaders != null) {
+			theHeaders.forEach(t -> addHeaderName(headerNames, t));
+		}
+		if (theOutputFormat == AccessLogFormatEnum.TEXT) {
+			for (String format : new String[]{theMessageFormat, theErrorMessageFormat}) {
+				Matcher matcher = HEADER_VARIABLE.matcher(StringUtils.defaultString(format));
+				while (matcher.find()) {
+					addHeaderName(headerNames, matcher.group(1));
+				}
+			}
+		}
+		myHeaderNames = headerNames;
+		myCaptureResponseEncoding = theOutputFormat == AccessLogFormatEnum.JSON
+			|| StringUtils.contains(theMessageFormat, "responseEncodingNoDefault")
+			|| StringUtils.contains(theErrorMessageFormat, "responseEncodingNoDefault");
+
+		myRingBuffer = new AccessLogRingBuffer(theBufferSize, myHeaderNames.size());
+		myWriterThread = new Thread(this::drain, "hapi-fhir-access-log");
+		myWriterThread.setDaemon(true);
+	}
+
+	private static void addHeaderName(List<String> theHeaderNames, String theHeaderName) {
+		String name = theHeaderName.trim().toLowerCase(Locale.ROOT);
+		if (!name.isEmpty() && !theHeaderNames.contains(name)) {
+			theHeaderNames.add(name);
+		}
+	}
+
+	public void start() {
+		myWriterThread.start();
+		ourLog.info("Asynchronous access logging enabled with a buffer of {} entries, {} output and {} policy", myRingBuffer.getCapacity(), myOutputFormat, myDropPolicy);
+	}
+
+	public void bindMetrics(MeterRegistry theMeterRegistry) {
+		FunctionCounter.builder(METRIC_PREFIX + ".dropped", myDroppedCount, LongAdder::sum)
+			.description("Access log entries dropped because the buffer was full")
+			.register(theMeterRegistry);
+		FunctionCounter.builder(METRIC_PREFIX + ".written", myWrittenCount, LongAdder::sum)
+			.description("Access log entries written")
+			.register(theMeterRegistry);
+		Gauge.builder(METRIC_PREFIX + ".backlog", myRingBuffer, AccessLogRingBuffer::getBacklog)
+			.description("Access log entries waiting to be written")
+			.register(theMeterRegistry);
+	}
+
+	public long getDroppedCount() {
+		return myDroppedCount.sum();
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+	public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+		HttpServletResponse servletResponse = theRequestDetails.getServletResponse();
+		int status = servletResponse != null ? servletResponse.getStatus() : 0;
+		capture(theRequestDetails, theRequestDetails.getServletRequest(), status, null);
+	}
+
+	@Hook(Pointcut.SERVER_HANDLE_EXCEPTION)
+	public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+		if (myLogExceptions) {
+			capture(theRequestDetails, theServletRequest, theException.getStatusCode(), theException);
+		}
+		return true;
+	}
+
+	private void capture(RequestDetails theRequestDetails, HttpServletRequest theServletRequest, int theStatus, BaseServerResponseException theException) {
+		long sequence = claim();
+		if (sequence < 0) {
+			myDroppedCount.increment();
+			return;
+		}
+
+		AccessLogEntry entry = myRingBuffer.get(sequence);
+		try {
+			entry.myTimestamp = System.currentTimeMillis();
+			entry.myError = theException != null;
+			entry.myException = theException;
+			entry.myStatus = theStatus;
+			entry.myOperationType = theRequestDetails.getRestOperationType();
+			entry.myOperationName = theRequestDetails.getOperation();
+			entry.myId = theRequestDetails.getId() != null ? theRequestDetails.getId().getValue() : null;
+			entry.myResourceName = theRequestDetails.getResourceName();
+			entry.myParameters = theRequestDetails.getParameters();
+			entry.myRequestId = theRequestDetails.getRequestId();
+			if (myCaptureResponseEncoding && theRequestDetails.getServer() != null) {
+				RestfulServerUtils.ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingNoDefault(theRequestDetails, theRequestDetails.getServer().getDefaultResponseEncoding());
+				entry.myResponseEncoding = encoding != null ? encoding.getEncoding().name() : null;
+			}
+			entry.myProcessingTimeMillis = -1;
+			if (theServletRequest != null) {
+				entry.myRequestVerb = theServletRequest.getMethod();
+				entry.myScheme = theServletRequest.getScheme();
+				entry.myServerName = theServletRequest.getServerName();
+				entry.myServerPort = theServletRequest.getServerPort();
+				entry.myRequestUri = theServletRequest.getRequestURI();
+				entry.myServletPath = theServletRequest.getServletPath();
+				entry.myRemoteAddr = theServletRequest.getRemoteAddr();
+				for (int i = 0; i < entry.myHeaders.length; i++) {
+					entry.myHeaders[i] = theServletRequest.getHeader(myHeaderNames.get(i));
+				}
+				Object startTime = theServletRequest.getAttribute(RestfulServer.REQUEST_START_TIME);
+				if (startTime instanceof Date) {
+					entry.myProcessingTimeMillis = entry.myTimestamp - ((Date) startTime).getTime();
+				}
+			}
+		} finally {
+			myRingBuffer.publish(sequence);
+		}
+	}
+
+	private long claim() {
+		long sequence = myRingBuffer.tryClaim();
+		if (myDropPolicy == AccessLogDropPolicyEnum.BLOCK) {
+			while (sequence < 0 && myRunning) {
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+				sequence = myRingBuffer.tryClaim();
+			}
+		}
+		return sequence;
+	}
+
+	private void drain() {
+		EntryLookup lookup = new EntryLookup();
+		StringBuilder line = new StringBuilder(512);
+		List<String> batch = new ArrayList<>(myBatchSize);
+		long nextSequence = 0;
+		long idleParkNanos = 0;
+		long reportedDropped = 0;
+		long lastDropWarning = 0;
+
+		while (myRunning || myRingBuffer.getBacklog() > 0) {
+			while (batch.size() < myBatchSize) {
+				AccessLogEntry entry = myRingBuffer.poll(nextSequence);
+				if (entry == null) {
+					break;
+				}
+				try {
+					batch.add(render(entry, lookup, line));
+				} catch (RuntimeException e) {
+					ourLog.warn("Failed to format access log entry", e);
+				} finally {
+					entry.clear();
+					myRingBuffer.release(++nextSequence);
+				}
+			}
+
+			if (batch.isEmpty()) {
+				if (!myRunning && myRingBuffer.getBacklog() > 0) {
+					// A producer claimed a slot but never published it before shutdown
+					break;
+				}
+				idleParkNanos = Math.min(MAX_IDLE_PARK_NANOS, Math.max(TimeUnit.MILLISECONDS.toNanos(1), idleParkNanos * 2));
+				LockSupport.parkNanos(idleParkNanos);
+			} else {
+				idleParkNanos = 0;
+				write(batch);
+			}
+
+			long dropped = myDroppedCount.sum();
+			if (dropped > reportedDropped && System.currentTimeMillis() - lastDropWarning > DROP_WARNING_INTERVAL_MILLIS) {
+				ourLog.warn("Access log buffer full, {} entries dropped so far", dropped);
+				reportedDropped = dropped;
+				lastDropWarning = System.currentTimeMillis();
+			}
+		}
+	}
+
+	private void write(List<String> theBatch) {
+		for (String next : theBatch) {
+			myLogger.info(next);
+		}
+		myWrittenCount.add(theBatch.size());
+		theBatch.clear();
+	}
+
+	private String render(AccessLogEntry theEntry, EntryLookup theLookup, StringBuilder theLine) {
+		if (myOutputFormat == AccessLogFormatEnum.JSON) {
+			return renderJson(theEntry, theLine);
+		}
+		theLookup.myEntry = theEntry;
+		StringSubstitutor substitutor = new StringSubstitutor(theLookup, "${", "}", '\\');
+		return substitutor.replace(theEntry.myError ? myErrorMessageFormat : myMessageFormat);
+	}
+
+	private String renderJson(AccessLogEntry theEntry, StringBuilder theLine) {
+		theLine.setLength(0);
+		theLine.append('{');
+		appendJson(theLine, "timestamp", Instant.ofEpochMilli(theEntry.myTimestamp).toString(), true);
+		appendJson(theLine, "type", theEntry.myError ? "error" : "access", false);
+		appendJson(theLine, "requestId", theEntry.myRequestId, false);
+		appendJson(theLine, "requestVerb", theEntry.myRequestVerb, false);
+		appendJson(theLine, "requestUrl", theEntry.myScheme != null ? theEntry.getRequestUrl() : null, false);
+		appendJson(theLine, "servletPath", theEntry.myServletPath, false);
+		appendJson(theLine, "operationType", theEntry.myOperationType != null ? theEntry.myOperationType.getCode() : null, false);
+		appendJson(theLine, "operationName", operationName(theEntry), false);
+		appendJson(theLine, "resourceType", theEntry.myResourceName, false);
+		appendJson(theLine, "id", theEntry.myId, false);
+		appendJson(theLine, "requestParameters", requestParameters(theEntry), false);
+		appendJson(theLine, "remoteAddr", theEntry.myRemoteAddr, false);
+		appendJson(theLine, "responseEncoding", theEntry.myResponseEncoding, false);
+		theLine.append(",\"status\":").append(theEntry.myStatus);
+		if (theEntry.myProcessingTimeMillis >= 0) {
+			theLine.append(",\"processingTimeMillis\":").append(theEntry.myProcessingTimeMillis);
+		}
+		if (!myHeaderNames.isEmpty()) {
+			theLine.append(",\"requestHeaders\":{");
+			boolean first = true;
+			for (int i = 0; i < myHeaderNames.size(); i++) {
+				if (theEntry.myHeaders[i] != null) {
+					appendJson(theLine, myHeaderNames.get(i), theEntry.myHeaders[i], first);
+					first = false;
+				}
+			}
+			theLine.append('}');
+		}
+		if (theEntry.myException != null) {
+			appendJson(theLine, "exceptionMessage", theEntry.myException.getMessage(), false);
+		}
+		theLine.append('}');
+		return theLine.toString();
+	}
+
+	private static void appendJson(StringBuilder theLine, String theName, String theValue, boolean theFirst) {
+		if (theValue == null) {
+			return;
+		}
+		if (!theFirst) {
+			theLine.append(',');
+		}
+		theLine.append('"');
+		JsonStringEncoder.getInstance().quoteAsString(theName, theLine);
+		theLine.append("\":\"");
+		JsonStringEncoder.getInstance().quoteAsString(theValue, theLine);
+		theLine.append('"');
+	}
+
+	private static String operationName(AccessLogEntry theEntry) {
+		if (theEntry.myOperationType != null) {
+			switch (theEntry.myOperationType) {
+				case EXTENDED_OPERATION_INSTANCE:
+				case EXTENDED_OPERATION_SERVER:
+				case EXTENDED_OPERATION_TYPE:
+					return theEntry.myOperationName;
+				default:
+					break;
+			}
+		}
+		return "";
+	}
+
+	private static String requestParameters(AccessLogEntry theEntry) {
+		StringBuilder b = new StringBuilder();
+		if (theEntry.myParameters != null) {
+			for (Map.Entry<String, String[]> next : theEntry.myParameters.entrySet()) {
+				for (String nextValue : next.getValue()) {
+					b.append(b.length() == 0 ? '?' : '&');
+					b.append(UrlUtil.escapeUrlParam(next.getKey()));
+					b.append('=');
+					b.append(UrlUtil.escapeUrlParam(nextValue));
+				}
+			}
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Stops accepting entries, writes whatever is still buffered and stops the writer thread
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		myRunning = false;
+		LockSupport.unpark(myWriterThread);
+		myWriterThread.join(TimeUnit.SECONDS.toMillis(10));
+	}
+
+	/**
+	 * Resolves the LoggingInterceptor template variables against a captured entry
+	 */
+	private class EntryLookup implements StringLookup {
+
+		private AccessLogEntry myEntry;
+
+		@Override
+		public String lookup(String theKey) {
+			switch (theKey) {
+				case "operationType":
+					return myEntry.myOperationType != null ? myEntry.myOperationType.getCode() : "";
+				case "operationName":
+					return operationName(myEntry);
+				case "id":
+					return StringUtils.defaultString(myEntry.myId);
+				case "servletPath":
+					return StringUtils.defaultString(myEntry.myServletPath);
+				case "idOrResourceName":
+					return myEntry.myId != null ? myEntry.myId : StringUtils.defaultString(myEntry.myResourceName);
+				case "requestParameters":
+					return requestParameters(myEntry);
+				case "remoteAddr":
+					return StringUtils.defaultString(myEntry.myRemoteAddr);
+				case "responseEncodingNoDefault":
+					return StringUtils.defaultString(myEntry.myResponseEncoding);
+				case "exceptionMessage":
+					return myEntry.myException != null ? myEntry.myException.getMessage() : null;
+				case "requestUrl":
+					return myEntry.myScheme != null ? myEntry.getRequestUrl() : "";
+				case "requestVerb":
+					return StringUtils.defaultString(myEntry.myRequestVerb);
+				case "requestBodyFhir":
+					return "";
+				case "processingTimeMillis":
+					return myEntry.myProcessingTimeMillis >= 0 ? Long.toString(myEntry.myProcessingTimeMillis) : "!VAL!";
+				case "requestId":
+					return myEntry.myRequestId;
+				default:
+					if (theKey.startsWith("requestHeader.")) {
+						int index = myHeaderNames.indexOf(theKey.substring("requestHeader.".length()).toLowerCase(Locale.ROOT));
+						return index >= 0 ? StringUtils.defaultString(myEntry.myHeaders[index]) : "";
+					}
+					return "!VAL!";
+			}
+		}
+	}
+}
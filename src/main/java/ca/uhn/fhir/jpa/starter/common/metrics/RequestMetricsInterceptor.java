@@ -0,0 +1,123 @@
+package ca.uhn.fhir.jpa.starter.common.metrics;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every request of the server in the <code>hapi.fhir.requests</code> timer, tagged with:
+ * <ul>
+ *    <li><code>operation</code>: the interaction (e.g. <code>read</code>, <code>search_type</code>,
+ *    <code>transaction</code>), or the name of the extended operation (e.g. <code>$validate</code>), or
+ *    <code>unknown</code> for requests the server couldn't route</li>
+ *    <li><code>resource_type</code>: the resource type of the request, or <code>none</code></li>
+ *    <li><code>tenant</code>: the tenant of the request, or <code>none</code></li>
+ *    <li><code>status</code>: the HTTP status of the response</li>
+ * </ul>
+ * The timers publish the configured SLO buckets, so that the share of requests below each of them can be
+ * graphed. To bound the number of series, resource types the server doesn't know are tagged <code>unknown</code>,
+ * and tenants beyond the first <code>theMaxTenants</code> seen are tagged <code>other</code>.
+ */
+@Interceptor
+public class RequestMetricsInterceptor {
+
+	public static final String METRIC_NAME = "hapi.fhir.requests";
+	public static final String OTHER_TENANT = "other";
+
+	private static final String NONE = "none";
+	private static final String UNKNOWN = "unknown";
+
+	private final MeterRegistry myMeterRegistry;
+	private final Set<String> myResourceTypes;
+	private final Duration[] mySlos;
+	private final boolean myPercentileHistogram;
+	private final int myMaxTenants;
+	private final Set<String> myTenants = ConcurrentHashMap.newKeySet();
+	private final Map<Tags, Timer> myTimers = new ConcurrentHashMap<>();
+
+	public RequestMetricsInterceptor(FhirContext theFhirContext, MeterRegistry theMeterRegistry, List<Long> theSloMillis, boolean thePercentileHistogram, int theMaxTenants) {
+		myMeterRegistry = theMeterRegistry;
+		myResourceTypes = Set.copyOf(theFhirContext.getResourceTypes());
+		mySlos = theSloMillis.stream().sorted().map(Duration::ofMillis).toArray(Duration[]::new);
+		myPercentileHistogram = thePercentileHistogram;
+		myMaxTenants = theMaxTenants;
+	}
+
+	/**
+	 * Called after every request, whether it succeeded or not
+	 */
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void processingCompleted(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+		if (theServletRequestDetails == null || theServletRequestDetails.getServletResponse() == null) {
+			return;
+		}
+		Tags tags = Tags.of(
+			"operation", getOperation(theRequestDetails),
+			"resource_type", getResourceType(theRequestDetails),
+			"tenant", getTenant(theRequestDetails),
+			"status", Integer.toString(theServletRequestDetails.getServletResponse().getStatus()));
+		myTimers.computeIfAbsent(tags, this::newTimer).record(theRequestDetails.getRequestStopwatch().getMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	private Timer newTimer(Tags theTags) {
+		return Timer.builder(METRIC_NAME)
+			.description("FHIR requests")
+			.tags(theTags)
+			.serviceLevelObjectives(mySlos)
+			.publishPercentileHistogram(myPercentileHistogram)
+			.register(myMeterRegistry);
+	}
+
+	private static String getOperation(RequestDetails theRequestDetails) {
+		RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+		if (operationType == null) {
+			return UNKNOWN;
+		}
+		if (operationType == RestOperationTypeEnum.EXTENDED_OPERATION_SERVER || operationType == RestOperationTypeEnum.EXTENDED_OPERATION_TYPE || operationType == RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE) {
+			// Only set once the request was routed to an operation of the server, so the names are bounded
+			return StringUtils.defaultIfBlank(theRequestDetails.getOperation(), operationType.getCode());
+		}
+		return operationType.name().toLowerCase(Locale.ROOT);
+	}
+
+	private String getResourceType(RequestDetails theRequestDetails) {
+		String resourceName = theRequestDetails.getResourceName();
+		if (StringUtils.isBlank(resourceName)) {
+			return NONE;
+		}
+		return myResourceTypes.contains(resourceName) ? resourceName : UNKNOWN;
+	}
+
+	private String getTenant(RequestDetails theRequestDetails) {
+		String tenantId = theRequestDetails.getTenantId();
+		if (StringUtils.isBlank(tenantId)) {
+			return NONE;
+		}
+		if (myTenants.contains(tenantId)) {
+			return tenantId;
+		}
+		synchronized (myTenants) {
+			if (myTenants.contains(tenantId) || myTenants.size() < myMaxTenants) {
+				myTenants.add(tenantId);
+				return tenantId;
+			}
+		}
+		return OTHER_TENANT;
+	}
+}
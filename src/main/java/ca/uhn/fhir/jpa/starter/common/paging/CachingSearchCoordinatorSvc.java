@@ -0,0 +1,205 @@
+package ca.uhn.fhir.jpa.starter.common.paging;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.svc.ISearchCoordinatorSvc;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.search.cache.ISearchCacheSvc;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.CacheControlDirective;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps recently served pages of search result PIDs in memory in front of the database backed
+ * search coordinator, so that paging through a search (<code>_getpages</code>) does not have to
+ * go back to the HFJ_SEARCH / HFJ_SEARCH_RESULT tables for pages that were recently read.
+ * <p>
+ * Once a range of a search has been returned by the coordinator it never changes (results are only
+ * ever appended), so entries are keyed by search UUID and range. The cache is bounded by the total
+ * number of PIDs it holds, and misses fall through to the delegate.
+ * <p>
+ * The stale search job deletes a search a fixed time after it was created, however recently it was
+ * read, so a page also expires once its search may have been deleted: after
+ * <code>expireSearchResultsAfterMillis</code> from the creation of the search.
+ */
+public class CachingSearchCoordinatorSvc implements ISearchCoordinatorSvc<JpaPid> {
+
+	public static final String CACHE_NAME = "hapi.fhir.paging_cache";
+
+	private final ISearchCoordinatorSvc<JpaPid> myDelegate;
+	private final ISearchCacheSvc mySearchCacheSvc;
+	private final DaoConfig myDaoConfig;
+	private final Cache<PageKey, CachedPage> myPageCache;
+	private final Cache<String, Long> mySearchDeadlines;
+
+	public CachingSearchCoordinatorSvc(ISearchCoordinatorSvc<JpaPid> theDelegate, ISearchCacheSvc theSearchCacheSvc, DaoConfig theDaoConfig, long theMaximumCachedPids, Duration theTimeToLive) {
+		myDelegate = theDelegate;
+		mySearchCacheSvc = theSearchCacheSvc;
+		myDaoConfig = theDaoConfig;
+		myPageCache = Caffeine.newBuilder()
+			.maximumWeight(theMaximumCachedPids)
+			.weigher((PageKey theKey, CachedPage thePage) -> Math.max(1, thePage.myPids.length))
+			.expireAfter(new PageExpiry(theTimeToLive.toNanos()))
+			.recordStats()
+			.build();
+		mySearchDeadlines = Caffeine.newBuilder()
+			.maximumSize(10_000)
+			.expireAfterWrite(theTimeToLive)
+			.build();
+	}
+
+	/**
+	 * Publishes hit, miss, size and eviction statistics for the page cache
+	 */
+	public void bindMetrics(MeterRegistry theMeterRegistry) {
+		CaffeineCacheMetrics.monitor(theMeterRegistry, myPageCache, CACHE_NAME);
+	}
+
+	@Override
+	public List<JpaPid> getResources(String theUuid, int theFrom, int theTo, @Nullable RequestDetails theRequestDetails) {
+		PageKey key = new PageKey(theUuid, theFrom, theTo);
+		CachedPage cached = myPageCache.getIfPresent(key);
+		if (cached != null) {
+			// Callers append included resources to the list, so always hand out a fresh one
+			List<JpaPid> retVal = new ArrayList<>(cached.myPids.length);
+			for (long next : cached.myPids) {
+				retVal.add(JpaPid.fromId(next));
+			}
+			return retVal;
+		}
+
+		List<JpaPid> retVal = myDelegate.getResources(theUuid, theFrom, theTo, theRequestDetails);
+		Long deadline = mySearchDeadlines.get(theUuid, this::getSearchDeadline);
+		if (deadline != null) {
+			long[] pids = new long[retVal.size()];
+			for (int i = 0; i < pids.length; i++) {
+				pids[i] = retVal.get(i).getId();
+			}
+			myPageCache.put(key, new CachedPage(pids, deadline));
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return the earliest time (in epoch millis) the stale search job may delete the search, or
+	 * <code>null</code> if it is already gone
+	 */
+	@Nullable
+	private Long getSearchDeadline(String theUuid) {
+		if (!myDaoConfig.isExpireSearchResults()) {
+			return Long.MAX_VALUE;
+		}
+		return mySearchCacheSvc.fetchByUuid(theUuid)
+			.map(Search::getCreated)
+			.map(t -> t.getTime() + myDaoConfig.getExpireSearchResultsAfterMillis())
+			.orElse(null);
+	}
+
+	@Override
+	public void cancelAllActiveSearches() {
+		myDelegate.cancelAllActiveSearches();
+		myPageCache.invalidateAll();
+		mySearchDeadlines.invalidateAll();
+	}
+
+	@Override
+	public IBundleProvider registerSearch(IFhirResourceDao<?> theCallingDao, SearchParameterMap theParams, String theResourceType, CacheControlDirective theCacheControlDirective, @Nullable RequestDetails theRequestDetails, RequestPartitionId theRequestPartitionId) {
+		return myDelegate.registerSearch(theCallingDao, theParams, theResourceType, theCacheControlDirective, theRequestDetails, theRequestPartitionId);
+	}
+
+	@Override
+	public Optional<Integer> getSearchTotal(String theUuid, @Nullable RequestDetails theRequestDetails) {
+		return myDelegate.getSearchTotal(theUuid, theRequestDetails);
+	}
+
+	private static final class CachedPage {
+
+		private final long[] myPids;
+		private final long myDeadlineMillis;
+
+		private CachedPage(long[] thePids, long theDeadlineMillis) {
+			myPids = thePids;
+			myDeadlineMillis = theDeadlineMillis;
+		}
+	}
+
+	/**
+	 * Expires pages after the TTL since they were last read, but never later than the deadline of their search
+	 */
+	private static final class PageExpiry implements Expiry<PageKey, CachedPage> {
+
+		private final long myTimeToLiveNanos;
+
+		private PageExpiry(long theTimeToLiveNanos) {
+			myTimeToLiveNanos = theTimeToLiveNanos;
+		}
+
+		private long expireAfterAccess(CachedPage thePage) {
+			long untilDeadlineMillis = thePage.myDeadlineMillis - System.currentTimeMillis();
+			if (untilDeadlineMillis <= 0) {
+				return 0;
+			}
+			if (untilDeadlineMillis >= TimeUnit.NANOSECONDS.toMillis(myTimeToLiveNanos)) {
+				return myTimeToLiveNanos;
+			}
+			return TimeUnit.MILLISECONDS.toNanos(untilDeadlineMillis);
+		}
+
+		@Override
+		public long expireAfterCreate(PageKey theKey, CachedPage thePage, long theCurrentTime) {
+			return expireAfterAccess(thePage);
+		}
+
+		@Override
+		public long expireAfterUpdate(PageKey theKey, CachedPage thePage, long theCurrentTime, long theCurrentDuration) {
+			return expireAfterAccess(thePage);
+		}
+
+		@Override
+		public long expireAfterRead(PageKey theKey, CachedPage thePage, long theCurrentTime, long theCurrentDuration) {
+			return expireAfterAccess(thePage);
+		}
+	}
+
+	private static final class PageKey {
+
+		private final String myUuid;
+		private final int myFrom;
+		private final int myTo;
+
+		private PageKey(String theUuid, int theFrom, int theTo) {
+			myUuid = theUuid;
+			myFrom = theFrom;
+			myTo = theTo;
+		}
+
+		@Override
+		public boolean equals(Object theO) {
+			if (this == theO) return true;
+			if (!(theO instanceof PageKey)) return false;
+			PageKey that = (PageKey) theO;
+			return myFrom == that.myFrom && myTo == that.myTo && myUuid.equals(that.myUuid);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(myUuid, myFrom, myTo);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package ca.uhn.fhir.jpa.starter.common.paging;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import javax.annotation.Nonnull;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Serves a single page of a stored search and reports the keyset tokens of the pages around it.
+ * <p>
+ * When created for a <code>_pageId</code> request the page position comes from the token and the
+ * range asked for by the server (which always starts at 0 for such requests) is ignored. When created
+ * for a <code>_getpagesoffset</code> request the range asked for is used as-is.
+ */
+class KeysetBundleProvider implements IBundleProvider {
+
+	private final IBundleProvider myDelegate;
+	private final int myBaseOrder;
+	private final Integer myTokenPageSize;
+	private int myFromOrder = -1;
+	private int myPageSize;
+	private int myReturnedCount;
+
+	KeysetBundleProvider(IBundleProvider theDelegate, int theBaseOrder, Integer theTokenPageSize) {
+		myDelegate = theDelegate;
+		myBaseOrder = theBaseOrder;
+		myTokenPageSize = theTokenPageSize;
+	}
+
+	IBundleProvider getDelegate() {
+		return myDelegate;
+	}
+
+	@Nonnull
+	@Override
+	public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+		myFromOrder = myBaseOrder + theFromIndex;
+		myPageSize = myTokenPageSize != null ? myTokenPageSize : theToIndex - theFromIndex;
+		List<IBaseResource> retVal = myDelegate.getResources(myFromOrder, myFromOrder + myPageSize);
+		myReturnedCount = retVal.size();
+		return retVal;
+	}
+
+	@Override
+	public String getCurrentPageId() {
+		if (myFromOrder < 0 || myPageSize < 1) {
+			return null;
+		}
+		return KeysetPagingProvider.encodePageId(myFromOrder, myPageSize);
+	}
+
+	@Override
+	public String getNextPageId() {
+		if (myFromOrder < 0 || myPageSize < 1 || myReturnedCount < myPageSize) {
+			return null;
+		}
+		int nextOrder = myFromOrder + myPageSize;
+		Integer size = myDelegate.size();
+		if (size != null && nextOrder >= size) {
+			return null;
+		}
+		return KeysetPagingProvider.encodePageId(nextOrder, myPageSize);
+	}
+
+	@Override
+	public String getPreviousPageId() {
+		if (myFromOrder <= 0 || myPageSize < 1) {
+			return null;
+		}
+		return KeysetPagingProvider.encodePageId(Math.max(0, myFromOrder - myPageSize), myPageSize);
+	}
+
+	@Override
+	public IPrimitiveType<Date> getPublished() {
+		return myDelegate.getPublished();
+	}
+
+	@Override
+	public String getUuid() {
+		return myDelegate.getUuid();
+	}
+
+	@Override
+	public Integer preferredPageSize() {
+		return myDelegate.preferredPageSize();
+	}
+
+	@Override
+	public Integer size() {
+		return myDelegate.size();
+	}
+}
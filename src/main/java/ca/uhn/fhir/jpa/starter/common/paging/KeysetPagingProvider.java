@@ -0,0 +1,62 @@
+package ca.uhn.fhir.jpa.starter.common.paging;
+
+import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Paging provider that hands out opaque <code>_pageId</code> tokens in the next/previous links
+ * instead of <code>_getpagesoffset</code>. The token holds the search order of the first row of the
+ * page and the page size, so the page is read with an index seek (see {@link KeysetSearchResultCacheSvc}).
+ * <p>
+ * The first page of a search is produced by the search itself and still links to its second page by
+ * offset; every page served through this provider links onwards by token.
+ */
+public class KeysetPagingProvider extends DatabaseBackedPagingProvider {
+
+	private static final String TOKEN_SEPARATOR = ".";
+
+	@Override
+	public synchronized IBundleProvider retrieveResultList(RequestDetails theRequestDetails, String theId) {
+		IBundleProvider retVal = super.retrieveResultList(theRequestDetails, theId);
+		if (retVal == null) {
+			return null;
+		}
+		return new KeysetBundleProvider(retVal, 0, null);
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList(RequestDetails theRequestDetails, String theSearchId, String thePageId) {
+		int[] position = decodePageId(thePageId);
+		IBundleProvider retVal = retrieveResultList(theRequestDetails, theSearchId);
+		if (retVal == null) {
+			return null;
+		}
+		int pageSize = Math.min(position[1], getMaximumPageSize());
+		return new KeysetBundleProvider(((KeysetBundleProvider) retVal).getDelegate(), position[0], pageSize);
+	}
+
+	static String encodePageId(int theFromOrder, int thePageSize) {
+		String token = theFromOrder + TOKEN_SEPARATOR + thePageSize;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static int[] decodePageId(String thePageId) {
+		try {
+			String token = new String(Base64.getUrlDecoder().decode(thePageId), StandardCharsets.UTF_8);
+			int separator = token.indexOf(TOKEN_SEPARATOR);
+			int fromOrder = Integer.parseInt(token.substring(0, separator));
+			int pageSize = Integer.parseInt(token.substring(separator + 1));
+			if (fromOrder < 0 || pageSize < 1) {
+				throw new IllegalArgumentException();
+			}
+			return new int[]{fromOrder, pageSize};
+		} catch (RuntimeException e) {
+			throw new InvalidRequestException("Invalid _pageId: " + thePageId);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package ca.uhn.fhir.jpa.starter.common.paging;
+
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.search.cache.ISearchResultCacheSvc;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Nullable;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads pages of search results with a range predicate on the search order instead of an OFFSET.
+ * <p>
+ * Results are stored with a dense SEARCH_ORDER starting at 0, so the page <code>[from, to)</code> is
+ * exactly the rows with <code>from &lt;= SEARCH_ORDER &lt; to</code>. That range is a seek on the
+ * (SEARCH_PID, SEARCH_ORDER) unique index, so deep pages cost the same as the first one. Storing
+ * results is left to the delegate.
+ */
+public class KeysetSearchResultCacheSvc implements ISearchResultCacheSvc {
+
+	private final ISearchResultCacheSvc myDelegate;
+
+	@PersistenceContext
+	private EntityManager myEntityManager;
+
+	public KeysetSearchResultCacheSvc(ISearchResultCacheSvc theDelegate) {
+		myDelegate = theDelegate;
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public void storeResults(Search theSearch, List<JpaPid> thePreviouslyStoredResourcePids, List<JpaPid> theNewResourcePids) {
+		myDelegate.storeResults(theSearch, thePreviouslyStoredResourcePids, theNewResourcePids);
+	}
+
+	@Nullable
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public List<JpaPid> fetchResultPids(Search theSearch, int theFrom, int theTo) {
+		if (theTo - theFrom < 1) {
+			return Collections.emptyList();
+		}
+
+		List<Long> pids = myEntityManager
+			.createQuery("SELECT r.myResourcePid FROM SearchResult r WHERE r.mySearchPid = :search AND r.myOrder >= :from AND r.myOrder < :to ORDER BY r.myOrder ASC", Long.class)
+			.setParameter("search", theSearch.getId())
+			.setParameter("from", theFrom)
+			.setParameter("to", theTo)
+			.getResultList();
+		return JpaPid.fromLongList(pids);
+	}
+
+	@Nullable
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public List<JpaPid> fetchAllResultPids(Search theSearch) {
+		return myDelegate.fetchAllResultPids(theSearch);
+	}
+}
@@ -0,0 +1,19 @@
+package ca.uhn.fhir.jpa.starter.common.paging;
+
+/**
+ * How the server pages through stored search results
+ */
+public enum PagingModeEnum {
+
+	/**
+	 * Pages are addressed by <code>_getpagesoffset</code>, and each page is read from the search
+	 * result table using an OFFSET query
+	 */
+	OFFSET,
+
+	/**
+	 * Pages after the first are addressed by an opaque <code>_pageId</code> token holding the position
+	 * of the page, and each page is read from the search result table using an index range seek
+	 */
+	KEYSET
+}
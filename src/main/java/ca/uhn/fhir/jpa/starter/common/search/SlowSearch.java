@@ -0,0 +1,146 @@
+package ca.uhn.fhir.jpa.starter.common.search;
+
+import ca.uhn.fhir.jpa.starter.common.jdbc.JdbcStatistics;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * A search kept by the {@link SlowSearchRecorder}
+ */
+public class SlowSearch {
+
+	private final Instant myTimestamp;
+	private final String myQuery;
+	private final String myTenant;
+	private final Integer myResultCount;
+	private final long myTotalMillis;
+	private final Long mySearchMillis;
+	private final double mySqlMillis;
+	private final long myStatementCount;
+	private final long myRowCount;
+	private final List<Statement> myStatements;
+
+	SlowSearch(Instant theTimestamp, String theQuery, String theTenant, Integer theResultCount, long theTotalMillis, Long theSearchMillis, JdbcStatistics theJdbcStatistics) {
+		myTimestamp = theTimestamp;
+		myQuery = theQuery;
+		myTenant = theTenant;
+		myResultCount = theResultCount;
+		myTotalMillis = theTotalMillis;
+		mySearchMillis = theSearchMillis;
+		mySqlMillis = toMillis(theJdbcStatistics.getNanos());
+		myStatementCount = theJdbcStatistics.getStatements();
+		myRowCount = theJdbcStatistics.getRows();
+		myStatements = toStatements(theJdbcStatistics.getCapturedStatements());
+	}
+
+	/**
+	 * @return when the request started
+	 */
+	public Instant getTimestamp() {
+		return myTimestamp;
+	}
+
+	/**
+	 * @return the search, normalized and with <code>?</code> in place of the values searched for: e.g.
+	 * <code>Patient?birthdate=?&amp;family=?&amp;_count=20</code>
+	 */
+	public String getQuery() {
+		return myQuery;
+	}
+
+	/**
+	 * @return the tenant of the request, or <code>null</code>
+	 */
+	public String getTenant() {
+		return myTenant;
+	}
+
+	/**
+	 * @return the total of the search if the server returned one, otherwise the number of entries of the
+	 * returned page, or <code>null</code> if the request failed
+	 */
+	public Integer getResultCount() {
+		return myResultCount;
+	}
+
+	/**
+	 * @return the time taken by the whole request
+	 */
+	public long getTotalMillis() {
+		return myTotalMillis;
+	}
+
+	/**
+	 * @return the time taken to find the first matches, or <code>null</code> if the results came from the
+	 * search cache
+	 */
+	public Long getSearchMillis() {
+		return mySearchMillis;
+	}
+
+	/**
+	 * @return the time spent executing statements
+	 */
+	public double getSqlMillis() {
+		return mySqlMillis;
+	}
+
+	public long getStatementCount() {
+		return myStatementCount;
+	}
+
+	public long getRowCount() {
+		return myRowCount;
+	}
+
+	/**
+	 * @return the distinct statements, in the order they were first executed
+	 */
+	public List<Statement> getStatements() {
+		return myStatements;
+	}
+
+	private static List<Statement> toStatements(Collection<JdbcStatistics.CapturedStatement> theStatements) {
+		return theStatements.stream().map(t -> new Statement(t.getSql(), t.getExecutions(), toMillis(t.getNanos()))).collect(Collectors.toUnmodifiableList());
+	}
+
+	private static double toMillis(long theNanos) {
+		// Rounded to the microsecond
+		return TimeUnit.NANOSECONDS.toMicros(theNanos) / 1000.0;
+	}
+
+	public static class Statement {
+
+		private final String mySql;
+		private final long myExecutions;
+		private final double myMillis;
+
+		Statement(String theSql, long theExecutions, double theMillis) {
+			mySql = theSql;
+			myExecutions = theExecutions;
+			myMillis = theMillis;
+		}
+
+		/**
+		 * @return the SQL, with <code>?</code> in place of the bound values
+		 */
+		public String getSql() {
+			return mySql;
+		}
+
+		public long getExecutions() {
+			return myExecutions;
+		}
+
+		/**
+		 * @return the time spent executing the statement, over all its executions
+		 */
+		public double getMillis() {
+			return myMillis;
+		}
+	}
+}
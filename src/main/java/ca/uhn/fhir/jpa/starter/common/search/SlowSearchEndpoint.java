@@ -0,0 +1,25 @@
+package ca.uhn.fhir.jpa.starter.common.search;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+import java.util.List;
+
+/**
+ * Exposes the searches kept by the {@link SlowSearchRecorder}, slowest first, at <code>/actuator/slowsearches</code>
+ * once the endpoint is included in <code>management.endpoints.web.exposure.include</code>
+ */
+@Endpoint(id = "slowsearches")
+public class SlowSearchEndpoint {
+
+	private final SlowSearchRecorder myRecorder;
+
+	public SlowSearchEndpoint(SlowSearchRecorder theRecorder) {
+		myRecorder = theRecorder;
+	}
+
+	@ReadOperation
+	public List<SlowSearch> slowSearches() {
+		return myRecorder.getSlowest();
+	}
+}
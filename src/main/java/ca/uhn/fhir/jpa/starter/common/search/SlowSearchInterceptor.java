@@ -0,0 +1,138 @@
+package ca.uhn.fhir.jpa.starter.common.search;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.model.search.SearchRuntimeDetails;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.common.jdbc.JdbcStatistics;
+import ca.uhn.fhir.jpa.starter.common.jdbc.JdbcStatisticsCollector;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.util.BundleUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.time.Instant;
+import java.util.Set;
+import java.util.StringJoiner;
+
+/**
+ * Hands the searches of the server to the {@link SlowSearchRecorder}, with their normalized query (without the
+ * values searched for), result count, timings and the SQL they issued. The SQL is captured by the {@link JdbcStatisticsCollector}, which has to be
+ * registered before this interceptor, and only covers the work done on the thread handling the request.
+ */
+@Interceptor
+public class SlowSearchInterceptor {
+
+	private static final String USER_DATA_KEY = SlowSearchInterceptor.class.getName();
+	/**
+	 * Parameters whose values shape the search rather than being searched for, and so are kept
+	 */
+	private static final Set<String> PARAMETERS_WITH_VALUES = Set.of(Constants.PARAM_COUNT, Constants.PARAM_OFFSET, Constants.PARAM_SORT, Constants.PARAM_INCLUDE, Constants.PARAM_REVINCLUDE, Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS, Constants.PARAM_SEARCH_TOTAL_MODE, Constants.PARAM_CONTAINED, Constants.PARAM_CONTAINED_TYPE);
+
+	private final FhirContext myFhirContext;
+	private final SlowSearchRecorder myRecorder;
+	private final int myMaxStatements;
+
+	/**
+	 * @param theMaxStatements the number of distinct statements to keep per search
+	 */
+	public SlowSearchInterceptor(FhirContext theFhirContext, SlowSearchRecorder theRecorder, int theMaxStatements) {
+		myFhirContext = theFhirContext;
+		myRecorder = theRecorder;
+		myMaxStatements = theMaxStatements;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public void incomingRequestPostProcessed(RequestDetails theRequestDetails) {
+		JdbcStatistics statistics = JdbcStatisticsCollector.getStatistics(theRequestDetails);
+		RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+		if (statistics != null && (operationType == RestOperationTypeEnum.SEARCH_TYPE || operationType == RestOperationTypeEnum.SEARCH_SYSTEM)) {
+			statistics.captureStatements(myMaxStatements);
+			theRequestDetails.getUserData().put(USER_DATA_KEY, new SearchDetails(statistics));
+		}
+	}
+
+	@Hook(Pointcut.STORAGE_PRESEARCH_REGISTERED)
+	public void presearchRegistered(RequestDetails theRequestDetails, SearchParameterMap theSearchParameterMap) {
+		SearchDetails details = getDetails(theRequestDetails);
+		// Only the search of the request, and not the ones it may cause, such as the lookup of chained references
+		if (details != null && details.myQuery == null) {
+			details.myQuery = StringUtils.defaultString(theRequestDetails.getResourceName()) + withoutValues(theSearchParameterMap.toNormalizedQueryString(myFhirContext));
+		}
+	}
+
+	@Hook(Pointcut.JPA_PERFTRACE_SEARCH_SELECT_COMPLETE)
+	public void searchSelectComplete(RequestDetails theRequestDetails, SearchRuntimeDetails theSearchRuntimeDetails) {
+		SearchDetails details = getDetails(theRequestDetails);
+		if (details != null && details.mySearchMillis == null) {
+			details.mySearchMillis = theSearchRuntimeDetails.getQueryStopwatch().getMillis();
+		}
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public void outgoingResponse(RequestDetails theRequestDetails, IBaseResource theResponseObject) {
+		SearchDetails details = getDetails(theRequestDetails);
+		if (details != null && theResponseObject instanceof IBaseBundle) {
+			Integer total = BundleUtil.getTotal(myFhirContext, (IBaseBundle) theResponseObject);
+			details.myResultCount = total != null ? total : BundleUtil.toListOfResources(myFhirContext, (IBaseBundle) theResponseObject).size();
+		}
+	}
+
+	/**
+	 * Called after every request, whether it succeeded or not
+	 */
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void processingCompleted(RequestDetails theRequestDetails) {
+		SearchDetails details = getDetails(theRequestDetails);
+		if (details == null || details.myQuery == null) {
+			return;
+		}
+		long totalMillis = theRequestDetails.getRequestStopwatch().getMillis();
+		if (myRecorder.isCandidate(totalMillis)) {
+			Instant timestamp = theRequestDetails.getRequestStopwatch().getStartedDate().toInstant();
+			myRecorder.record(new SlowSearch(timestamp, details.myQuery, theRequestDetails.getTenantId(), details.myResultCount, totalMillis, details.mySearchMillis, details.myStatistics));
+		}
+	}
+
+	/**
+	 * Replaces the values searched for with <code>?</code>, like the bound values of the SQL, so that the query
+	 * doesn't keep the (possibly personal) data of the request: e.g. <code>?family=Smith&amp;_count=20</code>
+	 * becomes <code>?family=?&amp;_count=20</code>
+	 */
+	static String withoutValues(String theNormalizedQuery) {
+		if (StringUtils.isBlank(theNormalizedQuery) || !theNormalizedQuery.startsWith("?")) {
+			return theNormalizedQuery;
+		}
+		StringJoiner retVal = new StringJoiner("&", "?", "");
+		for (String next : theNormalizedQuery.substring(1).split("&")) {
+			String name = StringUtils.substringBefore(next, "=");
+			if (!next.contains("=") || PARAMETERS_WITH_VALUES.contains(StringUtils.substringBefore(name, ":"))) {
+				retVal.add(next);
+			} else {
+				retVal.add(name + "=?");
+			}
+		}
+		return retVal.toString();
+	}
+
+	private static SearchDetails getDetails(RequestDetails theRequestDetails) {
+		return theRequestDetails != null ? (SearchDetails) theRequestDetails.getUserData().get(USER_DATA_KEY) : null;
+	}
+
+	private static class SearchDetails {
+
+		private final JdbcStatistics myStatistics;
+		private String myQuery;
+		private Long mySearchMillis;
+		private Integer myResultCount;
+
+		private SearchDetails(JdbcStatistics theStatistics) {
+			myStatistics = theStatistics;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package ca.uhn.fhir.jpa.starter.common.search;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.ParametersUtil;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * The <code>$slow-searches</code> system operation, which returns the searches kept by the
+ * {@link SlowSearchRecorder}, slowest first, as a <code>search</code> parameter each. Only the searches of the
+ * caller's tenant are returned, and like any operation it is subject to the rules of an
+ * <code>AuthorizationInterceptor</code> (<code>allow().operation().named("$slow-searches").onServer()</code>).
+ */
+public class SlowSearchProvider {
+
+	public static final String OPERATION_SLOW_SEARCHES = "$slow-searches";
+
+	private final FhirContext myFhirContext;
+	private final SlowSearchRecorder myRecorder;
+
+	public SlowSearchProvider(FhirContext theFhirContext, SlowSearchRecorder theRecorder) {
+		myFhirContext = theFhirContext;
+		myRecorder = theRecorder;
+	}
+
+	@Operation(name = OPERATION_SLOW_SEARCHES, idempotent = true)
+	public IBaseParameters slowSearches(RequestDetails theRequestDetails) {
+		FhirTerser terser = myFhirContext.newTerser();
+		IBaseParameters retVal = ParametersUtil.newInstance(myFhirContext);
+		for (SlowSearch next : myRecorder.getSlowest()) {
+			if (!Objects.equals(next.getTenant(), theRequestDetails.getTenantId())) {
+				continue;
+			}
+			IBase search = ParametersUtil.addParameterToParameters(myFhirContext, retVal, "search");
+			@SuppressWarnings("unchecked")
+			IPrimitiveType<Date> timestamp = (IPrimitiveType<Date>) myFhirContext.getElementDefinition("instant").newInstance();
+			timestamp.setValue(Date.from(next.getTimestamp()));
+			ParametersUtil.addPart(myFhirContext, search, "timestamp", timestamp);
+			ParametersUtil.addPartString(myFhirContext, search, "query", next.getQuery());
+			if (next.getTenant() != null) {
+				ParametersUtil.addPartString(myFhirContext, search, "tenant", next.getTenant());
+			}
+			if (next.getResultCount() != null) {
+				ParametersUtil.addPartInteger(myFhirContext, search, "result_count", next.getResultCount());
+			}
+			ParametersUtil.addPartDecimal(myFhirContext, search, "total_millis", (double) next.getTotalMillis());
+			if (next.getSearchMillis() != null) {
+				ParametersUtil.addPartDecimal(myFhirContext, search, "search_millis", (double) next.getSearchMillis());
+			}
+			ParametersUtil.addPartDecimal(myFhirContext, search, "sql_millis", next.getSqlMillis());
+			ParametersUtil.addPartInteger(myFhirContext, search, "statement_count", toInt(next.getStatementCount()));
+			ParametersUtil.addPartInteger(myFhirContext, search, "row_count", toInt(next.getRowCount()));
+			for (SlowSearch.Statement nextStatement : next.getStatements()) {
+				IBase statement = terser.addElement(search, "part");
+				terser.addElement(statement, "name", "statement");
+				ParametersUtil.addPartString(myFhirContext, statement, "sql", nextStatement.getSql());
+				ParametersUtil.addPartInteger(myFhirContext, statement, "executions", toInt(nextStatement.getExecutions()));
+				ParametersUtil.addPartDecimal(myFhirContext, statement, "millis", nextStatement.getMillis());
+			}
+		}
+		return retVal;
+	}
+
+	private static int toInt(long theValue) {
+		return (int) Math.min(theValue, Integer.MAX_VALUE);
+	}
+}
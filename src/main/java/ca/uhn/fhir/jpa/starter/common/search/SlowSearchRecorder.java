@@ -0,0 +1,67 @@
+package ca.uhn.fhir.jpa.starter.common.search;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the slowest searches of a sliding window in memory. The searches are kept sorted from the slowest to the
+ * fastest, so that once the recorder is full, a new search replaces the fastest one if it is slower, and is
+ * dropped otherwise. Searches older than the window are dropped as well.
+ */
+public class SlowSearchRecorder {
+
+	private final int myCapacity;
+	private final Duration myWindow;
+	private final long myMinMillis;
+	private final List<SlowSearch> mySlowest;
+
+	/**
+	 * @param theMinMillis searches faster than this are never recorded
+	 */
+	public SlowSearchRecorder(int theCapacity, Duration theWindow, long theMinMillis) {
+		myCapacity = theCapacity;
+		myWindow = theWindow;
+		myMinMillis = theMinMillis;
+		mySlowest = new ArrayList<>(theCapacity + 1);
+	}
+
+	/**
+	 * @return whether a search that took the given time would be recorded, so that callers can skip building it
+	 */
+	public synchronized boolean isCandidate(long theTotalMillis) {
+		if (theTotalMillis < myMinMillis) {
+			return false;
+		}
+		dropExpired();
+		return mySlowest.size() < myCapacity || theTotalMillis > mySlowest.get(mySlowest.size() - 1).getTotalMillis();
+	}
+
+	public synchronized void record(SlowSearch theSearch) {
+		if (!isCandidate(theSearch.getTotalMillis())) {
+			return;
+		}
+		int index = 0;
+		while (index < mySlowest.size() && mySlowest.get(index).getTotalMillis() >= theSearch.getTotalMillis()) {
+			index++;
+		}
+		mySlowest.add(index, theSearch);
+		if (mySlowest.size() > myCapacity) {
+			mySlowest.remove(mySlowest.size() - 1);
+		}
+	}
+
+	/**
+	 * @return the searches of the window, slowest first
+	 */
+	public synchronized List<SlowSearch> getSlowest() {
+		dropExpired();
+		return new ArrayList<>(mySlowest);
+	}
+
+	private void dropExpired() {
+		Instant cutoff = Instant.now().minus(myWindow);
+		mySlowest.removeIf(t -> t.getTimestamp().isBefore(cutoff));
+	}
+}
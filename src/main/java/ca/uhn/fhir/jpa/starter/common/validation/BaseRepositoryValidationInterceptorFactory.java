@@ -0,0 +1,184 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingRuleBuilder;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.FhirTerser;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds the {@link RepositoryValidatingInterceptor} from the resource StructureDefinitions stored in the
+ * repository, requiring resources of each type to declare and conform to one of the profiles for that type.
+ * <p>
+ * The stored StructureDefinitions are read {@value #PAGE_SIZE} at a time, and only their type and URL are kept.
+ * The rules are then kept up to date as StructureDefinitions are created, updated or deleted.
+ */
+public abstract class BaseRepositoryValidationInterceptorFactory implements IRepositoryValidationInterceptorFactory {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(BaseRepositoryValidationInterceptorFactory.class);
+	static final int PAGE_SIZE = 100;
+	private static final String STRUCTURE_DEFINITION = "StructureDefinition";
+
+	protected final FhirContext fhirContext;
+	protected final ObjectProvider<RepositoryValidatingRuleBuilder> repositoryValidatingRuleBuilderProvider;
+	private final IFhirResourceDao<?> structureDefinitionResourceProvider;
+	private final IInterceptorService interceptorService;
+
+	/**
+	 * Type and URL of the resource StructureDefinitions, keyed by their resource ID
+	 */
+	private final Map<String, ProfiledType> profiles = new ConcurrentHashMap<>();
+	private UpdatableRepositoryValidatingInterceptor storedStructureDefinitionInterceptor;
+
+	protected BaseRepositoryValidationInterceptorFactory(ObjectProvider<RepositoryValidatingRuleBuilder> repositoryValidatingRuleBuilderProvider, DaoRegistry daoRegistry, IInterceptorService interceptorService) {
+		this.repositoryValidatingRuleBuilderProvider = repositoryValidatingRuleBuilderProvider;
+		this.fhirContext = daoRegistry.getSystemDao().getContext();
+		this.structureDefinitionResourceProvider = daoRegistry.getResourceDao(STRUCTURE_DEFINITION);
+		this.interceptorService = interceptorService;
+	}
+
+	@Override
+	public synchronized RepositoryValidatingInterceptor buildUsingStoredStructureDefinitions() {
+		IBundleProvider results = structureDefinitionResourceProvider.search(new SearchParameterMap().add("kind", new TokenParam("resource")));
+		Integer size = results.size();
+		profiles.clear();
+		for (int from = 0; size == null || from < size; from += PAGE_SIZE) {
+			List<IBaseResource> page = results.getResources(from, from + PAGE_SIZE);
+			if (page.isEmpty()) {
+				break;
+			}
+			page.forEach(this::index);
+		}
+		ourLog.info("Loaded {} resource StructureDefinitions for repository validation", profiles.size());
+
+		if (storedStructureDefinitionInterceptor == null) {
+			storedStructureDefinitionInterceptor = new UpdatableRepositoryValidatingInterceptor(fhirContext, buildRules());
+			interceptorService.registerInterceptor(new StructureDefinitionListener());
+		} else {
+			storedStructureDefinitionInterceptor.setRules(buildRules());
+		}
+		return storedStructureDefinitionInterceptor;
+	}
+
+	/**
+	 * @return whether the profiles changed
+	 */
+	private boolean index(IBaseResource theStructureDefinition) {
+		String id = theStructureDefinition.getIdElement().getIdPart();
+		FhirTerser terser = fhirContext.newTerser();
+		String kind = terser.getSinglePrimitiveValueOrNull(theStructureDefinition, "kind");
+		String type = terser.getSinglePrimitiveValueOrNull(theStructureDefinition, "type");
+		String url = terser.getSinglePrimitiveValueOrNull(theStructureDefinition, "url");
+		if (!"resource".equals(kind) || StringUtils.isAnyBlank(type, url)) {
+			return profiles.remove(id) != null;
+		}
+		ProfiledType profiledType = new ProfiledType(type, url);
+		return !profiledType.equals(profiles.put(id, profiledType));
+	}
+
+	private List<IRepositoryValidatingRule> buildRules() {
+		Map<String, Set<String>> urlsByType = new TreeMap<>();
+		for (ProfiledType next : profiles.values()) {
+			urlsByType.computeIfAbsent(next.type, t -> new TreeSet<>()).add(next.url);
+		}
+
+		// Rule builders accumulate rules, so a new (prototype scoped) one is needed for every build
+		RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder = repositoryValidatingRuleBuilderProvider.getObject();
+		urlsByType.forEach((key, value) -> repositoryValidatingRuleBuilder.forResourcesOfType(key).requireAtLeastOneProfileOf(value.toArray(new String[0])).and().requireValidationToDeclaredProfiles());
+		return repositoryValidatingRuleBuilder.build();
+	}
+
+	private synchronized void structureDefinitionChanged(IBaseResource theStructureDefinition, boolean theDeleted) {
+		boolean changed = theDeleted ? profiles.remove(theStructureDefinition.getIdElement().getIdPart()) != null : index(theStructureDefinition);
+		if (changed) {
+			ourLog.info("StructureDefinition {} changed, updating the repository validation rules", theStructureDefinition.getIdElement().toUnqualifiedVersionless().getValue());
+			storedStructureDefinitionInterceptor.setRules(buildRules());
+		}
+	}
+
+	/**
+	 * Applies StructureDefinition changes once they are committed
+	 */
+	@Interceptor
+	public class StructureDefinitionListener {
+
+		@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+		public void created(IBaseResource theResource) {
+			onCommit(theResource, false);
+		}
+
+		@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+		public void updated(IBaseResource theOldResource, IBaseResource theNewResource) {
+			onCommit(theNewResource, false);
+		}
+
+		@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+		public void deleted(IBaseResource theResource) {
+			onCommit(theResource, true);
+		}
+
+		private void onCommit(IBaseResource theResource, boolean theDeleted) {
+			if (!STRUCTURE_DEFINITION.equals(fhirContext.getResourceType(theResource))) {
+				return;
+			}
+			if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+				structureDefinitionChanged(theResource, theDeleted);
+				return;
+			}
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					structureDefinitionChanged(theResource, theDeleted);
+				}
+			});
+		}
+	}
+
+	private static class ProfiledType {
+
+		private final String type;
+		private final String url;
+
+		ProfiledType(String type, String url) {
+			this.type = type;
+			this.url = url;
+		}
+
+		@Override
+		public boolean equals(Object theOther) {
+			if (!(theOther instanceof ProfiledType)) {
+				return false;
+			}
+			ProfiledType other = (ProfiledType) theOther;
+			return type.equals(other.type) && url.equals(other.url);
+		}
+
+		@Override
+		public int hashCode() {
+			return type.hashCode() * 31 + url.hashCode();
+		}
+	}
+}
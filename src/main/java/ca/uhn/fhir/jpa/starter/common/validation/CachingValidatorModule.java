@@ -0,0 +1,70 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.validation.IValidationContext;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Validates resources with a delegate module, unless the outcome for the same resource content and profiles
+ * is in the {@link ValidationResultCache}.
+ * <p>
+ * Resources are hashed as they were submitted, along with their encoding. Hashing the parsed resource instead
+ * would also hit for a body the lenient parser only partially understood (e.g. one with an unknown element)
+ * after the clean resource had been validated.
+ */
+public class CachingValidatorModule implements IValidatorModule {
+
+	private final IValidatorModule myDelegate;
+	private final ValidationResultCache myCache;
+
+	public CachingValidatorModule(IValidatorModule theDelegate, ValidationResultCache theCache) {
+		myDelegate = theDelegate;
+		myCache = theCache;
+	}
+
+	@Override
+	public void validateResource(IValidationContext<IBaseResource> theContext) {
+		String key;
+		try {
+			key = cacheKey(theContext);
+		} catch (DataFormatException | InvalidRequestException e) {
+			// Unparseable or of unknown encoding, which the delegate reports
+			myDelegate.validateResource(theContext);
+			return;
+		}
+
+		List<SingleValidationMessage> cached = myCache.get(key);
+		if (cached != null) {
+			cached.forEach(theContext::addValidationMessage);
+			return;
+		}
+
+		int existingMessages = theContext.getMessages().size();
+		myDelegate.validateResource(theContext);
+		List<SingleValidationMessage> messages = theContext.getMessages();
+		myCache.put(key, new ArrayList<>(messages.subList(existingMessages, messages.size())));
+	}
+
+	private static String cacheKey(IValidationContext<IBaseResource> theContext) {
+		Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putString(theContext.getFhirContext().getVersion().getVersion().name(), StandardCharsets.UTF_8);
+		for (String next : new TreeSet<>(theContext.getOptions().getProfiles())) {
+			hasher.putByte((byte) 0).putString(next, StandardCharsets.UTF_8);
+		}
+		EncodingEnum encoding = theContext.getResourceAsStringEncoding();
+		hasher.putByte((byte) 0).putString(encoding != null ? encoding.name() : "", StandardCharsets.UTF_8);
+		hasher.putByte((byte) 0).putString(theContext.getResourceAsString(), StandardCharsets.UTF_8);
+		return hasher.hash().toString();
+	}
+}
@@ -0,0 +1,130 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Validates a sample of the responses of the server without delaying them.
+ * <p>
+ * A response is a candidate when the resource type of the request (or of the response, for requests
+ * without one) is one of the configured resource types, or there are none configured. Candidates are
+ * sampled at the configured rate. The response is encoded on the request thread and validated on a small
+ * pool with a bounded queue; when the queue is full the sample is dropped. Outcomes are counted in the
+ * <code>hapi.fhir.response_validation</code> metrics, and responses with errors are logged.
+ */
+@Interceptor
+public class SampledResponseValidatingInterceptor implements AutoCloseable {
+
+	public static final String METRIC_PREFIX = "hapi.fhir.response_validation";
+	private static final Logger ourLog = LoggerFactory.getLogger(SampledResponseValidatingInterceptor.class);
+
+	private final FhirContext myFhirContext;
+	private final FhirValidator myValidator;
+	private final double mySampleRate;
+	private final Set<String> myResourceTypes;
+	private final ThreadPoolExecutor myExecutor;
+	private final MeterRegistry myMeterRegistry;
+	private final Counter myDroppedCounter;
+	private final Counter myErrorCounter;
+
+	public SampledResponseValidatingInterceptor(FhirContext theFhirContext, IValidatorModule theValidatorModule, double theSampleRate, List<String> theResourceTypes, int theThreads, int theQueueSize, MeterRegistry theMeterRegistry) {
+		myFhirContext = theFhirContext;
+		myValidator = theFhirContext.newValidator();
+		myValidator.registerValidatorModule(theValidatorModule);
+		mySampleRate = theSampleRate;
+		myResourceTypes = theResourceTypes == null ? Set.of() : Set.copyOf(theResourceTypes);
+		myExecutor = new ThreadPoolExecutor(theThreads, theThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, theQueueSize)),
+			new ThreadFactoryBuilder().setNameFormat("hapi-fhir-response-validation-%d").setDaemon(true).build());
+
+		myMeterRegistry = theMeterRegistry;
+		myDroppedCounter = Counter.builder(METRIC_PREFIX + ".dropped")
+			.description("Sampled responses not validated because the validation queue was full")
+			.register(theMeterRegistry);
+		myErrorCounter = Counter.builder(METRIC_PREFIX + ".failures")
+			.description("Sampled responses the validator failed on")
+			.register(theMeterRegistry);
+		theMeterRegistry.gauge(METRIC_PREFIX + ".backlog", myExecutor, t -> t.getQueue().size());
+		ourLog.info("Validating {}% of responses{} on {} threads", mySampleRate * 100, myResourceTypes.isEmpty() ? "" : " to " + myResourceTypes, theThreads);
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public boolean outgoingResponse(RequestDetails theRequestDetails, IBaseResource theResponseObject) {
+		if (theResponseObject == null) {
+			return true;
+		}
+		String resourceType = StringUtils.defaultIfBlank(theRequestDetails.getResourceName(), myFhirContext.getResourceType(theResponseObject));
+		if (!myResourceTypes.isEmpty() && !myResourceTypes.contains(resourceType)) {
+			return true;
+		}
+		if (ThreadLocalRandom.current().nextDouble() >= mySampleRate) {
+			return true;
+		}
+
+		// Encoded now, as the response may be changed once this hook has returned
+		String encoded = myFhirContext.newJsonParser().encodeResourceToString(theResponseObject);
+		String request = theRequestDetails.getRequestType() + " " + theRequestDetails.getCompleteUrl();
+		try {
+			myExecutor.execute(() -> validate(encoded, resourceType, request));
+		} catch (RejectedExecutionException e) {
+			myDroppedCounter.increment();
+		}
+		return true;
+	}
+
+	private void validate(String theEncodedResponse, String theResourceType, String theRequest) {
+		Timer.Sample sample = Timer.start(myMeterRegistry);
+		ValidationResult result;
+		try {
+			result = myValidator.validateWithResult(theEncodedResponse);
+		} catch (RuntimeException e) {
+			myErrorCounter.increment();
+			ourLog.warn("Failed to validate the response to {}", theRequest, e);
+			return;
+		}
+
+		List<SingleValidationMessage> errors = result.getMessages().stream()
+			.filter(t -> t.getSeverity().ordinal() >= ResultSeverityEnum.ERROR.ordinal())
+			.collect(Collectors.toList());
+		String outcome = errors.isEmpty() ? "valid" : "invalid";
+		sample.stop(Timer.builder(METRIC_PREFIX)
+			.description("Validation of sampled responses")
+			.tag("resource_type", theResourceType)
+			.tag("outcome", outcome)
+			.register(myMeterRegistry));
+		if (!errors.isEmpty()) {
+			SingleValidationMessage first = errors.get(0);
+			ourLog.warn("Response to {} has {} validation errors, first at {}: {}", theRequest, errors.size(), Optional.ofNullable(first.getLocationString()).orElse("-"), first.getMessage());
+		}
+	}
+
+	@Override
+	public void close() {
+		myExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,218 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.VersionUtil;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.hl7.fhir.common.hapi.validation.support.BaseValidationSupportWrapper;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the StructureDefinition snapshots generated by the wrapped validation support in a directory, so
+ * they are generated once rather than on every start.
+ * <p>
+ * Snapshots are stored by the SHA-256 hash of the canonical URL, version and content of the differential
+ * they were generated from and of every profile in its <code>baseDefinition</code> chain, along with the FHIR
+ * and HAPI FHIR versions, as <code>ab/&lt;hash&gt;.snapshot</code>. A changed profile or base profile or an
+ * upgrade therefore never sees an outdated snapshot. Files hold a short header followed by the gzipped compact
+ * JSON encoding of the snapshot, and are written atomically, so several servers can share the directory.
+ * Unreadable files are ignored and replaced.
+ * <p>
+ * Once the directory holds more than the given maximum number of snapshots, the least recently used ones are
+ * deleted until it holds 90% of it.
+ */
+public class SnapshotCachingValidationSupport extends BaseValidationSupportWrapper {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(SnapshotCachingValidationSupport.class);
+	private static final byte[] HEADER = "HAPI-FHIR-SNAPSHOT-1\n".getBytes(StandardCharsets.US_ASCII);
+	private static final String SUFFIX = ".snapshot";
+
+	private final Path myDirectory;
+	private final Path myTempDirectory;
+	private final int myMaxEntries;
+	private final AtomicInteger myEntryCount = new AtomicInteger();
+
+	public SnapshotCachingValidationSupport(FhirContext theFhirContext, IValidationSupport theWrap, Path theDirectory, int theMaxEntries) {
+		super(theFhirContext, theWrap);
+		myDirectory = theDirectory;
+		myTempDirectory = theDirectory.resolve("tmp");
+		myMaxEntries = Math.max(1, theMaxEntries);
+		try {
+			Files.createDirectories(myTempDirectory);
+			myEntryCount.set(listSnapshotFiles().size());
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not initialize the snapshot cache at " + theDirectory.toAbsolutePath(), e);
+		}
+	}
+
+	@Override
+	public IBaseResource generateSnapshot(ValidationSupportContext theValidationSupportContext, IBaseResource theInput, String theUrl, String theWebUrl, String theProfileName) {
+		Path file = snapshotFile(theValidationSupportContext, theInput);
+		IBaseResource cached = read(file);
+		if (cached != null) {
+			ourLog.debug("Using the cached snapshot {} of {}", file.getFileName(), theInput.getIdElement().getValue());
+			cached.setId(theInput.getIdElement());
+			return cached;
+		}
+
+		IBaseResource retVal = super.generateSnapshot(theValidationSupportContext, theInput, theUrl, theWebUrl, theProfileName);
+		if (retVal != null) {
+			write(file, retVal);
+		}
+		return retVal;
+	}
+
+	private IBaseResource read(Path theFile) {
+		if (!Files.isRegularFile(theFile)) {
+			return null;
+		}
+		try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(theFile))) {
+			if (!Arrays.equals(HEADER, inputStream.readNBytes(HEADER.length))) {
+				ourLog.warn("Ignoring the snapshot cache file {} with an unknown format", theFile);
+				return null;
+			}
+			IBaseResource retVal;
+			try (Reader reader = new InputStreamReader(new GZIPInputStream(inputStream), StandardCharsets.UTF_8)) {
+				retVal = getFhirContext().newJsonParser().parseResource(reader);
+			}
+			// Marks the file as recently used, so pruning keeps it
+			Files.setLastModifiedTime(theFile, FileTime.fromMillis(System.currentTimeMillis()));
+			return retVal;
+		} catch (IOException | DataFormatException e) {
+			ourLog.warn("Ignoring the unreadable snapshot cache file {}: {}", theFile, e.toString());
+			return null;
+		}
+	}
+
+	private void write(Path theFile, IBaseResource theSnapshot) {
+		try {
+			Path tempFile = Files.createTempFile(myTempDirectory, theFile.getFileName().toString(), SUFFIX);
+			try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+				outputStream.write(HEADER);
+				try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(outputStream), StandardCharsets.UTF_8)) {
+					getFhirContext().newJsonParser().encodeResourceToWriter(theSnapshot, writer);
+				}
+			}
+			Files.createDirectories(theFile.getParent());
+			boolean added = !Files.exists(theFile);
+			Files.move(tempFile, theFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			if (added && myEntryCount.incrementAndGet() > myMaxEntries) {
+				prune();
+			}
+		} catch (IOException e) {
+			// Generated again next time
+			ourLog.warn("Failed to write the snapshot cache file {}: {}", theFile, e.toString());
+		}
+	}
+
+	/**
+	 * Deletes the least recently used snapshots until the directory holds 90% of the maximum number of them
+	 */
+	private synchronized void prune() throws IOException {
+		List<Path> files = listSnapshotFiles();
+		if (files.size() <= myMaxEntries) {
+			myEntryCount.set(files.size());
+			return;
+		}
+		files.sort(Comparator.comparing(SnapshotCachingValidationSupport::lastModifiedOrEpoch));
+		int remaining = files.size();
+		int target = Math.max(1, myMaxEntries * 9 / 10);
+		for (Path next : files) {
+			if (remaining <= target) {
+				break;
+			}
+			// Another server sharing the directory may have pruned it already
+			Files.deleteIfExists(next);
+			remaining--;
+		}
+		myEntryCount.set(remaining);
+		ourLog.info("Pruned the snapshot cache at {} from {} to {} snapshots", myDirectory, files.size(), remaining);
+	}
+
+	private List<Path> listSnapshotFiles() throws IOException {
+		try (Stream<Path> files = Files.walk(myDirectory)) {
+			return files
+				.filter(t -> t.getFileName().toString().endsWith(SUFFIX) && !t.getParent().equals(myTempDirectory))
+				.collect(Collectors.toList());
+		}
+	}
+
+	private static FileTime lastModifiedOrEpoch(Path theFile) {
+		try {
+			return Files.getLastModifiedTime(theFile);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	private Path snapshotFile(ValidationSupportContext theValidationSupportContext, IBaseResource theInput) {
+		FhirTerser terser = getFhirContext().newTerser();
+		// The ID and metadata change whenever a profile is stored again, its content doesn't
+		IParser parser = getFhirContext().newJsonParser().setOmitResourceId(true).setDontEncodeElements(Set.of("*.meta"));
+		Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putString(getFhirContext().getVersion().getVersion().name(), StandardCharsets.UTF_8).putByte((byte) 0);
+		hasher.putString(VersionUtil.getVersion(), StandardCharsets.UTF_8).putByte((byte) 0);
+		hasher.putString(String.valueOf(terser.getSinglePrimitiveValueOrNull(theInput, "url")), StandardCharsets.UTF_8).putByte((byte) 0);
+		hasher.putString(String.valueOf(terser.getSinglePrimitiveValueOrNull(theInput, "version")), StandardCharsets.UTF_8).putByte((byte) 0);
+		hasher.putString(parser.encodeResourceToString(theInput), StandardCharsets.UTF_8);
+		putBaseDefinitions(hasher, theValidationSupportContext, theInput, terser);
+		String hash = hasher.hash().toString();
+		return myDirectory.resolve(hash.substring(0, 2)).resolve(hash + SUFFIX);
+	}
+
+	/**
+	 * Hashes the profiles the snapshot is derived from. Their own snapshots are left out, as they are derived from
+	 * their differentials and bases as well, and may or may not have been generated yet.
+	 */
+	private void putBaseDefinitions(Hasher theHasher, ValidationSupportContext theValidationSupportContext, IBaseResource theInput, FhirTerser theTerser) {
+		if (getFhirContext().getResourceDefinition(theInput).getChildByName("baseDefinition") == null) {
+			// DSTU2 profiles name their base differently, and aren't hashed with it
+			return;
+		}
+		IParser parser = getFhirContext().newJsonParser().setOmitResourceId(true).setDontEncodeElements(Set.of("*.meta", "StructureDefinition.snapshot"));
+		Set<String> visited = new HashSet<>();
+		String baseUrl = theTerser.getSinglePrimitiveValueOrNull(theInput, "baseDefinition");
+		while (baseUrl != null && visited.add(baseUrl)) {
+			theHasher.putByte((byte) 0).putString(baseUrl, StandardCharsets.UTF_8);
+			IBaseResource base = theValidationSupportContext.getRootValidationSupport().fetchStructureDefinition(baseUrl);
+			if (base == null) {
+				break;
+			}
+			theHasher.putByte((byte) 0).putString(parser.encodeResourceToString(base), StandardCharsets.UTF_8);
+			baseUrl = theTerser.getSinglePrimitiveValueOrNull(base, "baseDefinition");
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.util.ExtensionUtil;
+import ca.uhn.fhir.util.HapiExtensions;
+import com.google.common.collect.ImmutableListMultimap;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link RepositoryValidatingInterceptor} whose rules can be replaced while it is registered.
+ * <p>
+ * {@link RepositoryValidatingInterceptor#setRules(List)} changes the rules in place, which isn't safe while
+ * requests are being validated. This interceptor instead replaces an immutable copy of the rules, and applies
+ * them from its own hooks; the rules of the superclass are left empty.
+ */
+@Interceptor
+public class UpdatableRepositoryValidatingInterceptor extends RepositoryValidatingInterceptor {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(UpdatableRepositoryValidatingInterceptor.class);
+
+	private final FhirContext myFhirContext;
+	private volatile ImmutableListMultimap<String, IRepositoryValidatingRule> myRules = ImmutableListMultimap.of();
+
+	public UpdatableRepositoryValidatingInterceptor(FhirContext theFhirContext, List<IRepositoryValidatingRule> theRules) {
+		myFhirContext = theFhirContext;
+		setFhirContext(theFhirContext);
+		setRules(theRules);
+	}
+
+	@Override
+	public void setRules(List<IRepositoryValidatingRule> theRules) {
+		myRules = theRules.stream().collect(ImmutableListMultimap.toImmutableListMultimap(IRepositoryValidatingRule::getResourceType, t -> t));
+		ourLog.info("RepositoryValidatingInterceptor has rules:\n{}", describeRules());
+	}
+
+	@Nonnull
+	@Override
+	public String describeRules() {
+		return " * " + myRules.values().stream().distinct().map(Object::toString).sorted().collect(Collectors.joining("\n * "));
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
+	public void validateCreate(RequestDetails theRequestDetails, IBaseResource theResource) {
+		validate(theRequestDetails, theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+	public void validateUpdate(RequestDetails theRequestDetails, IBaseResource theOldResource, IBaseResource theNewResource) {
+		validate(theRequestDetails, theNewResource);
+	}
+
+	private void validate(RequestDetails theRequestDetails, IBaseResource theResource) {
+		if (ExtensionUtil.hasExtension(theResource, HapiExtensions.EXT_RESOURCE_PLACEHOLDER)) {
+			return;
+		}
+		for (IRepositoryValidatingRule next : myRules.get(myFhirContext.getResourceType(theResource))) {
+			IRepositoryValidatingRule.RuleEvaluation outcome = next.evaluate(theRequestDetails, theResource);
+			if (!outcome.isPasses()) {
+				handleFailure(outcome);
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.common.cache.CacheInvalidation;
+import ca.uhn.fhir.jpa.starter.common.cache.CacheInvalidationBroadcaster;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers the validation messages of recently validated resources, keyed by a hash of the resource and
+ * the profiles it was validated against, so {@link CachingValidatorModule} doesn't validate resources it has
+ * already seen again.
+ * <p>
+ * The cache holds up to a fixed number of outcomes, evicting those least recently and frequently used. As the
+ * outcomes depend on the profiles and terminology stored in the repository, the whole cache is invalidated
+ * whenever a conformance or terminology resource is created, updated or deleted, on this server and, through
+ * the {@link CacheInvalidationBroadcaster}, on the others sharing the database. Outcomes also expire a while
+ * after they were cached, like the validation support caches, as changes not made through the storage hooks
+ * (such as deferred terminology storage) don't invalidate it.
+ */
+@Interceptor
+public class ValidationResultCache {
+
+	public static final String CACHE_NAME = "hapi.fhir.validation_result_cache";
+	private static final Logger ourLog = LoggerFactory.getLogger(ValidationResultCache.class);
+	private static final Set<String> INVALIDATING_RESOURCE_TYPES = Set.of("StructureDefinition", "ValueSet", "CodeSystem", "ConceptMap", "NamingSystem", "Questionnaire", "ImplementationGuide");
+
+	private final FhirContext myFhirContext;
+	private final Cache<String, List<SingleValidationMessage>> myCache;
+
+	private CacheInvalidationBroadcaster myBroadcaster;
+
+	public ValidationResultCache(FhirContext theFhirContext, long theMaximumEntries, Duration theExpireAfterWrite) {
+		myFhirContext = theFhirContext;
+		myCache = Caffeine.newBuilder()
+			.maximumSize(theMaximumEntries)
+			.expireAfterWrite(theExpireAfterWrite)
+			.recordStats()
+			.build();
+	}
+
+	/**
+	 * Tells the other servers when the cache is invalidated, and invalidates it when they do
+	 */
+	public void setBroadcaster(CacheInvalidationBroadcaster theBroadcaster) {
+		myBroadcaster = theBroadcaster;
+		theBroadcaster.addListener(theInvalidation -> {
+			if (theInvalidation.isRegion() && CACHE_NAME.equals(theInvalidation.getRegion())) {
+				invalidate();
+			}
+		});
+	}
+
+	/**
+	 * Publishes hit, miss, size and eviction statistics for the cache
+	 */
+	public void bindMetrics(MeterRegistry theMeterRegistry) {
+		CaffeineCacheMetrics.monitor(theMeterRegistry, myCache, CACHE_NAME);
+	}
+
+	@Nullable
+	public List<SingleValidationMessage> get(String theKey) {
+		return myCache.getIfPresent(theKey);
+	}
+
+	public void put(String theKey, List<SingleValidationMessage> theMessages) {
+		myCache.put(theKey, List.copyOf(theMessages));
+	}
+
+	public void invalidate() {
+		myCache.invalidateAll();
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		invalidateOnCommit(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		invalidateOnCommit(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		invalidateOnCommit(theResource);
+	}
+
+	private void invalidateOnCommit(IBaseResource theResource) {
+		String resourceType = myFhirContext.getResourceType(theResource);
+		if (!INVALIDATING_RESOURCE_TYPES.contains(resourceType)) {
+			return;
+		}
+		ourLog.debug("{} changed, invalidating the validation result cache", resourceType);
+		// Invalidated now, so nothing validated against the old content is cached while the change commits,
+		// and again afterwards, as validations running meanwhile may still have seen the old content
+		invalidate();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					invalidate();
+					if (theStatus == STATUS_COMMITTED) {
+						broadcast();
+					}
+				}
+			});
+		} else {
+			broadcast();
+		}
+	}
+
+	private void broadcast() {
+		if (myBroadcaster != null) {
+			myBroadcaster.broadcast(CacheInvalidation.forRegion(CACHE_NAME));
+		}
+	}
+}
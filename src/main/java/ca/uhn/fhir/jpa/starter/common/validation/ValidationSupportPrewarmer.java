@@ -0,0 +1,160 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.ValidationOptions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Populates the validation support caches and the validator once the application has started, so the first
+ * validations after a deployment don't pay for loading them.
+ * <p>
+ * Every resource profile stored in the repository (e.g. by installed implementation guides) is fetched and
+ * used to validate an empty resource, which generates its snapshot. The configured ValueSets and those bound
+ * in the profiles are fetched and expanded. The work is spread over a thread pool, and finishes before the
+ * application reports that it is ready (and after implementation guides installed on startup).
+ */
+public class ValidationSupportPrewarmer {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ValidationSupportPrewarmer.class);
+	/**
+	 * The size of the ValueSet expansion cache of {@link org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport},
+	 * beyond which prewarming would evict its own expansions
+	 */
+	static final int MAX_VALUE_SETS = 100;
+
+	private final FhirContext myFhirContext;
+	private final IValidationSupport myValidationSupport;
+	private final FhirValidator myValidator;
+	private final List<String> myValueSets;
+	private final int myParallelism;
+	private volatile int myProfileCount;
+	private volatile int myValueSetCount;
+
+	public ValidationSupportPrewarmer(FhirContext theFhirContext, IValidationSupport theValidationSupport, IValidatorModule theValidatorModule, List<String> theValueSets, int theParallelism) {
+		myFhirContext = theFhirContext;
+		myValidationSupport = theValidationSupport;
+		myValidator = theFhirContext.newValidator();
+		myValidator.registerValidatorModule(theValidatorModule);
+		myValueSets = theValueSets == null ? List.of() : theValueSets;
+		myParallelism = Math.max(1, theParallelism);
+	}
+
+	@Order(Ordered.LOWEST_PRECEDENCE)
+	@EventListener(ApplicationStartedEvent.class)
+	public void prewarm() {
+		long start = System.currentTimeMillis();
+		// Anything looked up while the context started may predate the implementation guides installed since
+		myValidationSupport.invalidateCaches();
+		Map<String, String> profiles = new LinkedHashMap<>();
+		Set<String> valueSets = new LinkedHashSet<>(myValueSets);
+		FhirTerser terser = myFhirContext.newTerser();
+		List<IBaseResource> structureDefinitions = myValidationSupport.fetchAllNonBaseStructureDefinitions();
+		for (IBaseResource next : structureDefinitions == null ? List.<IBaseResource>of() : structureDefinitions) {
+			String url = terser.getSinglePrimitiveValueOrNull(next, "url");
+			String type = terser.getSinglePrimitiveValueOrNull(next, "type");
+			if ("resource".equals(terser.getSinglePrimitiveValueOrNull(next, "kind")) && StringUtils.isNoneBlank(url, type) && myFhirContext.getResourceTypes().contains(type)) {
+				profiles.put(url, type);
+			}
+			for (IBase binding : terser.getValues(next, "differential.element.binding.valueSet")) {
+				String valueSet = canonical(binding);
+				if (StringUtils.isNotBlank(valueSet)) {
+					valueSets.add(StringUtils.substringBefore(valueSet, "|"));
+				}
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(myParallelism, new ThreadFactoryBuilder().setNameFormat("hapi-fhir-validation-prewarm-%d").setDaemon(true).build());
+		AtomicInteger failures = new AtomicInteger();
+		try {
+			List<CompletableFuture<Void>> tasks = new ArrayList<>();
+			// The validator's own context is loaded on first use, so that happens once before anything else
+			prewarmValidator(null, null, failures);
+			profiles.forEach((url, type) -> tasks.add(CompletableFuture.runAsync(() -> prewarmValidator(url, type, failures), executor)));
+			valueSets.stream().limit(MAX_VALUE_SETS).forEach(url -> tasks.add(CompletableFuture.runAsync(() -> prewarmValueSet(url, failures), executor)));
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+		} finally {
+			executor.shutdownNow();
+		}
+		myProfileCount = profiles.size();
+		myValueSetCount = Math.min(valueSets.size(), MAX_VALUE_SETS);
+		ourLog.info("Prewarmed validation for {} profiles and {} ValueSets in {}ms ({} failed)", myProfileCount, myValueSetCount, System.currentTimeMillis() - start, failures.get());
+	}
+
+	/**
+	 * @return the number of profiles loaded by the last prewarm
+	 */
+	public int getProfileCount() {
+		return myProfileCount;
+	}
+
+	/**
+	 * @return the number of ValueSets expanded by the last prewarm
+	 */
+	public int getValueSetCount() {
+		return myValueSetCount;
+	}
+
+	private void prewarmValidator(String theProfile, String theResourceType, AtomicInteger theFailures) {
+		try {
+			IBaseResource resource = myFhirContext.getResourceDefinition(StringUtils.defaultString(theResourceType, "Patient")).newInstance();
+			ValidationOptions options = new ValidationOptions().addProfileIfNotBlank(theProfile);
+			// The outcome doesn't matter, only what is loaded and cached on the way
+			myValidator.validateWithResult(resource, options);
+		} catch (RuntimeException e) {
+			theFailures.incrementAndGet();
+			ourLog.debug("Failed to prewarm validation against {}", theProfile, e);
+		}
+	}
+
+	private void prewarmValueSet(String theUrl, AtomicInteger theFailures) {
+		try {
+			IBaseResource valueSet = myValidationSupport.fetchValueSet(theUrl);
+			if (valueSet != null) {
+				myValidationSupport.expandValueSet(new ValidationSupportContext(myValidationSupport), null, valueSet);
+			}
+		} catch (RuntimeException e) {
+			theFailures.incrementAndGet();
+			ourLog.debug("Failed to prewarm ValueSet {}", theUrl, e);
+		}
+	}
+
+	/**
+	 * @return the canonical URL of a binding, which is a reference or URI in DSTU3
+	 */
+	private static String canonical(IBase theValueSet) {
+		if (theValueSet instanceof IPrimitiveType) {
+			return ((IPrimitiveType<?>) theValueSet).getValueAsString();
+		}
+		if (theValueSet instanceof IBaseReference) {
+			return ((IBaseReference) theValueSet).getReferenceElement().getValue();
+		}
+		return null;
+	}
+}
@@ -25,6 +25,7 @@ import org.springframework.core.env.PropertySource;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 
@@ -48,6 +49,14 @@ public class EnvironmentHelper {
 		//TODO The bean factory should be added as parameter but that requires that it can be injected from the entityManagerFactory bean from xBaseConfig
 		//properties.putIfAbsent(AvailableSettings.BEAN_CONTAINER, new SpringBeanContainer(beanFactory));
 
+		//Ingestion tuning, ahead of the defaults below
+		if (isIngestionTuningEnabled(environment)) {
+			properties.putIfAbsent(AvailableSettings.ORDER_INSERTS, true);
+			properties.putIfAbsent(AvailableSettings.ORDER_UPDATES, true);
+			properties.putIfAbsent(AvailableSettings.BATCH_VERSIONED_DATA, true);
+			properties.putIfAbsent(AvailableSettings.STATEMENT_BATCH_SIZE, getIngestionBatchSize(environment, properties.getProperty(AvailableSettings.DIALECT)));
+		}
+
 		//hapi-fhir-jpaserver-base "sensible defaults"
 		Map<String, Object> hapiJpaPropertyMap = new HapiFhirLocalContainerEntityManagerFactoryBean(myConfigurableListableBeanFactory).getJpaPropertyMap();
 		hapiJpaPropertyMap.forEach(properties::putIfAbsent);
@@ -105,6 +114,30 @@ public class EnvironmentHelper {
 		return properties;
 	}
 
+	public static boolean isIngestionTuningEnabled(ConfigurableEnvironment environment) {
+		return environment.getProperty("hapi.fhir.ingestion_tuning.enabled", Boolean.class, false);
+	}
+
+	/**
+	 * @return the configured JDBC batch size for ingestion, or the one suiting the database: PostgreSQL gains
+	 * the most from large batches (more so with <code>reWriteBatchedInserts</code>), SQL Server batches are
+	 * kept below its lock escalation threshold for the index tables, and H2 runs in-process so round trips
+	 * are cheap anyway
+	 */
+	public static int getIngestionBatchSize(ConfigurableEnvironment environment, String dialect) {
+		Integer configured = environment.getProperty("hapi.fhir.ingestion_tuning.jdbc_batch_size", Integer.class);
+		if (configured != null) {
+			return configured;
+		}
+		String database = (requireNonNullElse(dialect, "") + " " + requireNonNullElse(environment.getProperty("spring.datasource.url"), "")).toLowerCase(Locale.ROOT);
+		if (database.contains("postgres")) {
+			return 100;
+		} else if (database.contains("sqlserver") || database.contains("h2")) {
+			return 50;
+		}
+		return 30;
+	}
+
 	public static String getElasticsearchServerUrl(ConfigurableEnvironment environment) {
 		return environment.getProperty("elasticsearch.rest_url", String.class);
 	}
@@ -0,0 +1,138 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-binary-filesystem",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.binary_storage_enabled=true",
+	"hapi.fhir.binary_storage_mode=filesystem",
+	"hapi.fhir.binary_storage_filesystem_path=" + BinaryStorageFilesystemR4IT.STORAGE_PATH,
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class BinaryStorageFilesystemR4IT {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BinaryStorageFilesystemR4IT.class);
+
+	static final String STORAGE_PATH = "./target/binary-storage-filesystem-it";
+	private static final int BLOB_SIZE = 5 * 1024 * 1024;
+
+	private IGenericClient ourClient;
+	private String ourServerBase;
+
+	@Autowired
+	private IBinaryStorageSvc myBinaryStorageSvc;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testStoreReadAndDeduplicate() throws IOException {
+		byte[] content = new byte[BLOB_SIZE];
+		new Random().nextBytes(content);
+		long contentFilesBefore = countContentFiles();
+
+		IdType first = createBinary(content);
+		IdType second = createBinary(content);
+		assertEquals(contentFilesBefore + 1, countContentFiles(), "Identical content should be stored once");
+
+		for (IdType next : new IdType[]{first, second}) {
+			long start = System.nanoTime();
+			byte[] read = readBinary(next);
+			long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+			ourLog.info("Read {} bytes of {} in {}ms ({} MB/s)", read.length, next.getValue(), millis, (read.length / 1024 / 1024) * 1000 / millis);
+			assertArrayEquals(content, read);
+		}
+
+		Binary binary = ourClient.read().resource(Binary.class).withId(first).execute();
+		assertArrayEquals(content, binary.getContent());
+	}
+
+	@Test
+	void testStoringOverABlobReleasesItsPreviousContent() throws IOException {
+		IdType resourceId = new IdType("Binary/overwritten");
+		byte[] original = new byte[64 * 1024];
+		byte[] replacement = new byte[64 * 1024];
+		new Random().nextBytes(original);
+		new Random().nextBytes(replacement);
+		long contentFilesBefore = countContentFiles();
+
+		myBinaryStorageSvc.storeBlob(resourceId, "overwritten-blob", "application/octet-stream", new ByteArrayInputStream(original));
+		assertEquals(contentFilesBefore + 1, countContentFiles());
+		myBinaryStorageSvc.storeBlob(resourceId, "overwritten-blob", "application/octet-stream", new ByteArrayInputStream(replacement));
+		assertEquals(contentFilesBefore + 1, countContentFiles(), "The original content is no longer used by any blob");
+
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		myBinaryStorageSvc.writeBlob(resourceId, "overwritten-blob", read);
+		assertArrayEquals(replacement, read.toByteArray());
+
+		myBinaryStorageSvc.expungeBlob(resourceId, "overwritten-blob");
+		assertEquals(contentFilesBefore, countContentFiles());
+	}
+
+	private IdType createBinary(byte[] theContent) {
+		Binary binary = new Binary();
+		binary.setContentType("application/octet-stream");
+		binary.setContent(theContent);
+		long start = System.nanoTime();
+		IdType id = (IdType) ourClient.create().resource(binary).execute().getId().toUnqualifiedVersionless();
+		ourLog.info("Stored {} bytes as {} in {}ms", theContent.length, id.getValue(), (System.nanoTime() - start) / 1_000_000);
+		return id;
+	}
+
+	private byte[] readBinary(IdType theId) throws IOException {
+		URL url = new URL(ourServerBase + theId.getValue() + "/$binary-access-read?path=Binary");
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		try (InputStream inputStream = connection.getInputStream()) {
+			assertEquals(200, connection.getResponseCode());
+			return IOUtils.toByteArray(inputStream);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static long countContentFiles() throws IOException {
+		Path contentPath = Paths.get(STORAGE_PATH, "content");
+		if (!Files.exists(contentPath)) {
+			return 0;
+		}
+		try (Stream<Path> files = Files.walk(contentPath)) {
+			return files.filter(Files::isRegularFile).filter(t -> !t.getParent().getFileName().toString().endsWith(".refs")).count();
+		}
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
@@ -0,0 +1,157 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.batch2.api.IJobMaintenanceService;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.bulk.export.model.BulkExportResponseJson;
+import ca.uhn.fhir.jpa.starter.common.bulk.BulkExportFileStore;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import ca.uhn.fhir.util.JsonUtil;
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-bulk-export-files",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.bulk_export_enabled=true",
+	"hapi.fhir.bulk_export_files.enabled=true",
+	"hapi.fhir.bulk_export_files.directory=target/bulk-export-it",
+	"hapi.fhir.bulk_export_files.compression=gzip",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class BulkExportFilesR4IT {
+
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	private final HttpClient myHttpClient = HttpClient.newHttpClient();
+	private IGenericClient ourClient;
+
+	@Autowired
+	private BulkExportFileStore myFileStore;
+
+	@Autowired
+	private IJobMaintenanceService myJobMaintenanceService;
+
+	@Autowired
+	private RestfulServer myRestfulServer;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testExportIsWrittenToCompressedFiles() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("Exported");
+			ourClient.create().resource(patient).execute();
+		}
+
+		HttpResponse<String> kickOff = send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/$export?_type=Patient")).header("Prefer", "respond-async").header("Accept", "application/fhir+json"), HttpResponse.BodyHandlers.ofString());
+		assertEquals(202, kickOff.statusCode());
+		String pollLocation = kickOff.headers().firstValue("Content-Location").orElseThrow();
+
+		AtomicReference<String> report = new AtomicReference<>();
+		// Spaced out so that the pass doesn't complete the job while its report is being created
+		await().atMost(2, TimeUnit.MINUTES).pollInterval(5, TimeUnit.SECONDS).until(() -> {
+			// Moves the gated job on to its next step without waiting for the scheduled maintenance pass
+			myJobMaintenanceService.runMaintenancePass();
+			HttpResponse<String> poll = send(HttpRequest.newBuilder(URI.create(pollLocation)), HttpResponse.BodyHandlers.ofString());
+			report.set(poll.body());
+			return poll.statusCode() == 200;
+		});
+		BulkExportResponseJson response = JsonUtil.deserialize(report.get(), BulkExportResponseJson.class);
+		assertEquals(1, response.getOutput().size());
+		String url = response.getOutput().get(0).getUrl();
+		assertTrue(url.contains("/Binary/" + BulkExportFileStore.FILE_ID_PREFIX), url);
+
+		HttpResponse<byte[]> compressed = send(HttpRequest.newBuilder(URI.create(url)).header("Accept-Encoding", "gzip"), HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals(200, compressed.statusCode());
+		assertEquals("gzip", compressed.headers().firstValue("Content-Encoding").orElseThrow());
+		assertEquals(5, countPatients(new String(new GZIPInputStream(new ByteArrayInputStream(compressed.body())).readAllBytes(), StandardCharsets.UTF_8)));
+
+		HttpResponse<String> plain = send(HttpRequest.newBuilder(URI.create(url)), HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, plain.statusCode());
+		assertFalse(plain.headers().firstValue("Content-Encoding").isPresent());
+		assertEquals(5, countPatients(plain.body()));
+
+		// Subject to the rules for reading Binary resources
+		AuthorizationInterceptor authorizationInterceptor = new AuthorizationInterceptor() {
+			@Override
+			public List<IAuthRule> buildRuleList(RequestDetails theRequestDetails) {
+				return new RuleBuilder().deny().read().resourcesOfType("Binary").withAnyId().andThen().allowAll().build();
+			}
+		};
+		myRestfulServer.registerInterceptor(authorizationInterceptor);
+		try {
+			assertEquals(403, send(HttpRequest.newBuilder(URI.create(url)), HttpResponse.BodyHandlers.ofString()).statusCode());
+		} finally {
+			myRestfulServer.unregisterInterceptor(authorizationInterceptor);
+		}
+	}
+
+	@Test
+	void testFilesWrittenByAnotherServerAreFound() throws IOException {
+		// As another server sharing the directory would, after this one started
+		Path jobDirectory = Files.createDirectories(myFileStore.getDirectory().resolve("other-server-job"));
+		Path file = Files.writeString(jobDirectory.resolve(BulkExportFileStore.FILE_ID_PREFIX + "other-server.ndjson.gz"), "");
+
+		assertEquals(file, myFileStore.find(BulkExportFileStore.FILE_ID_PREFIX + "other-server").orElseThrow());
+		assertFalse(myFileStore.find(BulkExportFileStore.FILE_ID_PREFIX + "no-such-file").isPresent());
+		FileUtils.deleteDirectory(jobDirectory.toFile());
+	}
+
+	@Test
+	void testFilesOfUnknownJobsAreCleanedUp() throws IOException {
+		Path orphan = Files.createDirectories(myFileStore.getDirectory().resolve("no-such-job"));
+		Files.writeString(orphan.resolve(BulkExportFileStore.FILE_ID_PREFIX + "1.ndjson"), "{}\n");
+
+		myFileStore.cleanUp();
+
+		assertFalse(Files.exists(orphan));
+	}
+
+	private static int countPatients(String theNdJson) {
+		return (int) theNdJson.lines().filter(t -> ourCtx.newJsonParser().parseResource(Patient.class, t).getNameFirstRep().getFamily().equals("Exported")).count();
+	}
+
+	private <T> HttpResponse<T> send(HttpRequest.Builder theRequest, HttpResponse.BodyHandler<T> theBodyHandler) throws IOException, InterruptedException {
+		return myHttpClient.send(theRequest.GET().build(), theBodyHandler);
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		ourClient = ourCtx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+}
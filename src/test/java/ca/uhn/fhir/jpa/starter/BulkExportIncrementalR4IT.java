@@ -0,0 +1,123 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.batch2.api.IJobMaintenanceService;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.bulk.export.model.BulkExportResponseJson;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.util.JsonUtil;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-bulk-export-incremental",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.bulk_export_enabled=true",
+	"hapi.fhir.bulk_export_incremental.enabled=true",
+	"hapi.fhir.bulk_export_incremental.overlap_seconds=0",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class BulkExportIncrementalR4IT {
+
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	private final HttpClient myHttpClient = HttpClient.newHttpClient();
+	private IGenericClient ourClient;
+
+	@Autowired
+	private IJobMaintenanceService myJobMaintenanceService;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testSecondExportOnlyContainsChanges() throws Exception {
+		createPatients(3);
+		assertEquals(3, export("analytics"));
+
+		createPatients(2);
+		assertEquals(2, export("analytics"));
+	}
+
+	@Test
+	void testConcurrentExportsOfAClientAreRejected() {
+		List<CompletableFuture<HttpResponse<String>>> kickOffs = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/$export?_type=Patient&_incremental=concurrent")).header("Prefer", "respond-async").header("Accept", "application/fhir+json").GET().build();
+			kickOffs.add(myHttpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+		}
+		List<Integer> statusCodes = kickOffs.stream().map(t -> t.join().statusCode()).sorted().collect(Collectors.toList());
+		assertEquals(List.of(202, 409, 409, 409), statusCodes);
+	}
+
+	@Test
+	void testSinceCantBeCombinedWithIncremental() throws Exception {
+		HttpResponse<String> kickOff = send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/$export?_type=Patient&_incremental=other&_since=2020-01-01T00:00:00Z")).header("Prefer", "respond-async").header("Accept", "application/fhir+json"));
+		assertEquals(400, kickOff.statusCode());
+	}
+
+	private void createPatients(int theCount) {
+		for (int i = 0; i < theCount; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("Incremental");
+			ourClient.create().resource(patient).execute();
+		}
+	}
+
+	/**
+	 * @return the number of patients in the export
+	 */
+	private int export(String theClientId) throws Exception {
+		HttpResponse<String> kickOff = send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/$export?_type=Patient&_incremental=" + theClientId)).header("Prefer", "respond-async").header("Accept", "application/fhir+json"));
+		assertEquals(202, kickOff.statusCode(), kickOff.body());
+		String pollLocation = kickOff.headers().firstValue("Content-Location").orElseThrow();
+
+		AtomicReference<String> report = new AtomicReference<>();
+		// Spaced out so that the pass doesn't complete the job while its report is being created
+		await().atMost(2, TimeUnit.MINUTES).pollInterval(5, TimeUnit.SECONDS).until(() -> {
+			myJobMaintenanceService.runMaintenancePass();
+			HttpResponse<String> poll = send(HttpRequest.newBuilder(URI.create(pollLocation)));
+			report.set(poll.body());
+			return poll.statusCode() == 200;
+		});
+
+		int count = 0;
+		for (BulkExportResponseJson.Output next : JsonUtil.deserialize(report.get(), BulkExportResponseJson.class).getOutput()) {
+			HttpResponse<String> file = send(HttpRequest.newBuilder(URI.create(next.getUrl())));
+			assertEquals(200, file.statusCode());
+			count += (int) file.body().lines().filter(t -> !t.isBlank()).count();
+		}
+		return count;
+	}
+
+	private HttpResponse<String> send(HttpRequest.Builder theRequest) throws IOException, InterruptedException {
+		return myHttpClient.send(theRequest.GET().build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		ourClient = ourCtx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+}
@@ -0,0 +1,225 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportAppCtx;
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.bulk.PostgresCopyResourceWriter;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the <code>COPY</code> path of <code>$import</code> against a PostgreSQL container. Skipped where Docker
+ * isn't available.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.driverClassName=org.postgresql.Driver",
+	"spring.jpa.properties.hibernate.dialect=ca.uhn.fhir.jpa.model.dialect.HapiFhirPostgres94Dialect",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.bulk_import_enabled=true",
+	"hapi.fhir.bulk_import_copy_enabled=true",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class BulkImportCopyPostgresR4IT {
+
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	@Container
+	private static final GenericContainer<?> ourPostgres = new GenericContainer<>(DockerImageName.parse("postgres:15-alpine"))
+		.withEnv("POSTGRES_DB", "hapi")
+		.withEnv("POSTGRES_USER", "hapi")
+		.withEnv("POSTGRES_PASSWORD", "hapi")
+		.withExposedPorts(5432)
+		// The server restarts once after initializing the database
+		.waitingFor(Wait.forLogMessage(".*database system is ready to accept connections.*\\s", 2))
+		.withStartupTimeout(Duration.ofMinutes(5));
+
+	private IGenericClient ourClient;
+	private HttpServer myFileServer;
+
+	@Autowired
+	private PostgresCopyResourceWriter myPostgresCopyResourceWriter;
+
+	@Autowired
+	private IJobCoordinator myJobCoordinator;
+
+	@Autowired
+	private DataSource myDataSource;
+
+	@LocalServerPort
+	private int port;
+
+	@DynamicPropertySource
+	static void datasource(DynamicPropertyRegistry theRegistry) {
+		theRegistry.add("spring.datasource.url", () -> "jdbc:postgresql://" + ourPostgres.getHost() + ":" + ourPostgres.getMappedPort(5432) + "/hapi");
+		theRegistry.add("spring.datasource.username", () -> "hapi");
+		theRegistry.add("spring.datasource.password", () -> "hapi");
+	}
+
+	@Test
+	void testCopiedResourcesCanBeReadSearchedAndReindexed() {
+		assertTrue(myPostgresCopyResourceWriter.isSupported());
+
+		StringBuilder patients = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			Patient patient = new Patient();
+			patient.setId("Patient/copy-" + i);
+			patient.addName().setFamily("Copied").addGiven("Given" + i);
+			if (i == 0) {
+				// Too long for HFJ_RES_VER.RES_TEXT_VC, so stored as a large object
+				patient.addAddress().addLine(StringUtils.repeat("x", 5000));
+			}
+			patients.append(ourCtx.newJsonParser().encodeResourceToString(patient)).append('\n');
+		}
+		StringBuilder observations = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			Observation observation = new Observation();
+			observation.setId("Observation/copy-" + i);
+			observation.setStatus(Observation.ObservationStatus.FINAL);
+			observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+			observation.setSubject(new Reference("Patient/copy-" + i));
+			observations.append(ourCtx.newJsonParser().encodeResourceToString(observation)).append('\n');
+		}
+		serve("/Patient.ndjson", patients.toString());
+		serve("/Observation.ndjson", observations.toString());
+
+		startImport("Patient", "Observation");
+		await().atMost(2, TimeUnit.MINUTES).until(() -> count("Observation?subject.family=Copied") == 20);
+
+		// Read
+		Patient read = ourClient.read().resource(Patient.class).withId("copy-0").execute();
+		assertEquals("1", read.getIdElement().getVersionIdPart());
+		assertEquals(5000, read.getAddressFirstRep().getLine().get(0).getValue().length());
+		assertEquals("Given7", ourClient.read().resource(Patient.class).withId("copy-7").execute().getNameFirstRep().getGivenAsSingleString());
+
+		// Search, including through the references between the copied resources
+		assertEquals(20, count("Patient?family=Copied"));
+		assertEquals(1, count("Patient?given=Given3"));
+		assertEquals(1, count("Observation?subject=Patient/copy-5"));
+
+		// The rows are complete, as if written through the regular path
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(myDataSource);
+		assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM HFJ_RESOURCE WHERE FHIR_ID LIKE 'copy-%' AND (SP_INDEX_STATUS IS NULL OR HASH_SHA256 IS NULL)", Integer.class));
+		assertEquals(40, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM HFJ_RESOURCE WHERE FHIR_ID LIKE 'copy-%' AND SP_INDEX_STATUS = 1", Integer.class));
+
+		// Reindex
+		Parameters reindex = new Parameters();
+		reindex.addParameter("url", new StringType("Patient?"));
+		reindex.addParameter("url", new StringType("Observation?"));
+		Parameters response = ourClient.operation().onServer().named("$reindex").withParameters(reindex).execute();
+		String jobId = response.getParameter("jobId").primitiveValue();
+		await().atMost(2, TimeUnit.MINUTES).until(() -> myJobCoordinator.getInstance(jobId).getStatus() == StatusEnum.COMPLETED);
+		assertEquals(20, count("Patient?family=Copied"));
+		assertEquals(1, count("Observation?subject=Patient/copy-5"));
+		assertEquals("1", ourClient.read().resource(Patient.class).withId("copy-0").execute().getIdElement().getVersionIdPart());
+	}
+
+	@Test
+	void testCopiedResourcesAreRolledBackWhenTheLeftOversFail() {
+		StringBuilder patients = new StringBuilder();
+		for (int i = 0; i < 5; i++) {
+			Patient patient = new Patient();
+			patient.setId("Patient/atomic-" + i);
+			patient.addName().setFamily("Atomic");
+			patients.append(ourCtx.newJsonParser().encodeResourceToString(patient)).append('\n');
+		}
+		// Left to the regular path because of its tag, which then rejects the reference to a missing resource
+		Patient leftOver = new Patient();
+		leftOver.setId("Patient/atomic-left-over");
+		leftOver.getMeta().addTag("http://example.org/tags", "left-over", null);
+		leftOver.addName().setFamily("Atomic");
+		leftOver.addGeneralPractitioner(new Reference("Practitioner/atomic-missing"));
+		patients.append(ourCtx.newJsonParser().encodeResourceToString(leftOver)).append('\n');
+		serve("/Patient.ndjson", patients.toString());
+
+		startImport("Patient");
+		await().atMost(2, TimeUnit.MINUTES).until(() -> !myJobCoordinator.getJobInstancesByJobDefinitionIdAndStatuses(BulkImportAppCtx.JOB_BULK_IMPORT_PULL, Set.of(StatusEnum.ERRORED, StatusEnum.FAILED), 10, 0).isEmpty());
+		assertEquals(0, count("Patient?family=Atomic"));
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(myDataSource);
+		assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM HFJ_RESOURCE WHERE FHIR_ID LIKE 'atomic-%'", Integer.class));
+	}
+
+	private void startImport(String... theResourceTypes) {
+		Parameters request = new Parameters();
+		request.addParameter("inputFormat", new StringType("application/fhir+ndjson"));
+		request.addParameter("inputSource", new UriType(fileServerBase()));
+		request.addParameter().setName("storageDetail").addPart().setName("type").setValue(new StringType("https"));
+		for (String next : theResourceTypes) {
+			Parameters.ParametersParameterComponent input = request.addParameter().setName("input");
+			input.addPart().setName("type").setValue(new StringType(next));
+			input.addPart().setName("url").setValue(new UriType(fileServerBase() + "/" + next + ".ndjson"));
+		}
+		ourClient.operation().onServer().named("$import").withParameters(request).returnMethodOutcome().withAdditionalHeader("Prefer", "respond-async").execute();
+	}
+
+	private int count(String theUrl) {
+		return ourClient.search().byUrl(theUrl).count(100).returnBundle(Bundle.class).execute().getEntry().size();
+	}
+
+	private String fileServerBase() {
+		return "http://localhost:" + myFileServer.getAddress().getPort();
+	}
+
+	private void serve(String thePath, String theNdJson) {
+		myFileServer.createContext(thePath, exchange -> {
+			byte[] body = theNdJson.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/fhir+ndjson");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream outputStream = exchange.getResponseBody()) {
+				outputStream.write(body);
+			}
+		});
+	}
+
+	@BeforeEach
+	void beforeEach() throws IOException {
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		ourClient = ourCtx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+		myFileServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		myFileServer.start();
+	}
+
+	@AfterEach
+	void afterEach() {
+		myFileServer.stop(0);
+	}
+}
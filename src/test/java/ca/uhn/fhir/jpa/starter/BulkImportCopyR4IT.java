@@ -0,0 +1,111 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.batch2.coordinator.JobDefinitionRegistry;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportAppCtx;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.bulk.PostgresCopyResourceWriter;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-bulk-import-copy",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.bulk_import_enabled=true",
+	"hapi.fhir.bulk_import_copy_enabled=true",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class BulkImportCopyR4IT {
+
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	private IGenericClient ourClient;
+	private HttpServer myFileServer;
+
+	@Autowired
+	private JobDefinitionRegistry myJobDefinitionRegistry;
+
+	@Autowired
+	private PostgresCopyResourceWriter myPostgresCopyResourceWriter;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testImportFallsBackToTheRegularPathOnOtherDatabases() {
+		assertEquals(2, myJobDefinitionRegistry.getLatestJobDefinition(BulkImportAppCtx.JOB_BULK_IMPORT_PULL).orElseThrow().getJobDefinitionVersion());
+		assertFalse(myPostgresCopyResourceWriter.isSupported());
+
+		StringBuilder patients = new StringBuilder();
+		for (int i = 0; i < 5; i++) {
+			Patient patient = new Patient();
+			patient.setId("Patient/copy-" + i);
+			patient.addName().setFamily("Imported");
+			patients.append(ourCtx.newJsonParser().encodeResourceToString(patient)).append('\n');
+		}
+		serve("/Patient.ndjson", patients.toString());
+
+		Parameters request = new Parameters();
+		request.addParameter("inputFormat", new StringType("application/fhir+ndjson"));
+		request.addParameter("inputSource", new UriType("http://localhost:" + myFileServer.getAddress().getPort()));
+		request.addParameter().setName("storageDetail").addPart().setName("type").setValue(new StringType("https"));
+		Parameters.ParametersParameterComponent input = request.addParameter().setName("input");
+		input.addPart().setName("type").setValue(new StringType("Patient"));
+		input.addPart().setName("url").setValue(new UriType("http://localhost:" + myFileServer.getAddress().getPort() + "/Patient.ndjson"));
+		ourClient.operation().onServer().named("$import").withParameters(request).returnMethodOutcome().withAdditionalHeader("Prefer", "respond-async").execute();
+
+		await().atMost(2, TimeUnit.MINUTES).until(() -> count("Patient?family=Imported") == 5);
+		assertEquals("Imported", ourClient.read().resource(Patient.class).withId("copy-0").execute().getNameFirstRep().getFamily());
+	}
+
+	private int count(String theUrl) {
+		return ourClient.search().byUrl(theUrl).returnBundle(Bundle.class).execute().getEntry().size();
+	}
+
+	private void serve(String thePath, String theNdJson) {
+		myFileServer.createContext(thePath, exchange -> {
+			byte[] body = theNdJson.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/fhir+ndjson");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream outputStream = exchange.getResponseBody()) {
+				outputStream.write(body);
+			}
+		});
+	}
+
+	@BeforeEach
+	void beforeEach() throws IOException {
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		ourClient = ourCtx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+		myFileServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		myFileServer.start();
+	}
+
+	@AfterEach
+	void afterEach() {
+		myFileServer.stop(0);
+	}
+}
@@ -0,0 +1,139 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.batch2.coordinator.JobDefinitionRegistry;
+import ca.uhn.fhir.batch2.jobs.imprt.BulkImportAppCtx;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.jpa.starter.common.bulk.NdJsonImportPipeline;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-bulk-import-pipeline",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.bulk_import_enabled=true",
+	"hapi.fhir.bulk_import_pipeline.enabled=true",
+	"hapi.fhir.bulk_import_pipeline.parser_threads=2",
+	"hapi.fhir.bulk_import_pipeline.batch_size=3",
+	"hapi.fhir.bulk_import_pipeline.queue_capacity=2",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class BulkImportPipelineR4IT {
+
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	private IGenericClient ourClient;
+	private HttpServer myFileServer;
+
+	@Autowired
+	private JobDefinitionRegistry myJobDefinitionRegistry;
+
+	@Autowired
+	private NdJsonImportPipeline myPipeline;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testImportIsParsedAndStoredInBatches() {
+		assertEquals(2, myJobDefinitionRegistry.getLatestJobDefinition(BulkImportAppCtx.JOB_BULK_IMPORT_PULL).orElseThrow().getJobDefinitionVersion());
+		double written = myMeterRegistry.get(NdJsonImportPipeline.METRIC_NAME + ".resources").tag("stage", "write").counter().count();
+
+		serve("/Patient.ndjson", createPatients("pipeline", 10));
+
+		Parameters request = new Parameters();
+		request.addParameter("inputFormat", new StringType("application/fhir+ndjson"));
+		request.addParameter("inputSource", new UriType("http://localhost:" + myFileServer.getAddress().getPort()));
+		request.addParameter().setName("storageDetail").addPart().setName("type").setValue(new StringType("https"));
+		Parameters.ParametersParameterComponent input = request.addParameter().setName("input");
+		input.addPart().setName("type").setValue(new StringType("Patient"));
+		input.addPart().setName("url").setValue(new UriType("http://localhost:" + myFileServer.getAddress().getPort() + "/Patient.ndjson"));
+		ourClient.operation().onServer().named("$import").withParameters(request).returnMethodOutcome().withAdditionalHeader("Prefer", "respond-async").execute();
+
+		await().atMost(2, TimeUnit.MINUTES).until(() -> count("Patient?family=Imported&_count=50") == 10);
+		assertEquals("Imported", ourClient.read().resource(Patient.class).withId("pipeline-9").execute().getNameFirstRep().getFamily());
+		assertEquals(written + 10, myMeterRegistry.get(NdJsonImportPipeline.METRIC_NAME + ".resources").tag("stage", "write").counter().count());
+	}
+
+	@Test
+	void testBatchesArriveInOrderAndParseErrorsFailTheChunk() {
+		List<String> written = new ArrayList<>();
+		assertEquals(10, myPipeline.run(createPatients("ordered", 10), batch -> batch.forEach(t -> written.add(t.getIdElement().getIdPart()))));
+		for (int i = 0; i < 10; i++) {
+			assertEquals("ordered-" + i, written.get(i));
+		}
+
+		assertThrows(JobExecutionFailedException.class, () -> myPipeline.run(createPatients("broken", 4) + "{not json\n" + createPatients("after", 4), batch -> {}));
+		// The failed batch and those queued behind it are no longer counted as queued
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myMeterRegistry.get(NdJsonImportPipeline.METRIC_NAME + ".queued").gauge().value() == 0);
+	}
+
+	private static String createPatients(String theIdPrefix, int theCount) {
+		StringBuilder retVal = new StringBuilder();
+		for (int i = 0; i < theCount; i++) {
+			Patient patient = new Patient();
+			patient.setId("Patient/" + theIdPrefix + "-" + i);
+			patient.addName().setFamily("Imported");
+			retVal.append(ourCtx.newJsonParser().encodeResourceToString(patient)).append('\n');
+		}
+		return retVal.toString();
+	}
+
+	private int count(String theUrl) {
+		return ourClient.search().byUrl(theUrl).returnBundle(Bundle.class).execute().getEntry().size();
+	}
+
+	private void serve(String thePath, String theNdJson) {
+		myFileServer.createContext(thePath, exchange -> {
+			byte[] body = theNdJson.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/fhir+ndjson");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream outputStream = exchange.getResponseBody()) {
+				outputStream.write(body);
+			}
+		});
+	}
+
+	@BeforeEach
+	void beforeEach() throws IOException {
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		ourClient = ourCtx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+		myFileServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		myFileServer.start();
+	}
+
+	@AfterEach
+	void afterEach() {
+		myFileServer.stop(0);
+	}
+}
@@ -0,0 +1,111 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-capability-statement-cache",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.capability_statement_cache_enabled=true",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class CapabilityStatementCacheR4IT {
+
+	private static final String DENY_HEADER = "X-Test-Deny";
+
+	private final HttpClient myHttpClient = HttpClient.newHttpClient();
+
+	@Autowired
+	private RestfulServer myRestfulServer;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testCachedCapabilityStatementAnswersIfNoneMatchWithNotModified() throws Exception {
+		HttpResponse<String> first = get("metadata", null, null);
+		assertEquals(200, first.statusCode());
+		String eTag = first.headers().firstValue(Constants.HEADER_ETAG).orElse(null);
+		assertNotNull(eTag);
+		assertTrue(first.body().contains("\"CapabilityStatement\""), first.body());
+
+		HttpResponse<String> second = get("metadata", null, null);
+		assertEquals(200, second.statusCode());
+		assertEquals(eTag, second.headers().firstValue(Constants.HEADER_ETAG).orElse(null));
+		assertEquals(first.body(), second.body());
+
+		HttpResponse<String> notModified = get("metadata", Constants.HEADER_IF_NONE_MATCH, eTag);
+		assertEquals(304, notModified.statusCode());
+		assertEquals(eTag, notModified.headers().firstValue(Constants.HEADER_ETAG).orElse(null));
+		assertEquals("", notModified.body());
+
+		HttpResponse<String> otherETag = get("metadata", Constants.HEADER_IF_NONE_MATCH, "\"stale\"");
+		assertEquals(200, otherETag.statusCode());
+		assertEquals(first.body(), otherETag.body());
+
+		HttpResponse<String> xml = get("metadata?_format=xml", null, null);
+		assertEquals(200, xml.statusCode());
+		assertTrue(xml.body().startsWith("<CapabilityStatement"), xml.body());
+		assertNotEquals(eTag, xml.headers().firstValue(Constants.HEADER_ETAG).orElse(null));
+	}
+
+	@Test
+	void testCachedCapabilityStatementGoesThroughPreHandledHooks() throws Exception {
+		assertEquals(200, get("metadata", null, null).statusCode());
+		assertEquals(200, get("metadata", null, null).statusCode());
+
+		DenyingInterceptor interceptor = new DenyingInterceptor();
+		myRestfulServer.registerInterceptor(interceptor);
+		try {
+			assertEquals(403, get("metadata", DENY_HEADER, "true").statusCode());
+			assertEquals(200, get("metadata", null, null).statusCode());
+		} finally {
+			myRestfulServer.unregisterInterceptor(interceptor);
+		}
+	}
+
+	private HttpResponse<String> get(String thePath, String theHeader, String theValue) throws IOException, InterruptedException {
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/" + thePath))
+			.header(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW)
+			.GET();
+		if (theHeader != null) {
+			request.header(theHeader, theValue);
+		}
+		return myHttpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	/**
+	 * Stands in for an AuthorizationInterceptor, which also decides at SERVER_INCOMING_REQUEST_PRE_HANDLED
+	 */
+	@Interceptor
+	public static class DenyingInterceptor {
+
+		@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+		public void preHandled(RequestDetails theRequestDetails) {
+			if (theRequestDetails.getHeader(DENY_HEADER) != null) {
+				throw new ForbiddenOperationException("Denied");
+			}
+		}
+	}
+}
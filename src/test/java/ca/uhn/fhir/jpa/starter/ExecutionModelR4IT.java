@@ -0,0 +1,103 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.ThreadPoolFactory;
+import ca.uhn.fhir.jpa.starter.common.execution.JettyVirtualThreadsCustomizer;
+import ca.uhn.fhir.jpa.starter.common.execution.VirtualThreadPoolFactory;
+import ca.uhn.fhir.jpa.starter.common.execution.VirtualThreads;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.ApplicationContext;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-execution-model",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.execution_model=virtual-threads",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class ExecutionModelR4IT {
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private ApplicationContext myAppContext;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testVirtualThreadsWhereTheJvmHasThem() {
+		// Platform threads before Java 21
+		boolean supported = VirtualThreads.isSupported();
+		assertEquals(supported, myAppContext.getBean(ThreadPoolFactory.class) instanceof VirtualThreadPoolFactory);
+		assertEquals(supported ? 1 : 0, myAppContext.getBeanNamesForType(JettyVirtualThreadsCustomizer.class).length);
+
+		Patient patient = new Patient();
+		patient.addName().setFamily("Virtual");
+		String patientId = ourClient.create().resource(patient).execute().getId().toUnqualifiedVersionless().getValue();
+
+		// The GETs of a batch run on the bundle batch pool
+		Bundle batch = new Bundle();
+		batch.setType(Bundle.BundleType.BATCH);
+		batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl(patientId);
+		batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl("Patient?family=Virtual");
+		Bundle response = ourClient.transaction().withBundle(batch).execute();
+		assertEquals("200 OK", response.getEntry().get(0).getResponse().getStatus());
+		assertEquals("200 OK", response.getEntry().get(1).getResponse().getStatus());
+		assertEquals(1, ((Bundle) response.getEntry().get(1).getResource()).getEntry().size());
+	}
+
+	@Test
+	void testVirtualThreadPoolsRunAtMostTheMaxPoolSizeOfTasksAtATime() throws InterruptedException {
+		ExecutorService threads = Executors.newCachedThreadPool();
+		try {
+			Executor executor = VirtualThreadPoolFactory.newBoundedExecutor(threads, 2);
+			AtomicInteger running = new AtomicInteger();
+			AtomicInteger maxRunning = new AtomicInteger();
+			CountDownLatch done = new CountDownLatch(10);
+			for (int i = 0; i < 10; i++) {
+				executor.execute(() -> {
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					try {
+						Thread.sleep(50);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					running.decrementAndGet();
+					done.countDown();
+				});
+			}
+			assertTrue(done.await(1, TimeUnit.MINUTES));
+			assertEquals(2, maxRunning.get());
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
@@ -0,0 +1,80 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.ig.ImplementationGuideInstaller;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-ig-installer",
+	"hapi.fhir.fhir_version=r4",
+	// Listed before the package it depends on
+	"hapi.fhir.implementationguides.derived.name=example.fhir.derived",
+	"hapi.fhir.implementationguides.derived.version=1.0.0",
+	"hapi.fhir.implementationguides.derived.url=classpath:/packages/example.fhir.derived-1.0.0.tgz",
+	"hapi.fhir.implementationguides.base.name=example.fhir.base",
+	"hapi.fhir.implementationguides.base.version=1.0.0",
+	"hapi.fhir.implementationguides.base.url=classpath:/packages/example.fhir.base-1.0.0.tgz",
+	"hapi.fhir.implementationguides.other.name=example.fhir.other",
+	"hapi.fhir.implementationguides.other.version=1.0.0",
+	"hapi.fhir.implementationguides.other.url=classpath:/packages/example.fhir.other-1.0.0.tgz",
+	// Contains the same CodeSystem URL as example.fhir.other, so the two are installed one after another
+	"hapi.fhir.implementationguides.shared.name=example.fhir.shared",
+	"hapi.fhir.implementationguides.shared.version=1.0.0",
+	"hapi.fhir.implementationguides.shared.url=classpath:/packages/example.fhir.shared-1.0.0.tgz",
+	"hapi.fhir.ig_install_parallelism=2",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class ImplementationGuideInstallerR4IT {
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private ImplementationGuideInstaller myImplementationGuideInstaller;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testPackagesAreInstalledOnce() {
+		Health health = myImplementationGuideInstaller.health();
+		assertEquals(Status.UP, health.getStatus());
+		assertEquals(4, health.getDetails().get("installed"));
+		assertEquals(0, health.getDetails().get("alreadyInstalled"));
+		for (String next : new String[]{"base", "derived", "other"}) {
+			Bundle result = ourClient.search().forResource(CodeSystem.class)
+				.where(CodeSystem.URL.matches().value("http://example.org/fhir/CodeSystem/" + next))
+				.returnBundle(Bundle.class)
+				.execute();
+			assertEquals(1, result.getEntry().size(), next);
+		}
+
+		// A restart against the same database doesn't install anything again
+		myImplementationGuideInstaller.installAll();
+		health = myImplementationGuideInstaller.health();
+		assertEquals(Status.UP, health.getStatus());
+		assertEquals(4, health.getDetails().get("installed"));
+		assertEquals(4, health.getDetails().get("alreadyInstalled"));
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
@@ -0,0 +1,150 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-ingestion-tuning",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.ingestion_tuning.enabled=true",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class IngestionTuningR4IT {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(IngestionTuningR4IT.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private EntityManagerFactory myEntityManagerFactory;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testBatchingIsConfiguredForTheDatabase() {
+		SessionFactoryOptions options = myEntityManagerFactory.unwrap(SessionFactoryImplementor.class).getSessionFactoryOptions();
+		assertEquals(50, options.getJdbcBatchSize());
+		assertTrue(options.isOrderInsertsEnabled());
+		assertTrue(options.isOrderUpdatesEnabled());
+		assertTrue(options.isJdbcBatchVersionedData());
+
+		Bundle response = ourClient.transaction().withBundle(createBundle(20, 4)).execute();
+		assertEquals(100, response.getEntry().size());
+		response.getEntry().forEach(entry -> assertTrue(entry.getResponse().getStatus().startsWith("201")));
+	}
+
+	/**
+	 * Compares the bundles per second ingested with the HAPI FHIR defaults and with the ingestion tuning, on
+	 * H2 or on the database given by the <code>benchmark.datasource.*</code> properties. Run with
+	 * <code>mvn verify -Dit.test=IngestionTuningR4IT -Dhapi.fhir.benchmark=true</code>, optionally with
+	 * <code>-Dbenchmark.bundles=</code> (of 500 entries each, 50 by default).
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "hapi.fhir.benchmark", matches = "true")
+	void benchmarkIngestion() {
+		int bundles = Integer.getInteger("benchmark.bundles", 50);
+		Map<String, Double> results = new LinkedHashMap<>();
+		results.put("defaults", benchmark("defaults", bundles, "hapi.fhir.ingestion_tuning.enabled=false"));
+		results.put("tuned", benchmark("tuned", bundles, "hapi.fhir.ingestion_tuning.enabled=true"));
+		results.forEach((name, rate) -> ourLog.info("Ingestion benchmark {}: {} bundles/s", name, String.format("%.2f", rate)));
+	}
+
+	private double benchmark(String theName, int theBundles, String theTuning) {
+		List<String> properties = new ArrayList<>(List.of(
+			"server.port=0",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.subscription.websocket_enabled=false",
+			"hapi.fhir.mdm_enabled=false",
+			"spring.main.allow-bean-definition-overriding=true",
+			"spring.datasource.url=" + System.getProperty("benchmark.datasource.url", "jdbc:h2:mem:dbr4-ingestion-benchmark-" + theName),
+			theTuning));
+		for (String next : List.of("username", "password", "driverClassName")) {
+			String value = System.getProperty("benchmark.datasource." + next);
+			if (value != null) {
+				properties.add("spring.datasource." + next + "=" + value);
+			}
+		}
+		String dialect = System.getProperty("benchmark.dialect");
+		if (dialect != null) {
+			properties.add("spring.jpa.properties.hibernate.dialect=" + dialect);
+		}
+
+		try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class, JpaStarterWebsocketDispatcherConfig.class).properties(properties.toArray(new String[0])).run()) {
+			IGenericClient client = newClient(context.getEnvironment().getProperty("local.server.port", Integer.class));
+			// Warms up the JIT, the connection pool and the statement caches
+			for (int i = 0; i < 3; i++) {
+				client.transaction().withBundle(createBundle(100, 4)).execute();
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < theBundles; i++) {
+				client.transaction().withBundle(createBundle(100, 4)).execute();
+			}
+			return theBundles / ((System.nanoTime() - start) / 1e9);
+		}
+	}
+
+	/**
+	 * @return a transaction creating patients, each with observations referring to it
+	 */
+	private static Bundle createBundle(int thePatients, int theObservationsPerPatient) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < thePatients; i++) {
+			String patientUrl = "urn:uuid:" + UUID.randomUUID();
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("http://example.org/mrn").setValue(UUID.randomUUID().toString());
+			patient.addName().setFamily("Ingest").addGiven("Patient" + i);
+			bundle.addEntry().setFullUrl(patientUrl).setResource(patient).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+			for (int j = 0; j < theObservationsPerPatient; j++) {
+				Observation observation = new Observation();
+				observation.setStatus(Observation.ObservationStatus.FINAL);
+				observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+				observation.setSubject(new Reference(patientUrl));
+				observation.getValueQuantity().setValue(60 + j).setUnit("/min");
+				bundle.addEntry().setResource(observation).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+			}
+		}
+		return bundle;
+	}
+
+	private static IGenericClient newClient(int thePort) {
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		return ourCtx.newRestfulGenericClient("http://localhost:" + thePort + "/fhir/");
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		ourClient = newClient(port);
+	}
+}
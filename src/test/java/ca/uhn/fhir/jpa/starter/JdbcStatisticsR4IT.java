@@ -0,0 +1,89 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.jdbc.JdbcStatisticsInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-jdbc-statistics",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.jdbc_statistics.enabled=true",
+	"hapi.fhir.jdbc_statistics.response_headers=true",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class JdbcStatisticsR4IT {
+
+	private IGenericClient ourClient;
+	private String ourServerBase;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testJdbcWorkIsAttributedToTheRequest() throws Exception {
+		Patient patient = new Patient();
+		patient.addName().setFamily("Counted");
+		IIdType patientId = ourClient.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+		for (int i = 0; i < 3; i++) {
+			Observation observation = new Observation();
+			observation.setStatus(Observation.ObservationStatus.FINAL);
+			observation.setSubject(new Reference(patientId));
+			ourClient.create().resource(observation).execute();
+		}
+
+		HttpResponse<String> response = HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create(ourServerBase + "Patient?family=Counted&_revinclude=Observation:subject&_pretty=true")).GET().build(), HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, response.statusCode());
+		long statements = Long.parseLong(response.headers().firstValue(JdbcStatisticsInterceptor.HEADER_STATEMENTS).orElseThrow());
+		long rows = Long.parseLong(response.headers().firstValue(JdbcStatisticsInterceptor.HEADER_ROWS).orElseThrow());
+		assertTrue(statements > 0, response.headers().toString());
+		// At least the patient and its 3 observations
+		assertTrue(rows >= 4, response.headers().toString());
+		assertTrue(response.headers().firstValue(JdbcStatisticsInterceptor.HEADER_TIME_MILLIS).isPresent());
+
+		// The shape keeps the _revinclude but not the family searched for, nor _pretty
+		DistributionSummary statementsSummary = myMeterRegistry.find(JdbcStatisticsInterceptor.STATEMENTS_METRIC_NAME)
+			.tag("operation", "search_type")
+			.tag("resource_type", "Patient")
+			.tag("shape", "_revinclude=Observation:subject&family")
+			.summary();
+		assertNotNull(statementsSummary);
+		assertEquals(1, statementsSummary.count());
+		assertEquals(statements, (long) statementsSummary.totalAmount());
+		assertNotNull(myMeterRegistry.find(JdbcStatisticsInterceptor.TIME_METRIC_NAME).tag("shape", "_revinclude=Observation:subject&family").timer());
+		assertEquals(3, myMeterRegistry.find(JdbcStatisticsInterceptor.ROWS_METRIC_NAME).tag("operation", "create").tag("resource_type", "Observation").summary().count());
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
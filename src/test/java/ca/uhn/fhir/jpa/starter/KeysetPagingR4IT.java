@@ -0,0 +1,106 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-keyset",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.paging_mode=keyset",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class KeysetPagingR4IT {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(KeysetPagingR4IT.class);
+
+	/*
+	 * Small enough for every build; raise it to check deep pages on a large result set, e.g.
+	 * mvn verify -Dit.test=KeysetPagingR4IT -Dkeyset_paging.resource_count=100000
+	 */
+	private static final int RESOURCE_COUNT = Integer.getInteger("keyset_paging.resource_count", 2_000);
+	private static final int TRANSACTION_SIZE = 500;
+	private static final int PAGE_SIZE = 100;
+
+	private IGenericClient ourClient;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testDeepPagesAreAsFastAsEarlyPages() {
+		String family = "keyset-" + System.currentTimeMillis();
+		for (int created = 0; created < RESOURCE_COUNT; created += TRANSACTION_SIZE) {
+			Bundle transaction = new Bundle();
+			transaction.setType(Bundle.BundleType.TRANSACTION);
+			for (int i = created; i < Math.min(created + TRANSACTION_SIZE, RESOURCE_COUNT); i++) {
+				Patient patient = new Patient();
+				patient.addName().setFamily(family).addGiven("Given" + i);
+				transaction.addEntry().setResource(patient).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+			}
+			ourClient.transaction().withBundle(transaction).execute();
+		}
+		ourLog.info("Created {} patients", RESOURCE_COUNT);
+
+		Bundle page = ourClient.search().forResource(Patient.class)
+			.where(Patient.FAMILY.matchesExactly().value(family))
+			.count(PAGE_SIZE)
+			.returnBundle(Bundle.class)
+			.execute();
+
+		Set<String> ids = new HashSet<>();
+		List<Long> pageMillis = new ArrayList<>();
+		page.getEntry().forEach(t -> ids.add(t.getResource().getIdElement().getIdPart()));
+		while (page.getLink(Bundle.LINK_NEXT) != null) {
+			long start = System.nanoTime();
+			page = ourClient.loadPage().next(page).execute();
+			pageMillis.add((System.nanoTime() - start) / 1_000_000);
+
+			if (pageMillis.size() > 1) {
+				String self = page.getLink(Bundle.LINK_SELF).getUrl();
+				assertTrue(self.contains("_pageId="), self);
+				assertFalse(self.contains("_getpagesoffset="), self);
+			}
+			page.getEntry().forEach(t -> ids.add(t.getResource().getIdElement().getIdPart()));
+		}
+		assertEquals(RESOURCE_COUNT, ids.size());
+
+		// Skip the first pages, which may wait on the search still loading results in the background
+		int window = Math.max(1, pageMillis.size() / 10);
+		long earlyMedian = median(pageMillis.subList(window, Math.min(pageMillis.size(), 2 * window)));
+		long lateMedian = median(pageMillis.subList(pageMillis.size() - window, pageMillis.size()));
+		ourLog.info("Paged through {} pages, early median {}ms, late median {}ms", pageMillis.size() + 1, earlyMedian, lateMedian);
+		assertTrue(lateMedian <= earlyMedian * 3 + 50, "Late pages took " + lateMedian + "ms vs " + earlyMedian + "ms for early pages");
+	}
+
+	private static long median(List<Long> theValues) {
+		List<Long> sorted = new ArrayList<>(theValues);
+		Collections.sort(sorted);
+		return sorted.get(sorted.size() / 2);
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
@@ -0,0 +1,75 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.load.LoadGenerator;
+import ca.uhn.fhir.jpa.starter.load.LoadTestReport;
+import ca.uhn.fhir.jpa.starter.load.LoadTestScenario;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Only runs with the <code>load-test</code> profile, which points it at the scenario, the baseline report and the
+ * report to write, see <code>src/test/resources/load-test/scenario.yaml</code>
+ */
+@EnabledIfSystemProperty(named = LoadTestR4IT.SCENARIO_PROPERTY, matches = ".+")
+class LoadTestR4IT {
+
+	static final String SCENARIO_PROPERTY = "load.test.scenario";
+	static final String BASELINE_PROPERTY = "load.test.baseline";
+	static final String REPORT_PROPERTY = "load.test.report";
+	static final String EXECUTION_MODEL_PROPERTY = "load.test.execution_model";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(LoadTestR4IT.class);
+
+	@Test
+	void testThroughputAndLatencyDidNotRegress() throws Exception {
+		LoadTestScenario scenario = LoadTestScenario.load(Path.of(System.getProperty(SCENARIO_PROPERTY)));
+
+		// Command line arguments, so that they take precedence over the application.yaml of the starter
+		List<String> args = new ArrayList<>(List.of(
+			"--server.port=0",
+			"--spring.datasource.url=" + scenario.getJdbc_url(),
+			"--spring.main.allow-bean-definition-overriding=true",
+			"--hapi.fhir.fhir_version=r4",
+			"--hapi.fhir.subscription.websocket_enabled=false",
+			"--hapi.fhir.mdm_enabled=false"));
+		scenario.getServer_properties().forEach((key, value) -> args.add("--" + key + "=" + value));
+		String executionModel = System.getProperty(EXECUTION_MODEL_PROPERTY, "");
+		if (!executionModel.isBlank()) {
+			args.add("--hapi.fhir.execution_model=" + executionModel);
+		}
+
+		JsonNode report;
+		try (ConfigurableApplicationContext appContext = new SpringApplicationBuilder(Application.class, JpaStarterWebsocketDispatcherConfig.class).run(args.toArray(new String[0]))) {
+			int port = ((ServletWebServerApplicationContext) appContext).getWebServer().getPort();
+			report = new LoadGenerator(scenario, "http://localhost:" + port + "/fhir/").run().toJson();
+		}
+
+		Path reportPath = Path.of(System.getProperty(REPORT_PROPERTY, "target/load-test/report.json"));
+		LoadTestReport.write(report, reportPath);
+		ourLog.info("Load test report, written to {}:\n{}", reportPath, LoadTestReport.format(report));
+
+		String baselineProperty = System.getProperty(BASELINE_PROPERTY, "");
+		Path baselinePath = baselineProperty.isBlank() ? null : Path.of(baselineProperty);
+		JsonNode baseline = null;
+		if (baselinePath != null && Files.isRegularFile(baselinePath)) {
+			baseline = LoadTestReport.read(baselinePath);
+		} else {
+			ourLog.info("No baseline report at {}, only checking the absolute limits of the scenario", baselinePath);
+		}
+		List<String> regressions = LoadTestReport.findRegressions(report, baseline, scenario.getRegression());
+		assertTrue(regressions.isEmpty(), String.join("\n", regressions));
+	}
+}
@@ -0,0 +1,101 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.ig.ImplementationGuideInstaller;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The configured packages have no URL and aren't published to any registry, so they (and the package they
+ * depend on) can only be installed from the seeded local package cache
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-local-package-cache",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.implementationguides.derived.name=example.fhir.derived",
+	"hapi.fhir.implementationguides.derived.version=1.0.0",
+	"hapi.fhir.implementationguides.other.name=example.fhir.other",
+	"hapi.fhir.implementationguides.other.version=1.0.0",
+	"hapi.fhir.ig_package_cache_path=" + LocalPackageCacheR4IT.CACHE_PATH,
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class LocalPackageCacheR4IT {
+
+	static final String CACHE_PATH = "./target/local-package-cache-it";
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private ImplementationGuideInstaller myImplementationGuideInstaller;
+
+	@LocalServerPort
+	private int port;
+
+	@BeforeAll
+	static void seedCache() throws IOException {
+		FileUtils.deleteDirectory(new File(CACHE_PATH));
+		Path cache = Files.createDirectories(Paths.get(CACHE_PATH));
+		for (String next : new String[]{"base", "derived", "other"}) {
+			try (InputStream tarball = LocalPackageCacheR4IT.class.getResourceAsStream("/packages/example.fhir." + next + "-1.0.0.tgz")) {
+				// Seeds are indexed by their package.json, not by their file name
+				Files.copy(tarball, cache.resolve("seed-" + next + ".tgz"));
+			}
+		}
+	}
+
+	@Test
+	void testPackagesAreInstalledFromSeededCache() {
+		Health health = myImplementationGuideInstaller.health();
+		assertEquals(Status.UP, health.getStatus());
+		assertEquals(3, health.getDetails().get("installed"));
+		for (String next : new String[]{"base", "derived", "other"}) {
+			Bundle result = ourClient.search().forResource(CodeSystem.class)
+				.where(CodeSystem.URL.matches().value("http://example.org/fhir/CodeSystem/" + next))
+				.returnBundle(Bundle.class)
+				.execute();
+			assertEquals(1, result.getEntry().size(), next);
+
+			// Seeds are read where they are, so the directory may be a read-only image layer
+			assertTrue(Files.isRegularFile(Paths.get(CACHE_PATH, "seed-" + next + ".tgz")), next);
+			assertFalse(Files.exists(Paths.get(CACHE_PATH, "index", "example.fhir." + next + "#1.0.0")), next);
+		}
+	}
+
+	@AfterAll
+	static void afterAll() throws IOException {
+		FileUtils.deleteDirectory(new File(CACHE_PATH));
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
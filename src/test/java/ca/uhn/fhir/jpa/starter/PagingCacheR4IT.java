@@ -0,0 +1,127 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.search.cache.DatabaseSearchCacheSvcImpl;
+import ca.uhn.fhir.jpa.search.cache.ISearchCacheSvc;
+import ca.uhn.fhir.jpa.starter.common.paging.CachingSearchCoordinatorSvc;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-paging-cache",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.paging_cache.enabled=true",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class PagingCacheR4IT {
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@Autowired
+	private ISearchCacheSvc mySearchCacheSvc;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testPagesAreServedFromTheCacheOnceRead() {
+		String secondPageUrl = searchSecondPageUrl("Cached");
+
+		double misses = gets("miss");
+		double hits = gets("hit");
+		Bundle first = ourClient.loadPage().byUrl(secondPageUrl).andReturnBundle(Bundle.class).execute();
+		assertEquals(misses + 1, gets("miss"));
+		assertEquals(hits, gets("hit"));
+
+		Bundle second = ourClient.loadPage().byUrl(secondPageUrl).andReturnBundle(Bundle.class).execute();
+		assertEquals(misses + 1, gets("miss"));
+		assertEquals(hits + 1, gets("hit"));
+		assertEquals(first.getEntry().size(), second.getEntry().size());
+		for (int i = 0; i < first.getEntry().size(); i++) {
+			assertEquals(first.getEntry().get(i).getResource().getIdElement().toUnqualifiedVersionless(), second.getEntry().get(i).getResource().getIdElement().toUnqualifiedVersionless());
+		}
+	}
+
+	@Test
+	void testPagesExpireWhenTheirSearchMayBeDeleted() throws InterruptedException {
+		long expireSearchResultsAfterMillis = myDaoConfig.getExpireSearchResultsAfterMillis();
+		Long reuseCachedSearchResultsForMillis = myDaoConfig.getReuseCachedSearchResultsForMillis();
+		DatabaseSearchCacheSvcImpl searchCacheSvc = (DatabaseSearchCacheSvcImpl) mySearchCacheSvc;
+		try {
+			myDaoConfig.setExpireSearchResultsAfterMillis(2000);
+			myDaoConfig.setReuseCachedSearchResultsForMillis(null);
+			String secondPageUrl = searchSecondPageUrl("Expiring");
+			ourClient.loadPage().byUrl(secondPageUrl).andReturnBundle(Bundle.class).execute();
+			ourClient.loadPage().byUrl(secondPageUrl).andReturnBundle(Bundle.class).execute();
+
+			// The page was read a moment ago, but the search was created more than 2s ago and gets deleted
+			Thread.sleep(2500);
+			searchCacheSvc.setCutoffSlackForUnitTest(0);
+			mySearchCacheSvc.pollForStaleSearchesAndDeleteThem();
+
+			double hits = gets("hit");
+			assertThrows(ResourceGoneException.class, () -> ourClient.loadPage().byUrl(secondPageUrl).andReturnBundle(Bundle.class).execute());
+			assertEquals(hits, gets("hit"));
+		} finally {
+			searchCacheSvc.setCutoffSlackForUnitTest(10000);
+			myDaoConfig.setExpireSearchResultsAfterMillis(expireSearchResultsAfterMillis);
+			myDaoConfig.setReuseCachedSearchResultsForMillis(reuseCachedSearchResultsForMillis);
+		}
+	}
+
+	/**
+	 * Creates patients with the given family name, searches them 5 at a time and returns the link to the second page
+	 */
+	private String searchSecondPageUrl(String theFamily) {
+		Bundle transaction = new Bundle();
+		transaction.setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < 20; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily(theFamily).addGiven("Given" + i);
+			transaction.addEntry().setResource(patient).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+		}
+		ourClient.transaction().withBundle(transaction).execute();
+
+		Bundle page = ourClient.search().forResource(Patient.class)
+			.where(Patient.FAMILY.matchesExactly().value(theFamily))
+			.count(5)
+			.returnBundle(Bundle.class)
+			.execute();
+		assertNotNull(page.getLink(Bundle.LINK_NEXT));
+		return page.getLink(Bundle.LINK_NEXT).getUrl();
+	}
+
+	private double gets(String theResult) {
+		return myMeterRegistry.get("cache.gets").tag("cache", CachingSearchCoordinatorSvc.CACHE_NAME).tag("result", theResult).functionCounter().count();
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
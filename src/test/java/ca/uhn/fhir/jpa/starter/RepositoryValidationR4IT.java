@@ -0,0 +1,101 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
+import ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-repository-validation",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.enable_repository_validating_interceptor=true",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class RepositoryValidationR4IT {
+
+	private static final String PATIENT_PROFILE = "http://example.org/fhir/StructureDefinition/test-patient";
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private IRepositoryValidationInterceptorFactory myFactory;
+
+	@Autowired
+	private RepositoryValidatingInterceptor myRepositoryValidatingInterceptor;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testRulesFollowStructureDefinitionChanges() {
+		ourClient.create().resource(new Patient()).execute();
+
+		IIdType profileId = ourClient.create().resource(newProfile(PATIENT_PROFILE, "Patient")).execute().getId();
+		assertThrows(PreconditionFailedException.class, () -> ourClient.create().resource(new Patient()).execute());
+		Patient profiled = new Patient();
+		profiled.getMeta().addProfile(PATIENT_PROFILE);
+		ourClient.create().resource(profiled).execute();
+
+		ourClient.delete().resourceById(profileId.toUnqualifiedVersionless()).execute();
+		ourClient.create().resource(new Patient()).execute();
+	}
+
+	@Test
+	void testRebuildPagesThroughStoredStructureDefinitions() {
+		Bundle transaction = new Bundle();
+		transaction.setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < 250; i++) {
+			transaction.addEntry()
+				.setResource(newProfile("http://example.org/fhir/StructureDefinition/test-observation-" + i, "Observation"))
+				.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("StructureDefinition");
+		}
+		ourClient.transaction().withBundle(transaction).execute();
+		String rules = myRepositoryValidatingInterceptor.describeRules();
+		assertTrue(rules.contains("test-observation-249"), rules);
+
+		assertSame(myRepositoryValidatingInterceptor, myFactory.buildUsingStoredStructureDefinitions());
+		assertEquals(rules, myRepositoryValidatingInterceptor.describeRules());
+	}
+
+	private static StructureDefinition newProfile(String theUrl, String theType) {
+		StructureDefinition retVal = new StructureDefinition();
+		retVal.setUrl(theUrl);
+		retVal.setName("TestProfile");
+		retVal.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		retVal.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+		retVal.setKind(StructureDefinition.StructureDefinitionKind.RESOURCE);
+		retVal.setAbstract(false);
+		retVal.setType(theType);
+		retVal.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/" + theType);
+		retVal.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+		retVal.getDifferential().addElement().setPath(theType).setId(theType);
+		return retVal;
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
@@ -0,0 +1,74 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.metrics.RequestMetricsInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-request-metrics",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.request_metrics.enabled=true",
+	"hapi.fhir.request_metrics.slo_millis=50,500,5000",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class RequestMetricsR4IT {
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testRequestsAreTimedByOperationResourceTypeAndStatus() {
+		Patient patient = new Patient();
+		patient.addName().setFamily("Timed");
+		IIdType patientId = ourClient.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+		ourClient.read().resource(Patient.class).withId(patientId).execute();
+		ourClient.read().resource(Patient.class).withId(patientId).execute();
+		ourClient.search().forResource(Patient.class).returnBundle(Bundle.class).execute();
+		assertThrows(ResourceNotFoundException.class, () -> ourClient.read().resource(Patient.class).withId("does-not-exist").execute());
+
+		assertEquals(1, timer("create", "Patient", "201").count());
+		assertEquals(2, timer("read", "Patient", "200").count());
+		assertEquals(1, timer("search_type", "Patient", "200").count());
+		assertEquals(1, timer("read", "Patient", "404").count());
+		assertEquals("none", timer("read", "Patient", "200").getId().getTag("tenant"));
+		// One bucket per SLO
+		assertEquals(3, timer("read", "Patient", "200").takeSnapshot().histogramCounts().length);
+	}
+
+	private Timer timer(String theOperation, String theResourceType, String theStatus) {
+		Timer retVal = myMeterRegistry.find(RequestMetricsInterceptor.METRIC_NAME).tag("operation", theOperation).tag("resource_type", theResourceType).tag("status", theStatus).timer();
+		assertNotNull(retVal, theOperation + " " + theResourceType + " " + theStatus);
+		return retVal;
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
@@ -0,0 +1,73 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.validation.SampledResponseValidatingInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-response-sampling",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.validation.response_sampling.enabled=true",
+	"hapi.fhir.validation.response_sampling.rate=1.0",
+	"hapi.fhir.validation.response_sampling.resource_types=Patient",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class ResponseSamplingR4IT {
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testSampledResponsesAreValidatedInBackground() {
+		Patient patient = new Patient();
+		patient.addName().setFamily("Sampled");
+		IIdType patientId = ourClient.create().resource(patient).execute().getId().toUnqualifiedVersionless();
+		Observation observation = new Observation();
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.getCode().setText("Not sampled");
+		IIdType observationId = ourClient.create().resource(observation).execute().getId().toUnqualifiedVersionless();
+
+		for (int i = 0; i < 3; i++) {
+			ourClient.read().resource(Patient.class).withId(patientId).execute();
+			ourClient.read().resource(Observation.class).withId(observationId).execute();
+		}
+
+		await().atMost(1, TimeUnit.MINUTES).until(() -> validated("Patient") >= 3);
+		assertEquals(0, validated("Observation"));
+	}
+
+	private long validated(String theResourceType) {
+		return myMeterRegistry.find(SampledResponseValidatingInterceptor.METRIC_PREFIX).tag("resource_type", theResourceType).timers().stream().mapToLong(Timer::count).sum();
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
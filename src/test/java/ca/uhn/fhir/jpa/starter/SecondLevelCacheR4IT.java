@@ -0,0 +1,120 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import ca.uhn.fhir.jpa.starter.common.cache.CacheInvalidationEntity;
+import ca.uhn.fhir.jpa.starter.common.cache.CaffeineRegionFactory;
+import ca.uhn.fhir.jpa.starter.common.cache.SecondLevelCacheInvalidator;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-second-level-cache",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.second_level_cache.enabled=true",
+	"hapi.fhir.second_level_cache.invalidation_mode=database",
+	"hapi.fhir.second_level_cache.invalidation_poll_millis=200",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class SecondLevelCacheR4IT {
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@Autowired
+	private EntityManagerFactory myEntityManagerFactory;
+
+	@Autowired
+	private PlatformTransactionManager myTransactionManager;
+
+	@PersistenceContext
+	private EntityManager myEntityManager;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testResourcesAreCachedAndInvalidatedAcrossServers() {
+		Practitioner practitioner = new Practitioner();
+		practitioner.addName().setFamily("Cached");
+		IIdType id = ourClient.create().resource(practitioner).execute().getId().toUnqualifiedVersionless();
+		Long pid = id.getIdPartAsLong();
+
+		double hits = gets("hit");
+		ourClient.read().resource(Practitioner.class).withId(id).execute();
+		ourClient.read().resource(Practitioner.class).withId(id).execute();
+		assertTrue(gets("hit") > hits);
+		assertTrue(myEntityManagerFactory.getCache().contains(ResourceTable.class, pid));
+
+		// Changes made here are sent to the other servers
+		double sent = invalidations("sent");
+		practitioner.setId(id);
+		practitioner.getNameFirstRep().setFamily("Updated");
+		ourClient.update().resource(practitioner).execute();
+		assertTrue(invalidations("sent") > sent);
+		await().atMost(1, TimeUnit.MINUTES).until(() -> countInvalidations(pid) > 0);
+		assertEquals("Updated", ourClient.read().resource(Practitioner.class).withId(id).execute().getNameFirstRep().getFamily());
+
+		// Changes made by another server are evicted here
+		assertTrue(myEntityManagerFactory.getCache().contains(ResourceTable.class, pid));
+		new TransactionTemplate(myTransactionManager).executeWithoutResult(t -> {
+			CacheInvalidationEntity invalidation = new CacheInvalidationEntity();
+			invalidation.setId(UUID.randomUUID().toString());
+			invalidation.setNodeId(UUID.randomUUID().toString());
+			invalidation.setCreated(new Date());
+			invalidation.setEntityName(ResourceTable.class.getName());
+			invalidation.setEntityId(pid.toString());
+			myEntityManager.persist(invalidation);
+		});
+		await().atMost(1, TimeUnit.MINUTES).until(() -> !myEntityManagerFactory.getCache().contains(ResourceTable.class, pid));
+		assertTrue(invalidations("received") >= 1);
+	}
+
+	private double gets(String theResult) {
+		return myMeterRegistry.get("cache.gets").tag("cache", CaffeineRegionFactory.CACHE_NAME_PREFIX + "ResourceTable").tag("result", theResult).functionCounter().count();
+	}
+
+	private double invalidations(String theDirection) {
+		return myMeterRegistry.get(SecondLevelCacheInvalidator.METRIC_NAME).tag("direction", theDirection).counter().count();
+	}
+
+	private long countInvalidations(Long thePid) {
+		return new TransactionTemplate(myTransactionManager).execute(t -> myEntityManager
+			.createQuery("SELECT COUNT(e) FROM CacheInvalidationEntity e WHERE e.myEntityId = :id", Long.class)
+			.setParameter("id", thePid.toString())
+			.getSingleResult());
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
@@ -0,0 +1,90 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.search.SlowSearchProvider;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.util.ParametersUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-slow-searches",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.slow_searches.enabled=true",
+	"hapi.fhir.slow_searches.capacity=2",
+	"hapi.fhir.slow_searches.min_millis=0",
+	"management.endpoints.web.exposure.include=health,slowsearches",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class SlowSearchR4IT {
+
+	private IGenericClient ourClient;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testSlowestSearchesAreKeptWithTheirSql() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("Slow" + i);
+			ourClient.create().resource(patient).execute();
+		}
+		ourClient.search().forResource(Patient.class).where(Patient.FAMILY.matches().value("Slow0")).returnBundle(Bundle.class).execute();
+		ourClient.search().forResource(Patient.class).where(Patient.FAMILY.matches().value("Slow1")).returnBundle(Bundle.class).execute();
+		ourClient.search().forResource(Patient.class).where(Patient.FAMILY.matches().value("Slow2")).returnBundle(Bundle.class).execute();
+
+		Parameters slowSearches = ourClient.operation().onServer().named(SlowSearchProvider.OPERATION_SLOW_SEARCHES).withNoParameters(Parameters.class).useHttpGet().execute();
+		// Only the slowest 2 of the 3 searches are kept
+		assertEquals(2, slowSearches.getParameter().size());
+		Parameters.ParametersParameterComponent slowest = slowSearches.getParameterFirstRep();
+		assertEquals("search", slowest.getName());
+		String query = ParametersUtil.getParameterPartValueAsString(FhirContext.forR4Cached(), slowest, "query");
+		// Without the values searched for, but with those shaping the search
+		assertEquals("Patient?family=?&_count=20", query);
+		assertEquals("1", ParametersUtil.getParameterPartValueAsString(FhirContext.forR4Cached(), slowest, "result_count"));
+		List<Parameters.ParametersParameterComponent> statements = slowest.getPart().stream().filter(t -> t.getName().equals("statement")).collect(Collectors.toList());
+		assertFalse(statements.isEmpty());
+		assertTrue(statements.stream().anyMatch(t -> ParametersUtil.getParameterPartValueAsString(FhirContext.forR4Cached(), t, "sql").contains("HFJ_SPIDX_STRING")), statements.toString());
+		double totalMillis = Double.parseDouble(ParametersUtil.getParameterPartValueAsString(FhirContext.forR4Cached(), slowest, "total_millis"));
+		double secondTotalMillis = Double.parseDouble(ParametersUtil.getParameterPartValueAsString(FhirContext.forR4Cached(), slowSearches.getParameter().get(1), "total_millis"));
+		assertTrue(totalMillis >= secondTotalMillis);
+
+		HttpResponse<String> response = HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/actuator/slowsearches")).GET().build(), HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, response.statusCode());
+		JsonNode endpoint = new ObjectMapper().readTree(response.body());
+		assertEquals(2, endpoint.size(), response.body());
+		assertEquals(query, endpoint.get(0).get("query").asText());
+		assertTrue(endpoint.get(0).get("statementCount").asLong() > 0, response.body());
+		assertTrue(endpoint.get(0).get("statements").get(0).has("sql"), response.body());
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
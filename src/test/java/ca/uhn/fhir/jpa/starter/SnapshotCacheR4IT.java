@@ -0,0 +1,165 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.jpa.starter.common.validation.SnapshotCachingValidationSupport;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.r4.model.ElementDefinition;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-snapshot-cache",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.validation.snapshot_cache_path=" + SnapshotCacheR4IT.CACHE_PATH,
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class SnapshotCacheR4IT {
+
+	static final String CACHE_PATH = "./target/snapshot-cache-it";
+
+	private IGenericClient ourClient;
+
+	@LocalServerPort
+	private int port;
+
+	@BeforeAll
+	static void clearCache() throws IOException {
+		FileUtils.deleteDirectory(new File(CACHE_PATH));
+	}
+
+	@Test
+	void testGeneratedSnapshotsAreReusedAcrossRestarts() throws IOException {
+		StructureDefinition profile = new StructureDefinition();
+		profile.setUrl("http://example.org/fhir/StructureDefinition/snapshot-cache-patient");
+		profile.setName("SnapshotCachePatient");
+		profile.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		profile.setKind(StructureDefinition.StructureDefinitionKind.RESOURCE);
+		profile.setAbstract(false);
+		profile.setType("Patient");
+		profile.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Patient");
+		profile.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+		ElementDefinition birthDate = profile.getDifferential().addElement().setPath("Patient.birthDate");
+		birthDate.setId("Patient.birthDate");
+		birthDate.setMin(1);
+		ourClient.create().resource(profile).execute();
+
+		// Without the birth date the profile requires
+		Patient patient = new Patient();
+		patient.getMeta().addProfile(profile.getUrl());
+		patient.addName().setFamily("Snapshot");
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName("resource").setResource(patient);
+		assertThrows(PreconditionFailedException.class, () -> ourClient.operation().onType(Patient.class).named("$validate").withParameters(parameters).execute());
+		assertEquals(1, countSnapshotFiles());
+
+		// A restarted server finds the snapshot without generating it (which this delegate can't)
+		FhirContext ctx = FhirContext.forR4Cached();
+		DefaultProfileValidationSupport delegate = new DefaultProfileValidationSupport(ctx);
+		SnapshotCachingValidationSupport restarted = new SnapshotCachingValidationSupport(ctx, delegate, Paths.get(CACHE_PATH), 100);
+		StructureDefinition snapshot = (StructureDefinition) restarted.generateSnapshot(new ValidationSupportContext(restarted), profile, "", null, "");
+		assertNotNull(snapshot);
+		assertFalse(snapshot.getSnapshot().getElement().isEmpty());
+	}
+
+	@Test
+	void testChangedBaseProfileIsNotServedAnOutdatedSnapshot(@TempDir Path theDirectory) {
+		FhirContext ctx = FhirContext.forR4Cached();
+		PrePopulatedValidationSupport profiles = new PrePopulatedValidationSupport(ctx);
+		ValidationSupportChain chain = new ValidationSupportChain(new DefaultProfileValidationSupport(ctx), profiles, new SnapshotGeneratingValidationSupport(ctx));
+		SnapshotCachingValidationSupport cache = new SnapshotCachingValidationSupport(ctx, chain, theDirectory, 100);
+		ValidationSupportContext context = new ValidationSupportContext(cache);
+
+		profiles.addStructureDefinition(newProfile("base", "http://hl7.org/fhir/StructureDefinition/Patient", "Patient.birthDate"));
+		StructureDefinition derived = newProfile("derived", "http://example.org/fhir/StructureDefinition/base", "Patient.gender");
+		StructureDefinition snapshot = (StructureDefinition) cache.generateSnapshot(context, derived, "", null, "");
+		assertEquals(1, findSnapshotElement(snapshot, "Patient.birthDate").getMin());
+		assertEquals(1, findSnapshotElement(snapshot, "Patient.gender").getMin());
+
+		// The derived profile is unchanged, but its base now constrains another element
+		profiles.addStructureDefinition(newProfile("base", "http://hl7.org/fhir/StructureDefinition/Patient", "Patient.active"));
+		snapshot = (StructureDefinition) cache.generateSnapshot(context, derived.copy(), "", null, "");
+		assertEquals(0, findSnapshotElement(snapshot, "Patient.birthDate").getMin());
+		assertEquals(1, findSnapshotElement(snapshot, "Patient.active").getMin());
+		assertEquals(1, findSnapshotElement(snapshot, "Patient.gender").getMin());
+	}
+
+	@Test
+	void testLeastRecentlyUsedSnapshotsArePruned(@TempDir Path theDirectory) throws IOException {
+		FhirContext ctx = FhirContext.forR4Cached();
+		ValidationSupportChain chain = new ValidationSupportChain(new DefaultProfileValidationSupport(ctx), new SnapshotGeneratingValidationSupport(ctx));
+		SnapshotCachingValidationSupport cache = new SnapshotCachingValidationSupport(ctx, chain, theDirectory, 10);
+		ValidationSupportContext context = new ValidationSupportContext(cache);
+
+		for (int i = 0; i < 25; i++) {
+			cache.generateSnapshot(context, newProfile("pruned-" + i, "http://hl7.org/fhir/StructureDefinition/Patient", "Patient.birthDate"), "", null, "");
+			assertTrue(countSnapshotFiles(theDirectory) <= 10, "After snapshot " + i);
+		}
+	}
+
+	private static StructureDefinition newProfile(String theName, String theBaseDefinition, String theRequiredElement) {
+		StructureDefinition retVal = new StructureDefinition();
+		retVal.setUrl("http://example.org/fhir/StructureDefinition/" + theName);
+		retVal.setName(theName.replace("-", ""));
+		retVal.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		retVal.setKind(StructureDefinition.StructureDefinitionKind.RESOURCE);
+		retVal.setAbstract(false);
+		retVal.setType("Patient");
+		retVal.setBaseDefinition(theBaseDefinition);
+		retVal.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+		retVal.getDifferential().addElement().setPath(theRequiredElement).setMin(1).setId(theRequiredElement);
+		return retVal;
+	}
+
+	private static ElementDefinition findSnapshotElement(StructureDefinition theSnapshot, String thePath) {
+		return theSnapshot.getSnapshot().getElement().stream().filter(t -> t.getPath().equals(thePath)).findFirst().orElseThrow();
+	}
+
+	private long countSnapshotFiles() throws IOException {
+		return countSnapshotFiles(Paths.get(CACHE_PATH));
+	}
+
+	private static long countSnapshotFiles(Path theDirectory) throws IOException {
+		try (Stream<Path> files = Files.walk(theDirectory)) {
+			return files.filter(t -> t.getFileName().toString().endsWith(".snapshot") && !t.getParent().endsWith("tmp")).count();
+		}
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
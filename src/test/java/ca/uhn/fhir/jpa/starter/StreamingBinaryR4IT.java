@@ -0,0 +1,185 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-streaming-binary",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.binary_storage_enabled=true",
+	"hapi.fhir.binary_storage_mode=filesystem",
+	"hapi.fhir.binary_storage_filesystem_path=" + StreamingBinaryR4IT.STORAGE_PATH,
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class StreamingBinaryR4IT {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(StreamingBinaryR4IT.class);
+
+	static final String STORAGE_PATH = "./target/streaming-binary-it";
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/*
+	 * Twice the -Xmx512m heap the failsafe execution pins for this test (the JVM runs both the client and the
+	 * server), so buffering the upload or download anywhere would fail
+	 */
+	private static final long UPLOAD_SIZE = 1024L * 1024 * 1024;
+
+	private IGenericClient ourClient;
+	private String ourServerBase;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testUploadAndDownloadLargerThanHeap() throws IOException {
+		assumeTrue(Runtime.getRuntime().maxMemory() < UPLOAD_SIZE, "Runs only in the streaming-binary-it failsafe execution, with a heap smaller than the upload");
+		Binary binary = new Binary();
+		binary.setContentType("application/octet-stream");
+		IdType id = (IdType) ourClient.create().resource(binary).execute().getId().toUnqualifiedVersionless();
+
+		long start = System.nanoTime();
+		String uploadedHash = upload(id);
+		long uploadMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+		ourLog.info("Uploaded {} bytes (max heap {}) in {}ms ({} MB/s)", UPLOAD_SIZE, Runtime.getRuntime().maxMemory(), uploadMillis, UPLOAD_SIZE / 1024 / 1024 * 1000 / uploadMillis);
+
+		start = System.nanoTime();
+		HttpURLConnection connection = openRead(id, null);
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("bytes", connection.getHeaderField("Accept-Ranges"));
+		assertEquals(UPLOAD_SIZE, connection.getContentLengthLong());
+		Hasher hasher = Hashing.sha256().newHasher();
+		long downloaded = 0;
+		byte[] buffer = new byte[CHUNK_SIZE];
+		try (InputStream inputStream = connection.getInputStream()) {
+			int read;
+			while ((read = inputStream.read(buffer)) != -1) {
+				hasher.putBytes(buffer, 0, read);
+				downloaded += read;
+			}
+		}
+		long downloadMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+		ourLog.info("Downloaded {} bytes in {}ms ({} MB/s)", downloaded, downloadMillis, downloaded / 1024 / 1024 * 1000 / downloadMillis);
+		assertEquals(UPLOAD_SIZE, downloaded);
+		assertEquals(uploadedHash, hasher.hash().toString());
+	}
+
+	@Test
+	void testRangeRequests() throws IOException {
+		int size = 1024 * 1024;
+		Binary binary = new Binary();
+		binary.setContentType("application/octet-stream");
+		binary.setContent(generate(0, size));
+		IdType id = (IdType) ourClient.create().resource(binary).execute().getId().toUnqualifiedVersionless();
+
+		HttpURLConnection connection = openRead(id, "bytes=1000-1999");
+		assertEquals(206, connection.getResponseCode());
+		assertEquals("bytes 1000-1999/" + size, connection.getHeaderField("Content-Range"));
+		assertArrayEquals(generate(1000, 1000), readFully(connection));
+
+		connection = openRead(id, "bytes=-10");
+		assertEquals(206, connection.getResponseCode());
+		assertArrayEquals(generate(size - 10, 10), readFully(connection));
+
+		connection = openRead(id, "bytes=" + (size - 5) + "-");
+		assertEquals(206, connection.getResponseCode());
+		assertArrayEquals(generate(size - 5, 5), readFully(connection));
+
+		connection = openRead(id, "bytes=" + size + "-");
+		assertEquals(416, connection.getResponseCode());
+		assertEquals("bytes */" + size, connection.getHeaderField("Content-Range"));
+
+		connection = openRead(id, "bytes=0-1,5-6");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals(size, readFully(connection).length);
+	}
+
+	private String upload(IdType theId) throws IOException {
+		URL url = new URL(ourServerBase + theId.getValue() + "/$binary-access-write?path=Binary");
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(UPLOAD_SIZE);
+		connection.setRequestProperty("Content-Type", "application/octet-stream");
+		connection.setRequestProperty("Accept", "application/fhir+json");
+		connection.setReadTimeout(1200 * 1000);
+
+		Hasher hasher = Hashing.sha256().newHasher();
+		try (OutputStream outputStream = connection.getOutputStream()) {
+			for (long position = 0; position < UPLOAD_SIZE; position += CHUNK_SIZE) {
+				byte[] chunk = generate(position, (int) Math.min(CHUNK_SIZE, UPLOAD_SIZE - position));
+				hasher.putBytes(chunk);
+				outputStream.write(chunk);
+			}
+		}
+		assertEquals(200, connection.getResponseCode());
+		String response = new String(readFully(connection));
+		assertTrue(response.contains("externalized-binary-id"), response);
+		return hasher.hash().toString();
+	}
+
+	private HttpURLConnection openRead(IdType theId, String theRange) throws IOException {
+		URL url = new URL(ourServerBase + theId.getValue() + "/$binary-access-read?path=Binary");
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setReadTimeout(1200 * 1000);
+		if (theRange != null) {
+			connection.setRequestProperty("Range", theRange);
+		}
+		return connection;
+	}
+
+	private static byte[] readFully(HttpURLConnection theConnection) throws IOException {
+		try (InputStream inputStream = theConnection.getInputStream()) {
+			return IOUtils.toByteArray(inputStream);
+		}
+	}
+
+	/**
+	 * Deterministic content, so any part of a blob can be checked without keeping the whole blob around
+	 */
+	private static byte[] generate(long theOffset, int theLength) {
+		byte[] retVal = new byte[theLength];
+		for (int i = 0; i < theLength; i++) {
+			long position = theOffset + i;
+			retVal[i] = (byte) ((position * 2654435761L) >>> 13);
+		}
+		return retVal;
+	}
+
+	@AfterAll
+	static void afterAll() throws IOException {
+		FileUtils.deleteDirectory(new File(STORAGE_PATH));
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
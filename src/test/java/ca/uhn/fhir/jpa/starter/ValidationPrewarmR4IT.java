@@ -0,0 +1,70 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidationSupportPrewarmer;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.ElementDefinition;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-validation-prewarm",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.validation.prewarm.enabled=true",
+	"hapi.fhir.validation.prewarm.parallelism=2",
+	"hapi.fhir.validation.prewarm.value_sets=http://hl7.org/fhir/ValueSet/administrative-gender",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class ValidationPrewarmR4IT {
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private ValidationSupportPrewarmer myValidationSupportPrewarmer;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testStoredProfilesAndBoundValueSetsArePrewarmed() {
+		// Prewarmed on startup, with nothing stored yet
+		assertEquals(0, myValidationSupportPrewarmer.getProfileCount());
+		assertEquals(1, myValidationSupportPrewarmer.getValueSetCount());
+
+		StructureDefinition profile = new StructureDefinition();
+		profile.setUrl("http://example.org/fhir/StructureDefinition/prewarmed-patient");
+		profile.setName("PrewarmedPatient");
+		profile.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		profile.setKind(StructureDefinition.StructureDefinitionKind.RESOURCE);
+		profile.setAbstract(false);
+		profile.setType("Patient");
+		profile.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Patient");
+		profile.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+		ElementDefinition maritalStatus = profile.getDifferential().addElement().setPath("Patient.maritalStatus");
+		maritalStatus.setId("Patient.maritalStatus");
+		maritalStatus.getBinding().setStrength(Enumerations.BindingStrength.REQUIRED).setValueSet("http://hl7.org/fhir/ValueSet/marital-status");
+		ourClient.create().resource(profile).execute();
+
+		myValidationSupportPrewarmer.prewarm();
+		assertEquals(1, myValidationSupportPrewarmer.getProfileCount());
+		assertEquals(2, myValidationSupportPrewarmer.getValueSetCount());
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
@@ -0,0 +1,140 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.cache.CacheInvalidation;
+import ca.uhn.fhir.jpa.starter.common.cache.CacheInvalidationBroadcaster;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidationResultCache;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, JpaStarterWebsocketDispatcherConfig.class}, properties = {
+	"spring.datasource.url=jdbc:h2:mem:dbr4-validation-result-cache",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.validation.requests_enabled=true",
+	"hapi.fhir.validation.result_cache_enabled=true",
+	"hapi.fhir.subscription.websocket_enabled=false",
+	"hapi.fhir.mdm_enabled=false",
+	"spring.main.allow-bean-definition-overriding=true"})
+class ValidationResultCacheR4IT {
+
+	private IGenericClient ourClient;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@LocalServerPort
+	private int port;
+
+	@Test
+	void testIdenticalResourcesAreValidatedOnce() {
+		Patient patient = new Patient();
+		patient.addName().setFamily("Cached");
+		patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+
+		double hits = gets("hit");
+		double misses = gets("miss");
+		ourClient.create().resource(patient).encodedJson().execute();
+		ourClient.create().resource(patient).encodedJson().execute();
+		assertEquals(misses + 1, gets("miss"));
+		assertEquals(hits + 1, gets("hit"));
+
+		// Same content in another encoding
+		ourClient.create().resource(patient).encoded(EncodingEnum.XML).execute();
+		assertEquals(misses + 2, gets("miss"));
+		assertEquals(hits + 1, gets("hit"));
+
+		// Invalid resources are still rejected when their outcome comes from the cache
+		Patient invalid = new Patient();
+		invalid.addIdentifier().setSystem("not a uri").setValue("1");
+		assertThrows(UnprocessableEntityException.class, () -> ourClient.create().resource(invalid).execute());
+		assertThrows(UnprocessableEntityException.class, () -> ourClient.create().resource(invalid).execute());
+		assertEquals(hits + 2, gets("hit"));
+
+		// Terminology changes invalidate the cache
+		CodeSystem codeSystem = new CodeSystem();
+		codeSystem.setUrl("http://example.org/fhir/CodeSystem/validation-result-cache");
+		codeSystem.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		codeSystem.setContent(CodeSystem.CodeSystemContentMode.COMPLETE);
+		codeSystem.addConcept().setCode("a").setDisplay("A");
+		ourClient.create().resource(codeSystem).execute();
+		double missesBefore = gets("miss");
+		ourClient.create().resource(patient).execute();
+		assertEquals(missesBefore + 1, gets("miss"));
+	}
+
+	@Test
+	void testUnknownElementIsNotServedTheOutcomeOfTheCleanResource() {
+		String clean = "{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Lenient\"}]}";
+		String withUnknownElement = "{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Lenient\"}],\"unknownElement\":\"x\"}";
+		ourClient.create().resource(clean).execute();
+
+		double hits = gets("hit");
+		double misses = gets("miss");
+		assertThrows(UnprocessableEntityException.class, () -> ourClient.create().resource(withUnknownElement).execute());
+		assertEquals(hits, gets("hit"));
+		assertEquals(misses + 1, gets("miss"));
+	}
+
+	@Test
+	void testInvalidationsAreSharedWithTheOtherServers() {
+		List<CacheInvalidation> sent = new ArrayList<>();
+		List<Consumer<CacheInvalidation>> listeners = new ArrayList<>();
+		ValidationResultCache cache = new ValidationResultCache(FhirContext.forR4Cached(), 10, Duration.ofMinutes(10));
+		cache.setBroadcaster(new CacheInvalidationBroadcaster() {
+			@Override
+			public void broadcast(CacheInvalidation theInvalidation) {
+				sent.add(theInvalidation);
+			}
+
+			@Override
+			public void addListener(Consumer<CacheInvalidation> theListener) {
+				listeners.add(theListener);
+			}
+		});
+
+		cache.resourceCreated(new Patient());
+		assertEquals(List.of(), sent);
+		cache.resourceCreated(new CodeSystem());
+		assertEquals(List.of(CacheInvalidation.forRegion(ValidationResultCache.CACHE_NAME)), sent);
+
+		cache.put("key", List.of());
+		listeners.forEach(t -> t.accept(CacheInvalidation.forRegion("another-region")));
+		assertNotNull(cache.get("key"));
+		listeners.forEach(t -> t.accept(CacheInvalidation.forRegion(ValidationResultCache.CACHE_NAME)));
+		assertNull(cache.get("key"));
+	}
+
+	private double gets(String theResult) {
+		return myMeterRegistry.get("cache.gets").tag("cache", ValidationResultCache.CACHE_NAME).tag("result", theResult).functionCounter().count();
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ctx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
+		String ourServerBase = "http://localhost:" + port + "/fhir/";
+		ourClient = ctx.newRestfulGenericClient(ourServerBase);
+	}
+}
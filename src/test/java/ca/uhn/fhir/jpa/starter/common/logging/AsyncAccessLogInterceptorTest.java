@@ -0,0 +1,167 @@
+package ca.uhn.fhir.jpa.starter.common.logging;
+
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AsyncAccessLogInterceptorTest {
+
+	private static final String LOGGER_NAME = "test.access";
+	private static final int PRODUCERS = 8;
+
+	private final ListAppender<ILoggingEvent> myAppender = new ListAppender<>();
+	private final MeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private AsyncAccessLogInterceptor myInterceptor;
+
+	@Test
+	void testEntriesAreWrittenInOrderAcrossBatches() throws InterruptedException {
+		myInterceptor = newInterceptor(AccessLogDropPolicyEnum.DROP, 64, 3);
+		for (int i = 0; i < 10; i++) {
+			log("Patient/" + i);
+		}
+		assertEquals(10, backlog());
+
+		myInterceptor.start();
+		awaitWritten(10);
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			expected.add("GET http://localhost/fhir/Patient/" + i);
+		}
+		assertEquals(expected, lines());
+		assertEquals(0, backlog());
+	}
+
+	@Test
+	void testFullBufferDropsUnderConcurrentProducers() throws Exception {
+		myInterceptor = newInterceptor(AccessLogDropPolicyEnum.DROP, 16, 4);
+
+		// The writer isn't started yet, so the first 16 entries fill the buffer and every other one is dropped
+		runProducers(100);
+		assertEquals(16, backlog());
+		assertEquals(PRODUCERS * 100 - 16, myInterceptor.getDroppedCount());
+		assertEquals(PRODUCERS * 100 - 16, myMeterRegistry.get(AsyncAccessLogInterceptor.METRIC_PREFIX + ".dropped").functionCounter().count());
+
+		myInterceptor.start();
+		awaitWritten(16);
+		assertEquals(16, lines().size());
+	}
+
+	@Test
+	void testFullBufferBlocksUnderConcurrentProducers() throws Exception {
+		myInterceptor = newInterceptor(AccessLogDropPolicyEnum.BLOCK, 16, 4);
+		myInterceptor.start();
+
+		runProducers(250);
+		awaitWritten(PRODUCERS * 250);
+		assertEquals(0, myInterceptor.getDroppedCount());
+		assertEquals(PRODUCERS * 250, lines().size());
+	}
+
+	@Test
+	void testCloseWritesTheBacklog() throws InterruptedException {
+		myInterceptor = newInterceptor(AccessLogDropPolicyEnum.DROP, 1024, 16);
+		for (int i = 0; i < 500; i++) {
+			log("Patient/" + i);
+		}
+		myInterceptor.start();
+		myInterceptor.close();
+
+		assertEquals(500, written());
+		assertEquals(500, lines().size());
+		assertEquals(0, backlog());
+	}
+
+	private void runProducers(int theEntriesPerProducer) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<?>> producers = new ArrayList<>();
+			for (int i = 0; i < PRODUCERS; i++) {
+				int producer = i;
+				producers.add(executor.submit(() -> {
+					start.await();
+					for (int j = 0; j < theEntriesPerProducer; j++) {
+						log("Patient/" + producer + "-" + j);
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> next : producers) {
+				next.get(1, TimeUnit.MINUTES);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void log(String thePath) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/fhir/" + thePath);
+		ServletRequestDetails requestDetails = new ServletRequestDetails();
+		requestDetails.setServletRequest(request);
+		requestDetails.setServletResponse(new MockHttpServletResponse());
+		myInterceptor.processingCompletedNormally(requestDetails);
+	}
+
+	private void awaitWritten(int theCount) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+		while (written() < theCount && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(theCount, written());
+	}
+
+	private double written() {
+		return myMeterRegistry.get(AsyncAccessLogInterceptor.METRIC_PREFIX + ".written").functionCounter().count();
+	}
+
+	private double backlog() {
+		return myMeterRegistry.get(AsyncAccessLogInterceptor.METRIC_PREFIX + ".backlog").gauge().value();
+	}
+
+	private List<String> lines() {
+		synchronized (myAppender) {
+			return myAppender.list.stream().map(ILoggingEvent::getFormattedMessage).collect(Collectors.toList());
+		}
+	}
+
+	private AsyncAccessLogInterceptor newInterceptor(AccessLogDropPolicyEnum theDropPolicy, int theBufferSize, int theBatchSize) {
+		AsyncAccessLogInterceptor retVal = new AsyncAccessLogInterceptor(LOGGER_NAME, "${requestVerb} ${requestUrl}", "ERROR ${requestVerb} ${requestUrl}", true, AccessLogFormatEnum.TEXT, theDropPolicy, theBufferSize, theBatchSize, null);
+		retVal.bindMetrics(myMeterRegistry);
+		return retVal;
+	}
+
+	@BeforeEach
+	void beforeEach() {
+		myAppender.start();
+		((Logger) LoggerFactory.getLogger(LOGGER_NAME)).addAppender(myAppender);
+	}
+
+	@AfterEach
+	void afterEach() throws InterruptedException {
+		if (myInterceptor != null) {
+			myInterceptor.close();
+		}
+		((Logger) LoggerFactory.getLogger(LOGGER_NAME)).detachAppender(myAppender);
+	}
+}
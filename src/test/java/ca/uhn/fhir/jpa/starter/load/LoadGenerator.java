@@ -0,0 +1,196 @@
+package ca.uhn.fhir.jpa.starter.load;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the mix of requests of a {@link LoadTestScenario} against a running server, as a closed loop: each of
+ * <code>concurrency</code> clients sends its next request as soon as the previous one has been answered. The
+ * clients run on virtual threads where the JVM has them (Java 21 and later), and on platform threads otherwise.
+ */
+public class LoadGenerator {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(LoadGenerator.class);
+	private static final int FAMILY_COUNT = 10;
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final IParser myParser = myFhirContext.newJsonParser();
+	private final LoadTestScenario myScenario;
+	private final String myServerBase;
+	private final List<String> myPatientIds = new ArrayList<>();
+	private final LoadOperationEnum[] myOperationMix;
+	private HttpClient myHttpClient;
+
+	/**
+	 * @param theServerBase e.g. <code>http://localhost:8080/fhir/</code>
+	 */
+	public LoadGenerator(LoadTestScenario theScenario, String theServerBase) {
+		myScenario = theScenario;
+		myServerBase = theServerBase;
+
+		// One slot per unit of weight, so that a random slot picks an operation in proportion to its weight
+		List<LoadOperationEnum> operationMix = new ArrayList<>();
+		for (Map.Entry<String, Integer> next : theScenario.getOperations().entrySet()) {
+			for (int i = 0; i < next.getValue(); i++) {
+				operationMix.add(LoadOperationEnum.forName(next.getKey()));
+			}
+		}
+		myOperationMix = operationMix.toArray(new LoadOperationEnum[0]);
+	}
+
+	public LoadTestReport run() throws Exception {
+		ExecutorService executor = newExecutor();
+		myHttpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+		try {
+			seed();
+
+			ourLog.info("Warming up for {}s with {} clients", myScenario.getWarmup_seconds(), myScenario.getConcurrency());
+			drive(executor, new LoadTestReport(), TimeUnit.SECONDS.toNanos(myScenario.getWarmup_seconds()));
+
+			ourLog.info("Measuring for {}s with {} clients", myScenario.getDuration_seconds(), myScenario.getConcurrency());
+			LoadTestReport report = new LoadTestReport();
+			long duration = drive(executor, report, TimeUnit.SECONDS.toNanos(myScenario.getDuration_seconds()));
+			report.setDurationNanos(duration);
+			return report;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void seed() throws IOException, InterruptedException {
+		int remaining = myScenario.getSeed_patients();
+		while (remaining > 0) {
+			int count = Math.min(remaining, 50);
+			HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(myServerBase)).POST(HttpRequest.BodyPublishers.ofString(myParser.encodeResourceToString(newTransaction(count)))));
+			if (response.statusCode() != 200) {
+				throw new IllegalStateException("Failed to seed the server: " + response.statusCode() + " " + response.body());
+			}
+			for (Bundle.BundleEntryComponent next : myParser.parseResource(Bundle.class, response.body()).getEntry()) {
+				IdType id = new IdType(next.getResponse().getLocation());
+				if ("Patient".equals(id.getResourceType())) {
+					myPatientIds.add(id.getIdPart());
+				}
+			}
+			remaining -= count;
+		}
+		ourLog.info("Seeded the server with {} patients", myPatientIds.size());
+	}
+
+	/**
+	 * @return how long the clients ran for, in nanoseconds
+	 */
+	private long drive(ExecutorService theExecutor, LoadTestReport theReport, long theDurationNanos) throws Exception {
+		String transaction = myParser.encodeResourceToString(newTransaction(myScenario.getTransaction_size()));
+		long start = System.nanoTime();
+		long deadline = start + theDurationNanos;
+		List<Future<?>> clients = new ArrayList<>();
+		for (int i = 0; i < myScenario.getConcurrency(); i++) {
+			clients.add(theExecutor.submit(() -> {
+				while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+					LoadOperationEnum operation = myOperationMix[ThreadLocalRandom.current().nextInt(myOperationMix.length)];
+					HttpRequest.Builder request = newRequest(operation, transaction);
+					long requestStart = System.nanoTime();
+					try {
+						HttpResponse<String> response = send(request);
+						if (response.statusCode() / 100 == 2) {
+							theReport.recordSuccess(operation, System.nanoTime() - requestStart);
+						} else {
+							theReport.recordError(operation);
+						}
+					} catch (IOException e) {
+						theReport.recordError(operation);
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<?> next : clients) {
+			next.get();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private HttpRequest.Builder newRequest(LoadOperationEnum theOperation, String theTransaction) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		switch (theOperation) {
+			case READ:
+				return HttpRequest.newBuilder(URI.create(myServerBase + "Patient/" + myPatientIds.get(random.nextInt(myPatientIds.size())))).GET();
+			case SEARCH:
+				return HttpRequest.newBuilder(URI.create(myServerBase + "Patient?family=Load" + random.nextInt(FAMILY_COUNT) + "&_count=20")).GET();
+			case CREATE:
+				return HttpRequest.newBuilder(URI.create(myServerBase + "Patient")).POST(HttpRequest.BodyPublishers.ofString(myFhirContext.newJsonParser().encodeResourceToString(newPatient(random.nextInt(FAMILY_COUNT)))));
+			case TRANSACTION:
+				return HttpRequest.newBuilder(URI.create(myServerBase)).POST(HttpRequest.BodyPublishers.ofString(theTransaction));
+			default:
+				throw new IllegalArgumentException(theOperation.name());
+		}
+	}
+
+	private HttpResponse<String> send(HttpRequest.Builder theRequest) throws IOException, InterruptedException {
+		return myHttpClient.send(theRequest
+			.header(Constants.HEADER_CONTENT_TYPE, Constants.CT_FHIR_JSON_NEW)
+			.header(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW)
+			.timeout(Duration.ofMinutes(1))
+			.build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	private Bundle newTransaction(int thePatientCount) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < thePatientCount; i++) {
+			String patientUrl = "urn:uuid:" + UUID.randomUUID();
+			bundle.addEntry().setFullUrl(patientUrl).setResource(newPatient(i % FAMILY_COUNT)).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+
+			Observation observation = new Observation();
+			observation.setStatus(Observation.ObservationStatus.FINAL);
+			observation.getCode().addCoding().setSystem("http://loinc.org").setCode("29463-7");
+			observation.setSubject(new Reference(patientUrl));
+			observation.setValue(new Quantity().setValue(60 + i).setSystem("http://unitsofmeasure.org").setCode("kg"));
+			bundle.addEntry().setFullUrl("urn:uuid:" + UUID.randomUUID()).setResource(observation).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+		}
+		return bundle;
+	}
+
+	private static Patient newPatient(int theFamily) {
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("http://example.org/mrn").setValue(UUID.randomUUID().toString());
+		patient.addName().setFamily("Load" + theFamily).addGiven("Test");
+		return patient;
+	}
+
+	private ExecutorService newExecutor() {
+		try {
+			ExecutorService retVal = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			ourLog.info("Running the load-test clients on virtual threads");
+			return retVal;
+		} catch (ReflectiveOperationException e) {
+			ourLog.info("Virtual threads need Java 21, running the load-test clients on {} platform threads", myScenario.getConcurrency());
+			return Executors.newFixedThreadPool(myScenario.getConcurrency());
+		}
+	}
+}
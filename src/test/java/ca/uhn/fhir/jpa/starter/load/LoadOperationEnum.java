@@ -0,0 +1,41 @@
+package ca.uhn.fhir.jpa.starter.load;
+
+import java.util.Locale;
+
+/**
+ * The requests a load test mixes, named in the <code>operations</code> of its {@link LoadTestScenario}
+ */
+public enum LoadOperationEnum {
+
+	/**
+	 * <code>GET Patient/[id]</code> of a seeded patient
+	 */
+	READ,
+
+	/**
+	 * <code>GET Patient?family=[name]&amp;_count=20</code>, matching a tenth of the seeded patients
+	 */
+	SEARCH,
+
+	/**
+	 * <code>POST Patient</code>
+	 */
+	CREATE,
+
+	/**
+	 * A transaction creating <code>transaction_size</code> patients with an observation each
+	 */
+	TRANSACTION;
+
+	public static LoadOperationEnum forName(String theName) {
+		try {
+			return valueOf(theName.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown load-test operation " + theName + ", expected one of read, search, create and transaction");
+		}
+	}
+
+	public String getName() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,150 @@
+package ca.uhn.fhir.jpa.starter.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latencies and errors of a load test, per operation. Latencies are recorded in microseconds, up to a minute,
+ * with 3 significant digits.
+ */
+public class LoadTestReport {
+
+	public static final String TOTAL = "total";
+
+	private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+	private static final ObjectMapper ourObjectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+	private final Map<LoadOperationEnum, Histogram> myHistograms = new EnumMap<>(LoadOperationEnum.class);
+	private final Map<LoadOperationEnum, LongAdder> myErrors = new EnumMap<>(LoadOperationEnum.class);
+	private long myDurationNanos;
+
+	public LoadTestReport() {
+		for (LoadOperationEnum next : LoadOperationEnum.values()) {
+			myHistograms.put(next, new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3));
+			myErrors.put(next, new LongAdder());
+		}
+	}
+
+	public void recordSuccess(LoadOperationEnum theOperation, long theLatencyNanos) {
+		myHistograms.get(theOperation).recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(theLatencyNanos), HIGHEST_TRACKABLE_MICROS));
+	}
+
+	public void recordError(LoadOperationEnum theOperation) {
+		myErrors.get(theOperation).increment();
+	}
+
+	public void setDurationNanos(long theDurationNanos) {
+		myDurationNanos = theDurationNanos;
+	}
+
+	/**
+	 * @return the report as JSON: for each operation and in total, the requests per second, the error percentage
+	 * and the latency percentiles in milliseconds
+	 */
+	public ObjectNode toJson() {
+		ObjectNode retVal = ourObjectMapper.createObjectNode();
+		retVal.put("duration_seconds", myDurationNanos / 1e9);
+		Histogram total = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+		long totalErrors = 0;
+		ObjectNode operations = retVal.putObject("operations");
+		for (LoadOperationEnum next : LoadOperationEnum.values()) {
+			Histogram histogram = myHistograms.get(next);
+			long errors = myErrors.get(next).sum();
+			if (histogram.getTotalCount() + errors > 0) {
+				operations.set(next.getName(), toJson(histogram, errors));
+				total.add(histogram);
+				totalErrors += errors;
+			}
+		}
+		retVal.set(TOTAL, toJson(total, totalErrors));
+		return retVal;
+	}
+
+	private ObjectNode toJson(Histogram theHistogram, long theErrors) {
+		long requests = theHistogram.getTotalCount() + theErrors;
+		ObjectNode retVal = ourObjectMapper.createObjectNode();
+		retVal.put("requests", requests);
+		retVal.put("requests_per_second", requests / (myDurationNanos / 1e9));
+		retVal.put("error_percent", requests > 0 ? 100.0 * theErrors / requests : 0);
+		retVal.put("p50_millis", theHistogram.getValueAtPercentile(50) / 1000.0);
+		retVal.put("p90_millis", theHistogram.getValueAtPercentile(90) / 1000.0);
+		retVal.put("p99_millis", theHistogram.getValueAtPercentile(99) / 1000.0);
+		retVal.put("p999_millis", theHistogram.getValueAtPercentile(99.9) / 1000.0);
+		retVal.put("max_millis", theHistogram.getMaxValue() / 1000.0);
+		return retVal;
+	}
+
+	/**
+	 * @return a table of {@link #toJson()} for the log
+	 */
+	public static String format(JsonNode theReport) {
+		StringBuilder retVal = new StringBuilder(String.format(Locale.ROOT, "%-12s %10s %10s %8s %10s %10s %10s %10s %10s%n", "operation", "requests", "req/s", "errors%", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		theReport.get("operations").fields().forEachRemaining(t -> formatRow(retVal, t.getKey(), t.getValue()));
+		formatRow(retVal, TOTAL, theReport.get(TOTAL));
+		return retVal.toString();
+	}
+
+	private static void formatRow(StringBuilder theBuilder, String theName, JsonNode theRow) {
+		theBuilder.append(String.format(Locale.ROOT, "%-12s %10d %10.1f %8.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n", theName,
+			theRow.get("requests").asLong(), theRow.get("requests_per_second").asDouble(), theRow.get("error_percent").asDouble(),
+			theRow.get("p50_millis").asDouble(), theRow.get("p90_millis").asDouble(), theRow.get("p99_millis").asDouble(),
+			theRow.get("p999_millis").asDouble(), theRow.get("max_millis").asDouble()));
+	}
+
+	/**
+	 * @param theBaseline the report of an earlier run, or <code>null</code> to only check the absolute limits
+	 * @return the limits of the scenario the report breaks, empty if none
+	 */
+	public static List<String> findRegressions(JsonNode theReport, JsonNode theBaseline, LoadTestScenario.Regression theLimits) {
+		List<String> retVal = new ArrayList<>();
+		JsonNode total = theReport.get(TOTAL);
+		double requestsPerSecond = total.get("requests_per_second").asDouble();
+		double p99 = total.get("p99_millis").asDouble();
+
+		if (total.get("error_percent").asDouble() > theLimits.getMax_error_percent()) {
+			retVal.add(String.format(Locale.ROOT, "%.2f%% of the requests failed, more than %.2f%%", total.get("error_percent").asDouble(), theLimits.getMax_error_percent()));
+		}
+		if (theLimits.getMin_requests_per_second() != null && requestsPerSecond < theLimits.getMin_requests_per_second()) {
+			retVal.add(String.format(Locale.ROOT, "%.1f requests/s is below the minimum of %.1f", requestsPerSecond, theLimits.getMin_requests_per_second()));
+		}
+		if (theLimits.getMax_p99_millis() != null && p99 > theLimits.getMax_p99_millis()) {
+			retVal.add(String.format(Locale.ROOT, "The p99 latency of %.2f ms is above the maximum of %.2f ms", p99, theLimits.getMax_p99_millis()));
+		}
+
+		if (theBaseline != null) {
+			double baselineRequestsPerSecond = theBaseline.get(TOTAL).get("requests_per_second").asDouble();
+			double baselineP99 = theBaseline.get(TOTAL).get("p99_millis").asDouble();
+			if (requestsPerSecond < baselineRequestsPerSecond * (1 - theLimits.getMax_throughput_drop_percent() / 100)) {
+				retVal.add(String.format(Locale.ROOT, "%.1f requests/s is more than %.1f%% below the baseline of %.1f", requestsPerSecond, theLimits.getMax_throughput_drop_percent(), baselineRequestsPerSecond));
+			}
+			if (p99 > baselineP99 * (1 + theLimits.getMax_p99_increase_percent() / 100)) {
+				retVal.add(String.format(Locale.ROOT, "The p99 latency of %.2f ms is more than %.1f%% above the baseline of %.2f ms", p99, theLimits.getMax_p99_increase_percent(), baselineP99));
+			}
+		}
+		return retVal;
+	}
+
+	public static JsonNode read(Path thePath) throws IOException {
+		return ourObjectMapper.readTree(thePath.toFile());
+	}
+
+	public static void write(JsonNode theReport, Path thePath) throws IOException {
+		Files.createDirectories(thePath.toAbsolutePath().getParent());
+		ourObjectMapper.writeValue(thePath.toFile(), theReport);
+	}
+}
@@ -0,0 +1,171 @@
+package ca.uhn.fhir.jpa.starter.load;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.Constructor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A load-test scenario, read from a YAML file such as <code>src/test/resources/load-test/scenario.yaml</code>
+ */
+public class LoadTestScenario {
+
+	private String jdbc_url = "jdbc:h2:mem:load-test";
+	private Integer seed_patients = 200;
+	private Integer concurrency = 64;
+	private Integer warmup_seconds = 10;
+	private Integer duration_seconds = 60;
+	private Integer transaction_size = 10;
+	private Map<String, Object> server_properties = new LinkedHashMap<>();
+	private Map<String, Integer> operations = new LinkedHashMap<>();
+	private Regression regression = new Regression();
+
+	public static LoadTestScenario load(Path thePath) throws IOException {
+		try (InputStream inputStream = Files.newInputStream(thePath)) {
+			LoadTestScenario scenario = new Yaml(new Constructor(LoadTestScenario.class)).load(inputStream);
+			if (scenario.getOperations().isEmpty()) {
+				throw new IllegalArgumentException("The load-test scenario " + thePath + " has no operations");
+			}
+			for (String next : scenario.getOperations().keySet()) {
+				LoadOperationEnum.forName(next);
+			}
+			return scenario;
+		}
+	}
+
+	public String getJdbc_url() {
+		return jdbc_url;
+	}
+
+	public void setJdbc_url(String jdbc_url) {
+		this.jdbc_url = jdbc_url;
+	}
+
+	public Integer getSeed_patients() {
+		return seed_patients;
+	}
+
+	public void setSeed_patients(Integer seed_patients) {
+		this.seed_patients = seed_patients;
+	}
+
+	public Integer getConcurrency() {
+		return concurrency;
+	}
+
+	public void setConcurrency(Integer concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public Integer getWarmup_seconds() {
+		return warmup_seconds;
+	}
+
+	public void setWarmup_seconds(Integer warmup_seconds) {
+		this.warmup_seconds = warmup_seconds;
+	}
+
+	public Integer getDuration_seconds() {
+		return duration_seconds;
+	}
+
+	public void setDuration_seconds(Integer duration_seconds) {
+		this.duration_seconds = duration_seconds;
+	}
+
+	public Integer getTransaction_size() {
+		return transaction_size;
+	}
+
+	public void setTransaction_size(Integer transaction_size) {
+		this.transaction_size = transaction_size;
+	}
+
+	/**
+	 * @return the properties the server is started with, e.g. <code>hapi.fhir.execution_model</code>
+	 */
+	public Map<String, Object> getServer_properties() {
+		return server_properties;
+	}
+
+	public void setServer_properties(Map<String, Object> server_properties) {
+		this.server_properties = server_properties;
+	}
+
+	/**
+	 * @return the relative weight of each {@link LoadOperationEnum} in the mix, by name
+	 */
+	public Map<String, Integer> getOperations() {
+		return operations;
+	}
+
+	public void setOperations(Map<String, Integer> operations) {
+		this.operations = operations;
+	}
+
+	public Regression getRegression() {
+		return regression;
+	}
+
+	public void setRegression(Regression regression) {
+		this.regression = regression;
+	}
+
+	/**
+	 * When the run fails the build. The relative limits compare against the baseline, a report of an earlier run,
+	 * and only apply when there is one.
+	 */
+	public static class Regression {
+
+		private Double max_error_percent = 1.0;
+		private Double max_throughput_drop_percent = 10.0;
+		private Double max_p99_increase_percent = 25.0;
+		private Double min_requests_per_second;
+		private Double max_p99_millis;
+
+		public Double getMax_error_percent() {
+			return max_error_percent;
+		}
+
+		public void setMax_error_percent(Double max_error_percent) {
+			this.max_error_percent = max_error_percent;
+		}
+
+		public Double getMax_throughput_drop_percent() {
+			return max_throughput_drop_percent;
+		}
+
+		public void setMax_throughput_drop_percent(Double max_throughput_drop_percent) {
+			this.max_throughput_drop_percent = max_throughput_drop_percent;
+		}
+
+		public Double getMax_p99_increase_percent() {
+			return max_p99_increase_percent;
+		}
+
+		public void setMax_p99_increase_percent(Double max_p99_increase_percent) {
+			this.max_p99_increase_percent = max_p99_increase_percent;
+		}
+
+		public Double getMin_requests_per_second() {
+			return min_requests_per_second;
+		}
+
+		public void setMin_requests_per_second(Double min_requests_per_second) {
+			this.min_requests_per_second = min_requests_per_second;
+		}
+
+		public Double getMax_p99_millis() {
+			return max_p99_millis;
+		}
+
+		public void setMax_p99_millis(Double max_p99_millis) {
+			this.max_p99_millis = max_p99_millis;
+		}
+	}
+}